@@ -18,24 +18,40 @@ package com.android.builder;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import com.android.annotations.VisibleForTesting;
+import com.android.builder.cache.BuildStateCache;
 import com.android.builder.compiler.AidlProcessor;
+import com.android.builder.compiler.JavaAidlProcessor;
 import com.android.builder.compiler.SourceGenerator;
+import com.android.builder.dexing.ClassPathChecker;
+import com.android.builder.dexing.DexSharder;
+import com.android.builder.dexing.DuplicateClassException;
+import com.android.builder.dexing.InProcessDx;
+import com.android.builder.dexing.IncrementalDexer;
+import com.android.builder.dexing.PreDexCache;
 import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.JavaResourceProcessor;
 import com.android.builder.packaging.Packager;
+import com.android.builder.packaging.Packager.JarStatus;
 import com.android.builder.packaging.PackagerException;
+import com.android.builder.packaging.PackagingFilter;
 import com.android.builder.packaging.SealedPackageException;
+import com.android.builder.profile.ToolTelemetry;
+import com.android.builder.profile.ToolTelemetry.Invocation;
+import com.android.builder.shrinker.KeepRules;
+import com.android.builder.shrinker.Shrinker;
 import com.android.builder.signing.DebugKeyHelper;
 import com.android.builder.signing.KeystoreHelper;
 import com.android.builder.signing.KeytoolException;
 import com.android.builder.signing.SigningInfo;
+import com.android.builder.zip.CompressionPolicy;
+import com.android.builder.zip.ZipAlignVerifier;
 import com.android.manifmerger.ManifestMerger;
 import com.android.manifmerger.MergerLog;
 import com.android.prefs.AndroidLocation.AndroidLocationException;
 import com.android.sdklib.IAndroidTarget;
 import com.android.sdklib.IAndroidTarget.IOptionalLibrary;
 import com.android.utils.ILogger;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 
@@ -43,8 +59,16 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -64,14 +88,18 @@ import static com.google.common.base.Preconditions.checkState;
  * {@link #generateBuildConfig(String, java.util.List)}
  * {@link #processManifest(String)}
  * {@link #processResources(String, String, String, String, String, AaptOptions)}
- * {@link #convertBytecode(java.util.List, java.util.List, String, DexOptions)}
- * {@link #packageApk(String, String, String, String)}
+ * {@link #shrinkClasses(java.util.List, java.util.List, String, String, String)}
+ * {@link #convertBytecode(java.util.List, java.util.List, String, DexOptions, String)}
+ * {@link #packageApk(String, String, String, String, PackagingOptions, AaptOptions)}
  *
  * Java compilation is not handled but the builder provides the runtime classpath with
  * {@link #getRuntimeClasspath()}.
  */
 public class AndroidBuilder {
 
+    /** Alignment of the uncompressed entries of aligned apks, the one of zipalign. */
+    private final static int DEFAULT_ALIGNMENT = 4;
+
     private final SdkParser mSdkParser;
     private final ILogger mLogger;
     private final CommandLineRunner mCmdLineRunner;
@@ -105,8 +133,16 @@ public class AndroidBuilder {
         mCmdLineRunner = new CommandLineRunner(mLogger);
     }
 
-    @VisibleForTesting
-    AndroidBuilder(
+    /**
+     * Creates an AndroidBuilder running its external tools through a given
+     * {@link CommandLineRunner}, typically one shared by all the builders of a build.
+     *
+     * @param sdkParser
+     * @param cmdLineRunner
+     * @param logger
+     * @param verboseExec
+     */
+    public AndroidBuilder(
             @NonNull SdkParser sdkParser,
             @NonNull CommandLineRunner cmdLineRunner,
             @NonNull ILogger logger,
@@ -248,16 +284,16 @@ public class AndroidBuilder {
             command.add("-v");
         }
 
-        boolean runCommand = false;
+        List<File> cacheInputs = Lists.newArrayList();
         for (File input : inputs) {
             if (input.isDirectory()) {
                 command.add("-S");
                 command.add(input.getAbsolutePath());
-                runCommand = true;
+                cacheInputs.add(input);
             }
         }
 
-        if (!runCommand) {
+        if (cacheInputs.isEmpty()) {
             return;
         }
 
@@ -266,7 +302,8 @@ public class AndroidBuilder {
 
         mLogger.info("crunch command: %s", command.toString());
 
-        mCmdLineRunner.runCmdLine(command);
+        mCmdLineRunner.runCmdLine(command, cacheInputs,
+                Collections.singletonList(new File(resOutputDir)));
     }
 
     /**
@@ -478,6 +515,9 @@ public class AndroidBuilder {
 
         // launch aapt: create the command line
         ArrayList<String> command = Lists.newArrayList();
+        // the files read and written by aapt, for the action cache.
+        List<File> cacheInputs = Lists.newArrayList();
+        List<File> cacheOutputs = Lists.newArrayList();
 
         @SuppressWarnings("deprecation")
         String aaptPath = mTarget.getPath(IAndroidTarget.AAPT);
@@ -495,9 +535,11 @@ public class AndroidBuilder {
         // inputs
         command.add("-I");
         command.add(mTarget.getPath(IAndroidTarget.ANDROID_JAR));
+        cacheInputs.add(new File(mTarget.getPath(IAndroidTarget.ANDROID_JAR)));
 
         command.add("-M");
         command.add(manifestFile);
+        cacheInputs.add(new File(manifestFile));
 
         boolean useOverlay =  false;
         if (preprocessResDir != null) {
@@ -505,6 +547,7 @@ public class AndroidBuilder {
             if (preprocessResFile.isDirectory()) {
                 command.add("-S");
                 command.add(preprocessResDir);
+                cacheInputs.add(preprocessResFile);
             }
         }
 
@@ -512,6 +555,7 @@ public class AndroidBuilder {
             if (resFolder.isDirectory()) {
                 command.add("-S");
                 command.add(resFolder.getAbsolutePath());
+                cacheInputs.add(resFolder);
             }
         }
 
@@ -533,6 +577,7 @@ public class AndroidBuilder {
         if (mainAssetsLocation != null && mainAssetsLocation.isDirectory()) {
             command.add("-A");
             command.add(mainAssetsLocation.getAbsolutePath());
+            cacheInputs.add(mainAssetsLocation);
         }
 
         // outputs
@@ -541,15 +586,18 @@ public class AndroidBuilder {
             command.add("-m");
             command.add("-J");
             command.add(sourceOutputDir);
+            cacheOutputs.addAll(getGeneratedResourceSources(sourceOutputDir));
         }
 
         if (mVariant.getType() != VariantConfiguration.Type.LIBRARY && resPackageOutput != null) {
             command.add("-F");
             command.add(resPackageOutput);
+            cacheOutputs.add(new File(resPackageOutput));
 
             if (proguardOutput != null) {
                 command.add("-G");
                 command.add(proguardOutput);
+                cacheOutputs.add(new File(proguardOutput));
             }
         }
 
@@ -640,7 +688,37 @@ public class AndroidBuilder {
 
         mLogger.info("aapt command: %s", command.toString());
 
-        mCmdLineRunner.runCmdLine(command);
+        mCmdLineRunner.runCmdLine(command, cacheInputs, cacheOutputs);
+    }
+
+    /**
+     * Returns the source files that aapt can generate in a given folder: the R class of the
+     * package and of each library package, and the optional Manifest class.
+     */
+    private List<File> getGeneratedResourceSources(@NonNull String sourceOutputDir) {
+        List<String> packages = Lists.newArrayList();
+        if (mVariant.getType() == VariantConfiguration.Type.TEST) {
+            packages.add(mVariant.getPackageName());
+        } else {
+            packages.add(mVariant.getPackageFromManifest());
+        }
+
+        if (mVariant.getType() != VariantConfiguration.Type.LIBRARY) {
+            String extraPackages = mVariant.getLibraryPackages();
+            if (extraPackages != null) {
+                packages.addAll(Arrays.asList(extraPackages.split(":")));
+            }
+        }
+
+        List<File> files = Lists.newArrayList();
+        for (String packageName : packages) {
+            File packageDir = new File(sourceOutputDir,
+                    packageName.replace('.', File.separatorChar));
+            files.add(new File(packageDir, "R.java"));
+            files.add(new File(packageDir, "Manifest.java"));
+        }
+
+        return files;
     }
 
     /**
@@ -668,31 +746,124 @@ public class AndroidBuilder {
                             @NonNull File sourceOutputDir,
                             @NonNull List<File> importFolders)
             throws IOException, InterruptedException {
+        compileAidl(sourceFolders, sourceOutputDir, importFolders, null /*aidlOptions*/);
+    }
+
+    /**
+     * compiles all AIDL files, with the given options.
+     *
+     * @param sourceFolders
+     * @param sourceOutputDir
+     * @param importFolders
+     * @param aidlOptions the aidl options, or null for the defaults.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void compileAidl(@NonNull List<File> sourceFolders,
+                            @NonNull File sourceOutputDir,
+                            @NonNull List<File> importFolders,
+                            @Nullable AidlOptions aidlOptions)
+            throws IOException, InterruptedException {
         checkState(mVariant != null, "No Variant Configuration has been set.");
         checkState(mTarget != null, "Target not set.");
         checkNotNull(sourceFolders, "sourceFolders cannot be null.");
         checkNotNull(sourceOutputDir, "sourceOutputDir cannot be null.");
         checkNotNull(importFolders, "importFolders cannot be null.");
 
-        SourceGenerator compiler = new SourceGenerator(mLogger);
+        // the aidl processes are also limited by the ToolScheduler of mCmdLineRunner.
+        SourceGenerator compiler = new SourceGenerator(mLogger,
+                Runtime.getRuntime().availableProcessors());
 
-        @SuppressWarnings("deprecation")
-        String aidlPath = mTarget.getPath(IAndroidTarget.AIDL);
+        if (aidlOptions != null && aidlOptions.isInProcess()) {
+            JavaAidlProcessor processor = new JavaAidlProcessor(
+                    mTarget.getPath(IAndroidTarget.ANDROID_AIDL),
+                    importFolders,
+                    mCmdLineRunner.getScheduler());
+
+            compiler.processFiles(processor, sourceFolders, sourceOutputDir);
+        } else {
+            @SuppressWarnings("deprecation")
+            String aidlPath = mTarget.getPath(IAndroidTarget.AIDL);
+
+            AidlProcessor processor = new AidlProcessor(
+                    aidlPath,
+                    mTarget.getPath(IAndroidTarget.ANDROID_AIDL),
+                    importFolders,
+                    mCmdLineRunner);
+
+            compiler.processFiles(processor, sourceFolders, sourceOutputDir);
+        }
+    }
+
+    /**
+     * Removes the classes and methods that cannot be reached from the entry points of the
+     * application, so that less bytecode is dexed.
+     *
+     * The entry points are the components of the manifest and the classes kept by the proguard
+     * rules of aapt and of the libraries.
+     *
+     * @param classesLocation the class folders and jars of the project.
+     * @param libraries the library jars.
+     * @param manifestLocation the merged manifest.
+     * @param proguardRulesLocation the rules generated by aapt, or null.
+     * @param outDir the folder receiving the shrunk classes.
+     * @return the shrunk classes, to dex in place of the classes and the libraries.
+     */
+    public List<String> shrinkClasses(
+            @NonNull List<String> classesLocation,
+            @NonNull List<String> libraries,
+            @NonNull String manifestLocation,
+            @Nullable String proguardRulesLocation,
+            @NonNull String outDir) throws IOException {
+        checkState(mVariant != null, "No Variant Configuration has been set.");
+        checkNotNull(classesLocation, "classesLocation cannot be null.");
+        checkNotNull(libraries, "libraries cannot be null.");
+        checkNotNull(manifestLocation, "manifestLocation cannot be null.");
+        checkNotNull(outDir, "outDir cannot be null.");
+
+        KeepRules rules = new KeepRules();
+        rules.addManifest(new File(manifestLocation));
+        if (proguardRulesLocation != null) {
+            rules.addRules(new File(proguardRulesLocation));
+        }
+        for (File libraryRules : mVariant.getLibraryProguardRules()) {
+            rules.addRules(libraryRules);
+        }
+
+        List<String> inputs = Lists.newArrayList(classesLocation);
+        inputs.addAll(libraries);
 
-        AidlProcessor processor = new AidlProcessor(
-                aidlPath,
-                mTarget.getPath(IAndroidTarget.ANDROID_AIDL),
-                importFolders,
-                mCmdLineRunner);
+        return new Shrinker(mLogger).shrink(inputs, rules, new File(outDir));
+    }
 
-        compiler.processFiles(processor, sourceFolders, sourceOutputDir);
+    public void convertBytecode(
+            @NonNull List<String> classesLocation,
+            @NonNull List<String> libraries,
+            @NonNull String outDexFile,
+            @NonNull DexOptions dexOptions)
+            throws IOException, InterruptedException, DuplicateClassException {
+        convertBytecode(classesLocation, libraries, outDexFile, dexOptions,
+                null /*preDexLocation*/);
     }
 
+    /**
+     * Converts the bytecode to dex.
+     *
+     * @param classesLocation the class folders and jars of the variant.
+     * @param libraries the library jars.
+     * @param outDexFile the dex file to write.
+     * @param dexOptions the dx options.
+     * @param preDexLocation an optional folder where the libraries are pre-dexed, even if
+     *     {@link DexOptions#isPreDexLibraries()} is false. Test apks use it to dex the tested
+     *     library and its dependencies once for all their builds, and only dex the test classes.
+     */
     public void convertBytecode(
             @NonNull List<String> classesLocation,
             @NonNull List<String> libraries,
             @NonNull String outDexFile,
-            @NonNull DexOptions dexOptions) throws IOException, InterruptedException {
+            @NonNull DexOptions dexOptions,
+            @Nullable String preDexLocation)
+            throws IOException, InterruptedException, DuplicateClassException {
         checkState(mVariant != null, "No Variant Configuration has been set.");
         checkState(mTarget != null, "Target not set.");
         checkNotNull(classesLocation, "classesLocation cannot be null.");
@@ -720,14 +891,253 @@ public class AndroidBuilder {
         // TODO: handle dex options
 
         mLogger.verbose("Dex class inputs: " + classesLocation);
+        mLogger.verbose("Dex library inputs: " + libraries);
 
-        command.addAll(classesLocation);
+        // fail before running dx for minutes if it is going to fail on a duplicate class.
+        ClassPathChecker checker = new ClassPathChecker(mLogger);
+        libraries = checker.removeDuplicateJars(libraries);
+        checker.checkDuplicateClasses(Lists.newArrayList(
+                Iterables.concat(classesLocation, libraries)));
 
-        mLogger.verbose("Dex library inputs: " + libraries);
+        // the dx script runs platform-tools/lib/dx.jar
+        File dxJar = new File(new File(dxPath).getParentFile(), "lib/dx.jar");
+
+        InProcessDx inProcessDx = null;
+        if (dexOptions.isInProcess()) {
+            inProcessDx = InProcessDx.get(dxJar, mLogger);
+        }
 
-        command.addAll(libraries);
+        // the classes to dex, followed by the dex files to merge.
+        List<String> inputs = Lists.newArrayList(classesLocation);
+        List<String> dexedInputs = Collections.emptyList();
+        File preDexCache = getPreDexCacheLocation(dexOptions, preDexLocation);
+        if (preDexCache != null && !libraries.isEmpty()) {
+            // dx merges the classes.dex found in its input jars.
+            dexedInputs = preDexLibraries(libraries, dxPath, dxJar, inProcessDx, preDexCache);
+        } else {
+            inputs.addAll(libraries);
+        }
 
-        mCmdLineRunner.runCmdLine(command);
+        if (dexOptions.isIncremental()) {
+            // the class folders are dexed in fragments, only the changed ones are dexed again.
+            List<String> classFolders = Lists.newArrayList();
+            for (String location : classesLocation) {
+                if (new File(location).isDirectory()) {
+                    classFolders.add(location);
+                }
+            }
+            inputs.removeAll(classFolders);
+
+            IncrementalDexer dexer = new IncrementalDexer(new File(outDexFile + "-incremental"),
+                    dxJar.isFile() ? dxJar : new File(dxPath));
+            IncrementalDexer.Fragments fragments = dexer.update(classFolders);
+            mLogger.info("Dexing %1$d of %2$d class fragments",
+                    fragments.getStaleFragments().size(), fragments.getDexFiles().size());
+            dexShards(fragments.getStaleFragments(), dxPath, inProcessDx);
+
+            List<String> mergedInputs = Lists.newArrayList();
+            for (File dexFile : fragments.getDexFiles()) {
+                mergedInputs.add(dexFile.getAbsolutePath());
+            }
+            mergedInputs.addAll(dexedInputs);
+            dexedInputs = mergedInputs;
+        }
+
+        if (dexOptions.getShardCount() > 1) {
+            DexSharder sharder = new DexSharder(dexOptions.getShardCount());
+            List<File> shards = sharder.createShards(inputs, new File(outDexFile + "-shards"));
+            if (!shards.isEmpty()) {
+                inputs = dexShards(shards, dxPath, inProcessDx);
+            }
+        }
+
+        command.addAll(inputs);
+        command.addAll(dexedInputs);
+
+        List<File> cacheInputs = Lists.newArrayList();
+        for (String input : Iterables.concat(inputs, dexedInputs)) {
+            cacheInputs.add(new File(input));
+        }
+
+        mCmdLineRunner.runCmdLine(command, cacheInputs,
+                Collections.singletonList(new File(outDexFile)), inProcessDx);
+    }
+
+    /**
+     * Dexes shards concurrently, each one into a jar next to the shard.
+     *
+     * @return the dexed shards, in the order of the shards.
+     */
+    private List<String> dexShards(
+            @NonNull List<File> shards,
+            @NonNull String dxPath,
+            @Nullable final InProcessDx inProcessDx) throws IOException, InterruptedException {
+        List<String> dexedShards = Lists.newArrayListWithCapacity(shards.size());
+        List<Callable<Void>> tasks = Lists.newArrayListWithCapacity(shards.size());
+
+        for (File shard : shards) {
+            final File dexedShard = DexSharder.getDexFile(shard);
+            dexedShards.add(dexedShard.getAbsolutePath());
+
+            final List<String> command = createDexCommand(dxPath, dexedShard,
+                    shard.getAbsolutePath());
+            final List<File> inputs = Collections.singletonList(shard);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    mCmdLineRunner.runCmdLine(command, inputs,
+                            Collections.singletonList(dexedShard), inProcessDx);
+                    return null;
+                }
+            });
+        }
+
+        runConcurrently(tasks, dxPath, inProcessDx);
+        return dexedShards;
+    }
+
+    /**
+     * Returns the pre-dex cache the libraries are dexed into, or null if they are dexed with
+     * the classes of the variant.
+     *
+     * The cache shared by all the projects of the machine is used when the libraries are
+     * pre-dexed by choice. Otherwise the given location is used, if any.
+     */
+    @Nullable
+    static File getPreDexCacheLocation(
+            @NonNull DexOptions dexOptions,
+            @Nullable String preDexLocation) {
+        if (dexOptions.isPreDexLibraries()) {
+            try {
+                return PreDexCache.getDefaultLocation();
+            } catch (AndroidLocationException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        return preDexLocation != null ? new File(preDexLocation) : null;
+    }
+
+    /**
+     * Dexes each library on its own, unless it is already in the pre-dex cache. The missing
+     * libraries are dexed concurrently.
+     *
+     * @param cacheLocation the folder of the pre-dex cache.
+     * @return the pre-dexed jars, in the order of the libraries.
+     */
+    private List<String> preDexLibraries(
+            @NonNull List<String> libraries,
+            @NonNull String dxPath,
+            @NonNull File dxJar,
+            @Nullable final InProcessDx inProcessDx,
+            @NonNull File cacheLocation) throws IOException, InterruptedException {
+        final PreDexCache cache = new PreDexCache(cacheLocation);
+        cache.removeUnusedEntries();
+
+        String dxVersion = cache.getDxVersion(dxJar.isFile() ? dxJar : new File(dxPath));
+
+        List<String> preDexedLibraries = Lists.newArrayListWithCapacity(libraries.size());
+        List<Callable<Void>> tasks = Lists.newArrayList();
+        for (final String library : libraries) {
+            final File entry = cache.getEntry(new File(library), dxVersion);
+            if (!entry.isFile()) {
+                final File tempFile = cache.newTempFile(entry);
+                final List<String> command = createDexCommand(dxPath, tempFile, library);
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException, InterruptedException {
+                        mLogger.info("Pre-dexing %1$s", library);
+                        // the pre-dex cache replaces the action cache for these runs.
+                        mCmdLineRunner.runCmdLine(command, Collections.<File>emptyList(),
+                                Collections.<File>emptyList(), inProcessDx);
+
+                        cache.commit(tempFile, entry);
+                        return null;
+                    }
+                });
+            }
+
+            preDexedLibraries.add(entry.getAbsolutePath());
+        }
+
+        runConcurrently(tasks, dxPath, inProcessDx);
+        return preDexedLibraries;
+    }
+
+    /**
+     * Returns the command line dexing a single input.
+     */
+    private List<String> createDexCommand(
+            @NonNull String dxPath,
+            @NonNull File output,
+            @NonNull String input) {
+        List<String> command = Lists.newArrayList();
+        command.add(dxPath);
+        command.add("--dex");
+        if (mVerboseExec) {
+            command.add("--verbose");
+        }
+        command.add("--output");
+        command.add(output.getAbsolutePath());
+        command.add(input);
+
+        return command;
+    }
+
+    /**
+     * Runs dx tasks concurrently and waits for all of them. No more threads are started than
+     * the number of dx that the tool scheduler, and the in-process dx, let run at once.
+     *
+     * If a task fails, the other tasks are stopped and the failure is rethrown.
+     */
+    private void runConcurrently(
+            @NonNull List<Callable<Void>> tasks,
+            @NonNull String dxPath,
+            @Nullable InProcessDx inProcessDx) throws IOException, InterruptedException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        int limit = mCmdLineRunner.getScheduler().getToolLimit(ToolScheduler.getToolName(dxPath));
+        if (inProcessDx != null) {
+            limit = Math.min(limit, inProcessDx.getConcurrencyLimit());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), limit));
+        try {
+            List<Future<Void>> futures = Lists.newArrayListWithCapacity(tasks.size());
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+
+            for (Future<Void> future : futures) {
+                CommandLineRunner.waitFor(future);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns whether {@link #packageApk} aligns the apk of a variant.
+     *
+     * Signed apks of zip aligned build types are aligned, except test apks. The mappable layout
+     * is only useful aligned, so it aligns the apk whatever the build type.
+     *
+     * @param variant the variant of the apk.
+     * @param signed whether the apk is signed.
+     * @param packagingOptions the packaging options, or null for the defaults.
+     */
+    public static boolean isApkAligned(
+            @NonNull VariantConfiguration variant,
+            boolean signed,
+            @Nullable PackagingOptions packagingOptions) {
+        if (packagingOptions != null && packagingOptions.isMappableLayout()) {
+            return true;
+        }
+
+        return signed && variant.getBuildType().isZipAlign()
+                && variant.getType() != VariantConfiguration.Type.TEST;
     }
 
     /**
@@ -742,6 +1152,27 @@ public class AndroidBuilder {
             @NonNull String classesDexLocation,
             @Nullable String jniLibsLocation,
             @NonNull String outApkLocation) throws DuplicateFileException {
+        packageApk(androidResPkgLocation, classesDexLocation, jniLibsLocation, outApkLocation,
+                null /*packagingOptions*/, null /*aaptOptions*/);
+    }
+
+    /**
+     * Packages the apk, with the given options.
+     * @param androidResPkgLocation
+     * @param classesDexLocation
+     * @param jniLibsLocation
+     * @param outApkLocation
+     * @param packagingOptions the packaging options, or null for the defaults.
+     * @param aaptOptions the aapt options, whose files not compressed by aapt are not
+     *                    compressed when added to the apk either, or null.
+     */
+    public void packageApk(
+            @NonNull String androidResPkgLocation,
+            @NonNull String classesDexLocation,
+            @Nullable String jniLibsLocation,
+            @NonNull String outApkLocation,
+            @Nullable PackagingOptions packagingOptions,
+            @Nullable AaptOptions aaptOptions) throws DuplicateFileException {
         checkState(mVariant != null, "No Variant Configuration has been set.");
         checkState(mTarget != null, "Target not set.");
         checkNotNull(androidResPkgLocation, "androidResPkgLocation cannot be null.");
@@ -760,8 +1191,21 @@ public class AndroidBuilder {
                             String.format("A folder is in the way of the debug keystore: %s",
                                     storeLocation));
                 } else if (storeFile.exists() == false) {
-                    if (DebugKeyHelper.createNewStore(
-                            storeLocation, null /*storeType*/, mLogger) == false) {
+                    // keytool is not run through the command line runner, record it here.
+                    ToolTelemetry telemetry = mCmdLineRunner.getTelemetry();
+                    Invocation invocation = null;
+                    if (telemetry != null) {
+                        // don't record the passwords.
+                        invocation = telemetry.newInvocation("keytool",
+                                Collections.singletonList("keytool -genkey"));
+                        telemetry.start(invocation);
+                    }
+                    boolean created = DebugKeyHelper.createNewStore(
+                            storeLocation, null /*storeType*/, mLogger);
+                    if (telemetry != null) {
+                        telemetry.end(invocation, created ? 0 : 1, 0, null /*stats*/);
+                    }
+                    if (created == false) {
                         throw new RuntimeException();
                     }
                 }
@@ -786,15 +1230,32 @@ public class AndroidBuilder {
             throw new RuntimeException(e);
         }
 
+        // signed apks are aligned while they are written, instead of going through zipalign.
+        int alignment = 0;
+        if (isApkAligned(mVariant, signingInfo != null, packagingOptions)) {
+            alignment = packagingOptions != null
+                    ? packagingOptions.getAlignment() : DEFAULT_ALIGNMENT;
+        }
+
         try {
             Packager packager = new Packager(
                     outApkLocation, androidResPkgLocation, classesDexLocation,
-                    signingInfo, mLogger);
+                    signingInfo, packagingOptions,
+                    createCompressionPolicy(buildType, packagingOptions, aaptOptions),
+                    alignment, mLogger);
 
             packager.setDebugJniMode(buildType.isDebugJniBuild());
 
+            PackagingFilter packagingFilter = PackagingFilter.DEFAULT;
+            if (packagingOptions != null) {
+                packagingFilter = new PackagingFilter(
+                        packagingOptions.getIncludes(), packagingOptions.getExcludes());
+            }
+            packager.setPackagingFilter(packagingFilter);
+
             // figure out conflicts!
-            JavaResourceProcessor resProcessor = new JavaResourceProcessor(packager);
+            JavaResourceProcessor resProcessor =
+                    new JavaResourceProcessor(packager, packagingFilter);
 
             if (mVariant.getBuildTypeSourceSet() != null) {
                 Set<File> buildTypeJavaResLocations =
@@ -828,7 +1289,7 @@ public class AndroidBuilder {
             List<JarDependency> jars = mVariant.getJars();
             if (jars != null) {
                 for (JarDependency jar : jars) {
-                    packager.addResourcesFromJar(new File(jar.getLocation()));
+                    addJarJavaResourcesToPackager(packager, new File(jar.getLocation()));
                 }
             }
 
@@ -842,10 +1303,22 @@ public class AndroidBuilder {
             }
 
             packager.sealApk();
+
+            if (alignment > 0) {
+                List<String> misaligned = ZipAlignVerifier.getMisalignedEntries(
+                        new File(outApkLocation), alignment);
+                if (!misaligned.isEmpty()) {
+                    throw new RuntimeException(String.format(
+                            "%1$s is not aligned on %2$d bytes: %3$s",
+                            outApkLocation, alignment, misaligned));
+                }
+            }
         } catch (PackagerException e) {
             throw new RuntimeException(e);
         } catch (SealedPackageException e) {
             throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
@@ -853,11 +1326,67 @@ public class AndroidBuilder {
             throws PackagerException, SealedPackageException, DuplicateFileException {
         if (libs != null) {
             for (AndroidDependency lib : libs) {
-                packager.addResourcesFromJar(lib.getJarFile());
+                addJarJavaResourcesToPackager(packager, lib.getJarFile());
 
                 // recursively add the dependencies of this library.
                 addLibJavaResourcesToPackager(packager, lib.getDependencies());
             }
         }
     }
+
+    /**
+     * Creates the compression policy of the files added to the apk. The files are compressed
+     * with the level of the build type, except those of the extensions given a level in the
+     * packaging options and those that aapt does not compress.
+     */
+    @NonNull
+    private static CompressionPolicy createCompressionPolicy(
+            @NonNull BuildType buildType,
+            @Nullable PackagingOptions packagingOptions,
+            @Nullable AaptOptions aaptOptions) {
+        CompressionPolicy policy = new CompressionPolicy(buildType.getCompressionLevel());
+
+        if (aaptOptions != null && aaptOptions.getNoCompress() != null) {
+            for (String extension : aaptOptions.getNoCompress()) {
+                policy.setLevel(extension, Deflater.NO_COMPRESSION);
+            }
+        }
+
+        if (packagingOptions != null) {
+            Map<String, Integer> levels = packagingOptions.getCompressionLevels();
+            if (levels != null) {
+                for (Map.Entry<String, Integer> entry : levels.entrySet()) {
+                    policy.setLevel(entry.getKey(), entry.getValue());
+                }
+            }
+            policy.setStoreIncompressible(packagingOptions.isStoreIncompressible());
+
+            if (packagingOptions.isMappableLayout()) {
+                policy.setAlwaysStored("so");
+                policy.setAlwaysStored("arsc");
+            }
+        }
+
+        return policy;
+    }
+
+    /**
+     * Adds the java resources of a jar to the packager. The jars without java resources, like
+     * most libraries, are remembered and not opened again until they or the filter change.
+     */
+    private static void addJarJavaResourcesToPackager(Packager packager, File jar)
+            throws PackagerException, SealedPackageException, DuplicateFileException {
+        BuildStateCache cache = BuildStateCache.getDefault();
+        String key = "jar-resources:" + jar.getAbsolutePath() + ":"
+                + packager.getPackagingFilter();
+        List<File> stamps = Collections.singletonList(jar);
+
+        List<?> resources = cache.get(key, List.class, stamps);
+        if (resources != null && resources.isEmpty()) {
+            return;
+        }
+
+        JarStatus status = packager.addResourcesFromJar(jar);
+        cache.put(key, stamps, status.getJavaResources());
+    }
 }
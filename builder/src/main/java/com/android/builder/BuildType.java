@@ -23,6 +23,7 @@ import com.google.common.base.Objects;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.Deflater;
 
 public class BuildType implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -39,6 +40,7 @@ public class BuildType implements Serializable {
     private final List<String> mBuildConfigLines = new ArrayList<String>();
 
     private boolean mZipAlign = true;
+    private int mCompressionLevel = Deflater.BEST_COMPRESSION;
 
     public BuildType(@NonNull String name) {
         this.mName = name;
@@ -54,6 +56,7 @@ public class BuildType implements Serializable {
         mDebugJniBuild = true;
         mDebugSigned = true;
         mZipAlign = false;
+        mCompressionLevel = Deflater.BEST_SPEED;
     }
 
     private void initRelease() {
@@ -114,6 +117,18 @@ public class BuildType implements Serializable {
         return mZipAlign;
     }
 
+    /**
+     * Sets the compression level of the files added to the apk, from 0 (stored) to 9.
+     * This does not apply to the files already compressed by aapt.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        mCompressionLevel = compressionLevel;
+    }
+
+    public int getCompressionLevel() {
+        return mCompressionLevel;
+    }
+
     protected void addBuildConfigLines(List<String> lines) {
         mBuildConfigLines.addAll(lines);
     }
@@ -139,6 +154,7 @@ public class BuildType implements Serializable {
         if (mDebuggable != buildType.mDebuggable) return false;
         if (mRunProguard != buildType.mRunProguard) return false;
         if (mZipAlign != buildType.mZipAlign) return false;
+        if (mCompressionLevel != buildType.mCompressionLevel) return false;
         if (mBuildConfigLines != null ?
                 !mBuildConfigLines.equals(buildType.mBuildConfigLines) :
                 buildType.mBuildConfigLines != null)
@@ -161,6 +177,7 @@ public class BuildType implements Serializable {
         result = 31 * result + (mRunProguard ? 1 : 0);
         result = 31 * result + (mBuildConfigLines != null ? mBuildConfigLines.hashCode() : 0);
         result = 31 * result + (mZipAlign ? 1 : 0);
+        result = 31 * result + mCompressionLevel;
         return result;
     }
 
@@ -174,6 +191,7 @@ public class BuildType implements Serializable {
                 .add("packageNameSuffix", mPackageNameSuffix)
                 .add("runProguard", mRunProguard)
                 .add("zipAlign", mZipAlign)
+                .add("compressionLevel", mCompressionLevel)
                 .omitNullValues()
                 .toString();
     }
@@ -16,21 +16,169 @@
 
 package com.android.builder;
 
+import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
-import com.android.sdklib.util.GrabProcessOutput;
-import com.android.sdklib.util.GrabProcessOutput.IProcessOutput;
-import com.android.sdklib.util.GrabProcessOutput.Wait;
+import com.android.builder.cache.ActionCache;
+import com.android.builder.profile.ProcessStats;
+import com.android.builder.profile.ToolTelemetry;
+import com.android.builder.profile.ToolTelemetry.Invocation;
 import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs external tools.
+ *
+ * All the processes go through a {@link ToolScheduler} which limits how many processes of each
+ * tool can run at the same time. Processes can be run synchronously with
+ * {@link #runCmdLine(List)} or asynchronously with {@link #runCmdLineAsync(List)}.
+ *
+ * If an {@link ActionCache} is set, the commands run with
+ * {@link #runCmdLine(List, List, List)} get their outputs restored from the cache when the
+ * same command has already run with the same inputs.
+ *
+ * Tools that can run inside the JVM of the build can be given as an {@link InProcessTool} to
+ * {@link #runCmdLine(List, List, List, InProcessTool)}, and are then run like a process would.
+ *
+ * If a {@link ToolTelemetry} is set, every process run (or skipped thanks to the cache) is
+ * recorded in it.
+ */
 public class CommandLineRunner {
 
+    /** Maximum number of characters of output kept to report a failure. */
+    private final static int MAX_CAPTURED_OUTPUT = 32 * 1024;
+    /** Interval between two samples of the resource usage of a running process. */
+    private final static long SAMPLING_PERIOD_MS = 50;
+
     private final ILogger mLogger;
+    private final ToolScheduler mScheduler;
+    private long mTimeoutMs = 0;
+    private ActionCache mActionCache;
+    private ToolTelemetry mTelemetry;
 
     public CommandLineRunner(ILogger logger) {
-        mLogger = logger;
+        this(logger, ToolScheduler.getDefault());
+    }
+
+    public CommandLineRunner(@NonNull ILogger logger, @NonNull ToolScheduler scheduler) {
+        mLogger = checkNotNull(logger);
+        mScheduler = checkNotNull(scheduler);
+    }
+
+    /**
+     * Sets the maximum time a process can run before being killed.
+     * @param timeoutMs the timeout in milliseconds, or 0 for no timeout.
+     */
+    public void setTimeout(long timeoutMs) {
+        checkArgument(timeoutMs >= 0, "timeoutMs cannot be negative.");
+        mTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Sets the cache used by {@link #runCmdLine(List, List, List)}.
+     * @param actionCache the cache or null to disable caching.
+     */
+    public void setActionCache(@Nullable ActionCache actionCache) {
+        mActionCache = actionCache;
+    }
+
+    /**
+     * Sets the telemetry recording the processes run by this runner.
+     * @param telemetry the telemetry or null to disable recording.
+     */
+    public void setTelemetry(@Nullable ToolTelemetry telemetry) {
+        mTelemetry = telemetry;
+    }
+
+    @Nullable
+    public ToolTelemetry getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Returns the scheduler throttling the tools run by this runner, to also throttle the
+     * tools run in-process without going through the runner.
+     */
+    @NonNull
+    public ToolScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Runs a command line whose outputs only depend on the command line and on the content of
+     * the given inputs.
+     *
+     * If an {@link ActionCache} is set and the same action has already run, the outputs are
+     * restored from the cache and the command is not run.
+     *
+     * @param command the command line to run.
+     * @param inputs all the files and folders read by the command.
+     * @param outputs all the files and folders written by the command.
+     */
+    public void runCmdLine(
+            @NonNull List<String> command,
+            @NonNull List<File> inputs,
+            @NonNull List<File> outputs) throws IOException, InterruptedException {
+        runCmdLine(command, inputs, outputs, null /*inProcessTool*/);
+    }
+
+    /**
+     * Runs a command line like {@link #runCmdLine(List, List, List)}, optionally in-process.
+     *
+     * @param command the command line to run.
+     * @param inputs all the files and folders read by the command.
+     * @param outputs all the files and folders written by the command.
+     * @param inProcessTool if not null, the tool run in place of the executable of the command.
+     */
+    public void runCmdLine(
+            @NonNull List<String> command,
+            @NonNull List<File> inputs,
+            @NonNull List<File> outputs,
+            @Nullable InProcessTool inProcessTool) throws IOException, InterruptedException {
+        if (mActionCache == null || outputs.isEmpty()) {
+            run(command, inProcessTool);
+            return;
+        }
+
+        String tool = ToolScheduler.getToolName(command.get(0));
+        String key = mActionCache.computeKey(command, inputs);
+        try {
+            if (mActionCache.restore(key, outputs)) {
+                mLogger.info("%1$s: outputs restored from the action cache (%2$s)", tool, key);
+                if (mTelemetry != null) {
+                    mTelemetry.endCached(mTelemetry.newInvocation(tool, command));
+                }
+                return;
+            }
+        } catch (IOException e) {
+            mLogger.warning("Failed to restore %1$s outputs from the action cache: %2$s",
+                    tool, e.getMessage());
+        }
+
+        run(command, inProcessTool);
+
+        try {
+            mActionCache.store(key, outputs);
+        } catch (IOException e) {
+            mLogger.warning("Failed to store %1$s outputs in the action cache: %2$s",
+                    tool, e.getMessage());
+        }
     }
 
     public void runCmdLine(List<String> command) throws IOException, InterruptedException {
@@ -39,43 +187,386 @@ public class CommandLineRunner {
     }
 
     public void runCmdLine(String[] command) throws IOException, InterruptedException {
-        // launch the command line process
-        Process process = Runtime.getRuntime().exec(command);
+        new ProcessCall(command).call();
+    }
+
+    private void run(@NonNull List<String> command, @Nullable InProcessTool inProcessTool)
+            throws IOException, InterruptedException {
+        if (inProcessTool == null) {
+            runCmdLine(command);
+            return;
+        }
+
+        String tool = ToolScheduler.getToolName(command.get(0));
+        Invocation invocation = null;
+        if (mTelemetry != null) {
+            invocation = mTelemetry.newInvocation(tool, command);
+        }
 
-        // get the output and return code from the process
-        if (grabProcessOutput(process) != 0) {
-            throw new RuntimeException();
+        // in-process runs count against the limit of the tool like its processes.
+        mScheduler.acquire(tool);
+        OutputBuffer output = new OutputBuffer(MAX_CAPTURED_OUTPUT);
+        int returnCode = -1;
+        try {
+            if (invocation != null) {
+                mTelemetry.start(invocation);
+            }
+            returnCode = inProcessTool.run(command.subList(1, command.size()),
+                    new CapturingLogger(output));
+        } finally {
+            mScheduler.release(tool);
+            if (invocation != null) {
+                mTelemetry.end(invocation, returnCode, output.getTotalSize(), null /*stats*/);
+            }
         }
+
+        if (returnCode != 0) {
+            throw new RuntimeException(String.format(
+                    "%1$s failed with exit code %2$d.\n%3$s", tool, returnCode, output));
+        }
+    }
+
+    /**
+     * Runs a command line asynchronously.
+     *
+     * Cancelling the returned future kills the process if it is already running.
+     * {@link #waitFor(Future)} can be used to get the result with the same exceptions as
+     * {@link #runCmdLine(List)}.
+     *
+     * @param command the command line to run.
+     * @return a future that completes when the process has exited.
+     */
+    public Future<Void> runCmdLineAsync(@NonNull List<String> command) {
+        final ProcessCall call = new ProcessCall(command.toArray(new String[command.size()]));
+        FutureTask<Void> task = new FutureTask<Void>(call) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                call.destroy();
+                return super.cancel(mayInterruptIfRunning);
+            }
+        };
+
+        mScheduler.execute(task);
+        return task;
     }
 
     /**
-     * Get the stderr output of a process and return when the process is done.
+     * Waits for a future returned by {@link #runCmdLineAsync(List)} and rethrows the failure
+     * of the process, if any.
+     */
+    public static <T> T waitFor(@NonNull Future<T> future)
+            throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * A single run of a command line. The run waits for a slot of the tool in the
+     * {@link ToolScheduler} before starting the process.
+     */
+    private final class ProcessCall implements Callable<Void> {
+        private final String[] mCommand;
+        private final String mTool;
+        private final Invocation mInvocation;
+        private Process mProcess;
+        private boolean mDestroyed = false;
+        private volatile boolean mTimedOut = false;
+
+        ProcessCall(String[] command) {
+            checkArgument(command.length > 0, "command cannot be empty.");
+            mCommand = command;
+            mTool = ToolScheduler.getToolName(command[0]);
+            // capture the context of the submitting thread.
+            mInvocation = mTelemetry != null
+                    ? mTelemetry.newInvocation(mTool, Arrays.asList(command)) : null;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException {
+            mScheduler.acquire(mTool);
+            try {
+                run();
+            } finally {
+                mScheduler.release(mTool);
+            }
+
+            return null;
+        }
+
+        private void run() throws IOException, InterruptedException {
+            final Process process;
+            synchronized (this) {
+                if (mDestroyed) {
+                    throw new InterruptedException(mTool + " was cancelled.");
+                }
+                if (mInvocation != null) {
+                    mTelemetry.start(mInvocation);
+                }
+                // launch the command line process
+                try {
+                    process = Runtime.getRuntime().exec(mCommand);
+                } catch (IOException e) {
+                    if (mInvocation != null) {
+                        mTelemetry.end(mInvocation, -1, 0, null /*stats*/);
+                    }
+                    throw e;
+                }
+                mProcess = process;
+            }
+
+            ScheduledFuture<?> sampler = null;
+            ProcessStats stats = null;
+            if (mInvocation != null) {
+                stats = new ProcessStats(process);
+                final ProcessStats processStats = stats;
+                sampler = mScheduler.schedulePeriodic(new Runnable() {
+                    @Override
+                    public void run() {
+                        processStats.sample();
+                    }
+                }, SAMPLING_PERIOD_MS);
+            }
+
+            ScheduledFuture<?> watchdog = null;
+            if (mTimeoutMs > 0) {
+                watchdog = mScheduler.scheduleTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        mTimedOut = true;
+                        process.destroy();
+                    }
+                }, mTimeoutMs);
+            }
+
+            OutputBuffer output = new OutputBuffer(MAX_CAPTURED_OUTPUT);
+            int returnCode = -1;
+            try {
+                // get the output and return code from the process
+                returnCode = grabProcessOutput(process, output, stats);
+
+                if (mTimedOut) {
+                    throw new RuntimeException(String.format(
+                            "%1$s timed out after %2$d ms.\n%3$s", mTool, mTimeoutMs, output));
+                } else if (returnCode != 0) {
+                    throw new RuntimeException(String.format(
+                            "%1$s failed with exit code %2$d.\n%3$s", mTool, returnCode, output));
+                }
+            } finally {
+                if (watchdog != null) {
+                    watchdog.cancel(false);
+                }
+                if (sampler != null) {
+                    sampler.cancel(false);
+                }
+                // no-op if the process has exited, otherwise we were interrupted.
+                process.destroy();
+                if (mInvocation != null) {
+                    mTelemetry.end(mInvocation, returnCode, output.getTotalSize(), stats);
+                }
+            }
+        }
+
+        synchronized void destroy() {
+            mDestroyed = true;
+            if (mProcess != null) {
+                mProcess.destroy();
+            }
+        }
+    }
+
+    /**
+     * Get the output of a process and return when the process is done.
+     *
+     * stdout is read on the calling thread and stderr on a pooled thread of the scheduler.
+     *
      * @param process The process to get the output from
+     * @param output the buffer receiving the tail of the output.
+     * @param stats the resource usage to sample one last time when the process is done.
      * @return the process return code.
      * @throws InterruptedException
      */
     private int grabProcessOutput(
-            final Process process)
-            throws InterruptedException {
+            @NonNull final Process process,
+            @NonNull final OutputBuffer output,
+            @Nullable ProcessStats stats)
+            throws IOException, InterruptedException {
 
-        return GrabProcessOutput.grabProcessOutput(
-                process,
-                Wait.WAIT_FOR_READERS, // we really want to make sure we get all the output!
-                new IProcessOutput() {
+        FutureTask<Void> errReader = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                readLines(process.getErrorStream(), output, true /*isError*/);
+                return null;
+            }
+        });
+        mScheduler.execute(errReader);
 
-                    @Override
-                    public void out(@Nullable String line) {
-                        if (line != null) {
-                            mLogger.info(line);
-                        }
-                    }
+        readLines(process.getInputStream(), output, false /*isError*/);
 
-                    @Override
-                    public void err(@Nullable String line) {
-                        if (line != null) {
-                            mLogger.error(null /*throwable*/, line);
+        // we really want to make sure we get all the output!
+        waitFor(errReader);
+
+        if (stats != null) {
+            // best effort, the process may already have been reaped.
+            stats.sample();
+        }
+
+        return process.waitFor();
+    }
+
+    /**
+     * Reads the output of a process line by line. Lines longer than the captured output are
+     * split, so that a tool printing binary data does not fill the memory.
+     */
+    private void readLines(InputStream stream, OutputBuffer output, boolean isError)
+            throws IOException {
+        Reader reader = new InputStreamReader(stream, Charsets.UTF_8);
+        try {
+            char[] buffer = new char[8192];
+            StringBuilder line = new StringBuilder();
+            boolean skipLineFeed = false;
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                for (int i = 0; i < count; i++) {
+                    char c = buffer[i];
+                    if (c == '\n' && skipLineFeed) {
+                        skipLineFeed = false;
+                        continue;
+                    }
+                    skipLineFeed = c == '\r';
+                    if (c == '\n' || c == '\r') {
+                        processLine(line.toString(), output, isError);
+                        line.setLength(0);
+                    } else {
+                        line.append(c);
+                        if (line.length() >= MAX_CAPTURED_OUTPUT) {
+                            processLine(line.toString(), output, isError);
+                            line.setLength(0);
                         }
                     }
-                });
+                }
+            }
+            if (line.length() > 0) {
+                processLine(line.toString(), output, isError);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void processLine(String line, OutputBuffer output, boolean isError) {
+        output.append(line);
+        if (isError) {
+            mLogger.error(null /*throwable*/, line);
+        } else {
+            mLogger.info(line);
+        }
+    }
+
+    /**
+     * Logger given to the {@link InProcessTool}s, keeping their output like the output of a
+     * process.
+     */
+    private final class CapturingLogger implements ILogger {
+        private final OutputBuffer mOutput;
+
+        CapturingLogger(OutputBuffer output) {
+            mOutput = output;
+        }
+
+        @Override
+        public void error(Throwable throwable, String msgFormat, Object... args) {
+            String message = msgFormat != null ? String.format(msgFormat, args) : null;
+            if (message != null) {
+                mOutput.append(message);
+            }
+            if (throwable != null) {
+                mOutput.append(throwable.toString());
+            }
+            mLogger.error(throwable, "%1$s", message != null ? message : "");
+        }
+
+        @Override
+        public void warning(String msgFormat, Object... args) {
+            String message = String.format(msgFormat, args);
+            mOutput.append(message);
+            mLogger.warning("%1$s", message);
+        }
+
+        @Override
+        public void info(String msgFormat, Object... args) {
+            String message = String.format(msgFormat, args);
+            mOutput.append(message);
+            mLogger.info("%1$s", message);
+        }
+
+        @Override
+        public void verbose(String msgFormat, Object... args) {
+            String message = String.format(msgFormat, args);
+            mOutput.append(message);
+            mLogger.verbose("%1$s", message);
+        }
+    }
+
+    /**
+     * Keeps the last lines of the output of a process, up to a maximum number of characters.
+     */
+    static final class OutputBuffer {
+        private final int mCapacity;
+        private final ArrayDeque<String> mLines = new ArrayDeque<String>();
+        private int mSize = 0;
+        private long mTotalSize = 0;
+
+        OutputBuffer(int capacity) {
+            mCapacity = capacity;
+        }
+
+        synchronized void append(@NonNull String line) {
+            mTotalSize += line.length() + 1;
+            // only keep the end of a line larger than the buffer.
+            if (line.length() + 1 > mCapacity) {
+                line = line.substring(line.length() + 1 - mCapacity);
+            }
+            mLines.addLast(line);
+            mSize += line.length() + 1;
+
+            while (mSize > mCapacity && mLines.size() > 1) {
+                mSize -= mLines.removeFirst().length() + 1;
+            }
+        }
+
+        /**
+         * Returns the number of characters received, including those that were dropped.
+         */
+        synchronized long getTotalSize() {
+            return mTotalSize;
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder(mSize);
+            if (mTotalSize > mSize) {
+                sb.append("[...]\n");
+            }
+            for (String line : mLines) {
+                sb.append(line).append('\n');
+            }
+            return sb.toString();
+        }
     }
 }
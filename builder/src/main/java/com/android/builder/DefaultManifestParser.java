@@ -16,6 +16,7 @@
 
 package com.android.builder;
 
+import com.android.builder.cache.BuildStateCache;
 import com.android.xml.AndroidXPathFactory;
 import org.xml.sax.InputSource;
 
@@ -24,11 +25,30 @@ import javax.xml.xpath.XPathExpressionException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.Collections;
+import java.util.List;
 
 public class DefaultManifestParser implements ManifestParser {
 
     @Override
     public String getPackage(File manifestFile) {
+        // the manifests of the libraries are read by every build, don't parse them again.
+        BuildStateCache cache = BuildStateCache.getDefault();
+        String key = "manifest-package:" + manifestFile.getAbsolutePath();
+        List<File> stamps = Collections.singletonList(manifestFile);
+
+        String packageName = cache.get(key, String.class, stamps);
+        if (packageName == null) {
+            packageName = parsePackage(manifestFile);
+            if (packageName != null) {
+                cache.put(key, stamps, packageName);
+            }
+        }
+
+        return packageName;
+    }
+
+    private static String parsePackage(File manifestFile) {
         XPath xpath = AndroidXPathFactory.newXPath();
 
         try {
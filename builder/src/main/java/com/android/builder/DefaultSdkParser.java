@@ -18,11 +18,14 @@ package com.android.builder;
 
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
+import com.android.builder.cache.BuildStateCache;
 import com.android.sdklib.IAndroidTarget;
 import com.android.sdklib.SdkManager;
 import com.android.utils.ILogger;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Default implementation of {@link SdkParser} for a normal Android SDK distribution.
@@ -43,9 +46,21 @@ public class DefaultSdkParser implements SdkParser {
     @Override
     public IAndroidTarget resolveTarget(String target, ILogger logger) {
         if (mManager == null) {
-            mManager = SdkManager.createManager(mSdkLocation, logger);
+            // reuse the SDK parsed by a previous build of this JVM, unless platforms or
+            // add-ons were installed or removed since.
+            BuildStateCache cache = BuildStateCache.getDefault();
+            String key = "sdk:" + mSdkLocation;
+            List<File> stamps = Arrays.asList(
+                    new File(mSdkLocation, SdkConstants.FD_PLATFORMS),
+                    new File(mSdkLocation, SdkConstants.FD_ADDONS));
+
+            mManager = cache.get(key, SdkManager.class, stamps);
             if (mManager == null) {
-                throw new RuntimeException("failed to parse SDK!");
+                mManager = SdkManager.createManager(mSdkLocation, logger);
+                if (mManager == null) {
+                    throw new RuntimeException("failed to parse SDK!");
+                }
+                cache.put(key, stamps, mManager);
             }
         }
 
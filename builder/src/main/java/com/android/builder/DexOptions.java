@@ -16,5 +16,30 @@
 
 package com.android.builder;
 
+/**
+ * Options for dx.
+ */
 public interface DexOptions {
+    /**
+     * Returns whether dx runs inside the JVM of the build rather than in its own process.
+     */
+    boolean isInProcess();
+
+    /**
+     * Returns whether each library is dexed on its own, once, and cached so that only the
+     * classes of the project are dexed by the following builds.
+     */
+    boolean isPreDexLibraries();
+
+    /**
+     * Returns whether the class folders are dexed in fragments that are only dexed again when
+     * their classes change.
+     */
+    boolean isIncremental();
+
+    /**
+     * Returns the number of shards the classes are split into to be dexed concurrently before
+     * being merged into a single dex file. 1 disables sharding.
+     */
+    int getShardCount();
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder;
+
+import com.android.annotations.NonNull;
+import com.android.utils.ILogger;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A tool that can run inside the JVM of the build instead of in its own process.
+ *
+ * @see CommandLineRunner#runCmdLine(List, List, List, InProcessTool)
+ */
+public interface InProcessTool {
+
+    /**
+     * Runs the tool.
+     * @param args the arguments of the tool, ie. its command line without the executable.
+     * @param logger the logger receiving the output of the tool, one line at a time.
+     * @return the exit code of the tool.
+     */
+    int run(@NonNull List<String> args, @NonNull ILogger logger)
+            throws IOException, InterruptedException;
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options for the packaging of the apk.
+ */
+public interface PackagingOptions {
+    /**
+     * Returns the number of threads compressing and digesting the entries of the apk while
+     * they are written. 1 does everything on the packaging thread.
+     */
+    int getCompressionThreads();
+
+    /**
+     * Returns the maximum size, in bytes, of the entries being compressed by the compression
+     * threads or waiting to be written.
+     */
+    long getCompressionWindow();
+
+    /**
+     * Returns the alignment, in bytes, of the uncompressed entries of the apks of the build
+     * types that are zip aligned.
+     */
+    int getAlignment();
+
+    /**
+     * Returns whether the apk is updated from its previous version, copying the entries whose
+     * source did not change instead of compressing them again.
+     */
+    boolean isIncremental();
+
+    /**
+     * Returns the compression levels of the files added to the apk by extension, overriding
+     * the level of the build type. 0 stores the files.
+     */
+    Map<String, Integer> getCompressionLevels();
+
+    /**
+     * Returns whether the files whose content looks incompressible are stored instead of
+     * being compressed.
+     */
+    boolean isStoreIncompressible();
+
+    /**
+     * Returns the maximum size, in bytes, of the compressed files kept to be added to the apks
+     * of the other variants without being compressed again. 0 disables the cache.
+     */
+    long getCompressionCacheSize();
+
+    /**
+     * Returns the globs of the paths in the apk of the java resources to package, from the
+     * source folders and from the jars. If empty, all of them are packaged.
+     */
+    List<String> getIncludes();
+
+    /**
+     * Returns the globs of the paths in the apk of the java resources not to package, like
+     * <code>**&#47;LICENSE*</code>.
+     */
+    List<String> getExcludes();
+
+    /**
+     * Returns whether the native libraries and the resource table are stored uncompressed and
+     * aligned, the native libraries on memory pages, so that the platform can map them from the
+     * apk instead of extracting them.
+     */
+    boolean isMappableLayout();
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Schedules the external tools launched by {@link CommandLineRunner}.
+ *
+ * Each tool (identified by the name of its executable) has its own concurrency limit so that
+ * running many variants at once does not start more aapt/dx/aidl processes than the machine
+ * can handle. The default limit of a tool is computed from the number of cores and from the
+ * physical memory, using a rough estimate of the memory used by one instance of the tool.
+ *
+ * A single scheduler is normally shared by the whole JVM through {@link #getDefault()}.
+ */
+public class ToolScheduler {
+
+    /** Estimated memory footprint of one tool process, in MB. */
+    private final static Map<String, Integer> TOOL_FOOTPRINTS = ImmutableMap.of(
+            "dx", 1024,
+            "aapt", 256,
+            "aidl", 64);
+    private final static int DEFAULT_FOOTPRINT = 256;
+
+    private static ToolScheduler sDefault;
+
+    private final int mCpuCount;
+    private final long mMemoryBudget;
+    private final Map<String, Semaphore> mPermits = Maps.newHashMap();
+    private final Map<String, Integer> mLimits = Maps.newHashMap();
+
+    private final ExecutorService mExecutor;
+    private final ScheduledExecutorService mWatchdog;
+
+    /**
+     * Returns the scheduler shared by all the {@link CommandLineRunner} of this JVM.
+     */
+    public static synchronized ToolScheduler getDefault() {
+        if (sDefault == null) {
+            // leave half of the memory to the build itself.
+            sDefault = new ToolScheduler(
+                    Runtime.getRuntime().availableProcessors(), getPhysicalMemory() / 2);
+        }
+
+        return sDefault;
+    }
+
+    /**
+     * Creates a scheduler.
+     * @param cpuCount the number of cores to size the tool limits with.
+     * @param memoryBudget the memory, in bytes, that the tool processes can use together.
+     */
+    public ToolScheduler(int cpuCount, long memoryBudget) {
+        checkArgument(cpuCount > 0, "cpuCount must be positive.");
+        mCpuCount = cpuCount;
+        mMemoryBudget = memoryBudget;
+        mExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("tool-runner"));
+        mWatchdog = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("tool-watchdog"));
+    }
+
+    /**
+     * Overrides the number of processes of a given tool that can run at the same time.
+     * @param tool the tool name, as returned by {@link #getToolName(String)}.
+     * @param limit the maximum number of concurrent processes.
+     */
+    public synchronized void setToolLimit(@NonNull String tool, int limit) {
+        checkArgument(limit > 0, "limit must be positive.");
+        if (mPermits.containsKey(tool)) {
+            throw new IllegalStateException(
+                    String.format("Tool '%s' has already been scheduled.", tool));
+        }
+        mLimits.put(tool, limit);
+    }
+
+    /**
+     * Returns the number of processes of a given tool that can run at the same time.
+     * @param tool the tool name, as returned by {@link #getToolName(String)}.
+     */
+    public synchronized int getToolLimit(@NonNull String tool) {
+        Integer limit = mLimits.get(tool);
+        if (limit == null) {
+            Integer footprint = TOOL_FOOTPRINTS.get(tool);
+            long bytes = (footprint != null ? footprint : DEFAULT_FOOTPRINT) * 1024L * 1024L;
+
+            long byMemory = mMemoryBudget > 0 ? mMemoryBudget / bytes : mCpuCount;
+            limit = (int) Math.max(1, Math.min(mCpuCount, byMemory));
+            mLimits.put(tool, limit);
+        }
+
+        return limit;
+    }
+
+    /**
+     * Returns the name of a tool from its executable path, without the platform extension.
+     */
+    public static String getToolName(@NonNull String executable) {
+        // don't rely on File as the path may come from another platform.
+        String name = executable.substring(
+                Math.max(executable.lastIndexOf('/'), executable.lastIndexOf('\\')) + 1);
+        String lowerName = name.toLowerCase(Locale.US);
+        if (lowerName.endsWith(".exe") || lowerName.endsWith(".bat")) {
+            name = name.substring(0, name.length() - 4);
+        }
+        return name;
+    }
+
+    /**
+     * Blocks until a process of the given tool is allowed to run. Tools run inside the JVM
+     * also go through this to share the limit of their processes.
+     * Each call must be balanced by a call to {@link #release(String)}.
+     */
+    public void acquire(@NonNull String tool) throws InterruptedException {
+        getPermits(tool).acquire();
+    }
+
+    /**
+     * Releases the permit taken by {@link #acquire(String)}.
+     */
+    public void release(@NonNull String tool) {
+        getPermits(tool).release();
+    }
+
+    void execute(@NonNull Runnable task) {
+        mExecutor.execute(task);
+    }
+
+    ScheduledFuture<?> scheduleTimeout(@NonNull Runnable task, long timeoutMs) {
+        return mWatchdog.schedule(task, timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    ScheduledFuture<?> schedulePeriodic(@NonNull Runnable task, long periodMs) {
+        return mWatchdog.scheduleAtFixedRate(task, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized Semaphore getPermits(String tool) {
+        Semaphore permits = mPermits.get(tool);
+        if (permits == null) {
+            permits = new Semaphore(getToolLimit(tool), true /*fair*/);
+            mPermits.put(tool, permits);
+        }
+
+        return permits;
+    }
+
+    /**
+     * Returns the physical memory of the machine in bytes, or the max heap of this JVM if it
+     * cannot be queried.
+     */
+    private static long getPhysicalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+        }
+
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mPrefix + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -463,6 +463,22 @@ public class VariantConfiguration {
         return list;
     }
 
+    /**
+     * Returns the proguard rules files of the libraries.
+     */
+    public List<File> getLibraryProguardRules() {
+        List<File> list = Lists.newArrayList();
+
+        for (AndroidDependency lib : mFlatLibraries) {
+            File rules = lib.getProguardRules();
+            if (rules != null && rules.isFile()) {
+                list.add(rules);
+            }
+        }
+
+        return list;
+    }
+
     /**
      * Returns the compile classpath for this config. If the config tests a library, this
      * will include the classpath of the tested config
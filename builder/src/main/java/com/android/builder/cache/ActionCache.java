@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.cache;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.ToolScheduler;
+import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A local, content-addressed cache for the outputs of external tool invocations.
+ *
+ * An action is identified by a key computed from its command line and from the content of its
+ * declared inputs (see {@link #computeKey(List, List)}). When an action with the same key has
+ * already run, its declared outputs can be restored from the cache instead of running the tool
+ * again.
+ *
+ * The cache directory can be shared by several JVMs: all the modifications of the cache are
+ * done while holding a file lock. The cache is kept under a maximum size by evicting the least
+ * recently used entries.
+ *
+ * Layout of the cache directory:
+ * <pre>
+ *   .lock
+ *   &lt;key&gt;/manifest      size of the entry, then one line per output: "F", "D" or "A"
+ *   &lt;key&gt;/out/&lt;index&gt;    the content of each output file or directory.
+ * </pre>
+ */
+public class ActionCache {
+
+    private final static String LOCK_FILE = ".lock";
+    private final static String MANIFEST = "manifest";
+    private final static String OUTPUTS = "out";
+    private final static String TMP_SUFFIX = ".tmp";
+
+    private final static String TYPE_FILE = "F";
+    private final static String TYPE_DIR = "D";
+    private final static String TYPE_ABSENT = "A";
+
+    private final static String DX_TOOL = "dx";
+    private final static String DX_JAR = "lib/dx.jar";
+
+    /** In-process locks, as file locks are held by the whole JVM. */
+    private final static Map<File, ReentrantLock> sLocks = Maps.newHashMap();
+
+    private final File mCacheDir;
+    private final long mMaxSize;
+    private final ILogger mLogger;
+
+    /** Content hash of the files already read, to only hash each file once per build. */
+    private final Map<File, FileHash> mFileHashes = Maps.newHashMap();
+
+    private final static class FileHash {
+        final long mLength;
+        final long mLastModified;
+        final HashCode mHash;
+
+        FileHash(long length, long lastModified, HashCode hash) {
+            mLength = length;
+            mLastModified = lastModified;
+            mHash = hash;
+        }
+    }
+
+    /**
+     * Creates a cache.
+     * @param cacheDir the directory of the cache. It is created if needed.
+     * @param maxSize the maximum size of the cache, in bytes.
+     * @param logger a logger.
+     */
+    public ActionCache(@NonNull File cacheDir, long maxSize, @NonNull ILogger logger) {
+        checkNotNull(cacheDir, "cacheDir cannot be null.");
+        checkArgument(maxSize > 0, "maxSize must be positive.");
+        mCacheDir = cacheDir.getAbsoluteFile();
+        mMaxSize = maxSize;
+        mLogger = checkNotNull(logger);
+    }
+
+    public File getCacheDir() {
+        return mCacheDir;
+    }
+
+    /**
+     * Computes the key of an action.
+     *
+     * The executable is identified by its name and content rather than by its location so that
+     * moving the SDK does not invalidate the cache. The content of the jars run by a launcher
+     * script, such as lib/dx.jar for dx, is part of the key too, so that updating the tool
+     * without changing its script invalidates its actions. The other arguments are used as is.
+     *
+     * @param command the command line of the action.
+     * @param inputs the input files and folders read by the action.
+     * @return the key of the action.
+     * @throws IOException
+     */
+    @NonNull
+    public String computeKey(@NonNull List<String> command, @NonNull List<File> inputs)
+            throws IOException {
+        checkArgument(!command.isEmpty(), "command cannot be empty.");
+
+        Hasher hasher = Hashing.sha1().newHasher();
+
+        String executable = command.get(0);
+        String toolName = ToolScheduler.getToolName(executable);
+        hasher.putString(toolName, Charsets.UTF_8);
+        File executableFile = new File(executable);
+        if (executableFile.isFile()) {
+            hasher.putBytes(hashFile(executableFile).asBytes());
+        }
+        File toolJar = getToolJar(toolName, executableFile);
+        if (toolJar != null && toolJar.isFile()) {
+            hasher.putBytes(hashFile(toolJar).asBytes());
+        }
+
+        for (String arg : command.subList(1, command.size())) {
+            hasher.putByte((byte) 0);
+            hasher.putString(arg, Charsets.UTF_8);
+        }
+
+        for (File input : inputs) {
+            hasher.putByte((byte) 1);
+            hasher.putString(input.getAbsolutePath(), Charsets.UTF_8);
+            hashInput(hasher, input, "");
+        }
+
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Returns the jar run by the launcher script of a tool, or null if the tool is not a script.
+     */
+    @Nullable
+    private static File getToolJar(@NonNull String toolName, @NonNull File executable) {
+        if (DX_TOOL.equals(toolName)) {
+            // the dx script runs platform-tools/lib/dx.jar
+            return new File(executable.getParentFile(), DX_JAR);
+        }
+
+        return null;
+    }
+
+    /**
+     * Restores the outputs of an action if it is in the cache.
+     * @param key the key of the action.
+     * @param outputs the output files and folders of the action.
+     * @return true if the outputs were restored.
+     * @throws IOException
+     */
+    public boolean restore(@NonNull String key, @NonNull List<File> outputs) throws IOException {
+        CacheLock lock = lock();
+        try {
+            File entry = new File(mCacheDir, key);
+            List<String> types = readTypes(entry);
+            if (types == null || types.size() != outputs.size()) {
+                return false;
+            }
+
+            File outDir = new File(entry, OUTPUTS);
+            for (int i = 0 ; i < outputs.size() ; i++) {
+                File output = outputs.get(i);
+                File cached = new File(outDir, Integer.toString(i));
+                String type = types.get(i);
+
+                deleteRecursively(output);
+                if (TYPE_FILE.equals(type)) {
+                    Files.createParentDirs(output);
+                    Files.copy(cached, output);
+                } else if (TYPE_DIR.equals(type)) {
+                    copyRecursively(cached, output);
+                }
+            }
+
+            // mark the entry as recently used.
+            entry.setLastModified(System.currentTimeMillis());
+            return true;
+        } finally {
+            lock.release();
+        }
+    }
+
+    /**
+     * Stores the outputs of an action in the cache.
+     * @param key the key of the action.
+     * @param outputs the output files and folders of the action. Missing outputs are recorded as
+     *                such and are deleted when the entry is restored.
+     * @throws IOException
+     */
+    public void store(@NonNull String key, @NonNull List<File> outputs) throws IOException {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            throw new IOException("Failed to create " + mCacheDir);
+        }
+
+        // copy the outputs outside of the lock, then move the entry in place.
+        File tmpEntry = new File(mCacheDir, key + "-" + UUID.randomUUID() + TMP_SUFFIX);
+        File outDir = new File(tmpEntry, OUTPUTS);
+        if (!outDir.mkdirs()) {
+            throw new IOException("Failed to create " + outDir);
+        }
+
+        try {
+            long size = 0;
+            StringBuilder manifest = new StringBuilder();
+            for (int i = 0 ; i < outputs.size() ; i++) {
+                File output = outputs.get(i);
+                File cached = new File(outDir, Integer.toString(i));
+                if (output.isFile()) {
+                    Files.copy(output, cached);
+                    manifest.append(TYPE_FILE);
+                } else if (output.isDirectory()) {
+                    copyRecursively(output, cached);
+                    manifest.append(TYPE_DIR);
+                } else {
+                    manifest.append(TYPE_ABSENT);
+                }
+                manifest.append('\n');
+                size += getSize(cached);
+            }
+            Files.write(size + "\n" + manifest, new File(tmpEntry, MANIFEST), Charsets.UTF_8);
+
+            CacheLock lock = lock();
+            try {
+                File entry = new File(mCacheDir, key);
+                if (!entry.exists() && !tmpEntry.renameTo(entry)) {
+                    throw new IOException("Failed to create " + entry);
+                }
+
+                evict(entry);
+            } finally {
+                lock.release();
+            }
+        } finally {
+            deleteRecursively(tmpEntry);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is under its maximum size.
+     * Must be called while holding the lock.
+     * @param keep an entry to never delete.
+     */
+    private void evict(@NonNull File keep) throws IOException {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        List<File> entries = Lists.newArrayList();
+        final Map<File, Long> lastUse = Maps.newHashMap();
+        long totalSize = 0;
+        for (File file : files) {
+            if (file.isDirectory() && !file.getName().endsWith(TMP_SUFFIX)) {
+                entries.add(file);
+                lastUse.put(file, file.lastModified());
+                totalSize += readSize(file);
+            }
+        }
+
+        if (totalSize <= mMaxSize) {
+            return;
+        }
+
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long diff = lastUse.get(file1) - lastUse.get(file2);
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        for (File entry : entries) {
+            if (totalSize <= mMaxSize) {
+                break;
+            }
+            if (!entry.equals(keep)) {
+                totalSize -= readSize(entry);
+                deleteRecursively(entry);
+                mLogger.verbose("Evicted %s from the action cache", entry.getName());
+            }
+        }
+    }
+
+    @Nullable
+    private static List<String> readTypes(@NonNull File entry) throws IOException {
+        File manifest = new File(entry, MANIFEST);
+        if (!manifest.isFile()) {
+            return null;
+        }
+
+        List<String> lines = Files.readLines(manifest, Charsets.UTF_8);
+        return lines.isEmpty() ? null : lines.subList(1, lines.size());
+    }
+
+    private static long readSize(@NonNull File entry) throws IOException {
+        File manifest = new File(entry, MANIFEST);
+        if (!manifest.isFile()) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(Files.readFirstLine(manifest, Charsets.UTF_8));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void hashInput(@NonNull Hasher hasher, @NonNull File input, @NonNull String path)
+            throws IOException {
+        if (input.isFile()) {
+            hasher.putString(path, Charsets.UTF_8);
+            hasher.putBytes(hashFile(input).asBytes());
+        } else if (input.isDirectory()) {
+            File[] children = input.listFiles();
+            if (children != null) {
+                // sort to get the same key whatever the order of the file system.
+                Arrays.sort(children);
+                for (File child : children) {
+                    hashInput(hasher, child, path + "/" + child.getName());
+                }
+            }
+        } else {
+            hasher.putString(path, Charsets.UTF_8);
+            hasher.putByte((byte) 0);
+        }
+    }
+
+    /**
+     * Returns the hash of the content of a file. The hash is only recomputed if the length or
+     * the timestamp of the file changed since the previous call.
+     */
+    @NonNull
+    public synchronized HashCode hashFile(@NonNull File file) throws IOException {
+        FileHash hash = mFileHashes.get(file);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (hash == null || hash.mLength != length || hash.mLastModified != lastModified) {
+            hash = new FileHash(length, lastModified, Files.hash(file, Hashing.sha1()));
+            mFileHashes.put(file, hash);
+        }
+
+        return hash.mHash;
+    }
+
+    private static long getSize(@NonNull File file) {
+        if (file.isDirectory()) {
+            long size = 0;
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    size += getSize(child);
+                }
+            }
+            return size;
+        }
+
+        return file.length();
+    }
+
+    static void copyRecursively(@NonNull File from, @NonNull File to) throws IOException {
+        if (from.isDirectory()) {
+            if (!to.isDirectory() && !to.mkdirs()) {
+                throw new IOException("Failed to create " + to);
+            }
+            File[] children = from.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    copyRecursively(child, new File(to, child.getName()));
+                }
+            }
+        } else {
+            Files.copy(from, to);
+        }
+    }
+
+    static void deleteRecursively(@NonNull File file) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Takes the lock of the cache directory, both for this JVM and for the other processes
+     * sharing the directory.
+     */
+    @NonNull
+    private CacheLock lock() throws IOException {
+        ReentrantLock localLock;
+        synchronized (sLocks) {
+            localLock = sLocks.get(mCacheDir);
+            if (localLock == null) {
+                localLock = new ReentrantLock();
+                sLocks.put(mCacheDir, localLock);
+            }
+        }
+
+        localLock.lock();
+        try {
+            if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+                throw new IOException("Failed to create " + mCacheDir);
+            }
+
+            RandomAccessFile lockFile = new RandomAccessFile(new File(mCacheDir, LOCK_FILE), "rw");
+            try {
+                return new CacheLock(localLock, lockFile, lockFile.getChannel().lock());
+            } catch (IOException e) {
+                lockFile.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    private static final class CacheLock {
+        private final ReentrantLock mLocalLock;
+        private final RandomAccessFile mFile;
+        private final FileLock mFileLock;
+
+        CacheLock(ReentrantLock localLock, RandomAccessFile file, FileLock fileLock) {
+            mLocalLock = localLock;
+            mFile = file;
+            mFileLock = fileLock;
+        }
+
+        void release() throws IOException {
+            try {
+                mFileLock.release();
+                mFile.close();
+            } finally {
+                mLocalLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.cache;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the state computed by the builders in memory for the lifetime of the JVM: the SDK
+ * model, the signing keys, the packages of the manifests...
+ *
+ * When the build runs in a long-lived JVM, such as the Gradle daemon, the following builds
+ * reuse this state instead of computing it again. Each entry is validated against the
+ * timestamp and size of the files it was computed from.
+ *
+ * So that it is safe to keep in a JVM that stays up, entries that have not been used for
+ * a while are evicted, the number of entries is capped, and the values are softly referenced
+ * so that they are dropped before the JVM runs out of memory.
+ */
+public class BuildStateCache {
+
+    private final static long DEFAULT_IDLE_TIMEOUT_MINUTES = 60;
+    private final static long DEFAULT_MAX_ENTRIES = 500;
+
+    private static BuildStateCache sDefault;
+
+    private final Cache<String, Entry> mEntries;
+
+    private static final class Entry {
+        final Object mValue;
+        final long[] mStamps;
+
+        Entry(Object value, long[] stamps) {
+            mValue = value;
+            mStamps = stamps;
+        }
+    }
+
+    /**
+     * Returns the cache shared by all the builders of this JVM.
+     */
+    public static synchronized BuildStateCache getDefault() {
+        if (sDefault == null) {
+            sDefault = new BuildStateCache(
+                    TimeUnit.MINUTES.toMillis(DEFAULT_IDLE_TIMEOUT_MINUTES), DEFAULT_MAX_ENTRIES);
+        }
+
+        return sDefault;
+    }
+
+    /**
+     * Creates a cache.
+     * @param idleTimeoutMs the time after which an entry that is not used is evicted.
+     * @param maxEntries the maximum number of entries.
+     */
+    public BuildStateCache(long idleTimeoutMs, long maxEntries) {
+        checkArgument(idleTimeoutMs > 0, "idleTimeoutMs must be positive.");
+        checkArgument(maxEntries > 0, "maxEntries must be positive.");
+        mEntries = CacheBuilder.newBuilder()
+                .expireAfterAccess(idleTimeoutMs, TimeUnit.MILLISECONDS)
+                .maximumSize(maxEntries)
+                .softValues()
+                .build();
+    }
+
+    /**
+     * Returns a cached value, or null if there is none or if one of the files it was computed
+     * from has changed.
+     *
+     * @param key the key of the value. It should start with the kind of value, eg "sdk:".
+     * @param type the type of the value.
+     * @param files the files the value was computed from.
+     */
+    @Nullable
+    public <T> T get(@NonNull String key, @NonNull Class<T> type, @NonNull List<File> files) {
+        Entry entry = mEntries.getIfPresent(key);
+        if (entry == null || !type.isInstance(entry.mValue)
+                || !Arrays.equals(entry.mStamps, getStamps(files))) {
+            return null;
+        }
+
+        return type.cast(entry.mValue);
+    }
+
+    /**
+     * Stores a value.
+     *
+     * @param key the key of the value.
+     * @param files the files the value was computed from. They must be the same as the ones
+     *              given to {@link #get(String, Class, List)}.
+     * @param value the value.
+     */
+    public void put(@NonNull String key, @NonNull List<File> files, @NonNull Object value) {
+        mEntries.put(key, new Entry(value, getStamps(files)));
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public void invalidateAll() {
+        mEntries.invalidateAll();
+    }
+
+    public long size() {
+        return mEntries.size();
+    }
+
+    private static long[] getStamps(List<File> files) {
+        long[] stamps = new long[files.size() * 2];
+        int i = 0;
+        for (File file : files) {
+            stamps[i++] = file.lastModified();
+            stamps[i++] = file.isFile() ? file.length() : -1;
+        }
+        return stamps;
+    }
+}
@@ -17,20 +17,30 @@
 package com.android.builder.compiler;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.builder.CommandLineRunner;
 import com.android.builder.compiler.SourceGenerator.DisplayType;
 import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  */
 public class AidlProcessor implements SourceGenerator.Processor {
 
+    private final static Pattern COMMENTS = Pattern.compile("//[^\\n]*|/\\*.*?\\*/",
+            Pattern.DOTALL);
+    private final static Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;",
+            Pattern.MULTILINE);
+
     private final String mAidlExecutable;
     private final String mFrameworkLocation;
     private final List<File> mImportFolders;
@@ -57,22 +67,28 @@ public class AidlProcessor implements SourceGenerator.Processor {
             throws IOException, InterruptedException {
 
         ArrayList<String> command = Lists.newArrayList();
+        // the files read and written by aidl, for the action cache.
+        List<File> cacheInputs = Lists.newArrayList();
+        List<File> cacheOutputs = Lists.newArrayList();
 
         command.add(mAidlExecutable);
 
         command.add("-p" + mFrameworkLocation);
+        cacheInputs.add(new File(mFrameworkLocation));
         command.add("-o" + sourceOutputDir.getAbsolutePath());
         // add all the source folders as import in case an aidl file in a source folder
         // imports a parcelable from another source folder.
         for (File sourceFolder : sourceFolders) {
             if (sourceFolder.isDirectory()) {
                 command.add("-I" + sourceFolder.getAbsolutePath());
+                cacheInputs.add(sourceFolder);
             }
         }
 
         // add all the library aidl folders to access parcelables that are in libraries
         for (File f : mImportFolders) {
             command.add("-I" + f.getAbsolutePath());
+            cacheInputs.add(f);
         }
 
         // set auto dependency file creation
@@ -82,7 +98,34 @@ public class AidlProcessor implements SourceGenerator.Processor {
 
         logger.info("aidl command: %s", command.toString());
 
-        mRunner.runCmdLine(command);
+        // the output can only be known if the package of the file can be found.
+        String packageName = getPackage(filePath);
+        if (packageName != null) {
+            String name = filePath.getName();
+            name = name.substring(0, name.length() - ".aidl".length());
+            File packageDir = new File(sourceOutputDir,
+                    packageName.replace('.', File.separatorChar));
+            cacheOutputs.add(new File(packageDir, name + ".java"));
+            cacheOutputs.add(new File(packageDir, name + ".java.d"));
+        }
+
+        mRunner.runCmdLine(command, cacheInputs, cacheOutputs);
+    }
+
+    /**
+     * Returns the package declared by an aidl file, or null if it cannot be found.
+     */
+    @Nullable
+    static String getPackage(@NonNull File aidlFile) throws IOException {
+        String content = Files.toString(aidlFile, Charsets.UTF_8);
+        // remove the comments before looking for the package declaration.
+        content = COMMENTS.matcher(content).replaceAll(" ");
+        Matcher m = PACKAGE.matcher(content);
+        if (m.find()) {
+            return m.group(1);
+        }
+
+        return null;
     }
 
     @Override
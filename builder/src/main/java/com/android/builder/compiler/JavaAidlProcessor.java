@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler;
+
+import com.android.annotations.NonNull;
+import com.android.builder.ToolScheduler;
+import com.android.builder.compiler.SourceGenerator.DisplayType;
+import com.android.builder.compiler.aidl.AidlCompiler;
+import com.android.builder.compiler.aidl.AidlException;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A {@link SourceGenerator.Processor} compiling aidl files inside the JVM with
+ * {@link AidlCompiler}, rather than launching the aidl tool for each file.
+ *
+ * The generated files and dependency files are the same as the ones of {@link AidlProcessor}.
+ * The compilations count against the aidl limit of the {@link ToolScheduler}, like the aidl
+ * processes.
+ */
+public class JavaAidlProcessor implements SourceGenerator.Processor {
+
+    /** The name of the aidl tool in the {@link ToolScheduler}. */
+    private final static String TOOL_NAME = "aidl";
+
+    private final File mFrameworkLocation;
+    private final List<File> mImportFolders;
+    private final ToolScheduler mScheduler;
+
+    private List<File> mSourceFolders;
+    private AidlCompiler mCompiler;
+
+    public JavaAidlProcessor(@NonNull String frameworkLocation,
+                             @NonNull List<File> importFolders,
+                             @NonNull ToolScheduler scheduler) {
+        mFrameworkLocation = new File(frameworkLocation);
+        mImportFolders = importFolders;
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public String getSourceFileExtension() {
+        return "aidl";
+    }
+
+    @Override
+    public void process(File filePath, List<File> sourceFolders, File sourceOutputDir,
+                        ILogger logger)
+            throws IOException, InterruptedException {
+        logger.info("aidl (in-process): %s", filePath.getAbsolutePath());
+
+        AidlCompiler compiler = getCompiler(sourceFolders);
+        mScheduler.acquire(TOOL_NAME);
+        try {
+            compiler.compile(filePath, sourceOutputDir);
+        } catch (AidlException e) {
+            throw new RuntimeException(String.format("aidl failed on %1$s.\n%2$s",
+                    filePath.getAbsolutePath(), e.getMessage()), e);
+        } finally {
+            mScheduler.release(TOOL_NAME);
+        }
+    }
+
+    /**
+     * Returns the compiler for the given source folders, reusing the one of the previous
+     * files so that the framework types and the imports are only read once.
+     */
+    private synchronized AidlCompiler getCompiler(List<File> sourceFolders) throws IOException {
+        if (mCompiler == null || !sourceFolders.equals(mSourceFolders)) {
+            // same import order as AidlProcessor: the source folders, then the libraries.
+            List<File> importFolders = Lists.newArrayList();
+            for (File sourceFolder : sourceFolders) {
+                if (sourceFolder.isDirectory()) {
+                    importFolders.add(sourceFolder.getAbsoluteFile());
+                }
+            }
+            for (File f : mImportFolders) {
+                importFolders.add(f.getAbsoluteFile());
+            }
+
+            mCompiler = new AidlCompiler(mFrameworkLocation, importFolders);
+            mSourceFolders = Lists.newArrayList(sourceFolders);
+        }
+
+        return mCompiler;
+    }
+
+    @Override
+    public void displayMessage(ILogger logger, DisplayType type, int count) {
+        switch (type) {
+            case FOUND:
+                logger.info("Found %1$d AIDL files.", count);
+                break;
+            case COMPILING:
+                if (count > 0) {
+                    logger.info("Compiling %1$d AIDL files.", count);
+                } else {
+                    logger.info("No AIDL files to compile.");
+                }
+                break;
+            case REMOVE_OUTPUT:
+                logger.info("Found %1$d obsolete output files to remove.", count);
+                break;
+            case REMOVE_DEP:
+                logger.info("Found %1$d obsolete dependency files to remove.", count);
+                break;
+        }
+    }
+}
@@ -17,8 +17,10 @@
 package com.android.builder.compiler;
 
 import com.android.utils.ILogger;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.IOException;
@@ -27,6 +29,13 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Class to help generating Source code.
@@ -34,6 +43,7 @@ import java.util.Set;
 public class SourceGenerator {
 
     private final ILogger mLogger;
+    private final int mThreadCount;
 
     static enum DisplayType {
         FOUND, COMPILING, REMOVE_OUTPUT, REMOVE_DEP;
@@ -47,93 +57,249 @@ public class SourceGenerator {
     }
 
     public SourceGenerator(ILogger logger) {
+        this(logger, 1);
+    }
+
+    /**
+     * Creates a generator processing several files at the same time.
+     * @param logger the logger. It is only called by one thread at a time.
+     * @param threadCount the maximum number of files processed at the same time.
+     */
+    public SourceGenerator(ILogger logger, int threadCount) {
+        checkArgument(threadCount > 0, "threadCount must be positive.");
         mLogger = logger;
+        mThreadCount = threadCount;
     }
 
-    public void processFiles(Processor processor, List<File> sourceFolders,
-                             File sourceOutputDir) throws IOException, InterruptedException {
+    public void processFiles(final Processor processor, final List<File> sourceFolders,
+                             final File sourceOutputDir) throws IOException, InterruptedException {
 
-        String extension = processor.getSourceFileExtension();
+        final String extension = processor.getSourceFileExtension();
 
-        // gather all the source files from all the source folders.
-        Map<File, File> sourceFiles = getFilesByNameEntryFilter(sourceFolders, extension);
-        if (sourceFiles.size() > 0) {
-            processor.displayMessage(mLogger, DisplayType.FOUND, sourceFiles.size());
+        ExecutorService executor = null;
+        final ILogger logger;
+        if (mThreadCount > 1) {
+            executor = Executors.newFixedThreadPool(mThreadCount);
+            logger = new SynchronizedLogger(mLogger);
+        } else {
+            logger = mLogger;
         }
 
-        // go look for all dependency files in the gen folder. This will have all dependency
-        // files but we can filter them based on the first pre-req file.
-        List<File> depFiles = getFilesByNameEntryFilter(sourceOutputDir, "d");
-
-        // parse all the dep files and keep the ones that are of the proper type and check if
-        // they require compilation again.
-        Map<File, File> toCompile = Maps.newHashMap();
-        ArrayList<File> toRemove = Lists.newArrayList();
-        ArrayList<File> depsToRemove = Lists.newArrayList();
-        for (File depFile : depFiles) {
-            DependencyGraph graph = new DependencyGraph(depFile, null /*watchPaths*/, mLogger);
-
-            // get the source file. it's the first item in the pre-reqs
-            File sourceFile = graph.getFirstPrereq();
-            String sourceFilePath = sourceFile.getAbsolutePath();
-
-            // The gen folder may contain other dependency files not generated by this particular
-            // processor.
-            // We only care if the first pre-rep is of the right extension.
-            if (sourceFilePath.toLowerCase(Locale.US).endsWith("." + extension)) {
-                // remove from the list of sourceFiles to mark as "processed" (but not compiled
-                // yet, that'll be done by adding it to toCompile)
-                File sourceFolder = sourceFiles.get(sourceFile);
-                if (sourceFolder == null) {
-                    // looks like the source file does not exist anymore!
-                    // we'll have to remove the output!
-                    Set<File> outputFiles = graph.getTargets();
-                    toRemove.addAll(outputFiles);
-
-                    // also need to remove the dep file.
-                    depsToRemove.add(depFile);
-                } else {
-                    // Source file is present. remove it from the list as being processed.
-                    sourceFiles.remove(sourceFile);
-
-                    // check if it needs to be recompiled.
-                    if (graph.dependenciesHaveChanged(false /*printStatus*/)) {
-                        toCompile.put(sourceFile, sourceFolder);
+        try {
+            // gather all the source files from all the source folders.
+            final Map<File, File> sourceFiles = getFilesByNameEntryFilter(sourceFolders,
+                    extension);
+            if (sourceFiles.size() > 0) {
+                processor.displayMessage(logger, DisplayType.FOUND, sourceFiles.size());
+            }
+
+            // go look for all dependency files in the gen folder. This will have all dependency
+            // files but we can filter them based on the first pre-req file.
+            List<File> depFiles = getFilesByNameEntryFilter(sourceOutputDir, "d");
+
+            // parse all the dep files and check if their source file requires compilation
+            // again. sourceFiles is only read until all of them are parsed.
+            List<Callable<DepFileStatus>> parseTasks = Lists.newArrayList();
+            for (final File depFile : depFiles) {
+                parseTasks.add(new Callable<DepFileStatus>() {
+                    @Override
+                    public DepFileStatus call() {
+                        DependencyGraph graph = new DependencyGraph(depFile,
+                                null /*watchPaths*/, logger);
+                        File sourceFile = graph.getFirstPrereq();
+                        boolean changed = sourceFiles.containsKey(sourceFile)
+                                && graph.dependenciesHaveChanged(false /*printStatus*/);
+                        return new DepFileStatus(depFile, graph, changed);
+                    }
+                });
+            }
+
+            // keep the ones that are of the proper type. Sorted sets make the list of
+            // files to compile and to remove the same from one build to the next.
+            Map<File, File> toCompile = Maps.newTreeMap();
+            Set<File> toRemove = Sets.newTreeSet();
+            Set<File> depsToRemove = Sets.newTreeSet();
+            for (DepFileStatus status : runAll(executor, parseTasks)) {
+                // get the source file. it's the first item in the pre-reqs
+                File sourceFile = status.mGraph.getFirstPrereq();
+                String sourceFilePath = sourceFile.getAbsolutePath();
+
+                // The gen folder may contain other dependency files not generated by this
+                // particular processor.
+                // We only care if the first pre-rep is of the right extension.
+                if (sourceFilePath.toLowerCase(Locale.US).endsWith("." + extension)) {
+                    // remove from the list of sourceFiles to mark as "processed" (but not
+                    // compiled yet, that'll be done by adding it to toCompile)
+                    File sourceFolder = sourceFiles.get(sourceFile);
+                    if (sourceFolder == null) {
+                        // looks like the source file does not exist anymore!
+                        // we'll have to remove the output!
+                        toRemove.addAll(status.mGraph.getTargets());
+
+                        // also need to remove the dep file.
+                        depsToRemove.add(status.mDepFile);
+                    } else {
+                        // Source file is present. remove it from the list as being processed.
+                        sourceFiles.remove(sourceFile);
+
+                        // check if it needs to be recompiled.
+                        if (status.mChanged) {
+                            toCompile.put(sourceFile, sourceFolder);
+                        }
                     }
                 }
             }
-        }
 
-        // add to the list of files to compile, whatever is left in sourceFiles. Those are
-        // new files that have never been compiled.
-        toCompile.putAll(sourceFiles);
+            // add to the list of files to compile, whatever is left in sourceFiles. Those are
+            // new files that have never been compiled.
+            toCompile.putAll(sourceFiles);
+
+            // remove the outputs of the deleted files before processing the other ones, as a
+            // file moved to another source folder writes the same output and dep file.
+            if (toRemove.size() > 0) {
+                processor.displayMessage(logger, DisplayType.REMOVE_OUTPUT, toRemove.size());
 
-        processor.displayMessage(mLogger, DisplayType.COMPILING, toCompile.size());
-        if (toCompile.size() > 0) {
-            for (Map.Entry<File, File> toCompilePath : toCompile.entrySet()) {
-                processor.process(toCompilePath.getKey(), sourceFolders, sourceOutputDir, mLogger);
+                for (File toRemoveFile : toRemove) {
+                    if (toRemoveFile.delete() == false) {
+                        logger.warning("Failed to remove " + toRemoveFile.getAbsolutePath());
+                    }
+                }
             }
-        }
 
-        if (toRemove.size() > 0) {
-            processor.displayMessage(mLogger, DisplayType.REMOVE_OUTPUT, toRemove.size());
+            // remove the dependency files that are obsolete
+            if (depsToRemove.size() > 0) {
+                processor.displayMessage(logger, DisplayType.REMOVE_DEP, depsToRemove.size());
+
+                for (File file : depsToRemove) {
+                    if (file.delete() == false) {
+                        logger.warning("Failed to remove " + file.getAbsolutePath());
+                    }
+                }
+            }
 
-            for (File toRemoveFile : toRemove) {
-                if (toRemoveFile.delete() == false) {
-                    mLogger.warning("Failed to remove " + toRemoveFile.getAbsolutePath());
+            processor.displayMessage(logger, DisplayType.COMPILING, toCompile.size());
+            if (toCompile.size() > 0) {
+                List<Callable<Void>> processTasks = Lists.newArrayList();
+                for (final File toCompileFile : toCompile.keySet()) {
+                    processTasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException, InterruptedException {
+                            processor.process(toCompileFile, sourceFolders, sourceOutputDir,
+                                    logger);
+                            return null;
+                        }
+                    });
                 }
+                runAll(executor, processTasks);
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Runs tasks on an executor, or in the current thread if the executor is null, and
+     * returns their results in the order of the tasks.
+     *
+     * If a task fails, the tasks that have not run yet are cancelled and the exception of
+     * the first failed task, in the order of the tasks, is thrown.
+     */
+    private static <T> List<T> runAll(ExecutorService executor, List<Callable<T>> tasks)
+            throws IOException, InterruptedException {
+        List<T> results = Lists.newArrayListWithCapacity(tasks.size());
+        if (executor == null) {
+            for (Callable<T> task : tasks) {
+                results.add(call(task));
             }
+            return results;
         }
 
-        // remove the dependency files that are obsolete
-        if (depsToRemove.size() > 0) {
-            processor.displayMessage(mLogger, DisplayType.REMOVE_DEP, toRemove.size());
+        List<Future<T>> futures = Lists.newArrayListWithCapacity(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(executor.submit(task));
+        }
 
-            for (File file : depsToRemove) {
-                if (file.delete() == false) {
-                    mLogger.warning("Failed to remove " + file.getAbsolutePath());
+        try {
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    Throwables.propagateIfPossible(cause, IOException.class,
+                            InterruptedException.class);
+                    throw new RuntimeException(cause);
                 }
             }
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true /*mayInterruptIfRunning*/);
+            }
+        }
+
+        return results;
+    }
+
+    private static <T> T call(Callable<T> task) throws IOException, InterruptedException {
+        try {
+            return task.call();
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The result of the parsing of a dependency file.
+     */
+    private static final class DepFileStatus {
+        final File mDepFile;
+        final DependencyGraph mGraph;
+        /** Whether the source file exists and needs to be processed again. */
+        final boolean mChanged;
+
+        DepFileStatus(File depFile, DependencyGraph graph, boolean changed) {
+            mDepFile = depFile;
+            mGraph = graph;
+            mChanged = changed;
+        }
+    }
+
+    /**
+     * Logger letting only one thread at a time call the logger of the build, so that
+     * processors running in parallel don't interleave their messages.
+     */
+    private static final class SynchronizedLogger implements ILogger {
+        private final ILogger mLogger;
+
+        SynchronizedLogger(ILogger logger) {
+            mLogger = logger;
+        }
+
+        @Override
+        public synchronized void error(Throwable t, String msgFormat, Object... args) {
+            mLogger.error(t, msgFormat, args);
+        }
+
+        @Override
+        public synchronized void warning(String msgFormat, Object... args) {
+            mLogger.warning(msgFormat, args);
+        }
+
+        @Override
+        public synchronized void info(String msgFormat, Object... args) {
+            mLogger.info(msgFormat, args);
+        }
+
+        @Override
+        public synchronized void verbose(String msgFormat, Object... args) {
+            mLogger.verbose(msgFormat, args);
         }
     }
 
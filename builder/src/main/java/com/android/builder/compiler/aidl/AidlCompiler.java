@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler.aidl;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.compiler.aidl.AidlDocument.Arg;
+import com.android.builder.compiler.aidl.AidlDocument.Declaration;
+import com.android.builder.compiler.aidl.AidlDocument.Import;
+import com.android.builder.compiler.aidl.AidlDocument.Interface;
+import com.android.builder.compiler.aidl.AidlDocument.Method;
+import com.android.builder.compiler.aidl.AidlDocument.Parcelable;
+import com.android.builder.compiler.aidl.AidlType.InterfaceType;
+import com.android.builder.compiler.aidl.AidlType.ParcelableType;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process replacement for the aidl tool.
+ *
+ * {@link #compile(File, File)} produces the same Java file and the same dependency file as
+ * {@code aidl -p<framework> -I<folders> -o<outputDir> -a <file>}, without starting a process.
+ *
+ * The framework types and the imports are resolved once per instance and shared by all
+ * the files it compiles, so an instance should be used for all the files of a compilation
+ * run, with the same import folders. This class is thread-safe.
+ */
+public class AidlCompiler {
+
+    private final static Pattern PREPROCESSED = Pattern.compile(
+            "^\\s*(parcelable|interface)\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+
+    private final static Set<String> JAVA_KEYWORDS = ImmutableSet.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class",
+            "const", "continue", "default", "do", "double", "else", "enum", "extends", "final",
+            "finally", "float", "for", "goto", "if", "implements", "import", "instanceof",
+            "int", "interface", "long", "native", "new", "package", "private", "protected",
+            "public", "return", "short", "static", "strictfp", "super", "switch",
+            "synchronized", "this", "throw", "throws", "transient", "try", "void",
+            "volatile", "while", "true", "false", "null");
+
+    /** Marks an import that cannot be found in {@link #mImportPaths}. */
+    private final static String NOT_FOUND = "";
+
+    private final List<File> mImportFolders;
+    /** The built-in and framework types. */
+    private final AidlNamespace mBaseNamespace;
+
+    /** The path of the imports, by class name. */
+    private final Map<String, String> mImportPaths = Maps.newConcurrentMap();
+    /** The parsed imports, by path. */
+    private final Map<String, AidlDocument> mImportDocuments = Maps.newConcurrentMap();
+
+    /**
+     * Creates a compiler.
+     * @param frameworkAidl the preprocessed framework.aidl file of the target platform.
+     * @param importFolders the folders where the imports are searched, in order.
+     */
+    public AidlCompiler(@NonNull File frameworkAidl, @NonNull List<File> importFolders)
+            throws IOException {
+        mImportFolders = ImmutableList.copyOf(importFolders);
+        mBaseNamespace = AidlNamespace.createBuiltIns();
+
+        String content = Files.toString(frameworkAidl, Charsets.UTF_8);
+        Matcher m = PREPROCESSED.matcher(content);
+        while (m.find()) {
+            String name = m.group(2);
+            int index = name.lastIndexOf('.');
+            String pkg = index != -1 ? name.substring(0, index) : null;
+            String simpleName = name.substring(index + 1);
+            if (m.group(1).equals("parcelable")) {
+                mBaseNamespace.add(new ParcelableType(pkg, simpleName));
+            } else {
+                mBaseNamespace.add(new InterfaceType(pkg, simpleName, false /*oneWay*/));
+            }
+        }
+    }
+
+    /**
+     * Compiles an aidl file.
+     *
+     * @param aidlFile the file to compile.
+     * @param outputDir the root folder of the generated Java files.
+     * @return the generated Java file, or null if the file only declares parcelables.
+     *
+     * @throws AidlException if the file is invalid, with the errors in the format of aidl.
+     */
+    @Nullable
+    public File compile(@NonNull File aidlFile, @NonNull File outputDir)
+            throws IOException, AidlException {
+        String path = aidlFile.getAbsolutePath();
+        AidlDocument document = AidlParser.parse(path,
+                Files.toString(aidlFile, Charsets.UTF_8));
+
+        List<String> errors = Lists.newArrayList();
+        AidlNamespace namespace = mBaseNamespace.copy();
+
+        // the imports, in the order of the file. null when not found.
+        List<String> importPaths = Lists.newArrayList();
+        List<AidlDocument> importDocuments = Lists.newArrayList();
+        for (Import anImport : document.mImports) {
+            if (namespace.find(anImport.mName) != null) {
+                importPaths.add(null);
+                continue;
+            }
+
+            String importPath = findImport(anImport.mName);
+            importPaths.add(importPath);
+            if (importPath == null) {
+                errors.add(String.format("%1$s:%2$d: couldn't find import for class %3$s",
+                        path, anImport.mLine, anImport.mName));
+                continue;
+            }
+
+            try {
+                AidlDocument importDocument = parseImport(importPath);
+                checkFileName(importDocument, errors);
+                importDocuments.add(importDocument);
+            } catch (AidlException e) {
+                errors.add(e.getMessage());
+            }
+        }
+
+        gatherTypes(document, namespace, errors);
+        for (AidlDocument importDocument : importDocuments) {
+            gatherTypes(importDocument, namespace, errors);
+        }
+
+        checkFileName(document, errors);
+        checkTypes(document, namespace, errors);
+
+        List<Declaration> declarations = document.mDeclarations;
+        if (declarations.isEmpty()) {
+            errors.add(String.format("%1$s: file does not contain any interfaces", path));
+        } else if (declarations.size() > 1 && !(declarations.get(1) instanceof Parcelable)) {
+            errors.add(AidlException.format(path, declarations.get(1).mLine,
+                    "aidl can only handle one interface per file"));
+        }
+
+        if (!errors.isEmpty()) {
+            throw new AidlException(errors);
+        }
+
+        Declaration declaration = declarations.get(0);
+        StringBuilder outputPath = new StringBuilder(outputDir.getAbsolutePath());
+        if (document.mPackage != null) {
+            outputPath.append(File.separatorChar)
+                    .append(document.mPackage.replace('.', File.separatorChar));
+        }
+        outputPath.append(File.separatorChar).append(declaration.mName).append(".java");
+
+        File output = new File(outputPath.toString());
+        Files.createParentDirs(output);
+        writeDependencyFile(output, declaration instanceof Interface, path,
+                document.mImports, importPaths);
+
+        if (!(declaration instanceof Interface)) {
+            return null;
+        }
+
+        String code = AidlJavaGenerator.generate(namespace, document, (Interface) declaration,
+                path);
+        Files.write(code, output, Charsets.UTF_8);
+        return output;
+    }
+
+    @Nullable
+    private String findImport(String className) {
+        String importPath = mImportPaths.get(className);
+        if (importPath == null) {
+            importPath = NOT_FOUND;
+            String relativePath = className.replace('.', File.separatorChar) + ".aidl";
+            for (File folder : mImportFolders) {
+                String candidate = folder.getPath();
+                if (!candidate.isEmpty()
+                        && candidate.charAt(candidate.length() - 1) != File.separatorChar) {
+                    candidate += File.separatorChar;
+                }
+                candidate += relativePath;
+                if (new File(candidate).canRead()) {
+                    importPath = candidate;
+                    break;
+                }
+            }
+            mImportPaths.put(className, importPath);
+        }
+
+        return importPath != NOT_FOUND ? importPath : null;
+    }
+
+    private AidlDocument parseImport(String importPath) throws IOException, AidlException {
+        AidlDocument document = mImportDocuments.get(importPath);
+        if (document == null) {
+            document = AidlParser.parse(importPath,
+                    Files.toString(new File(importPath), Charsets.UTF_8));
+            mImportDocuments.put(importPath, document);
+        }
+
+        return document;
+    }
+
+    private static void gatherTypes(AidlDocument document, AidlNamespace namespace,
+            List<String> errors) {
+        for (Declaration declaration : document.mDeclarations) {
+            AidlType type;
+            if (declaration instanceof Interface) {
+                type = new InterfaceType(document.mPackage, declaration.mName,
+                        ((Interface) declaration).mOneWay);
+            } else {
+                type = new ParcelableType(document.mPackage, declaration.mName);
+            }
+
+            AidlType existing = namespace.find(type.getQualifiedName());
+            if (existing == null) {
+                namespace.add(type);
+            } else if (existing.getKind() == AidlType.Kind.BUILT_IN) {
+                errors.add(AidlException.format(document.mPath, declaration.mLine,
+                        "attempt to redefine built in class " + type.getQualifiedName()));
+            } else if (existing.getKind() != type.getKind()) {
+                errors.add(AidlException.format(document.mPath, declaration.mLine,
+                        String.format("attempt to redefine %1$s as %2$s,",
+                                type.getQualifiedName(), getKindName(type))));
+            }
+        }
+    }
+
+    private static String getKindName(AidlType type) {
+        return type.getKind() == AidlType.Kind.INTERFACE ? "interface" : "parcelable";
+    }
+
+    /**
+     * Checks that the declarations of a file match its path, as javac does for classes.
+     */
+    private static void checkFileName(AidlDocument document, List<String> errors) {
+        for (Declaration declaration : document.mDeclarations) {
+            StringBuilder expected = new StringBuilder();
+            if (document.mPackage != null) {
+                expected.append(document.mPackage.replace('.', File.separatorChar))
+                        .append(File.separatorChar);
+            }
+            // only the outer class for inner parcelables.
+            int dot = declaration.mName.indexOf('.');
+            expected.append(dot != -1 ? declaration.mName.substring(0, dot) : declaration.mName)
+                    .append(".aidl");
+
+            if (!new File(document.mPath).getAbsolutePath().endsWith(expected.toString())) {
+                errors.add(AidlException.format(document.mPath, declaration.mLine,
+                        String.format("interface %1$s should be declared in a file called %2$s.",
+                                declaration.mName, expected)));
+            }
+        }
+    }
+
+    private static void checkTypes(AidlDocument document, AidlNamespace namespace,
+            List<String> errors) {
+        String path = document.mPath;
+        for (Declaration declaration : document.mDeclarations) {
+            if (!(declaration instanceof Interface)) {
+                continue;
+            }
+
+            Interface iface = (Interface) declaration;
+            Map<String, Method> methods = Maps.newHashMap();
+            for (Method method : iface.mMethods) {
+                boolean oneWay = iface.mOneWay || method.mOneWay;
+                checkReturnType(path, method, namespace, errors);
+
+                if (oneWay && !method.mReturnType.mName.equals("void")) {
+                    errors.add(AidlException.format(path, method.mLine, String.format(
+                            "oneway method '%1$s' cannot return a value", method.mName)));
+                }
+
+                int index = 1;
+                for (Arg arg : method.mArgs) {
+                    checkArg(path, method, arg, index++, namespace, errors);
+                    if (oneWay && arg.isOut()) {
+                        errors.add(AidlException.format(path, method.mLine, String.format(
+                                "oneway method '%1$s' cannot have out parameters",
+                                method.mName)));
+                    }
+                }
+
+                Method previous = methods.get(method.mName);
+                if (previous != null) {
+                    errors.add(AidlException.format(path, method.mLine,
+                            "attempt to redefine method " + method.mName + ","));
+                    errors.add(AidlException.format(path, previous.mLine,
+                            "    previously defined here."));
+                } else {
+                    methods.put(method.mName, method);
+                }
+
+                if (JAVA_KEYWORDS.contains(method.mName)) {
+                    errors.add(AidlException.format(path, method.mLine, String.format(
+                            "method %1$s is named the same as a Java or aidl keyword",
+                            method.mName)));
+                }
+            }
+        }
+    }
+
+    private static void checkReturnType(String path, Method method, AidlNamespace namespace,
+            List<String> errors) {
+        AidlDocument.TypeRef returnType = method.mReturnType;
+        if (returnType.mName.equals("void")) {
+            return;
+        }
+
+        AidlType type = namespace.search(returnType.mName);
+        if (type == null) {
+            errors.add(AidlException.format(path, returnType.mLine,
+                    "unknown return type " + returnType.mName));
+        } else if (!type.canWriteToParcel()) {
+            errors.add(AidlException.format(path, returnType.mLine,
+                    String.format("return type %1$s can't be marshalled.", returnType.mName)));
+        } else if (returnType.mDimension > 0 && !type.canBeArray()) {
+            errors.add(AidlException.format(path, returnType.mLine,
+                    String.format("return type %1$s%2$s can't be an array.", returnType.mName,
+                            returnType.mArray)));
+        }
+    }
+
+    private static void checkArg(String path, Method method, Arg arg, int index,
+            AidlNamespace namespace, List<String> errors) {
+        AidlDocument.TypeRef argType = arg.mType;
+        int line = argType.mLine;
+        if (argType.mName.equals("void")) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$s (%2$d) can't be void", arg.mName, index)));
+            return;
+        }
+
+        AidlType type = namespace.search(argType.mName);
+        if (type == null) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$s (%2$d) unknown type %3$s", arg.mName, index,
+                    argType.mName)));
+            return;
+        }
+
+        if (!type.canWriteToParcel()) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$d: '%2$s %3$s' can't be marshalled.", index, argType.mName,
+                    arg.mName)));
+            return;
+        }
+
+        if (arg.mDirection == null
+                && (argType.mDimension != 0 || type.canBeOutParameter())) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$d: '%2$s %3$s' can be an out parameter, so you must declare "
+                            + "it as in, out or inout.", index, argType.mName, arg.mName)));
+        }
+
+        if (arg.isOut() && !type.canBeOutParameter() && argType.mDimension == 0) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$d: '%2$s %3$s %4$s' can only be an in parameter.", index,
+                    arg.mDirection, argType.mName, arg.mName)));
+        }
+
+        if (argType.mDimension > 0 && !type.canBeArray()) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$d: '%2$s %3$s%4$s %5$s' can't be an array.", index,
+                    arg.mDirection, argType.mName, argType.mArray, arg.mName)));
+        }
+
+        if (argType.mDimension > 1) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$d: '%2$s %3$s%4$s %5$s' only one-dimensional arrays are "
+                            + "supported", index, arg.mDirection, argType.mName,
+                    argType.mArray, arg.mName)));
+        }
+
+        if (JAVA_KEYWORDS.contains(arg.mName)) {
+            errors.add(AidlException.format(path, line, String.format(
+                    "parameter %1$d %2$s is named the same as a Java or aidl keyword", index,
+                    arg.mName)));
+        }
+    }
+
+    /**
+     * Writes the make dependency file of a compiled file, next to the output.
+     */
+    private static void writeDependencyFile(File output, boolean isInterface, String inputPath,
+            List<Import> imports, List<String> importPaths) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String slash = imports.isEmpty() ? "" : "\\";
+
+        if (isInterface) {
+            sb.append(output.getPath()).append(": \\\n");
+        } else {
+            // parcelable: there's no output file.
+            sb.append(" : \\\n");
+        }
+        sb.append("  ").append(inputPath).append(' ').append(slash).append('\n');
+
+        for (int i = 0 ; i < importPaths.size() ; i++) {
+            if (i == importPaths.size() - 1) {
+                slash = "";
+            }
+            String importPath = importPaths.get(i);
+            if (importPath != null) {
+                sb.append("  ").append(importPath).append(' ').append(slash).append('\n');
+            }
+        }
+        sb.append('\n');
+
+        // so that make doesn't fail if an import is deleted.
+        for (String importPath : importPaths) {
+            if (importPath != null) {
+                sb.append(importPath).append(" :\n");
+            }
+        }
+
+        Files.write(sb.toString(), new File(output.getPath() + ".d"), Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler.aidl;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * The content of a parsed aidl file.
+ */
+final class AidlDocument {
+
+    /** The path of the file, as given to the parser. */
+    final String mPath;
+    String mPackage;
+    final List<Import> mImports = Lists.newArrayList();
+    /** The parcelables and interfaces declared by the file, in order. */
+    final List<Declaration> mDeclarations = Lists.newArrayList();
+
+    AidlDocument(String path) {
+        mPath = path;
+    }
+
+    static final class Import {
+        final String mName;
+        final int mLine;
+
+        Import(String name, int line) {
+            mName = name;
+            mLine = line;
+        }
+    }
+
+    /**
+     * A parcelable or interface declaration.
+     */
+    static class Declaration {
+        final String mName;
+        final int mLine;
+
+        Declaration(String name, int line) {
+            mName = name;
+            mLine = line;
+        }
+    }
+
+    static final class Parcelable extends Declaration {
+        Parcelable(String name, int line) {
+            super(name, line);
+        }
+    }
+
+    static final class Interface extends Declaration {
+        final boolean mOneWay;
+        /** The comments preceding the declaration, as copied in the generated code. */
+        final String mComments;
+        final List<Method> mMethods = Lists.newArrayList();
+
+        Interface(String name, int line, boolean oneWay, String comments) {
+            super(name, line);
+            mOneWay = oneWay;
+            mComments = comments;
+        }
+    }
+
+    static final class Method {
+        final TypeRef mReturnType;
+        final String mName;
+        final int mLine;
+        final boolean mOneWay;
+        final String mComments;
+        final List<Arg> mArgs = Lists.newArrayList();
+
+        Method(TypeRef returnType, String name, int line, boolean oneWay, String comments) {
+            mReturnType = returnType;
+            mName = name;
+            mLine = line;
+            mOneWay = oneWay;
+            mComments = comments;
+        }
+    }
+
+    static final class Arg {
+        /** "in", "out", "inout" or null if not specified. */
+        final String mDirection;
+        final TypeRef mType;
+        final String mName;
+
+        Arg(String direction, TypeRef type, String name) {
+            mDirection = direction;
+            mType = type;
+            mName = name;
+        }
+
+        boolean isIn() {
+            return mDirection == null || mDirection.equals("in") || mDirection.equals("inout");
+        }
+
+        boolean isOut() {
+            return mDirection != null && (mDirection.equals("out") || mDirection.equals("inout"));
+        }
+    }
+
+    /**
+     * A reference to a type, as written in the file.
+     */
+    static final class TypeRef {
+        /** The name of the type, eg "int", "Rect", "a.b.Rect" or "List<String>". */
+        final String mName;
+        /** The array brackets, as written, or an empty string. */
+        final String mArray;
+        final int mDimension;
+        final int mLine;
+
+        TypeRef(String name, String array, int dimension, int line) {
+            mName = name;
+            mArray = array;
+            mDimension = dimension;
+            mLine = line;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.compiler.aidl;
+
+import com.android.annotations.NonNull;
+
+import java.util.List;
+
+/**
+ * Errors found in aidl files, in the format of the aidl tool: {@code <file>:<line> <message>}.
+ */
+public class AidlException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public AidlException(@NonNull String message) {
+        super(message);
+    }
+
+    AidlException(@NonNull String path, int line, @NonNull String message) {
+        super(format(path, line, message));
+    }
+
+    AidlException(@NonNull List<String> messages) {
+        super(join(messages));
+    }
+
+    static String format(@NonNull String path, int line, @NonNull String message) {
+        return String.format("%1$s:%2$d %3$s", path, line, message);
+    }
+
+    private static String join(List<String> messages) {
+        StringBuilder sb = new StringBuilder();
+        for (String message : messages) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(message);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler.aidl;
+
+import com.android.builder.compiler.aidl.AidlDocument.Arg;
+import com.android.builder.compiler.aidl.AidlDocument.Interface;
+import com.android.builder.compiler.aidl.AidlDocument.Method;
+import com.android.builder.compiler.aidl.AidlDocument.TypeRef;
+import com.android.builder.compiler.aidl.AidlType.Code;
+import com.android.builder.compiler.aidl.AidlType.InterfaceType;
+
+/**
+ * Generates the Java code of an aidl interface.
+ *
+ * The output is the same as the one of the aidl tool, which does not indent its code.
+ */
+final class AidlJavaGenerator {
+
+    private final static String REMOTE_EXCEPTION = " throws android.os.RemoteException";
+
+    private final AidlNamespace mNamespace;
+    private final String mQualifiedName;
+    private final boolean mOneWay;
+
+    private AidlJavaGenerator(AidlNamespace namespace, InterfaceType type) {
+        mNamespace = namespace;
+        mQualifiedName = type.getQualifiedName();
+        mOneWay = type.isOneWay();
+    }
+
+    /**
+     * Generates the Java file of an interface.
+     * @param namespace the types, already checked.
+     * @param document the parsed aidl file.
+     * @param iface the interface of the document.
+     * @param inputPath the path of the aidl file, as written in the header of the output.
+     */
+    static String generate(AidlNamespace namespace, AidlDocument document, Interface iface,
+            String inputPath) {
+        InterfaceType type = (InterfaceType) namespace.find(
+                qualify(document.mPackage, iface.mName));
+        return new AidlJavaGenerator(namespace, type).generate(document, iface, inputPath);
+    }
+
+    static String qualify(String pkg, String name) {
+        return pkg != null ? pkg + "." + name : name;
+    }
+
+    private String generate(AidlDocument document, Interface iface, String inputPath) {
+        StringBuilder out = new StringBuilder();
+        out.append("/*\n * This file is auto-generated.  DO NOT MODIFY.\n * Original file: ")
+                .append(inputPath.replace("\\", "\\\\")).append("\n */\n");
+        if (document.mPackage != null) {
+            out.append("package ").append(document.mPackage).append(";\n");
+        }
+
+        appendComments(out, iface.mComments);
+        out.append("public interface ").append(iface.mName)
+                .append(" extends android.os.IInterface\n{\n");
+
+        StringBuilder cases = new StringBuilder();
+        StringBuilder proxyMethods = new StringBuilder();
+        StringBuilder transactionCodes = new StringBuilder();
+        StringBuilder declarations = new StringBuilder();
+
+        int index = 0;
+        for (Method method : iface.mMethods) {
+            transactionCodes.append("static final int TRANSACTION_").append(method.mName)
+                    .append(" = (android.os.IBinder.FIRST_CALL_TRANSACTION + ").append(index++)
+                    .append(");\n");
+
+            appendComments(declarations, method.mComments);
+            declarations.append("public ").append(getSignature(method)).append(";\n");
+
+            Code code = new Code();
+            generateStubCase(method, code);
+            cases.append(code);
+
+            appendComments(proxyMethods, method.mComments);
+            proxyMethods.append("public ").append(getSignature(method)).append("\n{\n");
+            // the class loader is declared again in the proxy method.
+            code = new Code();
+            generateProxyMethod(method, code);
+            proxyMethods.append(code).append("}\n");
+        }
+
+        // the stub
+        out.append("/** Local-side IPC implementation stub class. */\n")
+                .append("public static abstract class Stub extends android.os.Binder implements ")
+                .append(mQualifiedName).append("\n{\n")
+                .append("private static final java.lang.String DESCRIPTOR = \"")
+                .append(mQualifiedName).append("\";\n")
+                .append("/** Construct the stub at attach it to the interface. */\n")
+                .append("public Stub()\n{\nthis.attachInterface(this, DESCRIPTOR);\n}\n")
+                .append("/**\n * Cast an IBinder object into an ").append(mQualifiedName)
+                .append(" interface,\n * generating a proxy if needed.\n */\n")
+                .append("public static ").append(mQualifiedName)
+                .append(" asInterface(android.os.IBinder obj)\n{\n")
+                .append("if ((obj==null)) {\nreturn null;\n}\n")
+                .append("android.os.IInterface iin = obj.queryLocalInterface(DESCRIPTOR);\n")
+                .append("if (((iin!=null)&&(iin instanceof ").append(mQualifiedName)
+                .append("))) {\nreturn ((").append(mQualifiedName).append(")iin);\n}\n")
+                .append("return new ").append(mQualifiedName).append(".Stub.Proxy(obj);\n}\n")
+                .append("public android.os.IBinder asBinder()\n{\nreturn this;\n}\n")
+                .append("@Override public boolean onTransact(int code, android.os.Parcel data, ")
+                .append("android.os.Parcel reply, int flags)").append(REMOTE_EXCEPTION)
+                .append("\n{\nswitch (code)\n{\n")
+                .append("case INTERFACE_TRANSACTION:\n{\nreply.writeString(DESCRIPTOR);\n")
+                .append("return true;\n}\n")
+                .append(cases)
+                .append("}\nreturn super.onTransact(code, data, reply, flags);\n}\n");
+
+        // the proxy, inside the stub
+        out.append("private static class Proxy implements ").append(mQualifiedName)
+                .append("\n{\nprivate android.os.IBinder mRemote;\n")
+                .append("Proxy(android.os.IBinder remote)\n{\nmRemote = remote;\n}\n")
+                .append("public android.os.IBinder asBinder()\n{\nreturn mRemote;\n}\n")
+                .append("public java.lang.String getInterfaceDescriptor()\n{\n")
+                .append("return DESCRIPTOR;\n}\n")
+                .append(proxyMethods)
+                .append("}\n");
+
+        out.append(transactionCodes).append("}\n");
+        out.append(declarations).append("}\n");
+
+        return out.toString();
+    }
+
+    private void generateStubCase(Method method, Code code) {
+        boolean oneWay = mOneWay || method.mOneWay;
+
+        code.add("case TRANSACTION_" + method.mName + ":");
+        code.add("{");
+        code.add("data.enforceInterface(DESCRIPTOR);");
+
+        StringBuilder call = new StringBuilder("this.").append(method.mName).append('(');
+        for (int i = 0 ; i < method.mArgs.size() ; i++) {
+            Arg arg = method.mArgs.get(i);
+            AidlType type = mNamespace.search(arg.mType.mName);
+            String v = "_arg" + i;
+
+            code.add(getDeclaration(type, arg.mType, v) + ";");
+            if (arg.isIn()) {
+                createFromParcel(type, arg.mType, code, v, "data");
+            } else if (arg.mType.mDimension == 0) {
+                code.add(v + " = new " + type.getInstantiableName() + "();");
+            } else {
+                // the proxy sends the length of the array.
+                String length = v + "_length";
+                code.add("int " + length + " = data.readInt();");
+                code.add("if ((" + length + "<0)) {");
+                code.add(v + " = null;");
+                code.add("}");
+                code.add("else {");
+                code.add(v + " = new " + type.getQualifiedName() + "[" + length + "];");
+                code.add("}");
+            }
+
+            if (i > 0) {
+                call.append(", ");
+            }
+            call.append(v);
+        }
+        call.append(')');
+
+        TypeRef returnType = method.mReturnType;
+        if (isVoid(returnType)) {
+            code.add(call + ";");
+            if (!oneWay) {
+                code.add("reply.writeNoException();");
+            }
+        } else {
+            AidlType type = mNamespace.search(returnType.mName);
+            code.add(getDeclaration(type, returnType, "_result") + " = " + call + ";");
+            if (!oneWay) {
+                code.add("reply.writeNoException();");
+            }
+            writeToParcel(type, returnType, code, "_result", "reply",
+                    AidlType.WRITE_RETURN_VALUE);
+        }
+
+        for (int i = 0 ; i < method.mArgs.size() ; i++) {
+            Arg arg = method.mArgs.get(i);
+            if (arg.isOut()) {
+                writeToParcel(mNamespace.search(arg.mType.mName), arg.mType, code, "_arg" + i,
+                        "reply", AidlType.WRITE_RETURN_VALUE);
+            }
+        }
+
+        code.add("return true;");
+        code.add("}");
+    }
+
+    private void generateProxyMethod(Method method, Code code) {
+        boolean oneWay = mOneWay || method.mOneWay;
+        TypeRef returnType = method.mReturnType;
+        AidlType resultType = isVoid(returnType) ? null : mNamespace.search(returnType.mName);
+
+        code.add("android.os.Parcel _data = android.os.Parcel.obtain();");
+        if (!oneWay) {
+            code.add("android.os.Parcel _reply = android.os.Parcel.obtain();");
+        }
+        if (resultType != null) {
+            code.add(getDeclaration(resultType, returnType, "_result") + ";");
+        }
+
+        code.add("try {");
+        code.add("_data.writeInterfaceToken(DESCRIPTOR);");
+        for (Arg arg : method.mArgs) {
+            AidlType type = mNamespace.search(arg.mType.mName);
+            if (!arg.isIn() && arg.mType.mDimension != 0) {
+                code.add("if ((" + arg.mName + "==null)) {");
+                code.add("_data.writeInt(-1);");
+                code.add("}");
+                code.add("else {");
+                code.add("_data.writeInt(" + arg.mName + ".length);");
+                code.add("}");
+            } else if (arg.isIn()) {
+                writeToParcel(type, arg.mType, code, arg.mName, "_data", "0");
+            }
+        }
+
+        code.add("mRemote.transact(Stub.TRANSACTION_" + method.mName + ", _data, "
+                + (oneWay ? "null, android.os.IBinder.FLAG_ONEWAY" : "_reply, 0") + ");");
+        if (!oneWay) {
+            code.add("_reply.readException();");
+            if (resultType != null) {
+                createFromParcel(resultType, returnType, code, "_result", "_reply");
+            }
+            for (Arg arg : method.mArgs) {
+                if (arg.isOut()) {
+                    readFromParcel(mNamespace.search(arg.mType.mName), arg.mType, code,
+                            arg.mName, "_reply");
+                }
+            }
+        }
+        code.add("}");
+
+        code.add("finally {");
+        if (!oneWay) {
+            code.add("_reply.recycle();");
+        }
+        code.add("_data.recycle();");
+        code.add("}");
+
+        if (resultType != null) {
+            code.add("return _result;");
+        }
+    }
+
+    private static void writeToParcel(AidlType type, TypeRef ref, Code code, String v,
+            String parcel, String flags) {
+        if (ref.mDimension == 0) {
+            type.writeToParcel(code, v, parcel, flags);
+        } else {
+            type.writeArrayToParcel(code, v, parcel, flags);
+        }
+    }
+
+    private static void createFromParcel(AidlType type, TypeRef ref, Code code, String v,
+            String parcel) {
+        if (ref.mDimension == 0) {
+            type.createFromParcel(code, v, parcel);
+        } else {
+            type.createArrayFromParcel(code, v, parcel);
+        }
+    }
+
+    private static void readFromParcel(AidlType type, TypeRef ref, Code code, String v,
+            String parcel) {
+        if (ref.mDimension == 0) {
+            type.readFromParcel(code, v, parcel);
+        } else {
+            type.readArrayFromParcel(code, v, parcel);
+        }
+    }
+
+    private String getSignature(Method method) {
+        StringBuilder sb = new StringBuilder();
+        TypeRef returnType = method.mReturnType;
+        sb.append(getTypeName(mNamespace.search(returnType.mName), returnType)).append(' ')
+                .append(method.mName).append('(');
+        for (int i = 0 ; i < method.mArgs.size() ; i++) {
+            Arg arg = method.mArgs.get(i);
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(getDeclaration(mNamespace.search(arg.mType.mName), arg.mType,
+                    arg.mName));
+        }
+        return sb.append(')').append(REMOTE_EXCEPTION).toString();
+    }
+
+    private static String getDeclaration(AidlType type, TypeRef ref, String name) {
+        return getTypeName(type, ref) + " " + name;
+    }
+
+    private static String getTypeName(AidlType type, TypeRef ref) {
+        StringBuilder sb = new StringBuilder(type.getQualifiedName());
+        for (int i = 0 ; i < ref.mDimension ; i++) {
+            sb.append("[]");
+        }
+        return sb.toString();
+    }
+
+    private static boolean isVoid(TypeRef type) {
+        return type.mName.equals("void");
+    }
+
+    private static void appendComments(StringBuilder out, String comments) {
+        if (comments.length() > 0) {
+            out.append(comments).append('\n');
+        }
+    }
+}
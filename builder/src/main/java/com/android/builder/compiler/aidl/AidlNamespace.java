@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler.aidl;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.compiler.aidl.AidlType.Basic;
+import com.android.builder.compiler.aidl.AidlType.BinderType;
+import com.android.builder.compiler.aidl.AidlType.BooleanType;
+import com.android.builder.compiler.aidl.AidlType.CharSequenceType;
+import com.android.builder.compiler.aidl.AidlType.CharType;
+import com.android.builder.compiler.aidl.AidlType.CollectionType;
+import com.android.builder.compiler.aidl.AidlType.GenericListType;
+import com.android.builder.compiler.aidl.AidlType.ParcelableType;
+import com.android.builder.compiler.aidl.AidlType.Unmarshallable;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The types known while compiling one aidl file.
+ *
+ * Types are registered in the order used by the aidl tool to resolve simple names: the
+ * built-in types, the preprocessed framework types, the types of the compiled file and the
+ * types of its imports. The first type with a matching simple name wins.
+ */
+final class AidlNamespace {
+
+    private final static String LIST = "java.util.List";
+
+    /** The types, by qualified name, in registration order. */
+    private final Map<String, AidlType> mTypes = Maps.newLinkedHashMap();
+
+    /**
+     * Creates a namespace containing only the built-in types.
+     */
+    static AidlNamespace createBuiltIns() {
+        AidlNamespace namespace = new AidlNamespace();
+        namespace.add(new Basic(null, "void", null, null, null, null, null) {
+            @Override
+            boolean canWriteToParcel() {
+                return false;
+            }
+
+            @Override
+            boolean canBeArray() {
+                return false;
+            }
+        });
+        namespace.add(new BooleanType());
+        namespace.add(new Basic(null, "byte", "writeByte", "readByte", "writeByteArray",
+                "createByteArray", "readByteArray"));
+        namespace.add(new CharType());
+        namespace.add(new Basic(null, "int", "writeInt", "readInt", "writeIntArray",
+                "createIntArray", "readIntArray"));
+        namespace.add(new Basic(null, "long", "writeLong", "readLong", "writeLongArray",
+                "createLongArray", "readLongArray"));
+        namespace.add(new Basic(null, "float", "writeFloat", "readFloat", "writeFloatArray",
+                "createFloatArray", "readFloatArray"));
+        namespace.add(new Basic(null, "double", "writeDouble", "readDouble",
+                "writeDoubleArray", "createDoubleArray", "readDoubleArray"));
+        namespace.add(new Basic("java.lang", "String", "writeString", "readString",
+                "writeStringArray", "createStringArray", "readStringArray"));
+        namespace.add(new Unmarshallable("java.lang", "Object"));
+        namespace.add(new CharSequenceType());
+        namespace.add(new CollectionType("Map", "java.util.HashMap", "writeMap", "readHashMap",
+                "readMap"));
+        namespace.add(new CollectionType("List", "java.util.ArrayList", "writeList",
+                "readArrayList", "readList"));
+        namespace.add(new BinderType());
+        namespace.add(new Unmarshallable("android.os", "IInterface"));
+        namespace.add(new Unmarshallable("android.os", "Binder"));
+        namespace.add(new Unmarshallable("android.os", "Parcel"));
+        namespace.add(new Unmarshallable("android.os", "Parcelable"));
+        namespace.add(new Unmarshallable("android.os", "RemoteException"));
+        namespace.add(new Unmarshallable("android.content", "Context"));
+        namespace.add(new Unmarshallable("android.text", "TextUtils"));
+        namespace.add(new Unmarshallable("java.lang", "ClassLoader"));
+        return namespace;
+    }
+
+    private AidlNamespace() {
+    }
+
+    /**
+     * Returns a copy of this namespace, so that the types of a file can be added to a shared
+     * set of types.
+     */
+    AidlNamespace copy() {
+        AidlNamespace namespace = new AidlNamespace();
+        namespace.mTypes.putAll(mTypes);
+        return namespace;
+    }
+
+    void add(@NonNull AidlType type) {
+        mTypes.put(type.getQualifiedName(), type);
+    }
+
+    /**
+     * Returns a type from its qualified name.
+     */
+    @Nullable
+    AidlType find(@NonNull String qualifiedName) {
+        return mTypes.get(qualifiedName);
+    }
+
+    Collection<AidlType> getTypes() {
+        return mTypes.values();
+    }
+
+    /**
+     * Resolves a type name as written in an aidl file: a qualified name, a simple name, or
+     * a List with a type argument.
+     */
+    @Nullable
+    AidlType search(@NonNull String name) {
+        AidlType type = mTypes.get(name);
+        if (type != null) {
+            return type;
+        }
+
+        for (AidlType t : mTypes.values()) {
+            if (t.getName().equals(name)) {
+                return t;
+            }
+        }
+
+        if (!name.endsWith(">")) {
+            return null;
+        }
+
+        String normalized = name.replaceAll("[ \\t\\r\\n]", "");
+        int index = normalized.indexOf('<');
+        String base = normalized.substring(0, index);
+        if (!base.equals(LIST) && !base.equals("List")) {
+            return null;
+        }
+
+        // only List<T> is supported, with T a type the Parcel methods know about.
+        String arg = normalized.substring(index + 1, normalized.length() - 1);
+        if (arg.indexOf(',') != -1) {
+            return null;
+        }
+        AidlType argType = search(arg);
+        if (!(argType instanceof ParcelableType) && !(argType instanceof BinderType)
+                && (argType == null || !argType.getQualifiedName().equals("java.lang.String"))) {
+            return null;
+        }
+
+        GenericListType list = new GenericListType(argType);
+        add(list);
+        return list;
+    }
+}
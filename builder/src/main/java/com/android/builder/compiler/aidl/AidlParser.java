@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler.aidl;
+
+import com.android.annotations.NonNull;
+import com.android.builder.compiler.aidl.AidlDocument.Arg;
+import com.android.builder.compiler.aidl.AidlDocument.Import;
+import com.android.builder.compiler.aidl.AidlDocument.Interface;
+import com.android.builder.compiler.aidl.AidlDocument.Method;
+import com.android.builder.compiler.aidl.AidlDocument.Parcelable;
+import com.android.builder.compiler.aidl.AidlDocument.TypeRef;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parser of aidl files.
+ *
+ * This follows the lexer and grammar of the aidl tool, including the way it attaches comments
+ * to declarations: the comments preceding an interface or a method are copied in the
+ * generated code, the whitespace between them is not.
+ */
+final class AidlParser {
+
+    private final static String WS = "[ \\t\\r\\n]";
+    private final static String IDENTIFIER = "[_a-zA-Z][_a-zA-Z0-9.]*";
+
+    /** package and import statements, which must start a line. */
+    private final static Pattern STATEMENT = Pattern.compile(
+            WS + "*(package|import)" + WS + "+([^ \\t\\r\\n]+)" + WS + "*;");
+    private final static Pattern WHITESPACE = Pattern.compile(WS + "+");
+    private final static Pattern GENERIC = Pattern.compile(IDENTIFIER + "<" + WS + "*"
+            + IDENTIFIER + "(" + WS + "*," + WS + "*" + IDENTIFIER + ")*" + WS + "*>");
+    private final static Pattern NAME = Pattern.compile(IDENTIFIER);
+    private final static Pattern ARRAY = Pattern.compile("(\\[" + WS + "*\\])+");
+
+    private enum Kind {
+        PACKAGE, IMPORT, IDENTIFIER, GENERIC, ARRAY, PARCELABLE, FLATTENABLE, INTERFACE,
+        ONEWAY, RPC, IN, OUT, INOUT, PUNCTUATION, END
+    }
+
+    private final static Map<String, Kind> KEYWORDS = new ImmutableMap.Builder<String, Kind>()
+            .put("parcelable", Kind.PARCELABLE)
+            .put("flattenable", Kind.FLATTENABLE)
+            .put("interface", Kind.INTERFACE)
+            .put("oneway", Kind.ONEWAY)
+            .put("rpc", Kind.RPC)
+            .put("in", Kind.IN)
+            .put("out", Kind.OUT)
+            .put("inout", Kind.INOUT)
+            .build();
+
+    private static final class Token {
+        final Kind mKind;
+        final String mText;
+        final int mLine;
+        /** The comments between the previous token and this one. */
+        final String mComments;
+
+        Token(Kind kind, String text, int line, String comments) {
+            mKind = kind;
+            mText = text;
+            mLine = line;
+            mComments = comments;
+        }
+    }
+
+    private final String mPath;
+    private final List<Token> mTokens;
+    private int mIndex = 0;
+
+    private AidlParser(String path, List<Token> tokens) {
+        mPath = path;
+        mTokens = tokens;
+    }
+
+    /**
+     * Parses the content of an aidl file.
+     * @param path the path of the file, used in the error messages.
+     * @param content the content of the file.
+     */
+    @NonNull
+    static AidlDocument parse(@NonNull String path, @NonNull String content)
+            throws AidlException {
+        return new AidlParser(path, tokenize(path, content)).parseDocument();
+    }
+
+    private static List<Token> tokenize(String path, String content) throws AidlException {
+        List<Token> tokens = Lists.newArrayList();
+        StringBuilder comments = new StringBuilder();
+        int length = content.length();
+        int line = 1;
+        int p = 0;
+
+        while (p < length) {
+            char c = content.charAt(p);
+            int start = p;
+            Kind kind = null;
+
+            Matcher m;
+            if ((p == 0 || content.charAt(p - 1) == '\n')
+                    && (m = match(STATEMENT, content, p)) != null) {
+                kind = m.group(1).equals("package") ? Kind.PACKAGE : Kind.IMPORT;
+                // only the name is kept, up to the first ';'
+                String name = m.group(2);
+                int semicolon = name.indexOf(';');
+                String text = semicolon != -1 ? name.substring(0, semicolon) : name;
+                line += countLines(content, p, m.start(1));
+                tokens.add(new Token(kind, text, line, comments.toString()));
+                comments.setLength(0);
+                line += countLines(content, m.start(1), m.end());
+                p = m.end();
+                continue;
+            }
+
+            if (content.startsWith("/*", p)) {
+                p = readLongComment(path, content, p + 2, line, comments);
+            } else if (content.startsWith("//", p)) {
+                int end = content.indexOf('\n', p);
+                p = end != -1 ? end + 1 : length;
+                comments.append(content, start, p);
+            } else if ((m = match(WHITESPACE, content, p)) != null) {
+                p = m.end();
+            } else if ((m = match(GENERIC, content, p)) != null) {
+                kind = Kind.GENERIC;
+                p = m.end();
+            } else if ((m = match(NAME, content, p)) != null) {
+                p = m.end();
+                kind = KEYWORDS.get(content.substring(start, p));
+                if (kind == null) {
+                    kind = Kind.IDENTIFIER;
+                }
+            } else if ((m = match(ARRAY, content, p)) != null) {
+                kind = Kind.ARRAY;
+                p = m.end();
+            } else if ("(){};,=".indexOf(c) != -1) {
+                kind = Kind.PUNCTUATION;
+                p++;
+            } else {
+                throw new AidlException(path, line,
+                        String.format("syntax error, unexpected character '%c'", c));
+            }
+
+            if (kind != null) {
+                tokens.add(new Token(kind, content.substring(start, p), line,
+                        comments.toString()));
+                comments.setLength(0);
+            }
+            line += countLines(content, start, p);
+        }
+
+        tokens.add(new Token(Kind.END, "end of file", line, comments.toString()));
+        return tokens;
+    }
+
+    /**
+     * Reads a comment starting with "/*", the way the lexer of aidl does: the stars right
+     * before the closing slash are not part of the comment.
+     *
+     * @return the position following the comment.
+     */
+    private static int readLongComment(String path, String content, int p, int line,
+            StringBuilder comments) throws AidlException {
+        StringBuilder comment = new StringBuilder();
+        int length = content.length();
+        while (p < length) {
+            if (content.charAt(p) != '*') {
+                int end = content.indexOf('*', p);
+                if (end == -1) {
+                    end = length;
+                }
+                comment.append(content, p, end);
+                p = end;
+            } else {
+                int end = p;
+                while (end < length && content.charAt(end) == '*') {
+                    end++;
+                }
+                if (end < length && content.charAt(end) == '/') {
+                    comments.append("/*").append(comment).append("*/");
+                    return end + 1;
+                }
+                // the stars and the character following them.
+                end = Math.min(end + 1, length);
+                comment.append(content, p, end);
+                p = end;
+            }
+        }
+
+        throw new AidlException(path, line, "unterminated comment");
+    }
+
+    private static Matcher match(Pattern pattern, String content, int p) {
+        Matcher m = pattern.matcher(content);
+        m.region(p, content.length());
+        return m.lookingAt() ? m : null;
+    }
+
+    private static int countLines(String content, int start, int end) {
+        int count = 0;
+        for (int i = start ; i < end ; i++) {
+            if (content.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private AidlDocument parseDocument() throws AidlException {
+        AidlDocument document = new AidlDocument(mPath);
+
+        if (peek().mKind == Kind.PACKAGE) {
+            document.mPackage = next().mText;
+        }
+        while (peek().mKind == Kind.IMPORT) {
+            Token token = next();
+            document.mImports.add(new Import(token.mText, token.mLine));
+        }
+
+        while (peek().mKind != Kind.END) {
+            Token token = next();
+            switch (token.mKind) {
+                case PARCELABLE: {
+                    Token name = expect(Kind.IDENTIFIER);
+                    expect(";");
+                    document.mDeclarations.add(new Parcelable(name.mText, name.mLine));
+                    break;
+                }
+                case INTERFACE:
+                    document.mDeclarations.add(parseInterface(token, false /*oneWay*/));
+                    break;
+                case ONEWAY:
+                    expect(Kind.INTERFACE);
+                    document.mDeclarations.add(parseInterface(token, true /*oneWay*/));
+                    break;
+                case FLATTENABLE:
+                case RPC:
+                    throw new AidlException(mPath, token.mLine,
+                            String.format("%1$s declarations are not supported", token.mText));
+                default:
+                    throw unexpected(token);
+            }
+        }
+
+        return document;
+    }
+
+    private Interface parseInterface(Token first, boolean oneWay) throws AidlException {
+        Token name = expect(Kind.IDENTIFIER);
+        Interface iface = new Interface(name.mText, name.mLine, oneWay,
+                first.mComments);
+        expect("{");
+        while (!isPunctuation(peek(), "}")) {
+            iface.mMethods.add(parseMethod());
+        }
+        expect("}");
+        return iface;
+    }
+
+    private Method parseMethod() throws AidlException {
+        String comments = peek().mComments;
+        boolean oneWay = false;
+        if (peek().mKind == Kind.ONEWAY) {
+            next();
+            oneWay = true;
+        }
+
+        TypeRef returnType = parseType();
+        Token name = expect(Kind.IDENTIFIER);
+        Method method = new Method(returnType, name.mText, name.mLine, oneWay, comments);
+
+        expect("(");
+        if (!isPunctuation(peek(), ")")) {
+            method.mArgs.add(parseArg());
+            while (isPunctuation(peek(), ",")) {
+                next();
+                method.mArgs.add(parseArg());
+            }
+        }
+        expect(")");
+        expect(";");
+
+        return method;
+    }
+
+    private Arg parseArg() throws AidlException {
+        String direction = null;
+        Kind kind = peek().mKind;
+        if (kind == Kind.IN || kind == Kind.OUT || kind == Kind.INOUT) {
+            direction = next().mText;
+        }
+
+        TypeRef type = parseType();
+        Token name = expect(Kind.IDENTIFIER);
+        return new Arg(direction, type, name.mText);
+    }
+
+    private TypeRef parseType() throws AidlException {
+        Token token = next();
+        if (token.mKind == Kind.GENERIC) {
+            return new TypeRef(token.mText, "", 0, token.mLine);
+        } else if (token.mKind != Kind.IDENTIFIER) {
+            throw unexpected(token);
+        }
+
+        if (peek().mKind == Kind.ARRAY) {
+            String array = next().mText;
+            int dimension = 0;
+            for (int i = 0 ; i < array.length() ; i++) {
+                if (array.charAt(i) == '[') {
+                    dimension++;
+                }
+            }
+            return new TypeRef(token.mText, array, dimension, token.mLine);
+        }
+
+        return new TypeRef(token.mText, "", 0, token.mLine);
+    }
+
+    private Token peek() {
+        return mTokens.get(mIndex);
+    }
+
+    private Token next() {
+        Token token = mTokens.get(mIndex);
+        if (token.mKind != Kind.END) {
+            mIndex++;
+        }
+        return token;
+    }
+
+    private Token expect(Kind kind) throws AidlException {
+        Token token = next();
+        if (token.mKind != kind) {
+            throw unexpected(token);
+        }
+        return token;
+    }
+
+    private Token expect(String punctuation) throws AidlException {
+        Token token = next();
+        if (!isPunctuation(token, punctuation)) {
+            throw unexpected(token);
+        }
+        return token;
+    }
+
+    private static boolean isPunctuation(Token token, String punctuation) {
+        return token.mKind == Kind.PUNCTUATION && token.mText.equals(punctuation);
+    }
+
+    private AidlException unexpected(Token token) {
+        return new AidlException(mPath, token.mLine,
+                String.format("syntax error, don't know what to do with \"%s\"", token.mText));
+    }
+}
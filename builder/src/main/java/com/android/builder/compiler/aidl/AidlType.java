@@ -0,0 +1,444 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler.aidl;
+
+/**
+ * A type that can be used in an aidl file, and the code that (un)marshalls it.
+ *
+ * The generated code matches the one of the aidl tool, expression for expression.
+ */
+abstract class AidlType {
+
+    /** The flags of writeToParcel for return values and out parameters. */
+    final static String WRITE_RETURN_VALUE = "android.os.Parcelable.PARCELABLE_WRITE_RETURN_VALUE";
+
+    enum Kind {
+        BUILT_IN, PARCELABLE, INTERFACE
+    }
+
+    /**
+     * The statements of a generated method.
+     */
+    static final class Code {
+        private final StringBuilder mOut = new StringBuilder();
+        private boolean mHasClassLoader = false;
+
+        Code add(String statement) {
+            mOut.append(statement).append('\n');
+            return this;
+        }
+
+        /**
+         * Declares the class loader used to read collections, at most once per method.
+         */
+        String classLoader() {
+            if (!mHasClassLoader) {
+                add("java.lang.ClassLoader cl = (java.lang.ClassLoader)"
+                        + "this.getClass().getClassLoader();");
+                mHasClassLoader = true;
+            }
+            return "cl";
+        }
+
+        @Override
+        public String toString() {
+            return mOut.toString();
+        }
+    }
+
+    private final String mPackage;
+    private final String mName;
+    private final Kind mKind;
+    private final boolean mCanWriteToParcel;
+    private final boolean mCanBeOut;
+
+    AidlType(String pkg, String name, Kind kind, boolean canWriteToParcel, boolean canBeOut) {
+        mPackage = pkg;
+        mName = name;
+        mKind = kind;
+        mCanWriteToParcel = canWriteToParcel;
+        mCanBeOut = canBeOut;
+    }
+
+    /** The simple name of the type. */
+    String getName() {
+        return mName;
+    }
+
+    String getQualifiedName() {
+        return mPackage != null ? mPackage + "." + mName : mName;
+    }
+
+    /** The class instantiated for out parameters. */
+    String getInstantiableName() {
+        return getQualifiedName();
+    }
+
+    Kind getKind() {
+        return mKind;
+    }
+
+    boolean canWriteToParcel() {
+        return mCanWriteToParcel;
+    }
+
+    boolean canBeOutParameter() {
+        return mCanBeOut;
+    }
+
+    boolean canBeArray() {
+        return false;
+    }
+
+    void writeToParcel(Code code, String v, String parcel, String flags) {
+        throw new UnsupportedOperationException(getQualifiedName());
+    }
+
+    void createFromParcel(Code code, String v, String parcel) {
+        throw new UnsupportedOperationException(getQualifiedName());
+    }
+
+    void readFromParcel(Code code, String v, String parcel) {
+        throw new UnsupportedOperationException(getQualifiedName());
+    }
+
+    void writeArrayToParcel(Code code, String v, String parcel, String flags) {
+        throw new UnsupportedOperationException(getQualifiedName());
+    }
+
+    void createArrayFromParcel(Code code, String v, String parcel) {
+        throw new UnsupportedOperationException(getQualifiedName());
+    }
+
+    void readArrayFromParcel(Code code, String v, String parcel) {
+        throw new UnsupportedOperationException(getQualifiedName());
+    }
+
+    static String call(String target, String method, String... args) {
+        StringBuilder sb = new StringBuilder(target).append('.').append(method).append('(');
+        for (int i = 0 ; i < args.length ; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(args[i]);
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * A type that cannot be used in a method, such as android.os.Parcel.
+     */
+    static final class Unmarshallable extends AidlType {
+        Unmarshallable(String pkg, String name) {
+            super(pkg, name, Kind.BUILT_IN, false, false);
+        }
+    }
+
+    /**
+     * A primitive type or String, read and written with dedicated methods of Parcel.
+     */
+    static class Basic extends AidlType {
+        private final String mWrite;
+        private final String mRead;
+        private final String mWriteArray;
+        private final String mCreateArray;
+        private final String mReadArray;
+
+        Basic(String pkg, String name, String write, String read, String writeArray,
+                String createArray, String readArray) {
+            super(pkg, name, Kind.BUILT_IN, true, false);
+            mWrite = write;
+            mRead = read;
+            mWriteArray = writeArray;
+            mCreateArray = createArray;
+            mReadArray = readArray;
+        }
+
+        @Override
+        boolean canBeArray() {
+            return true;
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, mWrite, v) + ";");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            code.add(v + " = " + call(parcel, mRead) + ";");
+        }
+
+        @Override
+        void writeArrayToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, mWriteArray, v) + ";");
+        }
+
+        @Override
+        void createArrayFromParcel(Code code, String v, String parcel) {
+            code.add(v + " = " + call(parcel, mCreateArray) + ";");
+        }
+
+        @Override
+        void readArrayFromParcel(Code code, String v, String parcel) {
+            code.add(call(parcel, mReadArray, v) + ";");
+        }
+    }
+
+    static final class BooleanType extends Basic {
+        BooleanType() {
+            super(null, "boolean", null, null, "writeBooleanArray", "createBooleanArray",
+                    "readBooleanArray");
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, "writeInt", "((" + v + ")?(1):(0))") + ";");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            code.add(v + " = (0!=" + call(parcel, "readInt") + ");");
+        }
+    }
+
+    static final class CharType extends Basic {
+        CharType() {
+            super(null, "char", null, null, "writeCharArray", "createCharArray",
+                    "readCharArray");
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, "writeInt", "((int)" + v + ")") + ";");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            code.add(v + " = (char)" + call(parcel, "readInt") + ";");
+        }
+    }
+
+    static final class CharSequenceType extends AidlType {
+        CharSequenceType() {
+            super("java.lang", "CharSequence", Kind.BUILT_IN, true, false);
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add("if ((" + v + "!=null)) {");
+            code.add(call(parcel, "writeInt", "1") + ";");
+            code.add(call("android.text.TextUtils", "writeToParcel", v, parcel, flags) + ";");
+            code.add("}");
+            code.add("else {");
+            code.add(call(parcel, "writeInt", "0") + ";");
+            code.add("}");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            code.add("if ((0!=" + call(parcel, "readInt") + ")) {");
+            code.add(v + " = " + call("android.text.TextUtils",
+                    "CHAR_SEQUENCE_CREATOR.createFromParcel", parcel) + ";");
+            code.add("}");
+            code.add("else {");
+            code.add(v + " = null;");
+            code.add("}");
+        }
+    }
+
+    static final class BinderType extends Basic {
+        BinderType() {
+            super("android.os", "IBinder", "writeStrongBinder", "readStrongBinder",
+                    "writeBinderArray", "createBinderArray", "readBinderArray");
+        }
+    }
+
+    /**
+     * The raw java.util.Map and java.util.List types.
+     */
+    static final class CollectionType extends AidlType {
+        private final String mWrite;
+        private final String mCreate;
+        private final String mRead;
+
+        private final String mInstantiableName;
+
+        CollectionType(String name, String instantiableName, String write, String create,
+                String read) {
+            super("java.util", name, Kind.BUILT_IN, true, true);
+            mInstantiableName = instantiableName;
+            mWrite = write;
+            mCreate = create;
+            mRead = read;
+        }
+
+        @Override
+        String getInstantiableName() {
+            return mInstantiableName;
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, mWrite, v) + ";");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            String cl = code.classLoader();
+            code.add(v + " = " + call(parcel, mCreate, cl) + ";");
+        }
+
+        @Override
+        void readFromParcel(Code code, String v, String parcel) {
+            String cl = code.classLoader();
+            code.add(call(parcel, mRead, v, cl) + ";");
+        }
+    }
+
+    /**
+     * java.util.List with a type argument, which must be String, IBinder or a parcelable.
+     */
+    static final class GenericListType extends AidlType {
+        private final AidlType mArg;
+
+        GenericListType(AidlType arg) {
+            super("java.util", "List<" + arg.getQualifiedName() + ">", Kind.BUILT_IN, true,
+                    true);
+            mArg = arg;
+        }
+
+        @Override
+        String getInstantiableName() {
+            return "java.util.ArrayList<" + mArg.getQualifiedName() + ">";
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, "write" + getListKind() + "List", v) + ";");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            if (mArg instanceof ParcelableType) {
+                code.add(v + " = " + call(parcel, "createTypedArrayList",
+                        mArg.getQualifiedName() + ".CREATOR") + ";");
+            } else {
+                code.add(v + " = " + call(parcel, "create" + getListKind() + "ArrayList") + ";");
+            }
+        }
+
+        @Override
+        void readFromParcel(Code code, String v, String parcel) {
+            if (mArg instanceof ParcelableType) {
+                code.add(call(parcel, "readTypedList", v,
+                        mArg.getQualifiedName() + ".CREATOR") + ";");
+            } else {
+                code.add(call(parcel, "read" + getListKind() + "List", v) + ";");
+            }
+        }
+
+        private String getListKind() {
+            if (mArg instanceof ParcelableType) {
+                return "Typed";
+            }
+            return mArg instanceof BinderType ? "Binder" : "String";
+        }
+    }
+
+    static final class ParcelableType extends AidlType {
+        ParcelableType(String pkg, String name) {
+            super(pkg, name, Kind.PARCELABLE, true, true);
+        }
+
+        @Override
+        boolean canBeArray() {
+            return true;
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add("if ((" + v + "!=null)) {");
+            code.add(call(parcel, "writeInt", "1") + ";");
+            code.add(call(v, "writeToParcel", parcel, flags) + ";");
+            code.add("}");
+            code.add("else {");
+            code.add(call(parcel, "writeInt", "0") + ";");
+            code.add("}");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            code.add("if ((0!=" + call(parcel, "readInt") + ")) {");
+            code.add(v + " = " + call(getQualifiedName(), "CREATOR.createFromParcel", parcel)
+                    + ";");
+            code.add("}");
+            code.add("else {");
+            code.add(v + " = null;");
+            code.add("}");
+        }
+
+        @Override
+        void readFromParcel(Code code, String v, String parcel) {
+            code.add("if ((0!=" + call(parcel, "readInt") + ")) {");
+            code.add(call(v, "readFromParcel", parcel) + ";");
+            code.add("}");
+        }
+
+        @Override
+        void writeArrayToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, "writeTypedArray", v, flags) + ";");
+        }
+
+        @Override
+        void createArrayFromParcel(Code code, String v, String parcel) {
+            code.add(v + " = " + call(parcel, "createTypedArray", getQualifiedName() + ".CREATOR")
+                    + ";");
+        }
+
+        @Override
+        void readArrayFromParcel(Code code, String v, String parcel) {
+            code.add(call(parcel, "readTypedArray", v, getQualifiedName() + ".CREATOR") + ";");
+        }
+    }
+
+    static final class InterfaceType extends AidlType {
+        private final boolean mOneWay;
+
+        InterfaceType(String pkg, String name, boolean oneWay) {
+            super(pkg, name, Kind.INTERFACE, true, false);
+            mOneWay = oneWay;
+        }
+
+        boolean isOneWay() {
+            return mOneWay;
+        }
+
+        @Override
+        void writeToParcel(Code code, String v, String parcel, String flags) {
+            code.add(call(parcel, "writeStrongBinder",
+                    "(((" + v + "!=null))?(" + call(v, "asBinder") + "):(null))") + ";");
+        }
+
+        @Override
+        void createFromParcel(Code code, String v, String parcel) {
+            code.add(v + " = " + call(getQualifiedName() + ".Stub", "asInterface",
+                    call(parcel, "readStrongBinder")) + ";");
+        }
+    }
+}
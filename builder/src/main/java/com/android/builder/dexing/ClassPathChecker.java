@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.builder.cache.BuildStateCache;
+import com.android.utils.ILogger;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks the inputs of dx before running it.
+ *
+ * dx only reports a class defined twice after having dexed everything. This checks the class
+ * names from the file names in the class folders and from the central directory of the jars,
+ * without reading the classes, so that the error is reported right away.
+ */
+public class ClassPathChecker {
+
+    private final static String CLASS_EXTENSION = ".class";
+
+    private final ILogger mLogger;
+
+    public ClassPathChecker(@NonNull ILogger logger) {
+        mLogger = logger;
+    }
+
+    /**
+     * Removes the jars that have the same content as a previous jar, typically the same library
+     * copied by several projects.
+     *
+     * @param jars the jars to dex.
+     * @return the jars, without the copies.
+     */
+    @NonNull
+    public List<String> removeDuplicateJars(@NonNull List<String> jars) throws IOException {
+        // only the jars of the same size are hashed.
+        Map<Long, List<File>> jarsBySize = Maps.newHashMap();
+        List<String> result = Lists.newArrayListWithCapacity(jars.size());
+        for (String path : jars) {
+            File jar = new File(path);
+            if (!jar.isFile()) {
+                result.add(path);
+                continue;
+            }
+
+            List<File> sameSize = jarsBySize.get(jar.length());
+            if (sameSize == null) {
+                sameSize = Lists.newArrayList();
+                jarsBySize.put(jar.length(), sameSize);
+            }
+
+            File original = null;
+            for (File other : sameSize) {
+                if (PreDexCache.hash(other).equals(PreDexCache.hash(jar))) {
+                    original = other;
+                    break;
+                }
+            }
+
+            if (original != null) {
+                mLogger.info("Ignoring %1$s, identical to %2$s", jar, original);
+            } else {
+                sameSize.add(jar);
+                result.add(path);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks that no class is defined by two of the given inputs.
+     *
+     * @param inputs the class folders and jars to dex.
+     * @throws DuplicateClassException if a class is defined twice.
+     */
+    public void checkDuplicateClasses(@NonNull List<String> inputs)
+            throws IOException, DuplicateClassException {
+        Map<String, File> origins = Maps.newHashMap();
+        for (String path : inputs) {
+            File input = new File(path);
+            List<String> classes;
+            if (input.isDirectory()) {
+                classes = Lists.newArrayList();
+                listFolderClasses(input, "", classes);
+            } else if (input.isFile()) {
+                classes = listJarClasses(input);
+            } else {
+                continue;
+            }
+
+            for (String className : classes) {
+                File origin = origins.put(className, input);
+                if (origin != null) {
+                    throw new DuplicateClassException(className, origin, input);
+                }
+            }
+        }
+    }
+
+    private static void listFolderClasses(
+            @NonNull File folder,
+            @NonNull String prefix,
+            @NonNull List<String> classes) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                listFolderClasses(file, prefix + name + ".", classes);
+            } else if (name.endsWith(CLASS_EXTENSION)) {
+                classes.add(prefix + name.substring(0, name.length() - CLASS_EXTENSION.length()));
+            }
+        }
+    }
+
+    /**
+     * Returns the classes of a jar. The list is kept in memory as long as the jar does not
+     * change.
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static List<String> listJarClasses(@NonNull File jar) throws IOException {
+        BuildStateCache cache = BuildStateCache.getDefault();
+        String key = "jar-classes:" + jar.getAbsolutePath();
+        List<File> stamps = Collections.singletonList(jar);
+
+        List<String> classes = cache.get(key, List.class, stamps);
+        if (classes != null) {
+            return classes;
+        }
+
+        classes = Lists.newArrayList();
+        // ZipFile only reads the central directory to list the entries.
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!entry.isDirectory() && name.endsWith(CLASS_EXTENSION)) {
+                    classes.add(name.substring(0, name.length() - CLASS_EXTENSION.length())
+                            .replace('/', '.'));
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        classes = Collections.unmodifiableList(classes);
+        cache.put(key, stamps, classes);
+        return classes;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Splits the classes given to dx into shards that can be dexed concurrently and then merged.
+ *
+ * The classes of all the inputs (folders and jars) are sorted by name and cut into contiguous
+ * ranges of similar bytecode size. Each shard is written as a jar with fixed timestamps, so that
+ * a shard whose classes did not change has the same content, and the same action cache key, as
+ * in the previous build.
+ */
+public class DexSharder {
+
+    private final static String CLASS_EXTENSION = ".class";
+    private final static String SHARD_PREFIX = "shard-";
+    private final static String SHARD_EXTENSION = ".jar";
+
+    /** Fixed timestamp of the shard entries, in ms. */
+    private final static long ENTRY_TIME = 0;
+
+    private final int mShardCount;
+
+    /**
+     * A class to dex, from a folder or a jar.
+     */
+    static final class ClassEntry {
+        /** The path of the class file relative to its root, with '/' separators. */
+        final String mPath;
+        final long mSize;
+        /** The class file, or the jar containing the class. */
+        final File mSource;
+        final boolean mInJar;
+
+        ClassEntry(@NonNull String path, long size, @NonNull File source, boolean inJar) {
+            mPath = path;
+            mSize = size;
+            mSource = source;
+            mInJar = inJar;
+        }
+    }
+
+    /**
+     * @param shardCount the maximum number of shards to create.
+     */
+    public DexSharder(int shardCount) {
+        checkArgument(shardCount > 0, "shardCount must be positive.");
+        mShardCount = shardCount;
+    }
+
+    /**
+     * Writes the classes of the given inputs into shard jars.
+     *
+     * The shard jars of a previous run that are not used anymore are deleted, along with the
+     * files next to them whose name starts with the name of the shard, like "shard-3.dex.jar".
+     *
+     * @param inputs the class folders and jars given to dx.
+     * @param shardDir the folder to write the shards to.
+     * @return the shard jars, or an empty list if the inputs cannot be split in more than one
+     *     shard, in which case they should be dexed directly.
+     */
+    @NonNull
+    public List<File> createShards(@NonNull List<String> inputs, @NonNull File shardDir)
+            throws IOException {
+        List<List<ClassEntry>> shards = balance(scan(inputs), mShardCount);
+        if (shards.size() < 2) {
+            return Collections.emptyList();
+        }
+
+        if (!shardDir.isDirectory() && !shardDir.mkdirs()) {
+            throw new IOException("Failed to create " + shardDir);
+        }
+
+        List<File> shardFiles = Lists.newArrayListWithCapacity(shards.size());
+        for (List<ClassEntry> shard : shards) {
+            File shardFile = new File(shardDir, SHARD_PREFIX + shardFiles.size() + SHARD_EXTENSION);
+            writeJar(shard, shardFile);
+            shardFiles.add(shardFile);
+        }
+
+        // remove the shards of a previous run with more shards, and the files derived from them.
+        File[] files = shardDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                int dot = name.indexOf('.');
+                String baseName = dot != -1 ? name.substring(0, dot) : name;
+                if (name.startsWith(SHARD_PREFIX)
+                        && !shardFiles.contains(new File(shardDir, baseName + SHARD_EXTENSION))) {
+                    file.delete();
+                }
+            }
+        }
+
+        return shardFiles;
+    }
+
+    /**
+     * Returns the file to dex a shard into.
+     */
+    @NonNull
+    public static File getDexFile(@NonNull File shard) {
+        String path = shard.getPath();
+        // dx writes a jar if the output ends with .jar
+        return new File(path.substring(0, path.length() - SHARD_EXTENSION.length()) + ".dex.jar");
+    }
+
+    /**
+     * Lists the classes of the given inputs, sorted by path.
+     */
+    @NonNull
+    static List<ClassEntry> scan(@NonNull List<String> inputs) throws IOException {
+        Map<String, ClassEntry> entries = Maps.newTreeMap();
+        for (String input : inputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                scanFolder(file, "", entries);
+            } else if (file.isFile()) {
+                scanJar(file, entries);
+            }
+        }
+
+        return Lists.newArrayList(entries.values());
+    }
+
+    private static void scanFolder(
+            @NonNull File folder,
+            @NonNull String prefix,
+            @NonNull Map<String, ClassEntry> entries) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                scanFolder(file, path + "/", entries);
+            } else if (path.endsWith(CLASS_EXTENSION)) {
+                add(new ClassEntry(path, file.length(), file, false /*inJar*/), entries);
+            }
+        }
+    }
+
+    private static void scanJar(@NonNull File jar, @NonNull Map<String, ClassEntry> entries)
+            throws IOException {
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                String path = zipEntry.getName();
+                if (!zipEntry.isDirectory() && path.endsWith(CLASS_EXTENSION)) {
+                    add(new ClassEntry(path, Math.max(0, zipEntry.getSize()), jar,
+                            true /*inJar*/), entries);
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static void add(@NonNull ClassEntry entry, @NonNull Map<String, ClassEntry> entries) {
+        ClassEntry previous = entries.put(entry.mPath, entry);
+        if (previous != null) {
+            throw new RuntimeException(String.format(
+                    "Class %1$s is found in both %2$s and %3$s.",
+                    entry.mPath, previous.mSource, entry.mSource));
+        }
+    }
+
+    /**
+     * Cuts the sorted classes into at most shardCount contiguous ranges of similar total size.
+     * Empty ranges are dropped.
+     */
+    @NonNull
+    static List<List<ClassEntry>> balance(@NonNull List<ClassEntry> entries, int shardCount) {
+        long totalSize = 0;
+        for (ClassEntry entry : entries) {
+            totalSize += entry.mSize;
+        }
+
+        List<List<ClassEntry>> shards = Lists.newArrayList();
+        List<ClassEntry> shard = Lists.newArrayList();
+        long size = 0;
+        for (ClassEntry entry : entries) {
+            // close the shard when the end of the entry is closer to the next boundary.
+            long boundary = totalSize * (shards.size() + 1) / shardCount;
+            if (!shard.isEmpty() && shards.size() < shardCount - 1
+                    && size + entry.mSize / 2 > boundary) {
+                shards.add(shard);
+                shard = Lists.newArrayList();
+            }
+
+            shard.add(entry);
+            size += entry.mSize;
+        }
+
+        if (!shard.isEmpty()) {
+            shards.add(shard);
+        }
+
+        return shards;
+    }
+
+    /**
+     * Writes classes into a jar. The jar is left untouched if it already has the same content.
+     */
+    static void writeJar(@NonNull List<ClassEntry> classes, @NonNull File jar)
+            throws IOException {
+        File tempFile = new File(jar.getPath() + ".tmp");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tempFile));
+        Map<File, ZipFile> openJars = Maps.newHashMap();
+        try {
+            for (ClassEntry entry : classes) {
+                ZipEntry zipEntry = new ZipEntry(entry.mPath);
+                zipEntry.setTime(ENTRY_TIME);
+                out.putNextEntry(zipEntry);
+
+                InputStream in;
+                if (entry.mInJar) {
+                    ZipFile zipFile = openJars.get(entry.mSource);
+                    if (zipFile == null) {
+                        zipFile = new ZipFile(entry.mSource);
+                        openJars.put(entry.mSource, zipFile);
+                    }
+                    in = zipFile.getInputStream(zipFile.getEntry(entry.mPath));
+                } else {
+                    in = new FileInputStream(entry.mSource);
+                }
+
+                try {
+                    ByteStreams.copy(in, out);
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+            for (ZipFile zipFile : openJars.values()) {
+                zipFile.close();
+            }
+        }
+
+        // keep the previous jar, and its timestamp, if the content did not change.
+        if (jar.isFile() && Files.equal(tempFile, jar)) {
+            tempFile.delete();
+        } else {
+            jar.delete();
+            if (!tempFile.renameTo(jar)) {
+                throw new IOException(String.format("Failed to move %1$s to %2$s",
+                        tempFile, jar));
+            }
+        }
+    }
+}
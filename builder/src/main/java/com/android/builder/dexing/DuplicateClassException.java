@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+
+import java.io.File;
+
+/**
+ * An exception thrown when the same class is found in two inputs of dx.
+ */
+public final class DuplicateClassException extends Exception {
+    private static final long serialVersionUID = 1L;
+    private final String mClassName;
+    private final File mOrigin1;
+    private final File mOrigin2;
+
+    public DuplicateClassException(@NonNull String className, @NonNull File origin1,
+                                   @NonNull File origin2) {
+        super();
+        mClassName = className;
+        mOrigin1 = origin1;
+        mOrigin2 = origin2;
+    }
+
+    public String getClassName() {
+        return mClassName;
+    }
+
+    public File getOrigin1() {
+        return mOrigin1;
+    }
+
+    public File getOrigin2() {
+        return mOrigin2;
+    }
+
+    @Override
+    public String getMessage() {
+        return String.format("Class %1$s is defined by both %2$s and %3$s",
+                mClassName, mOrigin1, mOrigin2);
+    }
+}
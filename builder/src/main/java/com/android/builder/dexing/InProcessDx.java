@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.InProcessTool;
+import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs dx inside the JVM of the build.
+ *
+ * dx.jar is loaded in its own class loader, isolated from the classpath of the build. The
+ * class loaders are kept for the lifetime of the JVM so that later runs, from other variants
+ * or other builds in the same JVM, don't pay for the class loading and the JIT again.
+ *
+ * dx keeps its state in static fields, so each class loader runs one dex at a time. The number
+ * of concurrent runs, and therefore of class loaders, is capped by the heap of the JVM. The cap
+ * applies to each dx.jar location: when the jar changes, the new instance shares the cap with
+ * the runs of the old one still in progress, while the other dx.jar have their own cap.
+ */
+public class InProcessDx implements InProcessTool {
+
+    /** Estimated heap used by one dx run, in bytes. */
+    private final static long DEX_HEAP_FOOTPRINT = 512L * 1024L * 1024L;
+
+    private final static String MAIN_CLASS = "com.android.dx.command.dexer.Main";
+    private final static String ARGUMENTS_CLASS = MAIN_CLASS + "$Arguments";
+    private final static String CONSOLE_CLASS = "com.android.dx.command.DxConsole";
+
+    private final static Map<File, InProcessDx> sInstances = Maps.newHashMap();
+
+    private final File mDxJar;
+    private final long mLastModified;
+    private final long mLength;
+    private final int mMaxConcurrentRuns;
+    private final Semaphore mPermits;
+    /** The loaded instances of dx that are not running. */
+    private final ArrayDeque<DxLoader> mIdleLoaders = new ArrayDeque<DxLoader>();
+    /** Whether the jar changed since, in which case the class loaders are not kept anymore. */
+    private boolean mRetired = false;
+
+    /**
+     * Returns the in-process dx for a given dx.jar, or null if the jar is missing or cannot be
+     * loaded, in which case dx must run in its own process.
+     *
+     * @param dxJar the dx.jar file.
+     * @param logger the logger to report loading errors to.
+     */
+    @Nullable
+    public static synchronized InProcessDx get(@NonNull File dxJar, @NonNull ILogger logger) {
+        if (!dxJar.isFile()) {
+            return null;
+        }
+
+        InProcessDx dx = sInstances.get(dxJar);
+        if (dx != null && dx.isUpToDate()) {
+            return dx;
+        }
+
+        if (dx != null) {
+            // the runs of the old dx still in progress keep counting against the cap.
+            sInstances.remove(dxJar);
+            dx.retire();
+            dx = new InProcessDx(dxJar, dx.mMaxConcurrentRuns, dx.mPermits);
+        } else {
+            // leave half of the heap to the build itself.
+            int maxConcurrentRuns = getMaxConcurrentRuns(Runtime.getRuntime().maxMemory() / 2);
+            dx = new InProcessDx(dxJar, maxConcurrentRuns,
+                    new Semaphore(maxConcurrentRuns, true /*fair*/));
+        }
+
+        try {
+            // load a first instance right away to fall back early if the jar is not usable.
+            dx.release(new DxLoader(dxJar));
+        } catch (IOException e) {
+            logger.warning("Unable to load %1$s, dx will run in its own process: %2$s",
+                    dxJar, e.toString());
+            sInstances.remove(dxJar);
+            return null;
+        }
+
+        sInstances.put(dxJar, dx);
+        return dx;
+    }
+
+    /**
+     * Returns how many dx can run at the same time with a given heap budget.
+     */
+    static int getMaxConcurrentRuns(long heapBudget) {
+        return (int) Math.max(1, heapBudget / DEX_HEAP_FOOTPRINT);
+    }
+
+    private InProcessDx(@NonNull File dxJar, int maxConcurrentRuns, @NonNull Semaphore permits) {
+        mDxJar = dxJar;
+        mLastModified = dxJar.lastModified();
+        mLength = dxJar.length();
+        mMaxConcurrentRuns = maxConcurrentRuns;
+        mPermits = permits;
+    }
+
+    /**
+     * Returns how many runs of this dx can happen at the same time.
+     */
+    public int getConcurrencyLimit() {
+        return mMaxConcurrentRuns;
+    }
+
+    private boolean isUpToDate() {
+        return mDxJar.lastModified() == mLastModified && mDxJar.length() == mLength;
+    }
+
+    /**
+     * Runs dx.
+     * @param args the arguments of the dx command line, starting with "--dex".
+     * @param logger the logger receiving the output of dx.
+     * @return the exit code of dx.
+     */
+    @Override
+    public int run(@NonNull List<String> args, @NonNull ILogger logger)
+            throws IOException, InterruptedException {
+        List<String> dexArgs = Lists.newArrayList(args);
+        if (!dexArgs.isEmpty() && dexArgs.get(0).equals("--dex")) {
+            dexArgs.remove(0);
+        }
+
+        mPermits.acquire();
+        try {
+            DxLoader loader = acquire();
+            try {
+                return loader.run(dexArgs.toArray(new String[dexArgs.size()]), logger);
+            } finally {
+                release(loader);
+            }
+        } finally {
+            mPermits.release();
+        }
+    }
+
+    private DxLoader acquire() throws IOException {
+        synchronized (mIdleLoaders) {
+            if (!mIdleLoaders.isEmpty()) {
+                return mIdleLoaders.removeFirst();
+            }
+        }
+
+        return new DxLoader(mDxJar);
+    }
+
+    private void release(@NonNull DxLoader loader) {
+        synchronized (mIdleLoaders) {
+            // the loaders of a retired dx are left to the garbage collector.
+            if (!mRetired) {
+                mIdleLoaders.addFirst(loader);
+            }
+        }
+    }
+
+    /**
+     * Drops the idle class loaders once the jar changed. The loaders of the runs in progress
+     * are dropped when they end.
+     */
+    private void retire() {
+        synchronized (mIdleLoaders) {
+            mRetired = true;
+            mIdleLoaders.clear();
+        }
+    }
+
+    /**
+     * One copy of dx, loaded in its own class loader.
+     */
+    private static final class DxLoader {
+        private final Method mParse;
+        private final Method mRun;
+        private final Class<?> mArgumentsClass;
+        private final Field mConsoleOut;
+        private final Field mConsoleErr;
+
+        DxLoader(@NonNull File dxJar) throws IOException {
+            // null parent: only the bootstrap classes are shared with the build.
+            ClassLoader classLoader = new URLClassLoader(
+                    new URL[] { dxJar.toURI().toURL() }, null /*parent*/);
+
+            try {
+                Class<?> mainClass = classLoader.loadClass(MAIN_CLASS);
+                mArgumentsClass = classLoader.loadClass(ARGUMENTS_CLASS);
+                mParse = mArgumentsClass.getMethod("parse", String[].class);
+                mRun = mainClass.getMethod("run", mArgumentsClass);
+
+                Class<?> consoleClass = classLoader.loadClass(CONSOLE_CLASS);
+                mConsoleOut = consoleClass.getField("out");
+                mConsoleErr = consoleClass.getField("err");
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unsupported dx.jar: " + dxJar, e);
+            } catch (NoSuchMethodException e) {
+                throw new IOException("Unsupported dx.jar: " + dxJar, e);
+            } catch (NoSuchFieldException e) {
+                throw new IOException("Unsupported dx.jar: " + dxJar, e);
+            }
+        }
+
+        int run(@NonNull String[] args, @NonNull ILogger logger) throws IOException {
+            LineLogger out = new LineLogger(logger, false /*isError*/);
+            LineLogger err = new LineLogger(logger, true /*isError*/);
+            try {
+                mConsoleOut.set(null, new PrintStream(out, true /*autoFlush*/));
+                mConsoleErr.set(null, new PrintStream(err, true /*autoFlush*/));
+
+                Object arguments = mArgumentsClass.newInstance();
+                mParse.invoke(arguments, (Object) args);
+                return (Integer) mRun.invoke(null, arguments);
+            } catch (InvocationTargetException e) {
+                logger.error(e.getCause(), "dx failed");
+                return 1;
+            } catch (InstantiationException e) {
+                throw new IOException("Unable to run dx", e);
+            } catch (IllegalAccessException e) {
+                throw new IOException("Unable to run dx", e);
+            } finally {
+                out.close();
+                err.close();
+                try {
+                    mConsoleOut.set(null, System.out);
+                    mConsoleErr.set(null, System.err);
+                } catch (IllegalAccessException e) {
+                    // the fields are public.
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the output written by dx to a logger, one line at a time.
+     */
+    private static final class LineLogger extends OutputStream {
+        private final ILogger mLogger;
+        private final boolean mIsError;
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream();
+
+        LineLogger(ILogger logger, boolean isError) {
+            mLogger = logger;
+            mIsError = isError;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                flushLine();
+            } else if (b != '\r') {
+                mLine.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (mLine.size() > 0) {
+                flushLine();
+            }
+        }
+
+        private void flushLine() {
+            String line = new String(mLine.toByteArray(), Charsets.UTF_8);
+            mLine.reset();
+            if (mIsError) {
+                mLogger.error(null /*throwable*/, "%1$s", line);
+            } else {
+                mLogger.info("%1$s", line);
+            }
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.builder.dexing.DexSharder.ClassEntry;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dexes class folders in small fragments so that only the fragments containing changed classes
+ * are dexed again, the fragments then being merged by dx into the final dex file.
+ *
+ * An index, kept in the work folder, records for each class file the fragment it belongs to and
+ * the hash of its content. On each build:
+ * <ul>
+ * <li>the fragments containing a changed or removed class are rebuilt from their remaining
+ * classes,</li>
+ * <li>the new classes are put in new fragments,</li>
+ * <li>the other fragments are left untouched.</li>
+ * </ul>
+ * A class whose timestamp changed but not its content, as when javac recompiles everything,
+ * does not cause its fragment to be dexed again.
+ *
+ * The new classes are spread over at most {@link #MAX_NEW_FRAGMENTS} fragments, so that a clean
+ * build runs a bounded number of dx instead of one per small fragment. When most of the
+ * fragments are stale, all the classes are packed again the same way.
+ */
+public class IncrementalDexer {
+
+    private final static String INDEX_FILE = "index.txt";
+    private final static String INDEX_VERSION = "1";
+    private final static String FRAGMENT_PREFIX = "fragment-";
+    private final static String FRAGMENT_EXTENSION = ".jar";
+
+    /** Maximum number of classes in a new fragment, unless there are many new classes. */
+    final static int MAX_FRAGMENT_CLASSES = 50;
+    /** Maximum number of fragments created for the new classes of one build. */
+    final static int MAX_NEW_FRAGMENTS = 32;
+
+    private final File mWorkDir;
+    private final String mDxVersion;
+
+    /**
+     * The fragments after an {@link #update(List)}.
+     */
+    public static final class Fragments {
+        private final List<File> mStaleFragments;
+        private final List<File> mDexFiles;
+
+        Fragments(@NonNull List<File> staleFragments, @NonNull List<File> dexFiles) {
+            mStaleFragments = staleFragments;
+            mDexFiles = dexFiles;
+        }
+
+        /**
+         * Returns the fragment jars that must be dexed into their
+         * {@link DexSharder#getDexFile(File)}.
+         */
+        @NonNull
+        public List<File> getStaleFragments() {
+            return mStaleFragments;
+        }
+
+        /**
+         * Returns the dex files of all the fragments, to be merged.
+         */
+        @NonNull
+        public List<File> getDexFiles() {
+            return mDexFiles;
+        }
+    }
+
+    /**
+     * A class in the index.
+     */
+    private static final class IndexEntry {
+        final int mFragment;
+        final long mSize;
+        final long mLastModified;
+        final String mHash;
+
+        IndexEntry(int fragment, long size, long lastModified, @NonNull String hash) {
+            mFragment = fragment;
+            mSize = size;
+            mLastModified = lastModified;
+            mHash = hash;
+        }
+    }
+
+    /**
+     * @param workDir the folder containing the index and the fragments.
+     * @param dxFile the dx.jar, or dx script, the fragments are dexed with. All the fragments
+     *     are dexed again when it changes.
+     */
+    public IncrementalDexer(@NonNull File workDir, @NonNull File dxFile) throws IOException {
+        mWorkDir = workDir;
+        mDxVersion = PreDexCache.hash(dxFile);
+    }
+
+    /**
+     * Updates the fragments from the current content of the class folders.
+     *
+     * The dex files of the stale fragments are deleted, so that a fragment whose dexing fails
+     * is dexed again by the next build.
+     *
+     * @param classFolders the folders containing the classes to dex.
+     */
+    @NonNull
+    public Fragments update(@NonNull List<String> classFolders) throws IOException {
+        if (!mWorkDir.isDirectory() && !mWorkDir.mkdirs()) {
+            throw new IOException("Failed to create " + mWorkDir);
+        }
+
+        Map<String, IndexEntry> oldIndex = loadIndex();
+        Map<String, IndexEntry> index = Maps.newTreeMap();
+        Map<String, ClassEntry> classes = Maps.newHashMap();
+        List<ClassEntry> allClasses = DexSharder.scan(classFolders);
+        List<ClassEntry> addedClasses = Lists.newArrayList();
+        Set<Integer> staleFragments = Sets.newTreeSet();
+
+        int nextFragment = 0;
+        Set<Integer> oldFragments = Sets.newHashSet();
+        for (IndexEntry entry : oldIndex.values()) {
+            nextFragment = Math.max(nextFragment, entry.mFragment + 1);
+            oldFragments.add(entry.mFragment);
+        }
+
+        for (ClassEntry classEntry : allClasses) {
+            classes.put(classEntry.mPath, classEntry);
+            File file = classEntry.mSource;
+            long lastModified = file.lastModified();
+
+            IndexEntry previous = oldIndex.remove(classEntry.mPath);
+            String hash;
+            if (previous != null && previous.mSize == classEntry.mSize
+                    && previous.mLastModified == lastModified) {
+                hash = previous.mHash;
+            } else {
+                hash = Files.hash(file, Hashing.sha1()).toString();
+            }
+
+            if (previous == null) {
+                addedClasses.add(classEntry);
+                // the fragment is set below.
+                index.put(classEntry.mPath,
+                        new IndexEntry(-1, classEntry.mSize, lastModified, hash));
+            } else {
+                if (!previous.mHash.equals(hash)) {
+                    staleFragments.add(previous.mFragment);
+                }
+                index.put(classEntry.mPath, new IndexEntry(
+                        previous.mFragment, classEntry.mSize, lastModified, hash));
+            }
+        }
+
+        // the fragments of the removed classes.
+        for (IndexEntry entry : oldIndex.values()) {
+            staleFragments.add(entry.mFragment);
+        }
+
+        // a fragment without dex file failed to dex in the previous build.
+        for (Integer fragment : oldFragments) {
+            if (!DexSharder.getDexFile(getFragmentFile(fragment)).isFile()) {
+                staleFragments.add(fragment);
+            }
+        }
+
+        // if most fragments must be dexed again, pack all the classes in large fragments.
+        if (staleFragments.size() * 2 > oldFragments.size()) {
+            addedClasses = allClasses;
+            nextFragment = 0;
+        }
+
+        int fragmentClasses = Math.max(MAX_FRAGMENT_CLASSES,
+                (addedClasses.size() + MAX_NEW_FRAGMENTS - 1) / MAX_NEW_FRAGMENTS);
+        for (int i = 0; i < addedClasses.size(); i++) {
+            if (i % fragmentClasses == 0) {
+                staleFragments.add(nextFragment++);
+            }
+            ClassEntry classEntry = addedClasses.get(i);
+            IndexEntry entry = index.get(classEntry.mPath);
+            index.put(classEntry.mPath, new IndexEntry(
+                    nextFragment - 1, entry.mSize, entry.mLastModified, entry.mHash));
+        }
+
+        // group the classes by fragment, in the order of their paths.
+        Map<Integer, List<ClassEntry>> fragments = Maps.newTreeMap();
+        for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+            List<ClassEntry> fragment = fragments.get(entry.getValue().mFragment);
+            if (fragment == null) {
+                fragment = Lists.newArrayList();
+                fragments.put(entry.getValue().mFragment, fragment);
+            }
+            fragment.add(classes.get(entry.getKey()));
+        }
+
+        List<File> staleFiles = Lists.newArrayList();
+        List<File> dexFiles = Lists.newArrayListWithCapacity(fragments.size());
+        for (Map.Entry<Integer, List<ClassEntry>> fragment : fragments.entrySet()) {
+            File jar = getFragmentFile(fragment.getKey());
+            File dexFile = DexSharder.getDexFile(jar);
+            if (staleFragments.contains(fragment.getKey()) || !dexFile.isFile()) {
+                DexSharder.writeJar(fragment.getValue(), jar);
+                dexFile.delete();
+                staleFiles.add(jar);
+            }
+            dexFiles.add(dexFile);
+        }
+
+        removeUnusedFragments(fragments.keySet());
+        saveIndex(index);
+
+        return new Fragments(staleFiles, dexFiles);
+    }
+
+    @NonNull
+    private File getFragmentFile(int fragment) {
+        return new File(mWorkDir, FRAGMENT_PREFIX + fragment + FRAGMENT_EXTENSION);
+    }
+
+    /**
+     * Deletes the fragment jars, and their dex files, that have no class anymore.
+     */
+    private void removeUnusedFragments(@NonNull Set<Integer> fragments) {
+        File[] files = mWorkDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(FRAGMENT_PREFIX)) {
+                continue;
+            }
+
+            int dot = name.indexOf('.');
+            String id = name.substring(FRAGMENT_PREFIX.length(), dot != -1 ? dot : name.length());
+            try {
+                if (fragments.contains(Integer.parseInt(id))) {
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // not a fragment of ours, remove it as well.
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Loads the index of the previous build. The index is empty if it is missing, unreadable or
+     * was written for another version of dx.
+     */
+    @NonNull
+    private Map<String, IndexEntry> loadIndex() throws IOException {
+        File indexFile = new File(mWorkDir, INDEX_FILE);
+        if (!indexFile.isFile()) {
+            return Maps.newHashMap();
+        }
+
+        List<String> lines = Files.readLines(indexFile, Charsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(INDEX_VERSION + '\t' + mDxVersion)) {
+            return Maps.newHashMap();
+        }
+
+        Map<String, IndexEntry> index = Maps.newHashMapWithExpectedSize(lines.size());
+        Splitter splitter = Splitter.on('\t').limit(5);
+        try {
+            for (String line : lines.subList(1, lines.size())) {
+                List<String> values = Lists.newArrayList(splitter.split(line));
+                if (values.size() != 5) {
+                    return Maps.newHashMap();
+                }
+                index.put(values.get(4), new IndexEntry(
+                        Integer.parseInt(values.get(0)),
+                        Long.parseLong(values.get(1)),
+                        Long.parseLong(values.get(2)),
+                        values.get(3)));
+            }
+        } catch (NumberFormatException e) {
+            return Maps.newHashMap();
+        }
+
+        return index;
+    }
+
+    private void saveIndex(@NonNull Map<String, IndexEntry> index) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(INDEX_VERSION).append('\t').append(mDxVersion).append('\n');
+        for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+            IndexEntry value = entry.getValue();
+            sb.append(value.mFragment).append('\t')
+                    .append(value.mSize).append('\t')
+                    .append(value.mLastModified).append('\t')
+                    .append(value.mHash).append('\t')
+                    .append(entry.getKey()).append('\n');
+        }
+
+        Files.write(sb.toString(), new File(mWorkDir, INDEX_FILE), Charsets.UTF_8);
+    }
+}
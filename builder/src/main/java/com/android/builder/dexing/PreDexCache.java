@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.android.annotations.NonNull;
+import com.android.builder.cache.BuildStateCache;
+import com.android.prefs.AndroidLocation;
+import com.android.prefs.AndroidLocation.AndroidLocationException;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of pre-dexed library jars, shared by all the projects of the machine.
+ *
+ * Each library is dexed once into a jar containing its classes.dex. The final dx run then
+ * only dexes the classes of the application and merges the dex files of the libraries, so
+ * that a change in the application does not re-dex all its dependencies.
+ *
+ * An entry is identified by the content of the library and the version of dx, computed from
+ * the content of dx.jar. Entries are written to a temporary file first and renamed, so that
+ * several builds can use the cache at the same time.
+ */
+public class PreDexCache {
+
+    private final static String ENTRY_EXTENSION = ".jar";
+    private final static String TMP_EXTENSION = ".tmp";
+
+    /** Entries that have not been used for this long are removed. */
+    private final static long MAX_UNUSED_AGE_MS = TimeUnit.DAYS.toMillis(30);
+    /** Temporary files older than this are left over from a killed build. */
+    private final static long MAX_TMP_AGE_MS = TimeUnit.DAYS.toMillis(1);
+
+    private final File mCacheDir;
+
+    /**
+     * Returns the default location of the cache, in the .android folder of the user.
+     */
+    @NonNull
+    public static File getDefaultLocation() throws AndroidLocationException {
+        return new File(AndroidLocation.getFolder(), "pre-dex-cache");
+    }
+
+    public PreDexCache(@NonNull File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Returns a version key for dx, from the content of dx.jar (or of the dx script if the jar
+     * cannot be found).
+     */
+    @NonNull
+    public String getDxVersion(@NonNull File dxFile) throws IOException {
+        return hash(dxFile);
+    }
+
+    /**
+     * Returns the cache entry of a library. The entry may not exist yet.
+     *
+     * If it exists, it is marked as used so that it is not removed by
+     * {@link #removeUnusedEntries()}.
+     *
+     * @param library the library jar.
+     * @param dxVersion the version key of dx, from {@link #getDxVersion(File)}.
+     */
+    @NonNull
+    public File getEntry(@NonNull File library, @NonNull String dxVersion) throws IOException {
+        String key = Hashing.sha1().newHasher()
+                .putString(dxVersion, Charsets.UTF_8)
+                .putString(hash(library), Charsets.UTF_8)
+                .hash().toString();
+        File entry = new File(mCacheDir, key + ENTRY_EXTENSION);
+        entry.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    /**
+     * Returns a new temporary file to dex a library into, before it is moved to its entry with
+     * {@link #commit(File, File)}.
+     */
+    @NonNull
+    public File newTempFile(@NonNull File entry) throws IOException {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            throw new IOException("Failed to create " + mCacheDir);
+        }
+
+        // dx writes a jar if the output ends with .jar
+        return new File(mCacheDir,
+                entry.getName() + "." + UUID.randomUUID() + TMP_EXTENSION + ENTRY_EXTENSION);
+    }
+
+    /**
+     * Moves a dexed library to its entry.
+     */
+    public void commit(@NonNull File tempFile, @NonNull File entry) throws IOException {
+        if (!tempFile.renameTo(entry)) {
+            // another build may have created the same entry in the meantime.
+            tempFile.delete();
+            if (!entry.isFile()) {
+                throw new IOException(String.format("Failed to move %1$s to %2$s",
+                        tempFile, entry));
+            }
+        }
+    }
+
+    /**
+     * Removes the entries that have not been used for a month, and the temporary files left
+     * by killed builds.
+     */
+    public void removeUnusedEntries() {
+        File[] files = mCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            long maxAge = name.endsWith(TMP_EXTENSION + ENTRY_EXTENSION)
+                    ? MAX_TMP_AGE_MS : MAX_UNUSED_AGE_MS;
+            if (name.endsWith(ENTRY_EXTENSION) && now - file.lastModified() > maxAge) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the hash of the content of a file. Hashes are kept in memory as long as the
+     * file does not change.
+     */
+    static String hash(@NonNull File file) throws IOException {
+        BuildStateCache cache = BuildStateCache.getDefault();
+        String key = "sha1:" + file.getAbsolutePath();
+        List<File> stamps = Collections.singletonList(file);
+
+        String hash = cache.get(key, String.class, stamps);
+        if (hash == null) {
+            hash = Files.hash(file, Hashing.sha1()).toString();
+            cache.put(key, stamps, hash);
+        }
+
+        return hash;
+    }
+}
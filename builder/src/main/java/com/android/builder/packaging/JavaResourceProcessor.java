@@ -23,6 +23,7 @@ import java.io.IOException;
 public class JavaResourceProcessor {
 
     private final IArchiveBuilder mBuilder;
+    private final PackagingFilter mFilter;
 
     public interface IArchiveBuilder {
 
@@ -41,7 +42,15 @@ public class JavaResourceProcessor {
 
 
     public JavaResourceProcessor(IArchiveBuilder builder) {
+        this(builder, PackagingFilter.DEFAULT);
+    }
+
+    /**
+     * Creates a processor adding the resources accepted by the given filter.
+     */
+    public JavaResourceProcessor(IArchiveBuilder builder, PackagingFilter filter) {
         mBuilder = builder;
+        mFilter = filter;
     }
 
     /**
@@ -97,7 +106,7 @@ public class JavaResourceProcessor {
             throws IOException, DuplicateFileException, PackagerException, SealedPackageException {
         if (file.isDirectory()) {
             // a directory? we check it
-            if (checkFolderForPackaging(file.getName())) {
+            if (mFilter.checkFolder(file.getName())) {
                 // if it's valid, we append its name to the current path.
                 if (path == null) {
                     path = file.getName();
@@ -113,7 +122,7 @@ public class JavaResourceProcessor {
             }
         } else {
             // a file? we check it to make sure it should be added
-            if (checkFileForPackaging(file.getName())) {
+            if (mFilter.checkFile(file.getName())) {
                 // we append its name to the current path
                 if (path == null) {
                     path = file.getName();
@@ -121,8 +130,10 @@ public class JavaResourceProcessor {
                     path = path + "/" + file.getName();
                 }
 
-                // and add it to the apk
-                mBuilder.addFile(file, path);
+                // and add it to the apk, unless the globs of the filter exclude it.
+                if (mFilter.checkGlobs(path)) {
+                    mBuilder.addFile(file, path);
+                }
             }
         }
     }
@@ -133,11 +144,7 @@ public class JavaResourceProcessor {
      * @param folderName the name of the folder.
      */
     public static boolean checkFolderForPackaging(String folderName) {
-        return folderName.equalsIgnoreCase("CVS") == false &&
-            folderName.equalsIgnoreCase(".svn") == false &&
-            folderName.equalsIgnoreCase("SCCS") == false &&
-            folderName.equalsIgnoreCase("META-INF") == false &&
-            folderName.startsWith("_") == false;
+        return PackagingFilter.DEFAULT.checkFolder(folderName);
     }
 
     /**
@@ -146,13 +153,7 @@ public class JavaResourceProcessor {
      * @return true if the file should be packaged as standard java resources.
      */
     public static boolean checkFileForPackaging(String fileName) {
-        String[] fileSegments = fileName.split("\\.");
-        String fileExt = "";
-        if (fileSegments.length > 1) {
-            fileExt = fileSegments[fileSegments.length-1];
-        }
-
-        return checkFileForPackaging(fileName, fileExt);
+        return PackagingFilter.DEFAULT.checkFile(fileName);
     }
 
     /**
@@ -18,22 +18,30 @@ package com.android.builder.packaging;
 
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.PackagingOptions;
 import com.android.builder.packaging.JavaResourceProcessor.IArchiveBuilder;
+import com.android.builder.signing.JarIndex;
 import com.android.builder.signing.SignedJarBuilder;
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter;
+import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
 import com.android.builder.signing.SigningInfo;
+import com.android.builder.zip.CompressedEntryCache;
+import com.android.builder.zip.CompressionPolicy;
+import com.android.builder.zip.ZipArchive;
 import com.android.sdklib.internal.build.DebugKeyProvider;
 import com.android.utils.ILogger;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -65,12 +73,7 @@ public final class Packager implements IArchiveBuilder {
         public boolean checkEntry(String archivePath) throws ZipAbortException {
             mLogger.verbose("=> %s", archivePath);
 
-            File duplicate = checkFileForDuplicate(archivePath);
-            if (duplicate != null) {
-                throw new DuplicateFileException(archivePath, duplicate, mInputFile);
-            } else {
-                mAddedFiles.put(archivePath, mInputFile);
-            }
+            mPlan.addEntry(archivePath, mInputFile);
 
             return true;
         }
@@ -79,50 +82,31 @@ public final class Packager implements IArchiveBuilder {
     /**
      * Custom {@link IZipEntryFilter} to filter out everything that is not a standard java
      * resources, and also record whether the zip file contains native libraries.
-     * <p/>Used in {@link SignedJarBuilder#writeZip(java.io.InputStream, IZipEntryFilter)} when
-     * we only want the java resources from external jars.
+     * <p/>Used when we only want the java resources from external jars. The filter only sees
+     * the names from the central directory, so the rejected entries are never read.
      */
     private final class JavaAndNativeResourceFilter implements IZipEntryFilter {
+        private final List<String> mResources = new ArrayList<String>();
         private final List<String> mNativeLibs = new ArrayList<String>();
         private boolean mNativeLibsConflict = false;
         private File mInputFile;
 
         @Override
         public boolean checkEntry(String archivePath) throws ZipAbortException {
-            // split the path into segments.
-            String[] segments = archivePath.split("/");
-
-            // empty path? skip to next entry.
-            if (segments.length == 0) {
-                return false;
-            }
-
-            // Check each folders to make sure they should be included.
+            // Check each folders to make sure they should be included, then the file name
+            // and the globs of the filter.
             // Folders like CVS, .svn, etc.. should already have been excluded from the
             // jar file, but we need to exclude some other folder (like /META-INF) so
             // we check anyway.
-            for (int i = 0 ; i < segments.length - 1; i++) {
-                if (JavaResourceProcessor.checkFolderForPackaging(segments[i]) == false) {
-                    return false;
-                }
-            }
-
-            // get the file name from the path
-            String fileName = segments[segments.length-1];
-
-            boolean check = JavaResourceProcessor.checkFileForPackaging(fileName);
+            boolean check = mPackagingFilter.checkPath(archivePath);
 
             // only do additional checks if the file passes the default checks.
             if (check) {
                 mLogger.verbose("=> %s", archivePath);
 
-                File duplicate = checkFileForDuplicate(archivePath);
-                if (duplicate != null) {
-                    throw new DuplicateFileException(archivePath, duplicate, mInputFile);
-                } else {
-                    mAddedFiles.put(archivePath, mInputFile);
-                }
+                mPlan.addEntry(archivePath, mInputFile);
 
+                mResources.add(archivePath);
                 if (archivePath.endsWith(".so")) {
                     mNativeLibs.add(archivePath);
 
@@ -138,6 +122,10 @@ public final class Packager implements IArchiveBuilder {
             return check;
         }
 
+        List<String> getResources() {
+            return mResources;
+        }
+
         List<String> getNativeLibs() {
             return mNativeLibs;
         }
@@ -148,25 +136,48 @@ public final class Packager implements IArchiveBuilder {
 
         void reset(File inputFile) {
             mInputFile = inputFile;
+            mResources.clear();
             mNativeLibs.clear();
             mNativeLibsConflict = false;
         }
     }
 
+    /** Extension of the index of the entries of the apk, kept next to it. */
+    private final static String INDEX_EXTENSION = ".index";
+    /** Extension of the previous apk while an incremental packaging runs. */
+    private final static String PREVIOUS_EXTENSION = ".previous";
+    /** Alignment of the native libraries in the mappable layout, the size of a memory page. */
+    private final static int PAGE_ALIGNMENT = 4096;
+
     private SignedJarBuilder mBuilder = null;
     private final ILogger mLogger;
+    private final File mApkFile;
+    private final SigningInfo mSigningInfo;
+    private final PackagingOptions mPackagingOptions;
+    private final CompressionPolicy mCompressionPolicy;
+    private final int mAlignment;
+    private File mIndexFile = null;
+    private File mPreviousApkFile = null;
     private boolean mDebugJniMode = false;
+    private PackagingFilter mPackagingFilter = PackagingFilter.DEFAULT;
     private boolean mIsSealed = false;
 
     private final NullZipFilter mNullFilter = new NullZipFilter();
     private final JavaAndNativeResourceFilter mFilter = new JavaAndNativeResourceFilter();
-    private final HashMap<String, File> mAddedFiles = new HashMap<String, File>();
+    private final PackagingPlan mPlan = new PackagingPlan();
 
     /**
      * Status for the addition of a jar file resources into the APK.
      * This indicates possible issues with native library inside the jar file.
      */
     public interface JarStatus {
+        /**
+         * Returns the entries of the jar file that were added to the APK, native libraries
+         * included. Jars without any, like most libraries, can be skipped by the next builds
+         * as long as they don't change.
+         */
+        List<String> getJavaResources();
+
         /**
          * Returns the list of native libraries found in the jar file.
          */
@@ -182,14 +193,22 @@ public final class Packager implements IArchiveBuilder {
 
     /** Internal implementation of {@link JarStatus}. */
     private final static class JarStatusImpl implements JarStatus {
+        public final List<String> mResources;
         public final List<String> mLibs;
         public final boolean mNativeLibsConflict;
 
-        private JarStatusImpl(List<String> libs, boolean nativeLibsConflict) {
+        private JarStatusImpl(List<String> resources, List<String> libs,
+                boolean nativeLibsConflict) {
+            mResources = resources;
             mLibs = libs;
             mNativeLibsConflict = nativeLibsConflict;
         }
 
+        @Override
+        public List<String> getJavaResources() {
+            return mResources;
+        }
+
         @Override
         public List<String> getNativeLibs() {
             return mLibs;
@@ -207,6 +226,9 @@ public final class Packager implements IArchiveBuilder {
      * This creates a new builder that will create the specified output file, using the two
      * mandatory given input files.
      *
+     * The inputs are only planned until {@link #sealApk()} is called, which writes the apk in
+     * one pass. Conflicts between inputs are therefore found before anything is written.
+     *
      * An optional debug keystore can be provided. If set, it is expected that the store password
      * is 'android' and the key alias and password are 'androiddebugkey' and 'android'.
      *
@@ -226,10 +248,44 @@ public final class Packager implements IArchiveBuilder {
             @NonNull String dexLocation,
             SigningInfo signingInfo,
             ILogger logger) throws PackagerException {
+        this(apkLocation, resLocation, dexLocation, signingInfo, null /*packagingOptions*/,
+                null /*compressionPolicy*/, 0 /*alignment*/, logger);
+    }
+
+    /**
+     * Creates a new instance, with the given packaging options.
+     *
+     * @param apkLocation the file to create
+     * @param resLocation the file representing the packaged resource file.
+     * @param dexLocation the file representing the dex file. This can be null for apk with no code.
+     * @param signingInfo the signing information used to sign the package, or null.
+     * @param packagingOptions the packaging options, or null for the defaults.
+     * @param compressionPolicy how the files added to the apk are compressed, or null to
+     *                          compress all of them with the best compression.
+     * @param alignment the alignment in bytes of the uncompressed entries, or 0 to not align
+     *                  them. Aligned apks don't need to go through zipalign.
+     * @param ILogger the logger.
+     * @throws PackagerException
+     */
+    public Packager(
+            @NonNull String apkLocation,
+            @NonNull String resLocation,
+            @NonNull String dexLocation,
+            SigningInfo signingInfo,
+            @Nullable PackagingOptions packagingOptions,
+            @Nullable CompressionPolicy compressionPolicy,
+            int alignment,
+            ILogger logger) throws PackagerException {
+
+        mLogger = logger;
+        mApkFile = new File(apkLocation);
+        mSigningInfo = signingInfo;
+        mPackagingOptions = packagingOptions;
+        mCompressionPolicy = compressionPolicy;
+        mAlignment = alignment;
 
         try {
-            File apkFile = new File(apkLocation);
-            checkOutputFile(apkFile);
+            checkOutputFile(mApkFile);
 
             File resFile = new File(resLocation);
             checkInputFile(resFile);
@@ -240,15 +296,6 @@ public final class Packager implements IArchiveBuilder {
                 checkInputFile(dexFile);
             }
 
-            mLogger = logger;
-
-            mBuilder = new SignedJarBuilder(
-                    new FileOutputStream(apkFile, false /* append */),
-                    signingInfo != null ? signingInfo.getKey() : null,
-                    signingInfo != null ? signingInfo.getCertificate() : null);
-
-            mLogger.verbose("Packaging %s", apkFile.getName());
-
             // add the resources
             addZipFile(resFile);
 
@@ -258,14 +305,8 @@ public final class Packager implements IArchiveBuilder {
             }
 
         } catch (PackagerException e) {
-            if (mBuilder != null) {
-                mBuilder.cleanUp();
-            }
             throw e;
         } catch (Exception e) {
-            if (mBuilder != null) {
-                mBuilder.cleanUp();
-            }
             throw new PackagerException(e);
         }
     }
@@ -287,6 +328,27 @@ public final class Packager implements IArchiveBuilder {
         mDebugJniMode = debugJniMode;
     }
 
+    /**
+     * Sets the filter of the java resources added from jar files.
+     * @param packagingFilter the filter.
+     */
+    public void setPackagingFilter(@NonNull PackagingFilter packagingFilter) {
+        mPackagingFilter = packagingFilter;
+    }
+
+    @NonNull
+    public PackagingFilter getPackagingFilter() {
+        return mPackagingFilter;
+    }
+
+    /**
+     * Returns the content of the apk planned so far.
+     */
+    @NonNull
+    public PackagingPlan getPlan() {
+        return mPlan;
+    }
+
     /**
      * Adds a file to the APK at a given path
      * @param file the file to add
@@ -303,15 +365,7 @@ public final class Packager implements IArchiveBuilder {
             throw new SealedPackageException("APK is already sealed");
         }
 
-        try {
-            doAddFile(file, archivePath);
-        } catch (DuplicateFileException e) {
-            mBuilder.cleanUp();
-            throw e;
-        } catch (Exception e) {
-            mBuilder.cleanUp();
-            throw new PackagerException(e, "Failed to add %s", file);
-        }
+        doAddFile(file, archivePath);
     }
 
     /**
@@ -335,14 +389,11 @@ public final class Packager implements IArchiveBuilder {
             // reset the filter with this input.
             mNullFilter.reset(zipFile);
 
-            // ask the builder to add the content of the file.
-            FileInputStream fis = new FileInputStream(zipFile);
-            mBuilder.writeZip(fis, mNullFilter);
+            // the content of the file is copied without being recompressed.
+            planZipFile(zipFile, mNullFilter);
         } catch (DuplicateFileException e) {
-            mBuilder.cleanUp();
             throw e;
         } catch (Exception e) {
-            mBuilder.cleanUp();
             throw new PackagerException(e, "Failed to add %s", zipFile);
         }
     }
@@ -369,19 +420,19 @@ public final class Packager implements IArchiveBuilder {
             // reset the filter with this input.
             mFilter.reset(jarFile);
 
-            // ask the builder to add the content of the file, filtered to only let through
-            // the java resources.
-            FileInputStream fis = new FileInputStream(jarFile);
-            mBuilder.writeZip(fis, mFilter);
+            // only let through the java resources.
+            planZipFile(jarFile, mFilter);
 
             // check if native libraries were found in the external library. This should
             // constitutes an error or warning depending on if they are in lib/
-            return new JarStatusImpl(mFilter.getNativeLibs(), mFilter.getNativeLibsConflict());
+            // the lists of the filter are reused by the next jar.
+            return new JarStatusImpl(
+                    new ArrayList<String>(mFilter.getResources()),
+                    new ArrayList<String>(mFilter.getNativeLibs()),
+                    mFilter.getNativeLibsConflict());
         } catch (DuplicateFileException e) {
-            mBuilder.cleanUp();
             throw e;
         } catch (Exception e) {
-            mBuilder.cleanUp();
             throw new PackagerException(e, "Failed to add %s", jarFile);
         }
     }
@@ -440,12 +491,7 @@ public final class Packager implements IArchiveBuilder {
                                     SdkConstants.FD_APK_NATIVE_LIBS + "/" +
                                     abi.getName() + "/" + lib.getName();
 
-                                try {
-                                    doAddFile(lib, path);
-                                } catch (IOException e) {
-                                    mBuilder.cleanUp();
-                                    throw new PackagerException(e, "Failed to add %s", lib);
-                                }
+                                doAddFile(lib, path);
                             }
                         }
                     }
@@ -455,7 +501,7 @@ public final class Packager implements IArchiveBuilder {
     }
 
     /**
-     * Seals the APK, and signs it if necessary.
+     * Writes the planned content of the APK, seals it, and signs it if necessary.
      * @throws PackagerException
      * @throws PackagerException if an error occurred
      * @throws SealedPackageException if the APK is already sealed.
@@ -465,39 +511,128 @@ public final class Packager implements IArchiveBuilder {
             throw new SealedPackageException("APK is already sealed");
         }
 
-        // close and sign the application package.
+        // write, close and sign the application package.
         try {
+            createBuilder();
+
+            for (PackagingPlan.Input input : mPlan.getInputs()) {
+                if (input.mZipEntries != null) {
+                    final Set<String> entries = input.mZipEntries;
+                    mBuilder.writeZip(input.mFile, new IZipEntryFilter() {
+                        @Override
+                        public boolean checkEntry(String archivePath) {
+                            return entries.contains(archivePath);
+                        }
+                    });
+                } else {
+                    mBuilder.writeFile(input.mFile, input.mArchivePath);
+                }
+            }
+
             mBuilder.close();
             mIsSealed = true;
+
+            if (mIndexFile != null) {
+                mBuilder.getIndex().save(mIndexFile);
+            }
         } catch (Exception e) {
             throw new PackagerException(e, "Failed to seal APK");
         } finally {
-            mBuilder.cleanUp();
+            if (mBuilder != null) {
+                mBuilder.cleanUp();
+            }
+            if (mPreviousApkFile != null) {
+                mPreviousApkFile.delete();
+            }
         }
     }
 
-    private void doAddFile(File file, String archivePath) throws DuplicateFileException,
-            IOException {
-        mLogger.verbose("%1$s => %2$s", file, archivePath);
+    /**
+     * Creates the builder writing the apk. In incremental mode, the previous apk is moved
+     * aside first to copy its unchanged entries.
+     */
+    private void createBuilder() throws IOException, NoSuchAlgorithmException {
+        String apkLocation = mApkFile.getPath();
+
+        // the index is deleted first as it is only valid for the previous apk.
+        File indexFile = new File(apkLocation + INDEX_EXTENSION);
+        JarIndex previousIndex = null;
+        if (mPackagingOptions != null && mPackagingOptions.isIncremental()) {
+            if (mApkFile.length() > 0) {
+                previousIndex = JarIndex.load(indexFile);
+                File previousApkFile = new File(apkLocation + PREVIOUS_EXTENSION);
+                previousApkFile.delete();
+                if (mApkFile.renameTo(previousApkFile)) {
+                    mPreviousApkFile = previousApkFile;
+                }
+            }
+            mIndexFile = indexFile;
+        }
+        indexFile.delete();
+
+        mLogger.verbose("Packaging %s", mApkFile.getName());
+
+        mBuilder = new SignedJarBuilder(
+                new FileOutputStream(mApkFile, false /* append */),
+                mSigningInfo != null ? mSigningInfo.getKey() : null,
+                mSigningInfo != null ? mSigningInfo.getCertificate() : null);
 
-        File duplicate = checkFileForDuplicate(archivePath);
-        if (duplicate != null) {
-            throw new DuplicateFileException(archivePath, duplicate, file);
+        mBuilder.setAlignment(mAlignment);
+        if (mPackagingOptions != null && mPackagingOptions.isMappableLayout()) {
+            mBuilder.setSharedLibraryAlignment(PAGE_ALIGNMENT);
+        }
+        mBuilder.setCompressionPolicy(mCompressionPolicy);
+        if (mPreviousApkFile != null) {
+            try {
+                mBuilder.setPreviousJar(mPreviousApkFile, previousIndex);
+            } catch (IOException e) {
+                // the apk is written from scratch.
+                mLogger.verbose("Cannot read the previous apk: %s", e.getMessage());
+            }
+        }
+        if (mPackagingOptions != null) {
+            mBuilder.setParallelCompression(mPackagingOptions.getCompressionThreads(),
+                    mPackagingOptions.getCompressionWindow());
+            if (mPackagingOptions.getCompressionCacheSize() > 0) {
+                // shared by the packagers of all the variants.
+                mBuilder.setCompressedEntryCache(CompressedEntryCache.getDefault(
+                        mPackagingOptions.getCompressionCacheSize()));
+            }
         }
+    }
+
+    private void doAddFile(File file, String archivePath) throws DuplicateFileException {
+        mLogger.verbose("%1$s => %2$s", file, archivePath);
 
-        mAddedFiles.put(archivePath, file);
-        mBuilder.writeFile(file, archivePath);
+        mPlan.addFile(file, archivePath);
     }
 
     /**
-     * Checks if the given path in the APK archive has not already been used and if it has been,
-     * then returns a {@link File} object for the source of the duplicate
-     * @param archivePath the archive path to test.
-     * @return A File object of either a file at the same location or an archive that contains a
-     * file that was put at the same location.
+     * Plans the entries of a zip file accepted by a filter. Only the central directory of the
+     * file is read.
      */
-    private File checkFileForDuplicate(String archivePath) {
-        return mAddedFiles.get(archivePath);
+    private void planZipFile(File zipFile, IZipEntryFilter filter)
+            throws IOException, ZipAbortException {
+        Set<String> entries = new HashSet<String>();
+        ZipArchive archive = new ZipArchive(zipFile);
+        try {
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                String name = entry.getName();
+
+                // skip the entries that SignedJarBuilder#writeZip never copies.
+                if (entry.isDirectory() || name.startsWith("META-INF/")) {
+                    continue;
+                }
+
+                if (filter.checkEntry(name)) {
+                    entries.add(name);
+                }
+            }
+        } finally {
+            archive.close();
+        }
+
+        mPlan.addZipFile(zipFile, entries);
     }
 
     /**
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.packaging;
+
+import com.android.annotations.NonNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decides which java resources are packaged in the apk, from source folders and from jars.
+ *
+ * The default rules exclude the source control folders, META-INF, the hidden and backup files
+ * and the files that are sources rather than resources. On top of them, the paths in the apk
+ * can be filtered with include and exclude globs:
+ * - <code>*</code> matches any number of characters except '/',
+ * - <code>?</code> matches one character except '/',
+ * - <code>**</code> matches any number of characters, '/' included, and <code>**&#47;</code>
+ *   also matches no folder at all.
+ * For instance <code>**&#47;LICENSE*</code> excludes the license files of all the folders.
+ *
+ * The rules and globs are compiled when the filter is created, and checking a path does not
+ * allocate anything, as it runs for every entry of every jar.
+ */
+public final class PackagingFilter {
+
+    private static final String[] EXCLUDED_FOLDERS = {
+            "CVS", ".svn", "SCCS", "META-INF" };
+
+    private static final String[] EXCLUDED_EXTENSIONS = {
+            "aidl",     // Aidl files
+            "rs",       // RenderScript files
+            "rsh",      // RenderScript header files
+            "d",        // Dependency files
+            "java",     // Java files
+            "scala",    // Scala files
+            "class",    // Java class files
+            "scc",      // VisualSourceSafe
+            "swp" };    // vi swap file
+
+    private static final String[] EXCLUDED_NAMES = {
+            "thumbs.db",        // image index file
+            "picasa.ini",       // image index file
+            "package.html",     // Javadoc
+            "overview.html" };  // Javadoc
+
+    private static final NameSet sExcludedFolders = new NameSet(EXCLUDED_FOLDERS);
+    private static final NameSet sExcludedExtensions = new NameSet(EXCLUDED_EXTENSIONS);
+    private static final NameSet sExcludedNames = new NameSet(EXCLUDED_NAMES);
+
+    /** The filter with only the default rules. */
+    public static final PackagingFilter DEFAULT = new PackagingFilter(
+            Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    private final String[] mIncludes;
+    private final String[] mExcludes;
+
+    /**
+     * A set of names matched without case, stored by length so that a region of a path is
+     * only compared to the names of the same length.
+     */
+    private static final class NameSet {
+        private final String[][] mNamesByLength;
+
+        NameSet(String[] names) {
+            int maxLength = 0;
+            for (String name : names) {
+                maxLength = Math.max(maxLength, name.length());
+            }
+
+            mNamesByLength = new String[maxLength + 1][];
+            for (int length = 0; length <= maxLength; length++) {
+                int count = 0;
+                for (String name : names) {
+                    if (name.length() == length) {
+                        count++;
+                    }
+                }
+                mNamesByLength[length] = new String[count];
+                count = 0;
+                for (String name : names) {
+                    if (name.length() == length) {
+                        mNamesByLength[length][count++] = name;
+                    }
+                }
+            }
+        }
+
+        boolean contains(@NonNull String text, int start, int end) {
+            int length = end - start;
+            if (length >= mNamesByLength.length) {
+                return false;
+            }
+
+            for (String name : mNamesByLength[length]) {
+                if (name.regionMatches(true /*ignoreCase*/, 0, text, start, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Creates a filter.
+     * @param includes the globs of the paths to package. If empty, all the paths allowed by
+     *                 the default rules are packaged.
+     * @param excludes the globs of the paths not to package.
+     */
+    public PackagingFilter(@NonNull List<String> includes, @NonNull List<String> excludes) {
+        mIncludes = includes.toArray(new String[includes.size()]);
+        mExcludes = excludes.toArray(new String[excludes.size()]);
+    }
+
+    /**
+     * Checks whether a folder and its content is valid for packaging into the .apk as
+     * standard Java resource.
+     * @param folderName the name of the folder.
+     */
+    public boolean checkFolder(@NonNull String folderName) {
+        return checkFolder(folderName, 0, folderName.length());
+    }
+
+    /**
+     * Checks a file to make sure it should be packaged as standard resources.
+     * @param fileName the name of the file (including extension)
+     */
+    public boolean checkFile(@NonNull String fileName) {
+        return checkFile(fileName, 0, fileName.length());
+    }
+
+    /**
+     * Checks whether a path in the apk passes the include and exclude globs.
+     * @param archivePath the path of the file inside the apk.
+     */
+    public boolean checkGlobs(@NonNull String archivePath) {
+        if (mIncludes.length > 0) {
+            boolean included = false;
+            for (String include : mIncludes) {
+                if (matchGlob(include, 0, archivePath, 0)) {
+                    included = true;
+                    break;
+                }
+            }
+            if (!included) {
+                return false;
+            }
+        }
+
+        for (String exclude : mExcludes) {
+            if (matchGlob(exclude, 0, archivePath, 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether an entry of a jar should be packaged: all the folders of its path, its
+     * name and its path must be accepted.
+     * @param archivePath the path of the entry, which is also its path inside the apk.
+     */
+    public boolean checkPath(@NonNull String archivePath) {
+        int start = 0;
+        int slash;
+        while ((slash = archivePath.indexOf('/', start)) != -1) {
+            if (!checkFolder(archivePath, start, slash)) {
+                return false;
+            }
+            start = slash + 1;
+        }
+
+        return checkFile(archivePath, start, archivePath.length()) && checkGlobs(archivePath);
+    }
+
+    @Override
+    public String toString() {
+        return "PackagingFilter{includes=" + Arrays.toString(mIncludes)
+                + ", excludes=" + Arrays.toString(mExcludes) + "}";
+    }
+
+    private static boolean checkFolder(@NonNull String path, int start, int end) {
+        if (start < end && path.charAt(start) == '_') {
+            return false;
+        }
+        return !sExcludedFolders.contains(path, start, end);
+    }
+
+    private static boolean checkFile(@NonNull String path, int start, int end) {
+        // ignore empty names, hidden files and backup files
+        if (start == end || path.charAt(start) == '.' || path.charAt(end - 1) == '~') {
+            return false;
+        }
+
+        int dot = path.lastIndexOf('.', end - 1);
+        if (dot > start && sExcludedExtensions.contains(path, dot + 1, end)) {
+            return false;
+        }
+
+        return !sExcludedNames.contains(path, start, end);
+    }
+
+    /**
+     * Returns whether the end of a path, from <var>pathIndex</var>, matches the end of a glob,
+     * from <var>globIndex</var>.
+     */
+    static boolean matchGlob(@NonNull String glob, int globIndex,
+            @NonNull String path, int pathIndex) {
+        while (globIndex < glob.length()) {
+            char c = glob.charAt(globIndex);
+            if (c == '*') {
+                if (globIndex + 1 < glob.length() && glob.charAt(globIndex + 1) == '*') {
+                    int next = globIndex + 2;
+                    // "**/" also matches no folder at all.
+                    if (next < glob.length() && glob.charAt(next) == '/'
+                            && matchGlob(glob, next + 1, path, pathIndex)) {
+                        return true;
+                    }
+                    for (int i = pathIndex; i <= path.length(); i++) {
+                        if (matchGlob(glob, next, path, i)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                for (int i = pathIndex; i <= path.length(); i++) {
+                    if (matchGlob(glob, globIndex + 1, path, i)) {
+                        return true;
+                    }
+                    if (i < path.length() && path.charAt(i) == '/') {
+                        return false;
+                    }
+                }
+                return false;
+            }
+
+            if (pathIndex == path.length()) {
+                return false;
+            }
+            char p = path.charAt(pathIndex);
+            if (c == '?' ? p == '/' : c != p) {
+                return false;
+            }
+            globIndex++;
+            pathIndex++;
+        }
+
+        return pathIndex == path.length();
+    }
+}
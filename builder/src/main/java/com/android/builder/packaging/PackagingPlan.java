@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.packaging;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The content of an apk, planned before it is written.
+ *
+ * The plan lists the files and the entries of zip files that go in the apk, with their path
+ * in the apk. Conflicts between two inputs are detected while the plan is built, so that they
+ * are reported before anything is read, compressed or written.
+ */
+public final class PackagingPlan {
+
+    /** A file, or the selected entries of a zip file. */
+    static final class Input {
+        @NonNull
+        final File mFile;
+        /** The path of the file in the apk, or null for a zip file. */
+        @Nullable
+        final String mArchivePath;
+        /** The entries of the zip file that go in the apk, or null for a file. */
+        @Nullable
+        final Set<String> mZipEntries;
+
+        Input(@NonNull File file, @Nullable String archivePath,
+                @Nullable Set<String> zipEntries) {
+            mFile = file;
+            mArchivePath = archivePath;
+            mZipEntries = zipEntries;
+        }
+    }
+
+    private final List<Input> mInputs = Lists.newArrayList();
+    private final Map<String, File> mSources = Maps.newLinkedHashMap();
+
+    /**
+     * Returns the paths of all the entries of the apk, in the order they were planned.
+     */
+    @NonNull
+    public Set<String> getArchivePaths() {
+        return Collections.unmodifiableSet(mSources.keySet());
+    }
+
+    /**
+     * Returns the file an entry of the apk comes from, the zip file containing it for the
+     * entries of zip files, or null if there is no such entry.
+     */
+    @Nullable
+    public File getSource(@NonNull String archivePath) {
+        return mSources.get(archivePath);
+    }
+
+    /**
+     * Plans an entry of the apk.
+     * @param archivePath the path of the entry in the apk.
+     * @param source the file, or the zip file, the entry comes from.
+     * @throws DuplicateFileException if another input has an entry with the same path.
+     */
+    void addEntry(@NonNull String archivePath, @NonNull File source)
+            throws DuplicateFileException {
+        File duplicate = mSources.get(archivePath);
+        if (duplicate != null) {
+            throw new DuplicateFileException(archivePath, duplicate, source);
+        }
+
+        mSources.put(archivePath, source);
+    }
+
+    /**
+     * Plans a file.
+     * @throws DuplicateFileException if another input has an entry with the same path.
+     */
+    void addFile(@NonNull File file, @NonNull String archivePath)
+            throws DuplicateFileException {
+        addEntry(archivePath, file);
+        mInputs.add(new Input(file, archivePath, null));
+    }
+
+    /**
+     * Plans entries of a zip file, which must have been added with
+     * {@link #addEntry(String, File)}.
+     */
+    void addZipFile(@NonNull File zipFile, @NonNull Set<String> entries) {
+        if (!entries.isEmpty()) {
+            mInputs.add(new Input(zipFile, null, entries));
+        }
+    }
+
+    @NonNull
+    List<Input> getInputs() {
+        return mInputs;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Resource usage of a running child process, read from /proc.
+ *
+ * The values are only known on Linux, and only for as long as the process is running, so
+ * {@link #sample()} must be called regularly while the process runs. The values are -1 when
+ * they could not be read.
+ */
+public class ProcessStats {
+
+    /** USER_HZ, the unit of the times in /proc/[pid]/stat. */
+    private final static long CLOCK_TICKS_PER_SECOND = 100;
+
+    private final File mStatFile;
+    private final File mStatusFile;
+    private long mCpuTimeMs = -1;
+    private long mPeakRssKb = -1;
+
+    public ProcessStats(@NonNull Process process) {
+        int pid = getPid(process);
+        if (pid > 0) {
+            mStatFile = new File("/proc/" + pid + "/stat");
+            mStatusFile = new File("/proc/" + pid + "/status");
+        } else {
+            mStatFile = null;
+            mStatusFile = null;
+        }
+    }
+
+    /**
+     * Reads the current usage of the process. Does nothing if the process is gone.
+     */
+    public synchronized void sample() {
+        if (mStatFile == null) {
+            return;
+        }
+
+        try {
+            // the name of the executable is between parenthesis and can contain spaces.
+            String stat = Files.toString(mStatFile, Charsets.US_ASCII);
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            // utime, stime, cutime and cstime are the 14th to 17th fields, the 3rd one being
+            // first here. cutime and cstime cover the children waited for, eg. by a script.
+            long ticks = Long.parseLong(fields[11]) + Long.parseLong(fields[12])
+                    + Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+            mCpuTimeMs = ticks * 1000 / CLOCK_TICKS_PER_SECOND;
+
+            for (String line : Files.readLines(mStatusFile, Charsets.US_ASCII)) {
+                if (line.startsWith("VmHWM:")) {
+                    mPeakRssKb = Long.parseLong(
+                            line.substring("VmHWM:".length(), line.length() - "kB".length())
+                                    .trim());
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // the process has exited, keep the last values.
+        } catch (RuntimeException e) {
+            // unexpected format, keep the last values.
+        }
+    }
+
+    /** Returns the CPU time (user + system) used by the process in ms, or -1. */
+    public synchronized long getCpuTimeMs() {
+        return mCpuTimeMs;
+    }
+
+    /** Returns the peak resident set size of the process in KB, or -1. */
+    public synchronized long getPeakRssKb() {
+        return mPeakRssKb;
+    }
+
+    private static int getPid(@NonNull Process process) {
+        try {
+            // Java 9+
+            Method method = Process.class.getMethod("pid");
+            return ((Number) method.invoke(process)).intValue();
+        } catch (Exception e) {
+            // fall through.
+        }
+
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Formatter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records every invocation of an external tool during a build.
+ *
+ * Each {@link Invocation} records the wall time, the CPU time and peak memory of the child
+ * process (when available, see {@link ProcessStats}), the exit code, the volume of output and
+ * the variant and build step that triggered it.
+ *
+ * The invocations can be written as a JSON report with {@link #writeReport(File)} and
+ * summarized with {@link #getSummary(int)}.
+ */
+public class ToolTelemetry {
+
+    /**
+     * A single run of a tool.
+     */
+    public static final class Invocation {
+        final String mTool;
+        final String mCommand;
+        final String mVariant;
+        final String mStep;
+        long mStartTime = -1;
+        long mStartNanos;
+        long mWallTimeMs = -1;
+        long mCpuTimeMs = -1;
+        long mPeakRssKb = -1;
+        int mExitCode = -1;
+        long mOutputSize = 0;
+        boolean mCached = false;
+
+        Invocation(String tool, String command, String variant, String step) {
+            mTool = tool;
+            mCommand = command;
+            mVariant = variant;
+            mStep = step;
+        }
+
+        @NonNull
+        public String getTool() {
+            return mTool;
+        }
+
+        @NonNull
+        public String getCommand() {
+            return mCommand;
+        }
+
+        @Nullable
+        public String getVariant() {
+            return mVariant;
+        }
+
+        @Nullable
+        public String getStep() {
+            return mStep;
+        }
+
+        public long getWallTimeMs() {
+            return mWallTimeMs;
+        }
+
+        public long getCpuTimeMs() {
+            return mCpuTimeMs;
+        }
+
+        public long getPeakRssKb() {
+            return mPeakRssKb;
+        }
+
+        public int getExitCode() {
+            return mExitCode;
+        }
+
+        public long getOutputSize() {
+            return mOutputSize;
+        }
+
+        public boolean isCached() {
+            return mCached;
+        }
+    }
+
+    private final List<Invocation> mInvocations = Lists.newArrayList();
+    private final ThreadLocal<String[]> mContext = new ThreadLocal<String[]>();
+    /** Context of the threads that never set one, eg. pooled threads. */
+    private volatile String[] mDefaultContext = new String[2];
+
+    /**
+     * Sets the variant and the build step that the tools run by the current thread are
+     * attributed to.
+     */
+    public void setContext(@Nullable String variant, @Nullable String step) {
+        String[] context = new String[] { variant, step };
+        mContext.set(context);
+        mDefaultContext = context;
+    }
+
+    /**
+     * Creates an invocation in the context of the current thread. The invocation is only
+     * recorded once {@link #end(Invocation, int, long, ProcessStats)} or
+     * {@link #endCached(Invocation)} is called.
+     */
+    @NonNull
+    public Invocation newInvocation(@NonNull String tool, @NonNull List<String> command) {
+        String[] context = mContext.get();
+        if (context == null) {
+            context = mDefaultContext;
+        }
+
+        return new Invocation(tool, Joiner.on(' ').join(command), context[0], context[1]);
+    }
+
+    /** Marks the start of the process of an invocation. */
+    public void start(@NonNull Invocation invocation) {
+        invocation.mStartTime = System.currentTimeMillis();
+        invocation.mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Records an invocation whose process has exited.
+     * @param invocation the invocation.
+     * @param exitCode the exit code of the process, or -1 if it could not be started.
+     * @param outputSize the number of characters written by the process.
+     * @param stats the resource usage of the process, if known.
+     */
+    public void end(
+            @NonNull Invocation invocation,
+            int exitCode,
+            long outputSize,
+            @Nullable ProcessStats stats) {
+        if (invocation.mStartTime != -1) {
+            invocation.mWallTimeMs = (System.nanoTime() - invocation.mStartNanos) / 1000000;
+        }
+        invocation.mExitCode = exitCode;
+        invocation.mOutputSize = outputSize;
+        if (stats != null) {
+            invocation.mCpuTimeMs = stats.getCpuTimeMs();
+            invocation.mPeakRssKb = stats.getPeakRssKb();
+        }
+
+        record(invocation);
+    }
+
+    /** Records an invocation whose outputs came from a cache rather than from the tool. */
+    public void endCached(@NonNull Invocation invocation) {
+        invocation.mStartTime = System.currentTimeMillis();
+        invocation.mWallTimeMs = 0;
+        invocation.mExitCode = 0;
+        invocation.mCached = true;
+
+        record(invocation);
+    }
+
+    private synchronized void record(Invocation invocation) {
+        mInvocations.add(invocation);
+    }
+
+    /** Returns the recorded invocations, in the order in which they ended. */
+    @NonNull
+    public synchronized List<Invocation> getInvocations() {
+        return Lists.newArrayList(mInvocations);
+    }
+
+    /** Forgets all the recorded invocations. */
+    public synchronized void clear() {
+        mInvocations.clear();
+    }
+
+    /**
+     * Writes the recorded invocations and the per-tool totals as JSON.
+     */
+    public void writeReport(@NonNull File reportFile) throws IOException {
+        List<Invocation> invocations = getInvocations();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"invocations\": [");
+        for (int i = 0 ; i < invocations.size() ; i++) {
+            Invocation invocation = invocations.get(i);
+            sb.append(i == 0 ? "\n" : ",\n").append("    {");
+            appendField(sb, "tool", invocation.mTool, true);
+            appendField(sb, "variant", invocation.mVariant, false);
+            appendField(sb, "step", invocation.mStep, false);
+            appendField(sb, "command", invocation.mCommand, false);
+            appendField(sb, "startTime", invocation.mStartTime, false);
+            appendField(sb, "wallTimeMs", invocation.mWallTimeMs, false);
+            appendField(sb, "cpuTimeMs", invocation.mCpuTimeMs, false);
+            appendField(sb, "peakRssKb", invocation.mPeakRssKb, false);
+            appendField(sb, "exitCode", invocation.mExitCode, false);
+            appendField(sb, "outputSize", invocation.mOutputSize, false);
+            sb.append(", \"cached\": ").append(invocation.mCached).append('}');
+        }
+        sb.append("\n  ],\n  \"tools\": {");
+
+        boolean first = true;
+        for (ToolTotal total : getTotals(invocations)) {
+            sb.append(first ? "\n" : ",\n").append("    ");
+            appendString(sb, total.mTool);
+            sb.append(": {");
+            appendField(sb, "count", total.mCount, true);
+            appendField(sb, "cached", total.mCached, false);
+            appendField(sb, "failed", total.mFailed, false);
+            appendField(sb, "wallTimeMs", total.mWallTimeMs, false);
+            appendField(sb, "cpuTimeMs", total.mCpuTimeMs, false);
+            appendField(sb, "peakRssKb", total.mPeakRssKb, false);
+            sb.append('}');
+            first = false;
+        }
+        sb.append("\n  }\n}\n");
+
+        Files.createParentDirs(reportFile);
+        Files.write(sb, reportFile, Charsets.UTF_8);
+    }
+
+    /**
+     * Returns a short, human readable summary with the per-tool totals and the slowest
+     * invocations.
+     * @param maxOffenders the number of slowest invocations to list.
+     */
+    @NonNull
+    public String getSummary(int maxOffenders) {
+        List<Invocation> invocations = getInvocations();
+        if (invocations.isEmpty()) {
+            return "No external tools were run.\n";
+        }
+
+        Formatter formatter = new Formatter();
+        formatter.format("External tools:%n");
+        for (ToolTotal total : getTotals(invocations)) {
+            formatter.format(
+                    "  %1$-10s %2$4d runs (%3$d cached, %4$d failed) %5$8d ms wall %6$8s cpu%n",
+                    total.mTool, total.mCount, total.mCached, total.mFailed,
+                    total.mWallTimeMs, formatMs(total.mCpuTimeMs));
+        }
+
+        Collections.sort(invocations, new Comparator<Invocation>() {
+            @Override
+            public int compare(Invocation a, Invocation b) {
+                return a.mWallTimeMs < b.mWallTimeMs ? 1 : (a.mWallTimeMs > b.mWallTimeMs ? -1 : 0);
+            }
+        });
+
+        formatter.format("Slowest invocations:%n");
+        for (Invocation invocation : invocations.subList(
+                0, Math.min(maxOffenders, invocations.size()))) {
+            formatter.format("  %1$8d ms %2$-10s %3$s%4$s%n",
+                    invocation.mWallTimeMs, invocation.mTool,
+                    invocation.mStep != null ? invocation.mStep : "?",
+                    invocation.mPeakRssKb != -1
+                            ? String.format(" (peak %d MB)", invocation.mPeakRssKb / 1024)
+                            : "");
+        }
+
+        return formatter.toString();
+    }
+
+    private static String formatMs(long ms) {
+        return ms != -1 ? ms + " ms" : "?";
+    }
+
+    /**
+     * Per-tool totals. CPU time and peak memory are -1 if no invocation of the tool has them.
+     */
+    private static final class ToolTotal {
+        final String mTool;
+        int mCount = 0;
+        int mCached = 0;
+        int mFailed = 0;
+        long mWallTimeMs = 0;
+        long mCpuTimeMs = -1;
+        long mPeakRssKb = -1;
+
+        ToolTotal(String tool) {
+            mTool = tool;
+        }
+    }
+
+    /** Returns the per-tool totals, sorted by decreasing wall time. */
+    private static List<ToolTotal> getTotals(List<Invocation> invocations) {
+        Map<String, ToolTotal> totals = Maps.newHashMap();
+        for (Invocation invocation : invocations) {
+            ToolTotal total = totals.get(invocation.mTool);
+            if (total == null) {
+                total = new ToolTotal(invocation.mTool);
+                totals.put(invocation.mTool, total);
+            }
+
+            total.mCount++;
+            if (invocation.mCached) {
+                total.mCached++;
+            } else if (invocation.mExitCode != 0) {
+                total.mFailed++;
+            }
+            if (invocation.mWallTimeMs > 0) {
+                total.mWallTimeMs += invocation.mWallTimeMs;
+            }
+            if (invocation.mCpuTimeMs != -1) {
+                total.mCpuTimeMs = Math.max(total.mCpuTimeMs, 0) + invocation.mCpuTimeMs;
+            }
+            total.mPeakRssKb = Math.max(total.mPeakRssKb, invocation.mPeakRssKb);
+        }
+
+        List<ToolTotal> list = Lists.newArrayList(totals.values());
+        Collections.sort(list, new Comparator<ToolTotal>() {
+            @Override
+            public int compare(ToolTotal a, ToolTotal b) {
+                return a.mWallTimeMs < b.mWallTimeMs ? 1 : (a.mWallTimeMs > b.mWallTimeMs ? -1 : 0);
+            }
+        });
+        return list;
+    }
+
+    private static void appendField(StringBuilder sb, String name, long value, boolean first) {
+        if (!first) {
+            sb.append(", ");
+        }
+        appendString(sb, name);
+        sb.append(": ").append(value);
+    }
+
+    private static void appendField(StringBuilder sb, String name, String value, boolean first) {
+        if (!first) {
+            sb.append(", ");
+        }
+        appendString(sb, name);
+        sb.append(": ");
+        if (value == null) {
+            sb.append("null");
+        } else {
+            appendString(sb, value);
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0 ; i < value.length() ; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
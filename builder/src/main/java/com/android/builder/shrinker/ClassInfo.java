@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.shrinker;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What the {@link Shrinker} needs to know about a class file: its hierarchy, the classes and
+ * methods it references, and where its methods are so that some can be removed.
+ *
+ * Only the constant pool and the member tables are read, the code is not parsed. The references
+ * are those of the whole class, not of each method.
+ */
+final class ClassInfo {
+
+    private final static int MAGIC = 0xCAFEBABE;
+
+    private final static int CONSTANT_UTF8 = 1;
+    private final static int CONSTANT_INTEGER = 3;
+    private final static int CONSTANT_FLOAT = 4;
+    private final static int CONSTANT_LONG = 5;
+    private final static int CONSTANT_DOUBLE = 6;
+    private final static int CONSTANT_CLASS = 7;
+    private final static int CONSTANT_STRING = 8;
+    private final static int CONSTANT_FIELDREF = 9;
+    private final static int CONSTANT_METHODREF = 10;
+    private final static int CONSTANT_INTERFACE_METHODREF = 11;
+    private final static int CONSTANT_NAME_AND_TYPE = 12;
+    private final static int CONSTANT_METHOD_HANDLE = 15;
+    private final static int CONSTANT_METHOD_TYPE = 16;
+    private final static int CONSTANT_INVOKE_DYNAMIC = 18;
+
+    final static int ACC_NATIVE = 0x0100;
+
+    /** Class names in descriptors and signatures, like "Ljava/lang/String;". */
+    private final static Pattern DESCRIPTOR_CLASS = Pattern.compile("L([^;<>\\[()]+)[;<]");
+
+    /**
+     * A method of the class.
+     */
+    static final class MethodInfo {
+        final String mName;
+        final String mDescriptor;
+        final int mAccess;
+        /** The offsets of the method_info structure in the class file. */
+        final int mStart;
+        final int mEnd;
+
+        MethodInfo(@NonNull String name, @NonNull String descriptor, int access,
+                int start, int end) {
+            mName = name;
+            mDescriptor = descriptor;
+            mAccess = access;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @NonNull
+        String getKey() {
+            return mName + mDescriptor;
+        }
+    }
+
+    /** The internal name of the class, like "com/foo/Bar". */
+    final String mName;
+    @Nullable
+    final String mSuperName;
+    final List<String> mInterfaces;
+    /** The internal names of the classes referenced by the class. */
+    final Set<String> mReferencedClasses;
+    /** The name and descriptor of the methods called by the class. */
+    final Set<String> mReferencedMethods;
+    final List<MethodInfo> mMethods;
+    /** The offset of methods_count. */
+    final int mMethodsOffset;
+    /** The offset of the end of the method table. */
+    final int mMethodsEnd;
+
+    private ClassInfo(
+            @NonNull String name,
+            @Nullable String superName,
+            @NonNull List<String> interfaces,
+            @NonNull Set<String> referencedClasses,
+            @NonNull Set<String> referencedMethods,
+            @NonNull List<MethodInfo> methods,
+            int methodsOffset,
+            int methodsEnd) {
+        mName = name;
+        mSuperName = superName;
+        mInterfaces = ImmutableList.copyOf(interfaces);
+        mReferencedClasses = ImmutableSet.copyOf(referencedClasses);
+        mReferencedMethods = ImmutableSet.copyOf(referencedMethods);
+        mMethods = ImmutableList.copyOf(methods);
+        mMethodsOffset = methodsOffset;
+        mMethodsEnd = methodsEnd;
+    }
+
+    /**
+     * Parses a class file.
+     *
+     * @throws IOException if the class file is malformed.
+     */
+    @NonNull
+    static ClassInfo parse(@NonNull byte[] bytes) throws IOException {
+        try {
+            return parse(ByteBuffer.wrap(bytes));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated class file");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed class file");
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed class file");
+        } catch (ClassCastException e) {
+            throw new IOException("Malformed constant pool");
+        }
+    }
+
+    @NonNull
+    private static ClassInfo parse(@NonNull ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+        buffer.getShort(); // minor_version
+        buffer.getShort(); // major_version
+
+        // the constant pool, indexed from 1. The values are a String for the Utf8 entries and
+        // an int[] of the indices for the entries referencing other entries.
+        int count = buffer.getShort() & 0xFFFF;
+        int[] tags = new int[count];
+        Object[] values = new Object[count];
+        for (int i = 1; i < count; i++) {
+            int tag = buffer.get() & 0xFF;
+            tags[i] = tag;
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    values[i] = readUtf8(buffer);
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                    values[i] = new int[] { buffer.getShort() & 0xFFFF };
+                    break;
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    values[i] = new int[] { buffer.getShort() & 0xFFFF,
+                            buffer.getShort() & 0xFFFF };
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                    buffer.getInt();
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    buffer.getLong();
+                    // 8-byte constants take two entries.
+                    i++;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    buffer.get();
+                    buffer.getShort();
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        Set<String> referencedClasses = Sets.newHashSet();
+        Set<String> referencedMethods = Sets.newHashSet();
+        for (int i = 1; i < count; i++) {
+            switch (tags[i]) {
+                case CONSTANT_UTF8:
+                    // descriptors, signatures and annotation types.
+                    Matcher matcher = DESCRIPTOR_CLASS.matcher((String) values[i]);
+                    while (matcher.find()) {
+                        referencedClasses.add(matcher.group(1));
+                    }
+                    break;
+                case CONSTANT_CLASS:
+                    String className = utf8(values, ((int[]) values[i])[0]);
+                    // array classes are covered by the descriptor pattern.
+                    if (!className.startsWith("[")) {
+                        referencedClasses.add(className);
+                    }
+                    break;
+                case CONSTANT_STRING:
+                    // a class loaded by name, as in Class.forName("com.foo.Bar").
+                    referencedClasses.add(utf8(values, ((int[]) values[i])[0]).replace('.', '/'));
+                    break;
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                    int[] nameAndType = (int[]) values[((int[]) values[i])[1]];
+                    referencedMethods.add(
+                            utf8(values, nameAndType[0]) + utf8(values, nameAndType[1]));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        buffer.getShort(); // access_flags
+        String name = className(values, buffer.getShort() & 0xFFFF);
+        int superIndex = buffer.getShort() & 0xFFFF;
+        String superName = superIndex != 0 ? className(values, superIndex) : null;
+
+        int interfaceCount = buffer.getShort() & 0xFFFF;
+        List<String> interfaces = Lists.newArrayListWithCapacity(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            interfaces.add(className(values, buffer.getShort() & 0xFFFF));
+        }
+
+        int fieldCount = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < fieldCount; i++) {
+            buffer.position(buffer.position() + 6); // access_flags, name_index, descriptor_index
+            skipAttributes(buffer);
+        }
+
+        int methodsOffset = buffer.position();
+        int methodCount = buffer.getShort() & 0xFFFF;
+        List<MethodInfo> methods = Lists.newArrayListWithCapacity(methodCount);
+        for (int i = 0; i < methodCount; i++) {
+            int start = buffer.position();
+            int access = buffer.getShort() & 0xFFFF;
+            String methodName = utf8(values, buffer.getShort() & 0xFFFF);
+            String descriptor = utf8(values, buffer.getShort() & 0xFFFF);
+            skipAttributes(buffer);
+            methods.add(new MethodInfo(methodName, descriptor, access, start, buffer.position()));
+        }
+        int methodsEnd = buffer.position();
+
+        referencedClasses.remove(name);
+        return new ClassInfo(name, superName, interfaces, referencedClasses, referencedMethods,
+                methods, methodsOffset, methodsEnd);
+    }
+
+    /**
+     * Returns the class file without the given methods.
+     *
+     * @param bytes the class file this was parsed from.
+     * @param removed the methods to remove.
+     */
+    @NonNull
+    byte[] removeMethods(@NonNull byte[] bytes, @NonNull Set<MethodInfo> removed) {
+        if (removed.isEmpty()) {
+            return bytes;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length);
+        out.write(bytes, 0, mMethodsOffset);
+        int count = mMethods.size() - removed.size();
+        out.write(count >> 8);
+        out.write(count);
+        for (MethodInfo method : mMethods) {
+            if (!removed.contains(method)) {
+                out.write(bytes, method.mStart, method.mEnd - method.mStart);
+            }
+        }
+        out.write(bytes, mMethodsEnd, bytes.length - mMethodsEnd);
+
+        return out.toByteArray();
+    }
+
+    private static void skipAttributes(@NonNull ByteBuffer buffer) {
+        int count = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            buffer.getShort(); // attribute_name_index
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    @NonNull
+    private static String readUtf8(@NonNull ByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        int start = buffer.position();
+        buffer.position(start + length);
+
+        // the class files use the modified UTF-8 of DataInput, length included.
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(buffer.array(), start - 2, length + 2));
+        return in.readUTF();
+    }
+
+    @NonNull
+    private static String utf8(@NonNull Object[] values, int index) {
+        return (String) values[index];
+    }
+
+    @NonNull
+    private static String className(@NonNull Object[] values, int index) {
+        return utf8(values, ((int[]) values[index])[0]);
+    }
+}
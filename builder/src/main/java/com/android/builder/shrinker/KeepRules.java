@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.shrinker;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.xml.AndroidXPathFactory;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The classes kept by the {@link Shrinker}.
+ *
+ * The classes come from the components declared in the manifest and from the rules of proguard
+ * files, like the ones written by aapt for the classes used by the resources. Only the class
+ * part of the rules is understood, with its optional extends or implements clause:
+ * <ul>
+ * <li>-keep and -keepclasseswithmembers keep the matching classes and all their methods,</li>
+ * <li>-keepclassmembers keeps all the methods of the matching classes that are reachable,</li>
+ * <li>the rules allowing shrinking, like -keepnames, are ignored.</li>
+ * </ul>
+ * This keeps at least what proguard would.
+ */
+public class KeepRules {
+
+    /** The manifest attributes naming classes. */
+    private final static String[] MANIFEST_CLASS_ATTRIBUTES = new String[] {
+        "/manifest/application/@android:name",
+        "/manifest/application/@android:backupAgent",
+        "/manifest/application/*/@android:name",
+        "/manifest/application/activity-alias/@android:targetActivity",
+        "/manifest/instrumentation/@android:name",
+    };
+
+    /**
+     * A proguard class specification: the option, its modifiers, the class name and the
+     * optional super class or interface.
+     */
+    private final static Pattern KEEP_RULE = Pattern.compile(
+            "^\\s*-(keep\\w*)(\\S*)\\s+(?:(?:!?\\w+|@\\S+)\\s+)*?(?:class|interface|enum)\\s+"
+                    + "([^\\s{]+)(?:\\s+(?:extends|implements)\\s+([^\\s{]+))?");
+
+    /**
+     * A class specification.
+     */
+    private static final class Rule {
+        private final Pattern mName;
+        @Nullable
+        private final Pattern mSuperType;
+
+        Rule(@NonNull Pattern name, @Nullable Pattern superType) {
+            mName = name;
+            mSuperType = superType;
+        }
+
+        boolean matches(@NonNull String name, @NonNull Collection<String> superTypes) {
+            if (!mName.matcher(name).matches()) {
+                return false;
+            } else if (mSuperType == null) {
+                return true;
+            }
+
+            for (String superType : superTypes) {
+                if (mSuperType.matcher(superType).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Set<String> mClasses = Sets.newHashSet();
+    private final List<Rule> mClassRules = Lists.newArrayList();
+    private final List<Rule> mMemberRules = Lists.newArrayList();
+
+    /**
+     * Adds the classes declared in a manifest.
+     */
+    public void addManifest(@NonNull File manifest) throws IOException {
+        XPath xpath = AndroidXPathFactory.newXPath();
+
+        try {
+            List<String> packageNames = evaluate(xpath, "/manifest/@package", manifest);
+            String packageName = packageNames.isEmpty() ? "" : packageNames.get(0);
+            for (String expression : MANIFEST_CLASS_ATTRIBUTES) {
+                for (String name : evaluate(xpath, expression, manifest)) {
+                    addClass(getFullyQualifiedName(packageName, name));
+                }
+            }
+        } catch (XPathExpressionException e) {
+            throw new IOException("Failed to parse " + manifest, e);
+        }
+    }
+
+    /**
+     * Adds the keep rules of a proguard file.
+     */
+    public void addRules(@NonNull File rules) throws IOException {
+        for (String line : Files.readLines(rules, Charsets.UTF_8)) {
+            Matcher matcher = KEEP_RULE.matcher(line);
+            if (!matcher.find()) {
+                continue;
+            }
+
+            String option = matcher.group(1);
+            String modifiers = matcher.group(2);
+            List<Rule> target;
+            if (modifiers.contains("allowshrinking") || option.endsWith("names")) {
+                continue;
+            } else if (option.equals("keepclassmembers")) {
+                target = mMemberRules;
+            } else {
+                target = mClassRules;
+            }
+
+            Pattern superType = matcher.group(4) != null ? toPattern(matcher.group(4)) : null;
+            for (String name : matcher.group(3).split(",")) {
+                if (superType == null && !isPattern(name) && target == mClassRules) {
+                    mClasses.add(name.replace('.', '/'));
+                } else {
+                    target.add(new Rule(toPattern(name), superType));
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps a class, by its fully qualified name.
+     */
+    public void addClass(@NonNull String name) {
+        mClasses.add(name.replace('.', '/'));
+    }
+
+    /**
+     * Returns true if no class is kept, in which case there is nothing to shrink from.
+     */
+    public boolean isEmpty() {
+        return mClasses.isEmpty() && mClassRules.isEmpty();
+    }
+
+    /**
+     * Returns whether a class is kept, with all its methods.
+     *
+     * @param name the internal name of the class, like "com/foo/Bar".
+     * @param superTypes the internal names of all the super classes and interfaces of the class.
+     */
+    public boolean isKept(@NonNull String name, @NonNull Collection<String> superTypes) {
+        return mClasses.contains(name) || matches(mClassRules, name, superTypes);
+    }
+
+    /**
+     * Returns whether all the methods of a class are kept, if the class is kept.
+     *
+     * @param name the internal name of the class, like "com/foo/Bar".
+     * @param superTypes the internal names of all the super classes and interfaces of the class.
+     */
+    public boolean isMembersKept(@NonNull String name, @NonNull Collection<String> superTypes) {
+        return isKept(name, superTypes) || matches(mMemberRules, name, superTypes);
+    }
+
+    private static boolean matches(
+            @NonNull List<Rule> rules,
+            @NonNull String name,
+            @NonNull Collection<String> superTypes) {
+        for (Rule rule : rules) {
+            if (rule.matches(name, superTypes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isPattern(@NonNull String name) {
+        return name.indexOf('*') != -1 || name.indexOf('?') != -1 || name.startsWith("!");
+    }
+
+    /**
+     * Converts a proguard class name to a pattern of internal names. A single * matches any
+     * class, otherwise ** matches any part of the name and * does not match the package
+     * separator.
+     */
+    @NonNull
+    private static Pattern toPattern(@NonNull String name) {
+        // a negated name is not handled, match everything to stay on the safe side.
+        if (name.equals("*") || name.equals("**") || name.startsWith("!")) {
+            return Pattern.compile(".*");
+        }
+
+        StringBuilder regexp = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*') {
+                if (i + 1 < name.length() && name.charAt(i + 1) == '*') {
+                    regexp.append(".*");
+                    i++;
+                } else {
+                    regexp.append("[^/]*");
+                }
+            } else if (c == '?') {
+                regexp.append("[^/]");
+            } else if (c == '.') {
+                regexp.append('/');
+            } else {
+                regexp.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+
+        return Pattern.compile(regexp.toString());
+    }
+
+    @NonNull
+    private static String getFullyQualifiedName(@NonNull String packageName,
+                                                @NonNull String name) {
+        if (name.startsWith(".")) {
+            return packageName + name;
+        } else if (name.indexOf('.') == -1) {
+            return packageName + '.' + name;
+        }
+
+        return name;
+    }
+
+    @NonNull
+    private static List<String> evaluate(
+            @NonNull XPath xpath,
+            @NonNull String expression,
+            @NonNull File manifest) throws IOException, XPathExpressionException {
+        InputStream in = new FileInputStream(manifest);
+        try {
+            NodeList nodes = (NodeList) xpath.evaluate(expression, new InputSource(in),
+                    XPathConstants.NODESET);
+            List<String> values = Lists.newArrayListWithCapacity(nodes.getLength());
+            for (int i = 0; i < nodes.getLength(); i++) {
+                values.add(nodes.item(i).getNodeValue());
+            }
+            return values;
+        } finally {
+            in.close();
+        }
+    }
+}
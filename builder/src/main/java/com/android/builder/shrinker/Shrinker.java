@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.shrinker;
+
+import com.android.annotations.NonNull;
+import com.android.builder.cache.BuildStateCache;
+import com.android.builder.shrinker.ClassInfo.MethodInfo;
+import com.android.utils.ILogger;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Removes the classes and methods that cannot be reached from the {@link KeepRules} before the
+ * classes are dexed.
+ *
+ * A class is reachable if it is kept or referenced by a reachable class. A method of a reachable
+ * class is removed if no reachable class calls a method with the same name and descriptor, unless
+ * the method could be called by code outside of the inputs: the classes with a super class or
+ * interface that is not part of the inputs (other than java.lang.Object), like an Activity or a
+ * Serializable class, keep all their methods, as do the native methods, the constructors and
+ * the methods of Object. Fields are never removed.
+ *
+ * This is coarser than proguard, but it does not need the code of the methods to be parsed and
+ * it keeps what proguard would keep with the same rules.
+ */
+public class Shrinker {
+
+    private final static String CLASS_EXTENSION = ".class";
+    private final static String OBJECT = "java/lang/Object";
+    private final static Set<String> OBJECT_METHODS = ImmutableSet.of(
+            "equals(Ljava/lang/Object;)Z",
+            "hashCode()I",
+            "toString()Ljava/lang/String;",
+            "finalize()V",
+            "clone()Ljava/lang/Object;");
+
+    /** Fixed timestamp of the entries of the output jars, in ms. */
+    private final static long ENTRY_TIME = 0;
+
+    private final ILogger mLogger;
+
+    /**
+     * A class of one of the inputs.
+     */
+    private static final class ProgramClass {
+        final ClassInfo mInfo;
+        final int mInput;
+        /** The path of the class file in its input. */
+        final String mPath;
+
+        ProgramClass(@NonNull ClassInfo info, int input, @NonNull String path) {
+            mInfo = info;
+            mInput = input;
+            mPath = path;
+        }
+    }
+
+    public Shrinker(@NonNull ILogger logger) {
+        mLogger = logger;
+    }
+
+    /**
+     * Shrinks classes.
+     *
+     * @param inputs the class folders and jars to shrink.
+     * @param rules the classes to keep.
+     * @param outDir the folder to write the shrunk inputs to.
+     * @return the shrunk inputs, one jar per input that still has classes, to use in place of
+     *     the inputs.
+     */
+    @NonNull
+    public List<String> shrink(
+            @NonNull List<String> inputs,
+            @NonNull KeepRules rules,
+            @NonNull File outDir) throws IOException {
+        if (rules.isEmpty()) {
+            mLogger.warning("No class is kept by the manifest or the proguard rules, "
+                    + "the classes are not shrunk.");
+            return inputs;
+        }
+
+        Map<String, ProgramClass> classes = Maps.newHashMap();
+        for (int i = 0; i < inputs.size(); i++) {
+            File input = new File(inputs.get(i));
+            Map<String, ClassInfo> inputClasses;
+            if (input.isDirectory()) {
+                inputClasses = Maps.newHashMap();
+                loadFolder(input, "", inputClasses);
+            } else if (input.isFile()) {
+                inputClasses = loadJar(input);
+            } else {
+                continue;
+            }
+
+            for (Map.Entry<String, ClassInfo> entry : inputClasses.entrySet()) {
+                ClassInfo info = entry.getValue();
+                // the first definition wins, like in dx.
+                if (!classes.containsKey(info.mName)) {
+                    classes.put(info.mName, new ProgramClass(info, i, entry.getKey()));
+                }
+            }
+        }
+
+        Map<String, Set<String>> superTypes = Maps.newHashMap();
+        Deque<String> queue = new ArrayDeque<String>();
+        Set<String> reachable = Sets.newHashSet();
+        for (String name : classes.keySet()) {
+            if (rules.isKept(name, getSuperTypes(name, classes, superTypes))) {
+                reachable.add(name);
+                queue.add(name);
+            }
+        }
+
+        Set<String> calledMethods = Sets.newHashSet();
+        while (!queue.isEmpty()) {
+            ClassInfo info = classes.get(queue.removeFirst()).mInfo;
+            calledMethods.addAll(info.mReferencedMethods);
+
+            List<String> references = Lists.newArrayList(info.mReferencedClasses);
+            references.addAll(info.mInterfaces);
+            if (info.mSuperName != null) {
+                references.add(info.mSuperName);
+            }
+            for (String reference : references) {
+                if (classes.containsKey(reference) && reachable.add(reference)) {
+                    queue.add(reference);
+                }
+            }
+        }
+
+        // write the reachable classes of each input, in the order of their paths.
+        List<List<ProgramClass>> outputs = Lists.newArrayList();
+        for (int i = 0; i < inputs.size(); i++) {
+            outputs.add(Lists.<ProgramClass>newArrayList());
+        }
+        for (String name : reachable) {
+            ProgramClass programClass = classes.get(name);
+            outputs.get(programClass.mInput).add(programClass);
+        }
+
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Failed to create " + outDir);
+        }
+
+        List<String> shrunkInputs = Lists.newArrayList();
+        int removedMethods = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            List<ProgramClass> output = outputs.get(i);
+            if (output.isEmpty()) {
+                continue;
+            }
+
+            File input = new File(inputs.get(i));
+            String name = input.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            File jar = new File(outDir, i + "-" + name + ".jar");
+            removedMethods += writeJar(input, output, rules, classes, superTypes, calledMethods,
+                    jar);
+            shrunkInputs.add(jar.getAbsolutePath());
+        }
+
+        // remove the outputs of the inputs that are gone or have no class left.
+        File[] files = outDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!shrunkInputs.contains(file.getAbsolutePath())) {
+                    file.delete();
+                }
+            }
+        }
+
+        mLogger.info("Shrinker: kept %1$d of %2$d classes, removed %3$d methods",
+                reachable.size(), classes.size(), removedMethods);
+        return shrunkInputs;
+    }
+
+    /**
+     * Returns the names of all the super classes and interfaces of a class, as far as they are
+     * known.
+     */
+    @NonNull
+    private static Set<String> getSuperTypes(
+            @NonNull String name,
+            @NonNull Map<String, ProgramClass> classes,
+            @NonNull Map<String, Set<String>> cache) {
+        Set<String> superTypes = cache.get(name);
+        if (superTypes != null) {
+            return superTypes;
+        }
+
+        superTypes = Sets.newHashSet();
+        ProgramClass programClass = classes.get(name);
+        if (programClass != null) {
+            // guard against malformed cyclic hierarchies.
+            cache.put(name, Collections.<String>emptySet());
+
+            List<String> parents = Lists.newArrayList(programClass.mInfo.mInterfaces);
+            if (programClass.mInfo.mSuperName != null) {
+                parents.add(programClass.mInfo.mSuperName);
+            }
+            for (String parent : parents) {
+                superTypes.add(parent);
+                superTypes.addAll(getSuperTypes(parent, classes, cache));
+            }
+        }
+
+        cache.put(name, superTypes);
+        return superTypes;
+    }
+
+    /**
+     * Writes the shrunk classes of an input into a jar. The jar is left untouched if it already
+     * has the same content.
+     *
+     * @return the number of methods removed.
+     */
+    private static int writeJar(
+            @NonNull File input,
+            @NonNull List<ProgramClass> output,
+            @NonNull KeepRules rules,
+            @NonNull Map<String, ProgramClass> classes,
+            @NonNull Map<String, Set<String>> superTypes,
+            @NonNull Set<String> calledMethods,
+            @NonNull File jar) throws IOException {
+        Map<String, ProgramClass> sortedOutput = Maps.newTreeMap();
+        for (ProgramClass programClass : output) {
+            sortedOutput.put(programClass.mPath, programClass);
+        }
+
+        int removedMethods = 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        ZipFile zipFile = input.isFile() ? new ZipFile(input) : null;
+        try {
+            for (ProgramClass programClass : sortedOutput.values()) {
+                byte[] classBytes;
+                if (zipFile != null) {
+                    InputStream in = zipFile.getInputStream(zipFile.getEntry(programClass.mPath));
+                    try {
+                        classBytes = ByteStreams.toByteArray(in);
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    classBytes = Files.toByteArray(new File(input, programClass.mPath));
+                }
+
+                ClassInfo info = programClass.mInfo;
+                Set<String> classSuperTypes = getSuperTypes(info.mName, classes, superTypes);
+                Set<MethodInfo> removed = Sets.newHashSet();
+                if (!rules.isMembersKept(info.mName, classSuperTypes)
+                        && isInProgram(classSuperTypes, classes)) {
+                    for (MethodInfo method : info.mMethods) {
+                        if (!method.mName.startsWith("<")
+                                && (method.mAccess & ClassInfo.ACC_NATIVE) == 0
+                                && !OBJECT_METHODS.contains(method.getKey())
+                                && !calledMethods.contains(method.getKey())) {
+                            removed.add(method);
+                        }
+                    }
+                }
+                removedMethods += removed.size();
+
+                ZipEntry entry = new ZipEntry(programClass.mPath);
+                entry.setTime(ENTRY_TIME);
+                out.putNextEntry(entry);
+                out.write(info.removeMethods(classBytes, removed));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+            if (zipFile != null) {
+                zipFile.close();
+            }
+        }
+
+        // keep the previous jar, and its timestamp, so that the following steps are up to date.
+        byte[] content = bytes.toByteArray();
+        if (!jar.isFile() || !Arrays.equals(content, Files.toByteArray(jar))) {
+            Files.write(content, jar);
+        }
+
+        return removedMethods;
+    }
+
+    /**
+     * Returns whether all the super types of a class, other than Object, are part of the inputs.
+     */
+    private static boolean isInProgram(
+            @NonNull Set<String> superTypes,
+            @NonNull Map<String, ProgramClass> classes) {
+        for (String superType : superTypes) {
+            if (!superType.equals(OBJECT) && !classes.containsKey(superType)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void loadFolder(
+            @NonNull File folder,
+            @NonNull String prefix,
+            @NonNull Map<String, ClassInfo> classes) throws IOException {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String path = prefix + file.getName();
+            if (file.isDirectory()) {
+                loadFolder(file, path + "/", classes);
+            } else if (path.endsWith(CLASS_EXTENSION)) {
+                classes.put(path, parse(Files.toByteArray(file), file.getPath()));
+            }
+        }
+    }
+
+    /**
+     * Returns the classes of a jar, by path. They are kept in memory as long as the jar does
+     * not change.
+     */
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static Map<String, ClassInfo> loadJar(@NonNull File jar) throws IOException {
+        BuildStateCache cache = BuildStateCache.getDefault();
+        String key = "shrinker-classes:" + jar.getAbsolutePath();
+        List<File> stamps = Collections.singletonList(jar);
+
+        Map<String, ClassInfo> classes = cache.get(key, Map.class, stamps);
+        if (classes != null) {
+            return classes;
+        }
+
+        classes = Maps.newHashMap();
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (!entry.isDirectory() && path.endsWith(CLASS_EXTENSION)) {
+                    InputStream in = zipFile.getInputStream(entry);
+                    try {
+                        classes.put(path, parse(ByteStreams.toByteArray(in), jar + ":" + path));
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        classes = Collections.unmodifiableMap(classes);
+        cache.put(key, stamps, classes);
+        return classes;
+    }
+
+    @NonNull
+    private static ClassInfo parse(@NonNull byte[] bytes, @NonNull String location)
+            throws IOException {
+        try {
+            return ClassInfo.parse(bytes);
+        } catch (IOException e) {
+            throw new IOException(String.format("Failed to read %1$s: %2$s",
+                    location, e.getMessage()), e);
+        }
+    }
+}
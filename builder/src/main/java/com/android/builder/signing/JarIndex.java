@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.signing;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.builder.zip.ZipArchive;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * The entries of a jar written by {@link SignedJarBuilder}, with the source, the SHA1 digest
+ * of the content and the compression level of each entry.
+ *
+ * The index of the previous version of a jar lets {@link SignedJarBuilder} copy the entries whose
+ * source did not change from the previous jar, as long as they are still compressed with the same
+ * level, and reuse the digests of the entries copied from unchanged entries of other archives.
+ */
+public class JarIndex {
+
+    private final static String INDEX_VERSION = "2";
+
+    /** The level of the entries copied with the compression of another archive. */
+    static final int UNKNOWN_LEVEL = -1;
+
+    /**
+     * An entry of the jar.
+     */
+    static final class Record {
+        final String mSource;
+        /** The SHA1 digest of the content, null if it was not computed. */
+        final byte[] mDigest;
+        /** The compression level, {@link Deflater#NO_COMPRESSION} if the entry is stored. */
+        final int mLevel;
+
+        Record(@NonNull String source, @Nullable byte[] digest, int level) {
+            mSource = source;
+            mDigest = digest;
+            mLevel = level;
+        }
+    }
+
+    private final Map<String, Record> mRecords = Maps.newTreeMap();
+
+    /**
+     * Returns the source of an entry written from a file. It changes when the file is modified.
+     */
+    @NonNull
+    static String getFileSource(@NonNull File file) {
+        return "file:" + file.length() + ':' + file.lastModified() + ':' + file.getAbsolutePath();
+    }
+
+    /**
+     * Returns the source of an entry copied from another archive. It changes when the entry
+     * of the other archive is modified.
+     */
+    @NonNull
+    static String getArchiveSource(@NonNull ZipArchive archive, @NonNull ZipArchive.Entry entry) {
+        return "zip:" + entry.getMethod() + ':' + entry.getCrc() + ':'
+                + entry.getCompressedSize() + ':' + entry.getSize() + ':'
+                + archive.getFile().getAbsolutePath();
+    }
+
+    @Nullable
+    Record get(@NonNull String name) {
+        return mRecords.get(name);
+    }
+
+    void put(@NonNull String name, @NonNull String source, @Nullable byte[] digest, int level) {
+        mRecords.put(name, new Record(source, digest, level));
+    }
+
+    /**
+     * Loads an index. The index is empty if the file is missing or unreadable.
+     */
+    @NonNull
+    public static JarIndex load(@NonNull File file) throws IOException {
+        JarIndex index = new JarIndex();
+        if (!file.isFile()) {
+            return index;
+        }
+
+        List<String> lines = Files.readLines(file, Charsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(INDEX_VERSION)) {
+            return index;
+        }
+
+        Splitter splitter = Splitter.on('\t').limit(4);
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> values = Lists.newArrayList(splitter.split(line));
+            if (values.size() != 4) {
+                return new JarIndex();
+            }
+
+            byte[] digest = fromHex(values.get(0));
+            if (digest == null && !values.get(0).isEmpty()) {
+                return new JarIndex();
+            }
+
+            int level;
+            try {
+                level = Integer.parseInt(values.get(1));
+            } catch (NumberFormatException e) {
+                return new JarIndex();
+            }
+            index.put(values.get(3), values.get(2), digest, level);
+        }
+
+        return index;
+    }
+
+    /**
+     * Saves the index.
+     */
+    public void save(@NonNull File file) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(INDEX_VERSION).append('\n');
+        for (Map.Entry<String, Record> entry : mRecords.entrySet()) {
+            String name = entry.getKey();
+            Record record = entry.getValue();
+            if (hasSeparator(name) || hasSeparator(record.mSource)) {
+                // not worth escaping, the entry is just written again next time.
+                continue;
+            }
+
+            if (record.mDigest != null) {
+                for (byte b : record.mDigest) {
+                    sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    sb.append(Character.forDigit(b & 0xF, 16));
+                }
+            }
+            sb.append('\t').append(record.mLevel);
+            sb.append('\t').append(record.mSource).append('\t').append(name).append('\n');
+        }
+
+        Files.write(sb.toString(), file, Charsets.UTF_8);
+    }
+
+    private static boolean hasSeparator(@NonNull String value) {
+        return value.indexOf('\t') != -1 || value.indexOf('\n') != -1
+                || value.indexOf('\r') != -1;
+    }
+
+    @Nullable
+    private static byte[] fromHex(@NonNull String hex) {
+        if (hex.isEmpty() || hex.length() % 2 != 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high == -1 || low == -1) {
+                return null;
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -18,10 +18,13 @@ package com.android.builder.signing;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.builder.cache.BuildStateCache;
 import com.android.sdklib.util.GrabProcessOutput;
 import com.android.sdklib.util.GrabProcessOutput.IProcessOutput;
 import com.android.sdklib.util.GrabProcessOutput.Wait;
 import com.android.utils.ILogger;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,6 +33,8 @@ import java.security.KeyStore;
 import java.security.KeyStore.PrivateKeyEntry;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A Helper to create new keystore/key.
@@ -169,6 +174,37 @@ public final class KeystoreHelper {
             @NonNull String keyAlias,
             @NonNull String keyPassword) throws KeytoolException, FileNotFoundException {
 
+        // keep the key in memory for the next builds of this JVM. The passwords are part
+        // of the key, hashed.
+        BuildStateCache cache = BuildStateCache.getDefault();
+        String key = "signing:" + Hashing.sha1().newHasher()
+                .putString(keyStoreLocation, Charsets.UTF_8).putByte((byte) 0)
+                .putString(keyStorePassword, Charsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(keyStoreType), Charsets.UTF_8).putByte((byte) 0)
+                .putString(keyAlias, Charsets.UTF_8).putByte((byte) 0)
+                .putString(keyPassword, Charsets.UTF_8)
+                .hash().toString();
+        List<File> stamps = Collections.singletonList(new File(keyStoreLocation));
+
+        SigningInfo signingInfo = cache.get(key, SigningInfo.class, stamps);
+        if (signingInfo == null) {
+            signingInfo = loadSigningInfo(keyStoreLocation, keyStorePassword, keyStoreType,
+                    keyAlias, keyPassword);
+            if (signingInfo != null) {
+                cache.put(key, stamps, signingInfo);
+            }
+        }
+
+        return signingInfo;
+    }
+
+    private static SigningInfo loadSigningInfo(
+            String keyStoreLocation,
+            String keyStorePassword,
+            String keyStoreType,
+            String keyAlias,
+            String keyPassword) throws KeytoolException, FileNotFoundException {
+
         try {
             KeyStore keyStore = KeyStore.getInstance(
                     keyStoreType != null ? keyStoreType : KeyStore.getDefaultType());
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.signing;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes the manifest and the signature file of a signed jar.
+ *
+ * The section of each entry is serialized as soon as the entry is added, and its digest,
+ * needed by the signature file, is computed in the same pass. The digest of the whole manifest
+ * is updated on the way too. Only the names of the entries, the binary digests of their content
+ * and the binary digests of their sections are kept, and the manifest is serialized again, to
+ * the same bytes, when it is written.
+ *
+ * The lines are written as {@link java.util.jar.Manifest} does: no longer than 72 bytes,
+ * continued on the next line after a space.
+ */
+final class ManifestWriter {
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] CONTINUATION = { '\r', '\n', ' ' };
+    private static final int MAX_LINE_LENGTH = 72;
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final String mDigestAttribute;
+    private final String mManifestDigestAttribute;
+    private final MessageDigest mManifestDigest;
+    private final MessageDigest mSectionDigest;
+
+    private final ByteArrayOutputStream mSection = new ByteArrayOutputStream();
+    private final List<String> mNames = Lists.newArrayList();
+    /** The digests of the content of the entries, one after the other. */
+    private final ByteArrayOutputStream mEntryDigests = new ByteArrayOutputStream();
+    /** The digests of the sections of the entries, one after the other. */
+    private final ByteArrayOutputStream mSectionDigests = new ByteArrayOutputStream();
+    private byte[] mManifestDigestValue;
+
+    /**
+     * Creates a writer and writes the main section of the manifest.
+     * @param digestAlgorithm the digest algorithm, like "SHA1". The digest attributes are
+     * named after it.
+     * @throws NoSuchAlgorithmException
+     */
+    ManifestWriter(String digestAlgorithm) throws NoSuchAlgorithmException {
+        mDigestAttribute = digestAlgorithm + "-Digest";
+        mManifestDigestAttribute = digestAlgorithm + "-Digest-Manifest";
+        mManifestDigest = MessageDigest.getInstance(digestAlgorithm);
+        mSectionDigest = MessageDigest.getInstance(digestAlgorithm);
+
+        writeMainSection(mSection);
+        mManifestDigest.update(mSection.toByteArray());
+        mSection.reset();
+    }
+
+    /**
+     * Adds the section of an entry to the manifest.
+     * @param name the name of the entry. Each entry must be added once.
+     * @param digest the digest of the content of the entry.
+     */
+    void addEntry(String name, byte[] digest) {
+        checkState(mManifestDigestValue == null, "The manifest is complete.");
+        checkArgument(digest.length == mSectionDigest.getDigestLength(),
+                "digest must be a %s digest.", mSectionDigest.getAlgorithm());
+
+        writeEntrySection(mSection, name, digest);
+        byte[] section = mSection.toByteArray();
+        mSection.reset();
+        mManifestDigest.update(section);
+
+        mNames.add(name);
+        mEntryDigests.write(digest, 0, digest.length);
+        byte[] sectionDigest = mSectionDigest.digest(section);
+        mSectionDigests.write(sectionDigest, 0, sectionDigest.length);
+    }
+
+    /**
+     * Writes the manifest. No entry can be added after this call.
+     */
+    void writeManifest(OutputStream out) throws IOException {
+        completeManifest();
+
+        writeMainSection(mSection);
+        flushSection(out);
+
+        byte[] digests = mEntryDigests.toByteArray();
+        int digestLength = mSectionDigest.getDigestLength();
+        byte[] digest = new byte[digestLength];
+        for (int i = 0; i < mNames.size(); i++) {
+            System.arraycopy(digests, i * digestLength, digest, 0, digestLength);
+            writeEntrySection(mSection, mNames.get(i), digest);
+            flushSection(out);
+        }
+    }
+
+    /**
+     * Writes the signature file, with the digest of the manifest and of each of its sections.
+     * No entry can be added after this call.
+     */
+    void writeSignatureFile(OutputStream out) throws IOException {
+        completeManifest();
+
+        writeAttribute(mSection, "Signature-Version", "1.0");
+        writeAttribute(mSection, "Created-By", "1.0 (Android)");
+        writeAttribute(mSection, mManifestDigestAttribute, encode(mManifestDigestValue));
+        mSection.write(CRLF, 0, CRLF.length);
+        flushSection(out);
+
+        byte[] digests = mSectionDigests.toByteArray();
+        int digestLength = mSectionDigest.getDigestLength();
+        byte[] digest = new byte[digestLength];
+        for (int i = 0; i < mNames.size(); i++) {
+            System.arraycopy(digests, i * digestLength, digest, 0, digestLength);
+            writeAttribute(mSection, "Name", mNames.get(i));
+            writeAttribute(mSection, mDigestAttribute, encode(digest));
+            mSection.write(CRLF, 0, CRLF.length);
+            flushSection(out);
+        }
+    }
+
+    /** Computes the digest of the manifest, which cannot change anymore. */
+    private void completeManifest() {
+        if (mManifestDigestValue == null) {
+            mManifestDigestValue = mManifestDigest.digest();
+        }
+    }
+
+    private void flushSection(OutputStream out) throws IOException {
+        mSection.writeTo(out);
+        mSection.reset();
+    }
+
+    private static void writeMainSection(ByteArrayOutputStream out) {
+        writeAttribute(out, "Manifest-Version", "1.0");
+        writeAttribute(out, "Created-By", "1.0 (Android)");
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    private void writeEntrySection(ByteArrayOutputStream out, String name, byte[] digest) {
+        writeAttribute(out, "Name", name);
+        writeAttribute(out, mDigestAttribute, encode(digest));
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Writes an attribute, split in lines of at most 72 bytes. A multi-byte character is
+     * never split.
+     */
+    private static void writeAttribute(ByteArrayOutputStream out, String name, String value) {
+        byte[] line = (name + ": " + value).getBytes(Charsets.UTF_8);
+        int start = 0;
+        // the continuation lines start with a space.
+        int maxLength = MAX_LINE_LENGTH;
+        while (line.length - start > maxLength) {
+            int end = start + maxLength;
+            while ((line[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            out.write(line, start, end - start);
+            out.write(CONTINUATION, 0, CONTINUATION.length);
+            start = end;
+            maxLength = MAX_LINE_LENGTH - 1;
+        }
+        out.write(line, start, line.length - start);
+        out.write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * Encodes bytes in base64, without line breaks.
+     */
+    static String encode(byte[] data) {
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b0 = data[i] & 0xFF;
+            int b1 = i + 1 < data.length ? data[i + 1] & 0xFF : 0;
+            int b2 = i + 2 < data.length ? data[i + 2] & 0xFF : 0;
+            sb.append(BASE64[b0 >> 2]);
+            sb.append(BASE64[(b0 << 4 | b1 >> 4) & 0x3F]);
+            sb.append(i + 1 < data.length ? BASE64[(b1 << 2 | b2 >> 6) & 0x3F] : '=');
+            sb.append(i + 2 < data.length ? BASE64[b2 & 0x3F] : '=');
+        }
+        return sb.toString();
+    }
+}
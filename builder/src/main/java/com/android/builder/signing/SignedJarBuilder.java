@@ -17,8 +17,12 @@
 package com.android.builder.signing;
 
 import com.android.builder.signing.SignedJarBuilder.IZipEntryFilter.ZipAbortException;
+import com.android.builder.zip.CompressedEntryCache;
+import com.android.builder.zip.CompressionPolicy;
+import com.android.builder.zip.ZipArchive;
+import com.android.builder.zip.ZipWriter;
+import com.google.common.io.ByteStreams;
 
-import sun.misc.BASE64Encoder;
 import sun.security.pkcs.ContentInfo;
 import sun.security.pkcs.PKCS7;
 import sun.security.pkcs.SignerInfo;
@@ -26,14 +30,16 @@ import sun.security.x509.AlgorithmId;
 import sun.security.x509.X500Name;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
-import java.security.DigestOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -41,22 +47,46 @@ import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 /**
  * A Jar file builder with signature support.
+ *
+ * <p/>Entries copied from another archive with {@link #writeZip(File, IZipEntryFilter)} keep
+ * their compressed data, which is copied as is instead of being inflated and deflated again.
+ *
+ * <p/>With {@link #setParallelCompression(int, long)}, the entries are compressed and digested
+ * on a pool of threads while the calling thread writes the finished entries, in the order they
+ * were added.
+ *
+ * <p/>With {@link #setPreviousJar(File, JarIndex)}, the entries whose source did not change since
+ * the previous version of the archive are copied from it instead of being compressed again.
+ *
+ * <p/>When the archive is signed, the section of each entry in the manifest is written, and
+ * digested for the signature file, as soon as the entry is written.
  */
 public class SignedJarBuilder {
     private static final String DIGEST_ALGORITHM = "SHA1";
-    private static final String DIGEST_ATTR = "SHA1-Digest";
-    private static final String DIGEST_MANIFEST_ATTR = "SHA1-Digest-Manifest";
+    private static final int COMPRESSION_LEVEL = 9;
 
     /** Write to another stream and also feed it to the Signature object. */
     private static class SignatureOutputStream extends FilterOutputStream {
@@ -86,7 +116,8 @@ public class SignedJarBuilder {
             } catch (SignatureException e) {
                 throw new IOException("SignatureException: " + e);
             }
-            super.write(b, off, len);
+            // not super.write, which would write, and sign, each byte again through write(int).
+            out.write(b, off, len);
             mCount += len;
         }
 
@@ -95,15 +126,57 @@ public class SignedJarBuilder {
         }
     }
 
-    private JarOutputStream mOutputJar;
+    private ZipWriter mOutputJar;
     private PrivateKey mKey;
     private X509Certificate mCertificate;
-    private Manifest mManifest;
-    private BASE64Encoder mBase64Encoder;
-    private MessageDigest mMessageDigest;
+    private ManifestWriter mManifest;
 
     private byte[] mBuffer = new byte[4096];
 
+    /** An entry ready to be written, with the digest of its content. */
+    private static final class ReadyEntry {
+        final String mName;
+        /** The compressed content of a new entry. */
+        ZipWriter.PreparedEntry mEntry;
+        /** The entry to copy raw, if this is not a new entry. */
+        ZipArchive mArchive;
+        ZipArchive.Entry mArchiveEntry;
+        byte[] mDigest;
+        /** The source of the entry for the {@link JarIndex}, null if it is not indexed. */
+        String mSource;
+        /** The compression level of the entry, {@link JarIndex#UNKNOWN_LEVEL} if it is copied. */
+        int mLevel = JarIndex.UNKNOWN_LEVEL;
+
+        ReadyEntry(String name) {
+            mName = name;
+        }
+    }
+
+    /** An entry being prepared, in the queue of entries to write. */
+    private static final class PendingEntry {
+        final Future<ReadyEntry> mFuture;
+        final long mSize;
+
+        PendingEntry(Future<ReadyEntry> future, long size) {
+            mFuture = future;
+            mSize = size;
+        }
+    }
+
+    private final ArrayDeque<PendingEntry> mPendingEntries = new ArrayDeque<PendingEntry>();
+    private final Queue<Deflater> mDeflaters = new ConcurrentLinkedQueue<Deflater>();
+    private ExecutorService mExecutor;
+    private CompressionPolicy mCompressionPolicy;
+    private CompressedEntryCache mEntryCache;
+    private long mMaxBytesInFlight = 0;
+    private long mBytesInFlight = 0;
+
+    private final JarIndex mIndex = new JarIndex();
+    private JarIndex mPreviousIndex = new JarIndex();
+    private ZipArchive mPreviousJar;
+    private final Map<String, ZipArchive.Entry> mPreviousEntries =
+            new HashMap<String, ZipArchive.Entry>();
+
     /**
      * Classes which implement this interface provides a method to check whether a file should
      * be added to a Jar file.
@@ -158,22 +231,119 @@ public class SignedJarBuilder {
      */
     public SignedJarBuilder(OutputStream out, PrivateKey key, X509Certificate certificate)
             throws IOException, NoSuchAlgorithmException {
-        mOutputJar = new JarOutputStream(out);
-        mOutputJar.setLevel(9);
+        mOutputJar = new ZipWriter(out, COMPRESSION_LEVEL);
         mKey = key;
         mCertificate = certificate;
 
         if (mKey != null && mCertificate != null) {
-            mManifest = new Manifest();
-            Attributes main = mManifest.getMainAttributes();
-            main.putValue("Manifest-Version", "1.0");
-            main.putValue("Created-By", "1.0 (Android)");
+            mManifest = new ManifestWriter(DIGEST_ALGORITHM);
+        }
+    }
+
+    /**
+     * Aligns the data of the stored entries added after this call, like the zipalign tool.
+     * @param alignment the alignment in bytes, or 0 to not align the entries.
+     */
+    public void setAlignment(int alignment) {
+        mOutputJar.setAlignment(alignment);
+    }
+
+    /**
+     * Aligns the data of the stored shared libraries added after this call, typically on
+     * memory pages so that they can be loaded from the archive without being extracted.
+     * @param alignment the alignment in bytes, or 0 to use the alignment of the other entries.
+     */
+    public void setSharedLibraryAlignment(int alignment) {
+        mOutputJar.setSharedLibraryAlignment(alignment);
+    }
 
-            mBase64Encoder = new BASE64Encoder();
-            mMessageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    /**
+     * Sets how the new entries are compressed. By default, all of them are compressed with the
+     * best compression.
+     * <p/>The entries copied from other archives keep their compression, except the ones that
+     * the policy always stores, which are inflated if needed.
+     * @param compressionPolicy the policy, or <code>null</code> for the default compression.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        mCompressionPolicy = compressionPolicy;
+    }
+
+    /**
+     * Sets a cache of compressed entries, shared with other builders. The new entries whose
+     * content is in the cache are not compressed again, and the ones that are compressed are
+     * added to it.
+     * @param entryCache the cache, or <code>null</code> to not use one.
+     */
+    public void setCompressedEntryCache(CompressedEntryCache entryCache) {
+        mEntryCache = entryCache;
+    }
+
+    /**
+     * Compresses and digests the entries on a pool of threads instead of the calling thread.
+     * <p/>The entries are still written by the calling thread, in the order in which they were
+     * added, so the archive is the same as without the pool.
+     * <p/>This must be called before any entry is added.
+     * @param threadCount the number of threads compressing the entries. 1 disables the pool.
+     * @param maxBytesInFlight the maximum size of the content of the entries being compressed
+     * or waiting to be written. Adding an entry blocks until enough entries are written.
+     */
+    public void setParallelCompression(int threadCount, long maxBytesInFlight) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be positive.");
+        }
+        if (mExecutor != null || !mPendingEntries.isEmpty()) {
+            throw new IllegalStateException("Parallel compression must be set up first.");
+        }
+
+        mMaxBytesInFlight = maxBytesInFlight;
+        if (threadCount > 1) {
+            final AtomicInteger count = new AtomicInteger();
+            mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "apk-compressor-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
     }
 
+    /**
+     * Reuses the entries of a previous version of the archive.
+     * <p/>The files that did not change are copied from the previous archive instead of being
+     * compressed again, and the digests of the unchanged entries copied from other archives
+     * are not computed again.
+     * <p/>This must be called before any entry is added.
+     * @param previousJar the previous archive, or <code>null</code> if there is none. It is read
+     * until the builder is closed, and must not be the output of the builder.
+     * @param previousIndex the index of the previous archive, as returned by {@link #getIndex()}.
+     * @throws IOException
+     */
+    public void setPreviousJar(File previousJar, JarIndex previousIndex) throws IOException {
+        if (mPreviousJar != null || !mPendingEntries.isEmpty()) {
+            throw new IllegalStateException("The previous jar must be set up first.");
+        }
+
+        if (previousJar != null) {
+            mPreviousJar = new ZipArchive(previousJar);
+            for (ZipArchive.Entry entry : mPreviousJar.getEntries()) {
+                mPreviousEntries.put(entry.getName(), entry);
+            }
+        }
+        mPreviousIndex = previousIndex;
+    }
+
+    /**
+     * Returns the index of the entries written so far. It is complete once the builder is
+     * closed, and can then be saved to be given to the builder of the next version of the
+     * archive.
+     */
+    public JarIndex getIndex() {
+        return mIndex;
+    }
+
     /**
      * Writes a new {@link File} into the archive.
      * @param inputFile the {@link File} to write.
@@ -181,19 +351,17 @@ public class SignedJarBuilder {
      * @throws IOException
      */
     public void writeFile(File inputFile, String jarPath) throws IOException {
-        // Get an input stream on the file.
-        FileInputStream fis = new FileInputStream(inputFile);
-        try {
-
-            // create the zip entry
-            JarEntry entry = new JarEntry(jarPath);
-            entry.setTime(inputFile.lastModified());
-
-            writeEntry(fis, entry);
-        } finally {
-            // close the file stream used to read the file
-            fis.close();
+        String source = JarIndex.getFileSource(inputFile);
+        if (copyPreviousEntry(jarPath, source, true /*compress*/)) {
+            // the file did not change.
+            return;
         }
+
+        ZipArchive.Entry previousEntry = mPreviousEntries.get(jarPath);
+        JarIndex.Record previous = previousEntry != null ? mPreviousIndex.get(jarPath) : null;
+        writeEntry(readFile(inputFile), jarPath, inputFile.lastModified(), true /*compress*/,
+                source,
+                previous != null ? previousEntry : null, previous);
     }
 
     /**
@@ -226,17 +394,9 @@ public class SignedJarBuilder {
                     continue;
                 }
 
-                JarEntry newEntry;
-
                 // Preserve the STORED method of the input entry.
-                if (entry.getMethod() == JarEntry.STORED) {
-                    newEntry = new JarEntry(entry);
-                } else {
-                    // Create a new entry so that the compressed len is recomputed.
-                    newEntry = new JarEntry(name);
-                }
-
-                writeEntry(zis, newEntry);
+                writeEntry(readStream(zis), name, entry.getTime(), entry.getMethod() != ZipEntry.STORED,
+                        null /*source*/, null /*previousEntry*/, null /*previous*/);
 
                 zis.closeEntry();
             }
@@ -245,30 +405,86 @@ public class SignedJarBuilder {
         }
     }
 
+    /**
+     * Copies the content of a Jar/Zip archive into the receiver archive, without recompressing
+     * its entries.
+     * <p/>The compressed data, CRC and sizes of the entries are copied as is. The entries are
+     * only inflated when the archive is signed, to compute their digest, and their CRC is then
+     * checked as well.
+     * <p/>An optional {@link IZipEntryFilter} allows to selectively choose which files
+     * to copy over.
+     * @param input the Jar/Zip file to copy.
+     * @param filter the filter or <code>null</code>
+     * @throws IOException
+     * @throws ZipAbortException if the {@link IZipEntryFilter} filter indicated that the write
+     *                           must be aborted.
+     */
+    public void writeZip(File input, IZipEntryFilter filter)
+            throws IOException, ZipAbortException {
+        ZipArchive archive = new ZipArchive(input);
+
+        try {
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                String name = entry.getName();
+
+                // do not take directories or anything inside a potential META-INF folder.
+                if (entry.isDirectory() || name.startsWith("META-INF/")) {
+                    continue;
+                }
+
+                // if we have a filter, we check the entry against it
+                if (filter != null && filter.checkEntry(name) == false) {
+                    continue;
+                }
+
+                copyEntry(archive, entry);
+            }
+
+            // the entries are copied from the archive, so it must stay open until they
+            // are written.
+            writePendingEntries(-1);
+        } finally {
+            archive.close();
+        }
+    }
+
     /**
      * Closes the Jar archive by creating the manifest, and signing the archive.
      * @throws IOException
      * @throws GeneralSecurityException
      */
     public void close() throws IOException, GeneralSecurityException {
+        writePendingEntries(-1);
+
+        if (mPreviousJar != null) {
+            mPreviousJar.close();
+            mPreviousJar = null;
+        }
+
         if (mManifest != null) {
+            long time = System.currentTimeMillis();
+
             // write the manifest to the jar file
-            mOutputJar.putNextEntry(new JarEntry(JarFile.MANIFEST_NAME));
-            mManifest.write(mOutputJar);
+            ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+            mManifest.writeManifest(manifest);
+            writeMetaEntry(JarFile.MANIFEST_NAME, time, manifest);
 
             // CERT.SF
             Signature signature = Signature.getInstance("SHA1with" + mKey.getAlgorithm());
             signature.initSign(mKey);
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT.SF"));
-            writeSignatureFile(new SignatureOutputStream(mOutputJar, signature));
+            ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+            writeSignatureFile(new SignatureOutputStream(signatureFile, signature));
+            writeMetaEntry("META-INF/CERT.SF", time, signatureFile);
 
             // CERT.*
-            mOutputJar.putNextEntry(new JarEntry("META-INF/CERT." + mKey.getAlgorithm()));
-            writeSignatureBlock(signature, mCertificate, mKey);
+            ByteArrayOutputStream signatureBlock = new ByteArrayOutputStream();
+            writeSignatureBlock(signatureBlock, signature, mCertificate, mKey);
+            writeMetaEntry("META-INF/CERT." + mKey.getAlgorithm(), time, signatureBlock);
         }
 
         mOutputJar.close();
         mOutputJar = null;
+        shutdown();
     }
 
     /**
@@ -277,84 +493,436 @@ public class SignedJarBuilder {
      */
     public void cleanUp() {
         if (mOutputJar != null) {
+            for (PendingEntry pending : mPendingEntries) {
+                pending.mFuture.cancel(true);
+            }
+            mPendingEntries.clear();
+
             try {
                 mOutputJar.close();
             } catch (IOException e) {
                 // pass
             }
         }
+        shutdown();
     }
 
     /**
-     * Adds an entry to the output jar, and write its content from the {@link InputStream}
-     * @param input The input stream from where to write the entry content.
-     * @param entry the entry to write in the jar.
+     * Adds an entry to the output jar.
+     * @param data the content of the entry.
+     * @param name the name of the entry to write in the jar.
+     * @param time the modification time of the entry.
+     * @param compress whether the entry can be deflated, depending on the compression policy,
+     * or must be stored.
+     * @param source the source of the entry for the index, or null to not index it.
+     * @param previousEntry the entry of the previous archive with the same name and source
+     * path, copied instead if the content and the compression level did not change, or null.
+     * @param previous the record of <var>previousEntry</var> in the index of the previous archive.
      * @throws IOException
      */
-    private void writeEntry(InputStream input, JarEntry entry) throws IOException {
-        // add the entry to the jar archive
-        mOutputJar.putNextEntry(entry);
+    private void writeEntry(final byte[] data, final String name, final long time,
+            final boolean compress, final String source,
+            final ZipArchive.Entry previousEntry, final JarIndex.Record previous)
+            throws IOException {
+        submit(data.length, true /*async*/, new Callable<ReadyEntry>() {
+            @Override
+            public ReadyEntry call() throws Exception {
+                ReadyEntry ready = new ReadyEntry(name);
+                ready.mSource = source;
+
+                // the indexed entries always have their digest, to detect unchanged content,
+                // and so do the cached ones, to find their compressed content.
+                if (mManifest != null || source != null || mEntryCache != null) {
+                    MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+                    digest.update(data);
+                    ready.mDigest = digest.digest();
+                }
+
+                ready.mLevel = getLevel(name, compress, data);
 
-        // read the content of the entry from the input stream, and write it into the archive.
+                // the previous archive may have been written with another compression policy.
+                if (previousEntry != null && Arrays.equals(ready.mDigest, previous.mDigest)
+                        && ready.mLevel == previous.mLevel) {
+                    // only the timestamp changed, the entry does not need to be compressed.
+                    ready.mArchive = mPreviousJar;
+                    ready.mArchiveEntry = previousEntry;
+                    return ready;
+                }
+
+                ready.mEntry = prepareEntry(data, name, time, ready.mLevel, ready.mDigest);
+                return ready;
+            }
+        });
+    }
+
+    /**
+     * Returns the compression level of a new entry, {@link Deflater#NO_COMPRESSION} if it is
+     * stored.
+     * @param compress whether the entry can be deflated, depending on the compression policy.
+     */
+    private int getLevel(String name, boolean compress, byte[] data) {
+        if (!compress) {
+            return Deflater.NO_COMPRESSION;
+        }
+        if (mCompressionPolicy == null) {
+            return COMPRESSION_LEVEL;
+        }
+        return mCompressionPolicy.getLevel(name, data, 0, data.length);
+    }
+
+    /**
+     * Returns the compression level of a new entry if it does not depend on its content.
+     * @param compress whether the entry can be deflated, depending on the compression policy.
+     * @param size the length of the content.
+     * @return the level, or null if the content must be read to know it.
+     */
+    private Integer getLevel(String name, boolean compress, long size) {
+        if (!compress) {
+            return Deflater.NO_COMPRESSION;
+        }
+        if (mCompressionPolicy == null) {
+            return COMPRESSION_LEVEL;
+        }
+        return mCompressionPolicy.getLevel(name, size);
+    }
+
+    /**
+     * Compresses the content of a new entry with the given level, or stores it, unless it is
+     * in the cache of compressed entries.
+     * @param digest the digest of the content, to find it in the cache.
+     */
+    private ZipWriter.PreparedEntry prepareEntry(byte[] data, String name, long time, int level,
+            byte[] digest) throws IOException {
+        boolean deflate = level != Deflater.NO_COMPRESSION;
+
+        if (deflate && mEntryCache != null) {
+            ZipWriter.PreparedEntry entry = mEntryCache.get(digest, level, name, time);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        ZipWriter.PreparedEntry entry;
+        Deflater deflater = mDeflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(COMPRESSION_LEVEL, true /*nowrap*/);
+        }
+        try {
+            deflater.setLevel(level);
+            entry = ZipWriter.prepare(name, time, data, 0, data.length, deflate, deflater);
+        } finally {
+            mDeflaters.add(deflater);
+        }
+
+        if (deflate && mEntryCache != null) {
+            mEntryCache.put(digest, level, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the whole content of a file. The writer needs the whole content of an entry to
+     * write its sizes and CRC in the local header, so the file is read at once into an array
+     * of its size.
+     */
+    private static byte[] readFile(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to be packaged: " + file);
+            }
+
+            ByteBuffer data = ByteBuffer.allocate((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data) == -1) {
+                    throw new EOFException("Unexpected end of file: " + file);
+                }
+            }
+            return data.array();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the remaining content of a stream.
+     */
+    private byte[] readStream(InputStream input) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
         int count;
         while ((count = input.read(mBuffer)) != -1) {
-            mOutputJar.write(mBuffer, 0, count);
+            content.write(mBuffer, 0, count);
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Adds an entry of another archive to the output jar, copying its compressed data.
+     * @param archive the archive containing the entry. It must stay open until the pending
+     * entries are written.
+     * @param entry the entry to copy.
+     * @throws IOException
+     */
+    private void copyEntry(final ZipArchive archive, final ZipArchive.Entry entry)
+            throws IOException {
+        if (entry.getMethod() != ZipEntry.STORED && mCompressionPolicy != null
+                && mCompressionPolicy.isAlwaysStored(entry.getName())) {
+            storeEntry(archive, entry);
+            return;
+        }
+
+        final ReadyEntry ready = new ReadyEntry(entry.getName());
+        ready.mArchive = archive;
+        ready.mArchiveEntry = entry;
+        ready.mSource = JarIndex.getArchiveSource(archive, entry);
 
-            // update the digest
-            if (mMessageDigest != null) {
-                mMessageDigest.update(mBuffer, 0, count);
+        // reuse the digest of the previous archive if the entry did not change.
+        JarIndex.Record previous = mPreviousIndex.get(entry.getName());
+        if (previous != null && previous.mSource.equals(ready.mSource)) {
+            ready.mDigest = previous.mDigest;
+        }
+
+        // only the digest of signed archives needs to read the content.
+        final boolean digest = mManifest != null && ready.mDigest == null;
+        submit(0, digest /*async*/, new Callable<ReadyEntry>() {
+            @Override
+            public ReadyEntry call() throws Exception {
+                if (digest) {
+                    ready.mDigest = digestEntry(archive, entry);
+                }
+                return ready;
             }
+        });
+    }
+
+    /**
+     * Adds a compressed entry of another archive to the output jar as a stored entry, for the
+     * entries that the compression policy always stores.
+     * @param archive the archive containing the entry.
+     * @param entry the entry to store.
+     * @throws IOException
+     */
+    private void storeEntry(ZipArchive archive, ZipArchive.Entry entry) throws IOException {
+        String name = entry.getName();
+        String source = JarIndex.getArchiveSource(archive, entry);
+        if (copyPreviousEntry(name, source, false /*compress*/)) {
+            return;
         }
 
-        // close the entry for this file
-        mOutputJar.closeEntry();
+        if (entry.getSize() > Integer.MAX_VALUE) {
+            throw new IOException("Entry too large to be packaged: " + name);
+        }
+        byte[] data = new byte[(int) entry.getSize()];
+        InputStream input = archive.open(entry);
+        try {
+            ByteStreams.readFully(input, data);
+        } finally {
+            input.close();
+        }
 
-        if (mManifest != null) {
-            // update the manifest for this entry.
-            Attributes attr = mManifest.getAttributes(entry.getName());
-            if (attr == null) {
-                attr = new Attributes();
-                mManifest.getEntries().put(entry.getName(), attr);
+        ZipArchive.Entry previousEntry = mPreviousEntries.get(name);
+        JarIndex.Record previous = previousEntry != null ? mPreviousIndex.get(name) : null;
+        writeEntry(data, name, ZipWriter.fromDosTime(entry.getDosTime()), false /*compress*/,
+                source,
+                previous != null ? previousEntry : null, previous);
+    }
+
+    /**
+     * Copies the entry of the previous archive if its source did not change. The entry is
+     * compressed again from its previous content if the compression policy now gives it another
+     * level.
+     * @param name the name of the entry.
+     * @param source the current source of the entry.
+     * @param compress whether the entry can be deflated, depending on the compression policy.
+     * @return true if the entry was copied.
+     * @throws IOException
+     */
+    private boolean copyPreviousEntry(final String name, String source, final boolean compress)
+            throws IOException {
+        final ZipArchive.Entry previousEntry = mPreviousEntries.get(name);
+        final JarIndex.Record previous =
+                previousEntry != null ? mPreviousIndex.get(name) : null;
+        if (previous == null || !previous.mSource.equals(source) || previous.mDigest == null
+                || previousEntry.getSize() > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        final ReadyEntry ready = new ReadyEntry(name);
+        ready.mDigest = previous.mDigest;
+        ready.mSource = source;
+
+        final Integer level = getLevel(name, compress, previousEntry.getSize());
+        if (level != null && level == previous.mLevel) {
+            ready.mArchive = mPreviousJar;
+            ready.mArchiveEntry = previousEntry;
+            ready.mLevel = level;
+            submit(0, false /*async*/, new Callable<ReadyEntry>() {
+                @Override
+                public ReadyEntry call() {
+                    return ready;
+                }
+            });
+            return true;
+        }
+
+        // the previous archive may have been written with another compression policy, or the
+        // level depends on the content, which is read from the previous archive.
+        final int size = (int) previousEntry.getSize();
+        submit(size, true /*async*/, new Callable<ReadyEntry>() {
+            @Override
+            public ReadyEntry call() throws Exception {
+                byte[] data = new byte[size];
+                InputStream input = mPreviousJar.open(previousEntry);
+                try {
+                    ByteStreams.readFully(input, data);
+                } finally {
+                    input.close();
+                }
+
+                ready.mLevel = level != null ? level : getLevel(name, compress, data);
+                if (ready.mLevel == previous.mLevel) {
+                    ready.mArchive = mPreviousJar;
+                    ready.mArchiveEntry = previousEntry;
+                } else {
+                    ready.mEntry = prepareEntry(data, name,
+                            ZipWriter.fromDosTime(previousEntry.getDosTime()), ready.mLevel,
+                            ready.mDigest);
+                }
+                return ready;
             }
-            attr.putValue(DIGEST_ATTR, mBase64Encoder.encode(mMessageDigest.digest()));
+        });
+        return true;
+    }
+
+    /**
+     * Queues the preparation of an entry, run on the pool if there is one and
+     * <var>async</var> is true, or right away otherwise.
+     * @param size the number of bytes of content the preparation holds in memory.
+     */
+    private void submit(long size, boolean async, Callable<ReadyEntry> task)
+            throws IOException {
+        // make room for the new entry.
+        writePendingEntries(mMaxBytesInFlight - size);
+
+        FutureTask<ReadyEntry> future = new FutureTask<ReadyEntry>(task);
+        if (async && mExecutor != null) {
+            mExecutor.execute(future);
+        } else {
+            future.run();
         }
+        mPendingEntries.add(new PendingEntry(future, size));
+        mBytesInFlight += size;
+
+        writePendingEntries(mMaxBytesInFlight);
     }
 
-    /** Writes a .SF file with a digest to the manifest. */
-    private void writeSignatureFile(SignatureOutputStream out)
-            throws IOException, GeneralSecurityException {
-        Manifest sf = new Manifest();
-        Attributes main = sf.getMainAttributes();
-        main.putValue("Signature-Version", "1.0");
-        main.putValue("Created-By", "1.0 (Android)");
-
-        BASE64Encoder base64 = new BASE64Encoder();
-        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
-        PrintStream print = new PrintStream(
-                new DigestOutputStream(new ByteArrayOutputStream(), md),
-                true, "UTF-8");
-
-        // Digest of the entire manifest
-        mManifest.write(print);
-        print.flush();
-        main.putValue(DIGEST_MANIFEST_ATTR, base64.encode(md.digest()));
-
-        Map<String, Attributes> entries = mManifest.getEntries();
-        for (Map.Entry<String, Attributes> entry : entries.entrySet()) {
-            // Digest of the manifest stanza for this entry.
-            print.print("Name: " + entry.getKey() + "\r\n");
-            for (Map.Entry<Object, Object> att : entry.getValue().entrySet()) {
-                print.print(att.getKey() + ": " + att.getValue() + "\r\n");
+    /**
+     * Writes the pending entries that are ready, and waits for the oldest ones as long as
+     * more than <var>maxBytesInFlight</var> bytes are held by the pending entries.
+     * A negative value writes all the pending entries.
+     */
+    private void writePendingEntries(long maxBytesInFlight) throws IOException {
+        while (!mPendingEntries.isEmpty() && (mPendingEntries.peek().mFuture.isDone()
+                || mBytesInFlight > maxBytesInFlight)) {
+            PendingEntry pending = mPendingEntries.removeFirst();
+            ReadyEntry ready = getReadyEntry(pending.mFuture);
+            mBytesInFlight -= pending.mSize;
+
+            if (ready.mEntry != null) {
+                mOutputJar.writePreparedEntry(ready.mEntry);
+            } else {
+                mOutputJar.writeRawEntry(ready.mArchive, ready.mArchiveEntry);
+            }
+
+            if (mManifest != null) {
+                mManifest.addEntry(ready.mName, ready.mDigest);
+            }
+            if (ready.mSource != null) {
+                mIndex.put(ready.mName, ready.mSource, ready.mDigest, ready.mLevel);
+            }
+        }
+    }
+
+    private static ReadyEntry getReadyEntry(Future<ReadyEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the archive.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Computes the digest of an entry of another archive, and checks its CRC on the way.
+     */
+    private static byte[] digestEntry(ZipArchive archive, ZipArchive.Entry entry)
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        InputStream input = archive.open(entry);
+        try {
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                crc.update(buffer, 0, count);
             }
-            print.print("\r\n");
-            print.flush();
+        } finally {
+            input.close();
+        }
 
-            Attributes sfAttr = new Attributes();
-            sfAttr.putValue(DIGEST_ATTR, base64.encode(md.digest()));
-            sf.getEntries().put(entry.getKey(), sfAttr);
+        if (crc.getValue() != entry.getCrc()) {
+            throw new ZipException(String.format("invalid entry CRC for %1$s in %2$s",
+                    entry.getName(), archive.getFile()));
         }
 
-        sf.write(out);
+        return digest.digest();
+    }
+
+    /** Stops the compression threads and releases the deflaters and the previous jar. */
+    private void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+
+        if (mPreviousJar != null) {
+            try {
+                mPreviousJar.close();
+            } catch (IOException e) {
+                // pass
+            }
+            mPreviousJar = null;
+        }
+
+        Deflater deflater;
+        while ((deflater = mDeflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    /** Writes one of the META-INF entries of the signature. */
+    private void writeMetaEntry(String name, long time, ByteArrayOutputStream content)
+            throws IOException {
+        byte[] data = content.toByteArray();
+        mOutputJar.writeEntry(name, time, data, 0, data.length, true /*compress*/);
+    }
+
+    /** Writes a .SF file with a digest to the manifest. */
+    private void writeSignatureFile(SignatureOutputStream out) throws IOException {
+        mManifest.writeSignatureFile(out);
 
         // A bug in the java.util.jar implementation of Android platforms
         // up to version 1.6 will cause a spurious IOException to be thrown
@@ -367,8 +935,8 @@ public class SignedJarBuilder {
     }
 
     /** Write the certificate file with a digital signature. */
-    private void writeSignatureBlock(Signature signature, X509Certificate publicKey,
-            PrivateKey privateKey)
+    private void writeSignatureBlock(OutputStream out, Signature signature,
+            X509Certificate publicKey, PrivateKey privateKey)
             throws IOException, GeneralSecurityException {
         SignerInfo signerInfo = new SignerInfo(
                 new X500Name(publicKey.getIssuerX500Principal().getName()),
@@ -383,6 +951,6 @@ public class SignedJarBuilder {
                 new X509Certificate[] { publicKey },
                 new SignerInfo[] { signerInfo });
 
-        pkcs7.encodeSignedData(mOutputJar);
+        pkcs7.encodeSignedData(out);
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.zip;
+
+import com.android.annotations.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A buffered stream writing to a channel.
+ *
+ * The data is gathered in a large direct buffer, so that each write to the channel is a single
+ * system call without an extra copy. Direct buffers are expensive to allocate, so they are
+ * pooled and reused by the following streams.
+ *
+ * {@link #transferFrom(FileChannel, long, long)} copies a region of a file without going
+ * through the buffer, which the OS can do without copying the data into the JVM.
+ */
+class ChannelOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final Queue<ByteBuffer> sBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final WritableByteChannel mChannel;
+    private ByteBuffer mBuffer;
+
+    ChannelOutputStream(@NonNull WritableByteChannel channel) {
+        mChannel = channel;
+        mBuffer = sBuffers.poll();
+        if (mBuffer == null) {
+            mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        mBuffer.clear();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            flushBuffer();
+        }
+        mBuffer.put((byte) b);
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!mBuffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int count = Math.min(len, mBuffer.remaining());
+            mBuffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Writes a region of a file.
+     * @param source the channel of the file.
+     * @param position the position of the region in the file.
+     * @param count the length of the region.
+     */
+    void transferFrom(@NonNull FileChannel source, long position, long count)
+            throws IOException {
+        flushBuffer();
+        while (count > 0) {
+            long transferred = source.transferTo(position, count, mChannel);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of file.");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mBuffer == null) {
+            return;
+        }
+
+        try {
+            flushBuffer();
+        } finally {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+                sBuffers.add(mBuffer);
+            }
+            mBuffer = null;
+            mChannel.close();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
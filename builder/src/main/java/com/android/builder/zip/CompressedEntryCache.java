@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.zip;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the compressed content of the entries written to zip files, so that the same content
+ * is compressed only once when it is packaged in several zip files, such as the apks of all the
+ * variants of a project.
+ *
+ * The entries are found from the digest of their content and the compression level, which is
+ * all the compressed data depends on. The total size of the compressed data kept is capped,
+ * the least recently used entries being evicted first, and the entries that are not used for a
+ * while are evicted so that a long-lived JVM does not keep them from one build to the next.
+ */
+public class CompressedEntryCache {
+
+    private final static long IDLE_TIMEOUT_MINUTES = 10;
+
+    private static CompressedEntryCache sDefault;
+
+    private final long mMaxSize;
+    private final Cache<Key, ZipWriter.PreparedEntry> mEntries;
+
+    private static final class Key {
+        private final byte[] mDigest;
+        private final int mLevel;
+
+        Key(byte[] digest, int level) {
+            mDigest = digest;
+            mLevel = level;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key key = (Key) o;
+            return mLevel == key.mLevel && Arrays.equals(mDigest, key.mDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(mDigest) + mLevel;
+        }
+    }
+
+    /**
+     * Returns the cache shared by all the builders of this JVM, with the given maximum size.
+     * The cache is emptied if the maximum size changes.
+     * @param maxSize the maximum size, in bytes, of the compressed data kept.
+     */
+    public static synchronized CompressedEntryCache getDefault(long maxSize) {
+        if (sDefault == null || sDefault.mMaxSize != maxSize) {
+            sDefault = new CompressedEntryCache(maxSize);
+        }
+
+        return sDefault;
+    }
+
+    /**
+     * Creates a cache.
+     * @param maxSize the maximum size, in bytes, of the compressed data kept.
+     */
+    public CompressedEntryCache(long maxSize) {
+        checkArgument(maxSize > 0, "maxSize must be positive.");
+        mMaxSize = maxSize;
+        mEntries = CacheBuilder.newBuilder()
+                .maximumWeight(maxSize)
+                .weigher(new Weigher<Key, ZipWriter.PreparedEntry>() {
+                    @Override
+                    public int weigh(Key key, ZipWriter.PreparedEntry entry) {
+                        return entry.getCompressedSize();
+                    }
+                })
+                .expireAfterAccess(IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+                .build();
+    }
+
+    /**
+     * Returns a new entry with the compressed content of a cached entry, or null if there is
+     * none. This can be called from any thread.
+     *
+     * @param digest the digest of the content of the entry.
+     * @param level the compression level.
+     * @param name the name of the new entry.
+     * @param time the modification time of the new entry, in milliseconds.
+     */
+    @Nullable
+    public ZipWriter.PreparedEntry get(@NonNull byte[] digest, int level,
+            @NonNull String name, long time) {
+        ZipWriter.PreparedEntry entry = mEntries.getIfPresent(new Key(digest, level));
+        return entry != null ? entry.copy(name, time) : null;
+    }
+
+    /**
+     * Keeps the compressed content of an entry. Stored entries are not kept, as there is
+     * nothing to save. This can be called from any thread.
+     *
+     * @param digest the digest of the content of the entry.
+     * @param level the level the entry was compressed with.
+     * @param entry the entry.
+     */
+    public void put(@NonNull byte[] digest, int level, @NonNull ZipWriter.PreparedEntry entry) {
+        if (entry.getMethod() == ZipEntry.DEFLATED) {
+            mEntries.put(new Key(digest, level), entry.compact());
+        }
+    }
+
+    public long size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.zip;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Decides how the new entries of a zip file are compressed.
+ *
+ * Each entry gets a compression level, {@link Deflater#NO_COMPRESSION} meaning that the entry
+ * is stored. The level depends on the extension of the entry: the files whose format is already
+ * compressed, like images, audio and archives, are stored, and levels can be set for other
+ * extensions. The other entries use the default level, unless sampling their content shows
+ * that it would not shrink.
+ *
+ * Some extensions can also be marked as always stored: unlike the other stored entries, these
+ * are stored even when they are copied compressed from another zip file, as the platform needs
+ * to read them in place from the apk (native libraries, resource table).
+ *
+ * A policy is read by several threads once packaging has started, so it must be fully set up
+ * first.
+ */
+public class CompressionPolicy {
+
+    /** The extensions of the formats that are already compressed, stored by aapt as well. */
+    public static final Set<String> COMPRESSED_EXTENSIONS = ImmutableSet.of(
+            "jpg", "jpeg", "png", "gif",
+            "wav", "mp2", "mp3", "ogg", "aac",
+            "mpg", "mpeg", "mid", "midi", "smf", "jet",
+            "rtttl", "imy", "xmf", "mp4", "m4a",
+            "m4v", "3gp", "3gpp", "3g2", "3gpp2",
+            "amr", "awb", "wma", "wmv", "zip");
+
+    /** The number of bytes of content sampled to estimate its entropy. */
+    private static final int SAMPLE_SIZE = 4096;
+    /** The number of regions of the content that are sampled. */
+    private static final int SAMPLE_REGIONS = 4;
+    /** The entropy, in bits per byte, above which deflate does not shrink the content. */
+    private static final double MAX_ENTROPY = 7.5;
+    /** The size under which the content is not sampled, its entropy being meaningless. */
+    private static final int MIN_SAMPLED_SIZE = 512;
+
+    private final int mDefaultLevel;
+    private final Map<String, Integer> mExtensionLevels = Maps.newHashMap();
+    private final Set<String> mAlwaysStoredExtensions = Sets.newHashSet();
+    private boolean mStoreIncompressible = true;
+
+    /**
+     * Creates a policy storing the {@link #COMPRESSED_EXTENSIONS} and compressing the other
+     * entries with the given level.
+     * @param defaultLevel the level, from {@link Deflater#NO_COMPRESSION} to
+     *                     {@link Deflater#BEST_COMPRESSION}.
+     */
+    public CompressionPolicy(int defaultLevel) {
+        checkLevel(defaultLevel);
+        mDefaultLevel = defaultLevel;
+        for (String extension : COMPRESSED_EXTENSIONS) {
+            mExtensionLevels.put(extension, Deflater.NO_COMPRESSION);
+        }
+    }
+
+    /**
+     * Sets the level of the entries with the given extension.
+     * @param extension the extension, with or without the leading dot.
+     * @param level the level, {@link Deflater#NO_COMPRESSION} to store the entries.
+     */
+    public void setLevel(@NonNull String extension, int level) {
+        checkLevel(level);
+        mExtensionLevels.put(normalize(extension), level);
+    }
+
+    /**
+     * Stores the entries with the given extension, including the ones copied from other zip
+     * files.
+     * @param extension the extension, with or without the leading dot.
+     */
+    public void setAlwaysStored(@NonNull String extension) {
+        String normalized = normalize(extension);
+        mExtensionLevels.put(normalized, Deflater.NO_COMPRESSION);
+        mAlwaysStoredExtensions.add(normalized);
+    }
+
+    /**
+     * Returns whether an entry must be stored even when it is copied from another zip file.
+     * @param name the name of the entry in the zip file.
+     */
+    public boolean isAlwaysStored(@NonNull String name) {
+        String extension = getExtension(name);
+        return extension != null && mAlwaysStoredExtensions.contains(extension);
+    }
+
+    /**
+     * Sets whether the entries whose content looks incompressible are stored. Their content is
+     * sampled and stored if its entropy is too high for deflate to shrink it.
+     */
+    public void setStoreIncompressible(boolean storeIncompressible) {
+        mStoreIncompressible = storeIncompressible;
+    }
+
+    public int getDefaultLevel() {
+        return mDefaultLevel;
+    }
+
+    /**
+     * Returns the compression level of an entry.
+     * @param name the name of the entry in the zip file.
+     * @param data the buffer containing the content of the entry.
+     * @param offset the offset of the content in the buffer.
+     * @param length the length of the content.
+     * @return the level, {@link Deflater#NO_COMPRESSION} if the entry must be stored.
+     */
+    public int getLevel(@NonNull String name, @NonNull byte[] data, int offset, int length) {
+        Integer level = getLevel(name, length);
+        if (level != null) {
+            return level;
+        }
+
+        return isIncompressible(data, offset, length) ? Deflater.NO_COMPRESSION : mDefaultLevel;
+    }
+
+    /**
+     * Returns the compression level of an entry, if it does not depend on its content.
+     * @param name the name of the entry in the zip file.
+     * @param size the length of the content.
+     * @return the level, or null if the content must be sampled to know it.
+     */
+    @Nullable
+    public Integer getLevel(@NonNull String name, long size) {
+        String extension = getExtension(name);
+        if (extension != null) {
+            Integer level = mExtensionLevels.get(extension);
+            if (level != null) {
+                return level;
+            }
+        }
+
+        if (mStoreIncompressible && mDefaultLevel != Deflater.NO_COMPRESSION
+                && size >= MIN_SAMPLED_SIZE) {
+            return null;
+        }
+
+        return mDefaultLevel;
+    }
+
+    /**
+     * Returns whether content looks incompressible, from the entropy of a few regions of it.
+     */
+    static boolean isIncompressible(@NonNull byte[] data, int offset, int length) {
+        if (length < MIN_SAMPLED_SIZE) {
+            return false;
+        }
+
+        // sample regions spread over the content, as files often start with a header.
+        int[] counts = new int[256];
+        int regionSize = Math.min(length, SAMPLE_SIZE) / SAMPLE_REGIONS;
+        int step = (length - regionSize) / (SAMPLE_REGIONS - 1);
+        int total = 0;
+        for (int region = 0; region < SAMPLE_REGIONS; region++) {
+            int start = offset + region * step;
+            for (int i = start; i < start + regionSize; i++) {
+                counts[data[i] & 0xFF]++;
+            }
+            total += regionSize;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / total;
+                entropy -= p * Math.log(p);
+            }
+        }
+
+        return entropy / Math.log(2) > MAX_ENTROPY;
+    }
+
+    @Nullable
+    private static String getExtension(@NonNull String name) {
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        return dot > slash ? normalize(name.substring(dot + 1)) : null;
+    }
+
+    @NonNull
+    private static String normalize(@NonNull String extension) {
+        if (extension.startsWith(".")) {
+            extension = extension.substring(1);
+        }
+        return extension.toLowerCase(Locale.US);
+    }
+
+    private static void checkLevel(int level) {
+        checkArgument(level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+                "Invalid compression level: %s", level);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.zip;
+
+import com.android.annotations.NonNull;
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Checks the alignment of the stored entries of a zip file, like <code>zipalign -c</code>.
+ */
+public class ZipAlignVerifier {
+
+    private ZipAlignVerifier() {
+    }
+
+    /**
+     * Returns the names of the stored entries whose data is not aligned.
+     *
+     * @param file the zip file to check.
+     * @param alignment the expected alignment, in bytes.
+     * @return the misaligned entries, empty if the file is aligned.
+     * @throws IOException if the file cannot be read.
+     */
+    @NonNull
+    public static List<String> getMisalignedEntries(@NonNull File file, int alignment)
+            throws IOException {
+        checkArgument(alignment > 0, "alignment must be positive.");
+
+        List<String> misaligned = Lists.newArrayList();
+        ZipArchive archive = new ZipArchive(file);
+        try {
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                if (entry.getMethod() == ZipEntry.STORED
+                        && archive.getDataOffset(entry) % alignment != 0) {
+                    misaligned.add(entry.getName());
+                }
+            }
+        } finally {
+            archive.close();
+        }
+
+        return misaligned;
+    }
+}
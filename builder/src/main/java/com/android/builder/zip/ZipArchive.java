@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.zip;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Read access to the entries of a zip file, from its central directory.
+ *
+ * Unlike {@link java.util.zip.ZipInputStream}, this gives access to the compressed data of the
+ * entries so that they can be copied to another zip file without being inflated and deflated
+ * again. The streams returned by {@link #open(Entry)} and {@link #openRaw(Entry)} can be read
+ * by several threads at the same time, the file being read at explicit positions.
+ */
+public class ZipArchive implements Closeable {
+
+    final static int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    final static int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    final static int END_SIGNATURE = 0x06054b50;
+
+    final static int LOCAL_HEADER_SIZE = 30;
+    final static int CENTRAL_HEADER_SIZE = 46;
+    final static int END_SIZE = 22;
+
+    /** The general purpose flag of entries whose name is in UTF-8. */
+    final static int FLAG_UTF8 = 0x800;
+    /** The general purpose flag of encrypted entries. */
+    final static int FLAG_ENCRYPTED = 0x1;
+
+    /**
+     * An entry of a zip file, as described by the central directory.
+     */
+    public static final class Entry {
+        private final String mName;
+        private final int mMethod;
+        private final int mFlags;
+        private final int mDosTime;
+        private final long mCrc;
+        private final long mCompressedSize;
+        private final long mSize;
+        private final long mLocalHeaderOffset;
+
+        Entry(@NonNull String name, int method, int flags, int dosTime, long crc,
+                long compressedSize, long size, long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mFlags = flags;
+            mDosTime = dosTime;
+            mCrc = crc;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the compression method, {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        public int getFlags() {
+            return mFlags;
+        }
+
+        /**
+         * Returns the modification time, in MS-DOS format, date in the high 16 bits.
+         */
+        public int getDosTime() {
+            return mDosTime;
+        }
+
+        public long getCrc() {
+            return mCrc;
+        }
+
+        public long getCompressedSize() {
+            return mCompressedSize;
+        }
+
+        public long getSize() {
+            return mSize;
+        }
+
+        public long getLocalHeaderOffset() {
+            return mLocalHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return mName.endsWith("/");
+        }
+    }
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final List<Entry> mEntries;
+
+    /**
+     * Opens a zip file and reads its central directory.
+     *
+     * @throws IOException if the file cannot be read or is not a zip file.
+     */
+    public ZipArchive(@NonNull File file) throws IOException {
+        mFile = file;
+        mChannel = new FileInputStream(file).getChannel();
+        try {
+            mEntries = readCentralDirectory();
+        } catch (IOException e) {
+            mChannel.close();
+            throw e;
+        }
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the entries, in the order of the central directory.
+     */
+    @NonNull
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * Returns a stream over the data of an entry, as stored in the file.
+     */
+    @NonNull
+    public InputStream openRaw(@NonNull Entry entry) throws IOException {
+        if ((entry.getFlags() & FLAG_ENCRYPTED) != 0) {
+            throw new IOException("Encrypted entries are not supported: " + entry.getName());
+        }
+
+        return new RegionInputStream(getDataOffset(entry), entry.getCompressedSize());
+    }
+
+    /**
+     * Writes the data of an entry, as stored in the file, to a stream. The data is transferred
+     * by the OS without being read by the JVM when possible.
+     */
+    void transferRaw(@NonNull Entry entry, @NonNull ChannelOutputStream out) throws IOException {
+        if ((entry.getFlags() & FLAG_ENCRYPTED) != 0) {
+            throw new IOException("Encrypted entries are not supported: " + entry.getName());
+        }
+
+        out.transferFrom(mChannel, getDataOffset(entry), entry.getCompressedSize());
+    }
+
+    /**
+     * Returns the offset in the file of the data of an entry, read from its local header.
+     */
+    public long getDataOffset(@NonNull Entry entry) throws IOException {
+        byte[] header = new byte[LOCAL_HEADER_SIZE];
+        read(entry.getLocalHeaderOffset(), header, 0, header.length);
+        if (getInt(header, 0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Bad local header for " + entry.getName());
+        }
+
+        // the extra field of the local header can differ from the central directory one.
+        return entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE
+                + getShort(header, 26) + getShort(header, 28);
+    }
+
+    /**
+     * Returns a stream over the uncompressed content of an entry.
+     */
+    @NonNull
+    public InputStream open(@NonNull Entry entry) throws IOException {
+        InputStream raw = openRaw(entry);
+        switch (entry.getMethod()) {
+            case ZipEntry.STORED:
+                return raw;
+            case ZipEntry.DEFLATED:
+                // the inflater needs an extra byte past the end of the data when there is
+                // no zlib header.
+                InputStream padded = new SequenceInputStream(raw,
+                        new ByteArrayInputStream(new byte[1]));
+                return new InflaterInputStream(padded, new Inflater(true /*nowrap*/), 8192) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            default:
+                throw new IOException(String.format(
+                        "Unsupported compression method %1$d for %2$s",
+                        entry.getMethod(), entry.getName()));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    @NonNull
+    private List<Entry> readCentralDirectory() throws IOException {
+        // the end of central directory record is followed by a comment of at most 64KB.
+        long length = mChannel.size();
+        int tailSize = (int) Math.min(length, END_SIZE + 0xFFFF);
+        byte[] tail = new byte[tailSize];
+        read(length - tailSize, tail, 0, tailSize);
+
+        int end = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (getInt(tail, i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new IOException("Not a zip file: " + mFile);
+        }
+
+        int count = getShort(tail, end + 10);
+        long directorySize = getInt(tail, end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = getInt(tail, end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("Zip64 files are not supported: " + mFile);
+        }
+        if (directoryOffset + directorySize > length) {
+            throw new IOException("Bad central directory: " + mFile);
+        }
+
+        byte[] directory = new byte[(int) directorySize];
+        read(directoryOffset, directory, 0, directory.length);
+
+        List<Entry> entries = Lists.newArrayListWithCapacity(count);
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > directory.length
+                    || getInt(directory, offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Bad central directory: " + mFile);
+            }
+
+            int nameLength = getShort(directory, offset + 28);
+            int extraLength = getShort(directory, offset + 30);
+            int commentLength = getShort(directory, offset + 32);
+            if (offset + CENTRAL_HEADER_SIZE + nameLength > directory.length) {
+                throw new IOException("Bad central directory: " + mFile);
+            }
+
+            // names are decoded as UTF-8 like java.util.zip does.
+            String name = new String(directory, offset + CENTRAL_HEADER_SIZE, nameLength,
+                    Charsets.UTF_8);
+            entries.add(new Entry(
+                    name,
+                    getShort(directory, offset + 10),
+                    getShort(directory, offset + 8),
+                    getInt(directory, offset + 12),
+                    getInt(directory, offset + 16) & 0xFFFFFFFFL,
+                    getInt(directory, offset + 20) & 0xFFFFFFFFL,
+                    getInt(directory, offset + 24) & 0xFFFFFFFFL,
+                    getInt(directory, offset + 42) & 0xFFFFFFFFL));
+
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return ImmutableList.copyOf(entries);
+    }
+
+    private void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        // positional reads don't move the position of the channel, so they need no lock.
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        while (target.hasRemaining()) {
+            int count = mChannel.read(target, position);
+            if (count == -1) {
+                throw new EOFException("Unexpected end of file: " + mFile);
+            }
+            position += count;
+        }
+    }
+
+    static int getShort(@NonNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    static int getInt(@NonNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | ((buffer[offset + 1] & 0xFF) << 8)
+                | ((buffer[offset + 2] & 0xFF) << 16)
+                | ((buffer[offset + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * A stream over a region of the file.
+     */
+    private final class RegionInputStream extends InputStream {
+        private long mPosition;
+        private long mRemaining;
+
+        RegionInputStream(long position, long length) {
+            mPosition = position;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int count = (int) Math.min(len, mRemaining);
+            ZipArchive.this.read(mPosition, b, off, count);
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            long count = Math.max(0, Math.min(n, mRemaining));
+            mPosition += count;
+            mRemaining -= count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mRemaining);
+        }
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.zip;
+
+import com.android.annotations.NonNull;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Writes a zip file.
+ *
+ * New entries are compressed in memory before being written, so that their local header
+ * contains the sizes and the CRC and no data descriptor is needed. The compression can be done
+ * on other threads with {@link #prepare(String, long, byte[], int, int, boolean, Deflater)},
+ * the prepared entries being then written with {@link #writePreparedEntry(PreparedEntry)}.
+ * Entries read from another zip file with {@link ZipArchive} can be copied with
+ * {@link #writeRawEntry(ZipArchive, ZipArchive.Entry)} without being inflated and deflated
+ * again. Their data then goes from one file to the other without being read by the JVM when
+ * the OS allows it.
+ *
+ * The output is buffered in a large direct buffer, and written to the file channel when the
+ * writer is created with {@link #ZipWriter(File, int)}.
+ *
+ * With {@link #setAlignment(int)}, the data of the stored entries is aligned in the file, like
+ * the zipalign tool does, by padding the extra field of their local header. Stored shared
+ * libraries can be given a larger alignment with {@link #setSharedLibraryAlignment(int)}, like
+ * the -p option of zipalign, so that they can be mapped in memory directly from the apk.
+ *
+ * Zip64 is not supported.
+ */
+public class ZipWriter implements Closeable {
+
+    private static final int VERSION_STORED = 10;
+    private static final int VERSION_DEFLATED = 20;
+
+    /** Data needed to write the central directory record of an entry. */
+    private static final class Record {
+        byte[] mName;
+        boolean mSharedLibrary;
+        int mFlags;
+        int mVersion;
+        int mMethod;
+        int mDosTime;
+        long mCrc;
+        long mCompressedSize;
+        long mSize;
+        long mOffset;
+    }
+
+    /**
+     * A new entry, compressed and ready to be written.
+     */
+    public static final class PreparedEntry {
+        private final String mName;
+        private final int mMethod;
+        private final int mDosTime;
+        private final long mCrc;
+        private final long mSize;
+        private final byte[] mData;
+        private final int mOffset;
+        private final int mLength;
+
+        private PreparedEntry(String name, int method, int dosTime, long crc, long size,
+                byte[] data, int offset, int length) {
+            mName = name;
+            mMethod = method;
+            mDosTime = dosTime;
+            mCrc = crc;
+            mSize = size;
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the compression method, {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}.
+         */
+        public int getMethod() {
+            return mMethod;
+        }
+
+        /**
+         * Returns an entry with the same content under another name and time. The compressed
+         * data is shared.
+         */
+        @NonNull
+        public PreparedEntry copy(@NonNull String name, long time) {
+            return new PreparedEntry(name, mMethod, toDosTime(time), mCrc, mSize,
+                    mData, mOffset, mLength);
+        }
+
+        /**
+         * Returns this entry with a buffer no larger than its data, to be kept for a while.
+         */
+        @NonNull
+        PreparedEntry compact() {
+            if (mOffset == 0 && mData.length == mLength) {
+                return this;
+            }
+            return new PreparedEntry(mName, mMethod, mDosTime, mCrc, mSize,
+                    Arrays.copyOfRange(mData, mOffset, mOffset + mLength), 0, mLength);
+        }
+
+        /**
+         * Returns the size of the data to write, compressed or not.
+         */
+        public int getCompressedSize() {
+            return mLength;
+        }
+    }
+
+    /** Gives access to the buffer, to avoid copying the compressed data. */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+
+    private final ChannelOutputStream mOut;
+    private final List<Record> mRecords = Lists.newArrayList();
+    private final Set<String> mNames = Sets.newHashSet();
+    private final byte[] mHeader = new byte[ZipArchive.CENTRAL_HEADER_SIZE];
+    private final byte[] mBuffer = new byte[8192];
+    private final Deflater mDeflater;
+    private long mOffset = 0;
+    private int mAlignment = 0;
+    private int mSharedLibraryAlignment = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Creates a writer.
+     * @param out the stream receiving the zip file. It is closed by {@link #close()}.
+     * @param level the compression level of the entries written with
+     *              {@link #writeEntry(String, long, byte[], int, int, boolean)}.
+     */
+    public ZipWriter(@NonNull OutputStream out, int level) {
+        mOut = new ChannelOutputStream(out instanceof FileOutputStream
+                ? ((FileOutputStream) out).getChannel() : Channels.newChannel(out));
+        mDeflater = new Deflater(level, true /*nowrap*/);
+    }
+
+    /**
+     * Creates a writer.
+     * @param file the zip file to create, overwritten if it exists.
+     * @param level the compression level of the entries written with
+     *              {@link #writeEntry(String, long, byte[], int, int, boolean)}.
+     */
+    public ZipWriter(@NonNull File file, int level) throws IOException {
+        this(new FileOutputStream(file, false /*append*/), level);
+    }
+
+    /**
+     * Sets the alignment of the data of the stored entries written after this call.
+     * @param alignment the alignment in bytes, or 0 to not align the entries.
+     */
+    public void setAlignment(int alignment) {
+        checkArgument(alignment >= 0, "alignment cannot be negative.");
+        mAlignment = alignment;
+    }
+
+    /**
+     * Sets the alignment of the data of the stored shared libraries (.so files) written after
+     * this call, typically the page size so that they can be mapped in memory.
+     * @param alignment the alignment in bytes, or 0 to use the alignment of the other entries.
+     */
+    public void setSharedLibraryAlignment(int alignment) {
+        checkArgument(alignment >= 0, "alignment cannot be negative.");
+        mSharedLibraryAlignment = alignment;
+    }
+
+    /**
+     * Returns whether an entry with the given name has already been written.
+     */
+    public boolean hasEntry(@NonNull String name) {
+        return mNames.contains(name);
+    }
+
+    /**
+     * Writes a new entry.
+     *
+     * @param name the name of the entry.
+     * @param time the modification time of the entry, in milliseconds.
+     * @param data the buffer containing the content of the entry.
+     * @param offset the offset of the content in the buffer.
+     * @param length the length of the content.
+     * @param compress whether to deflate the content or store it.
+     */
+    public void writeEntry(@NonNull String name, long time, @NonNull byte[] data,
+            int offset, int length, boolean compress) throws IOException {
+        checkState(!mClosed, "ZipWriter is closed.");
+        writePreparedEntry(prepare(name, time, data, offset, length, compress, mDeflater));
+    }
+
+    /**
+     * Compresses the content of a new entry so that it can be written later with
+     * {@link #writePreparedEntry(PreparedEntry)}. This can be called from any thread.
+     *
+     * @param name the name of the entry.
+     * @param time the modification time of the entry, in milliseconds.
+     * @param data the buffer containing the content of the entry. It is kept by the prepared
+     *             entry if the content is stored.
+     * @param offset the offset of the content in the buffer.
+     * @param length the length of the content.
+     * @param compress whether to deflate the content or store it.
+     * @param deflater the deflater to compress the content with. It must have been created
+     *                 with <code>nowrap</code> set. It is reset before being used.
+     */
+    @NonNull
+    public static PreparedEntry prepare(@NonNull String name, long time, @NonNull byte[] data,
+            int offset, int length, boolean compress, @NonNull Deflater deflater)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+
+        if (compress) {
+            Buffer compressed = new Buffer(length / 2 + 64);
+            deflater.reset();
+            DeflaterOutputStream dos = new DeflaterOutputStream(compressed, deflater, 8192);
+            dos.write(data, offset, length);
+            dos.finish();
+
+            return new PreparedEntry(name, ZipEntry.DEFLATED, toDosTime(time), crc.getValue(),
+                    length, compressed.getBuffer(), 0, compressed.size());
+        }
+
+        return new PreparedEntry(name, ZipEntry.STORED, toDosTime(time), crc.getValue(),
+                length, data, offset, length);
+    }
+
+    /**
+     * Writes an entry prepared with
+     * {@link #prepare(String, long, byte[], int, int, boolean, Deflater)}.
+     */
+    public void writePreparedEntry(@NonNull PreparedEntry entry) throws IOException {
+        Record record = newRecord(entry.mName);
+        record.mMethod = entry.mMethod;
+        record.mVersion = entry.mMethod == ZipEntry.STORED ? VERSION_STORED : VERSION_DEFLATED;
+        record.mDosTime = entry.mDosTime;
+        record.mCrc = entry.mCrc;
+        record.mCompressedSize = entry.mLength;
+        record.mSize = entry.mSize;
+        writeLocalHeader(record);
+        mOut.write(entry.mData, entry.mOffset, entry.mLength);
+
+        mOffset += record.mCompressedSize;
+    }
+
+    /**
+     * Writes an entry of another zip file, copying its data without recompressing it.
+     *
+     * @param archive the other zip file.
+     * @param entry the entry, read from the central directory of the other zip file.
+     */
+    public void writeRawEntry(@NonNull ZipArchive archive, @NonNull ZipArchive.Entry entry)
+            throws IOException {
+        writeRawHeader(entry);
+        archive.transferRaw(entry, mOut);
+
+        mOffset += entry.getCompressedSize();
+    }
+
+    /**
+     * Writes an entry from its data as stored in another zip file, without recompressing it.
+     *
+     * @param entry the entry, read from the central directory of the other zip file.
+     * @param rawData the data of the entry, as returned by {@link ZipArchive#openRaw}.
+     */
+    public void writeRawEntry(@NonNull ZipArchive.Entry entry, @NonNull InputStream rawData)
+            throws IOException {
+        Record record = writeRawHeader(entry);
+
+        long remaining = entry.getCompressedSize();
+        while (remaining > 0) {
+            int count = rawData.read(mBuffer, 0, (int) Math.min(mBuffer.length, remaining));
+            if (count == -1) {
+                throw new IOException("Unexpected end of data for " + entry.getName());
+            }
+            mOut.write(mBuffer, 0, count);
+            remaining -= count;
+        }
+
+        mOffset += record.mCompressedSize;
+    }
+
+    /**
+     * Writes the central directory and closes the stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+
+        try {
+            long directoryOffset = mOffset;
+            for (Record record : mRecords) {
+                writeCentralHeader(record);
+            }
+            long directorySize = mOffset - directoryOffset;
+
+            checkState(mRecords.size() < 0xFFFF && mOffset < 0xFFFFFFFFL,
+                    "Zip64 is not supported.");
+
+            byte[] end = new byte[ZipArchive.END_SIZE];
+            putInt(end, 0, ZipArchive.END_SIGNATURE);
+            putShort(end, 8, mRecords.size());
+            putShort(end, 10, mRecords.size());
+            putInt(end, 12, directorySize);
+            putInt(end, 16, directoryOffset);
+            mOut.write(end);
+        } finally {
+            mDeflater.end();
+            mOut.close();
+        }
+    }
+
+    /**
+     * Converts a time in milliseconds into the MS-DOS format used by zip files, with the date
+     * in the high 16 bits.
+     */
+    public static int toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            // 1980-01-01 00:00, the earliest date that can be represented.
+            return (1 << 21) | (1 << 16);
+        }
+
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /**
+     * Converts a time in MS-DOS format to a time in milliseconds.
+     */
+    public static long fromDosTime(int dosTime) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(
+                ((dosTime >> 25) & 0x7f) + 1980,
+                ((dosTime >> 21) & 0x0f) - 1,
+                (dosTime >> 16) & 0x1f,
+                (dosTime >> 11) & 0x1f,
+                (dosTime >> 5) & 0x3f,
+                (dosTime << 1) & 0x3e);
+        return calendar.getTimeInMillis();
+    }
+
+    @NonNull
+    private Record newRecord(@NonNull String name) throws ZipException {
+        checkState(!mClosed, "ZipWriter is closed.");
+        if (!mNames.add(name)) {
+            throw new ZipException("duplicate entry: " + name);
+        }
+
+        Record record = new Record();
+        record.mName = name.getBytes(Charsets.UTF_8);
+        record.mSharedLibrary = name.endsWith(".so");
+        // only flag the names that need it, for the sake of older readers.
+        record.mFlags = record.mName.length != name.length() ? ZipArchive.FLAG_UTF8 : 0;
+        record.mOffset = mOffset;
+        mRecords.add(record);
+        return record;
+    }
+
+    @NonNull
+    private Record writeRawHeader(@NonNull ZipArchive.Entry entry) throws IOException {
+        checkArgument(entry.getMethod() == ZipEntry.STORED
+                || entry.getMethod() == ZipEntry.DEFLATED,
+                "Unsupported compression method for %s", entry.getName());
+
+        Record record = newRecord(entry.getName());
+        record.mMethod = entry.getMethod();
+        record.mVersion = entry.getMethod() == ZipEntry.STORED
+                ? VERSION_STORED : VERSION_DEFLATED;
+        record.mDosTime = entry.getDosTime();
+        record.mCrc = entry.getCrc();
+        record.mCompressedSize = entry.getCompressedSize();
+        record.mSize = entry.getSize();
+        writeLocalHeader(record);
+        return record;
+    }
+
+    private void writeLocalHeader(@NonNull Record record) throws IOException {
+        byte[] header = mHeader;
+        putInt(header, 0, ZipArchive.LOCAL_HEADER_SIGNATURE);
+        putShort(header, 4, record.mVersion);
+        putShort(header, 6, record.mFlags);
+        putShort(header, 8, record.mMethod);
+        putInt(header, 10, record.mDosTime);
+        putInt(header, 14, record.mCrc);
+        putInt(header, 18, record.mCompressedSize);
+        putInt(header, 22, record.mSize);
+        putShort(header, 26, record.mName.length);
+
+        // the extra field pads the header so that the data starts at an aligned offset.
+        int alignment = record.mSharedLibrary && mSharedLibraryAlignment > 0
+                ? mSharedLibraryAlignment : mAlignment;
+        int padding = 0;
+        if (alignment > 1 && record.mMethod == ZipEntry.STORED) {
+            long dataOffset = mOffset + ZipArchive.LOCAL_HEADER_SIZE + record.mName.length;
+            padding = (int) ((alignment - dataOffset % alignment) % alignment);
+        }
+        putShort(header, 28, padding);
+
+        mOut.write(header, 0, ZipArchive.LOCAL_HEADER_SIZE);
+        mOut.write(record.mName);
+        for (int i = 0; i < padding; i++) {
+            mOut.write(0);
+        }
+
+        mOffset += ZipArchive.LOCAL_HEADER_SIZE + record.mName.length + padding;
+    }
+
+    private void writeCentralHeader(@NonNull Record record) throws IOException {
+        byte[] header = mHeader;
+        putInt(header, 0, ZipArchive.CENTRAL_HEADER_SIGNATURE);
+        putShort(header, 4, record.mVersion);
+        putShort(header, 6, record.mVersion);
+        putShort(header, 8, record.mFlags);
+        putShort(header, 10, record.mMethod);
+        putInt(header, 12, record.mDosTime);
+        putInt(header, 16, record.mCrc);
+        putInt(header, 20, record.mCompressedSize);
+        putInt(header, 24, record.mSize);
+        putShort(header, 28, record.mName.length);
+        putShort(header, 30, 0 /*extra length*/);
+        putShort(header, 32, 0 /*comment length*/);
+        putShort(header, 34, 0 /*disk number*/);
+        putShort(header, 36, 0 /*internal attributes*/);
+        putInt(header, 38, 0 /*external attributes*/);
+        putInt(header, 42, record.mOffset);
+        mOut.write(header, 0, ZipArchive.CENTRAL_HEADER_SIZE);
+        mOut.write(record.mName);
+
+        mOffset += ZipArchive.CENTRAL_HEADER_SIZE + record.mName.length;
+    }
+
+    private static void putShort(@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(@NonNull byte[] buffer, int offset, long value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder;
+
+import com.android.builder.dexing.PreDexCache;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class AndroidBuilderTest extends TestCase {
+
+    public void testPreDexCacheLocation() throws Exception {
+        // the classes of the libraries are dexed with the ones of the variant.
+        assertNull(AndroidBuilder.getPreDexCacheLocation(dexOptions(false), null));
+
+        // test apks pre-dex their libraries in the given folder.
+        assertEquals(new File("/build/pre-dexed"),
+                AndroidBuilder.getPreDexCacheLocation(dexOptions(false), "/build/pre-dexed"));
+
+        // the shared cache is used when pre-dexing by choice.
+        assertEquals(PreDexCache.getDefaultLocation(),
+                AndroidBuilder.getPreDexCacheLocation(dexOptions(true), "/build/pre-dexed"));
+    }
+
+    private static DexOptions dexOptions(final boolean preDexLibraries) {
+        return new DexOptions() {
+            @Override
+            public boolean isInProcess() {
+                return false;
+            }
+
+            @Override
+            public boolean isPreDexLibraries() {
+                return preDexLibraries;
+            }
+
+            @Override
+            public boolean isIncremental() {
+                return false;
+            }
+
+            @Override
+            public int getShardCount() {
+                return 1;
+            }
+        };
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder;
+
+import junit.framework.TestCase;
+
+public class ToolSchedulerTest extends TestCase {
+
+    private final static long GB = 1024L * 1024L * 1024L;
+
+    public void testToolName() {
+        assertEquals("aapt", ToolScheduler.getToolName("/sdk/platform-tools/aapt"));
+        assertEquals("dx", ToolScheduler.getToolName("c:\\sdk\\platform-tools\\dx.bat"));
+        assertEquals("aidl", ToolScheduler.getToolName("aidl.exe"));
+    }
+
+    public void testLimitByCores() {
+        ToolScheduler scheduler = new ToolScheduler(4, 64 * GB);
+
+        assertEquals(4, scheduler.getToolLimit("aapt"));
+        assertEquals(4, scheduler.getToolLimit("dx"));
+    }
+
+    public void testLimitByMemory() {
+        ToolScheduler scheduler = new ToolScheduler(16, 2 * GB);
+
+        assertEquals(2, scheduler.getToolLimit("dx"));
+        assertEquals(8, scheduler.getToolLimit("aapt"));
+        assertEquals(16, scheduler.getToolLimit("aidl"));
+    }
+
+    public void testLimitIsNeverZero() {
+        ToolScheduler scheduler = new ToolScheduler(8, 100 * 1024 * 1024);
+
+        assertEquals(1, scheduler.getToolLimit("dx"));
+    }
+
+    public void testOverride() {
+        ToolScheduler scheduler = new ToolScheduler(8, 64 * GB);
+        scheduler.setToolLimit("dx", 3);
+
+        assertEquals(3, scheduler.getToolLimit("dx"));
+    }
+
+    public void testOutputBufferKeepsTail() {
+        CommandLineRunner.OutputBuffer buffer = new CommandLineRunner.OutputBuffer(10);
+        buffer.append("first");
+        buffer.append("second");
+        buffer.append("third");
+
+        assertEquals(19, buffer.getTotalSize());
+        assertEquals("[...]\nthird\n", buffer.toString());
+    }
+
+    public void testOutputBufferTruncatesLongLine() {
+        CommandLineRunner.OutputBuffer buffer = new CommandLineRunner.OutputBuffer(10);
+        buffer.append("first");
+        buffer.append("0123456789abcdef");
+
+        assertEquals(23, buffer.getTotalSize());
+        assertEquals("[...]\n789abcdef\n", buffer.toString());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.cache;
+
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ActionCacheTest extends TestCase {
+
+    private File mRoot;
+    private ActionCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+        mCache = new ActionCache(new File(mRoot, "cache"), 1024 * 1024, new NullLogger());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ActionCache.deleteRecursively(mRoot);
+    }
+
+    public void testKeyDependsOnInputContent() throws Exception {
+        File input = write("in/a.txt", "a");
+        List<String> command = Arrays.asList("/sdk/aapt", "package");
+        List<File> inputs = Collections.singletonList(input.getParentFile());
+
+        String key1 = mCache.computeKey(command, inputs);
+        assertEquals(key1, mCache.computeKey(command, inputs));
+
+        write("in/a.txt", "bb");
+        assertFalse(key1.equals(mCache.computeKey(command, inputs)));
+
+        write("in/a.txt", "a");
+        assertEquals(key1, mCache.computeKey(command, inputs));
+
+        write("in/b.txt", "a");
+        assertFalse(key1.equals(mCache.computeKey(command, inputs)));
+    }
+
+    public void testKeyIgnoresToolLocation() throws Exception {
+        List<File> inputs = Collections.emptyList();
+
+        assertEquals(
+                mCache.computeKey(Arrays.asList("/sdk1/dx", "--dex"), inputs),
+                mCache.computeKey(Arrays.asList("/sdk2/dx", "--dex"), inputs));
+        assertFalse(mCache.computeKey(Arrays.asList("/sdk/dx", "--dex"), inputs).equals(
+                mCache.computeKey(Arrays.asList("/sdk/dx", "--dex", "--verbose"), inputs)));
+    }
+
+    public void testKeyDependsOnToolJar() throws Exception {
+        File dx = write("sdk/platform-tools/dx", "script");
+        File dxJar = write("sdk/platform-tools/lib/dx.jar", "dx 1");
+        List<String> command = Arrays.asList(dx.getPath(), "--dex");
+        List<File> inputs = Collections.emptyList();
+
+        String key1 = mCache.computeKey(command, inputs);
+
+        // a new dx behind the same script.
+        write("sdk/platform-tools/lib/dx.jar", "dx 2");
+        dxJar.setLastModified(dxJar.lastModified() + 10000);
+        assertFalse(key1.equals(mCache.computeKey(command, inputs)));
+    }
+
+    public void testStoreAndRestore() throws Exception {
+        File outFile = write("out/classes.dex", "dex");
+        File outDir = write("out/res/drawable/icon.png", "png").getParentFile().getParentFile();
+        File absent = new File(mRoot, "out/Manifest.java");
+        List<File> outputs = Arrays.asList(outFile, outDir, absent);
+
+        assertFalse(mCache.restore("key", outputs));
+        mCache.store("key", outputs);
+
+        ActionCache.deleteRecursively(new File(mRoot, "out"));
+        write("out/Manifest.java", "stale");
+        write("out/res/stale.png", "stale");
+
+        assertTrue(mCache.restore("key", outputs));
+        assertEquals("dex", Files.toString(outFile, Charsets.UTF_8));
+        assertEquals("png",
+                Files.toString(new File(outDir, "drawable/icon.png"), Charsets.UTF_8));
+        assertFalse(new File(outDir, "stale.png").exists());
+        assertFalse(absent.exists());
+    }
+
+    public void testEviction() throws Exception {
+        ActionCache cache = new ActionCache(new File(mRoot, "small"), 10, new NullLogger());
+        File output = write("out.bin", "123456");
+        List<File> outputs = Collections.singletonList(output);
+
+        cache.store("old", outputs);
+        new File(mRoot, "small/old").setLastModified(System.currentTimeMillis() - 10000);
+        cache.store("new", outputs);
+
+        assertFalse(cache.restore("old", outputs));
+        assertTrue(cache.restore("new", outputs));
+    }
+
+    private File write(String path, String content) throws Exception {
+        File file = new File(mRoot, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class BuildStateCacheTest extends TestCase {
+
+    public void testInvalidatedByFileChange() throws Exception {
+        File dir = Files.createTempDir();
+        File file = new File(dir, "AndroidManifest.xml");
+        Files.write("a", file, Charsets.UTF_8);
+        List<File> files = Collections.singletonList(file);
+
+        BuildStateCache cache = new BuildStateCache(60000, 10);
+        assertNull(cache.get("key", String.class, files));
+
+        cache.put("key", files, "value");
+        assertEquals("value", cache.get("key", String.class, files));
+        assertNull(cache.get("key", Integer.class, files));
+
+        Files.write("ab", file, Charsets.UTF_8);
+        assertNull(cache.get("key", String.class, files));
+
+        file.delete();
+        dir.delete();
+    }
+
+    public void testMaxEntries() {
+        List<File> files = Collections.emptyList();
+        BuildStateCache cache = new BuildStateCache(60000, 2);
+        cache.put("a", files, "a");
+        cache.put("b", files, "b");
+        cache.put("c", files, "c");
+
+        assertEquals(2, cache.size());
+        assertEquals("c", cache.get("c", String.class, files));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler;
+
+import com.android.builder.compiler.SourceGenerator.DisplayType;
+import com.android.utils.ILogger;
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+public class SourceGeneratorTest extends TestCase {
+
+    private File mRoot;
+    private File mSrc;
+    private File mOut;
+
+    /**
+     * Writes a .java file and a dep file for each .txt file.
+     */
+    private static class CopyProcessor implements SourceGenerator.Processor {
+        final Set<String> mProcessed = Collections.synchronizedSet(Sets.<String>newHashSet());
+
+        @Override
+        public String getSourceFileExtension() {
+            return "txt";
+        }
+
+        @Override
+        public void process(File filePath, List<File> sourceFolders, File sourceOutputDir,
+                ILogger logger) throws IOException {
+            String name = filePath.getName().replace(".txt", "");
+            File output = new File(sourceOutputDir, name + ".java");
+            Files.copy(filePath, output);
+            Files.write(output.getAbsolutePath() + ": \\\n  " + filePath.getAbsolutePath()
+                    + " \n", new File(output.getPath() + ".d"), Charsets.UTF_8);
+            mProcessed.add(name);
+        }
+
+        @Override
+        public void displayMessage(ILogger logger, DisplayType type, int count) {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+        mSrc = new File(mRoot, "src");
+        mOut = new File(mRoot, "out");
+        mSrc.mkdirs();
+        mOut.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testParallelProcessing() throws Exception {
+        for (int i = 0 ; i < 20 ; i++) {
+            Files.write("content" + i, new File(mSrc, "f" + i + ".txt"), Charsets.UTF_8);
+        }
+
+        CopyProcessor processor = new CopyProcessor();
+        new SourceGenerator(new NullLogger(), 4).processFiles(processor,
+                Collections.singletonList(mSrc), mOut);
+
+        assertEquals(20, processor.mProcessed.size());
+        assertEquals("content7", Files.toString(new File(mOut, "f7.java"), Charsets.UTF_8));
+
+        // nothing changed, nothing to process.
+        processor = new CopyProcessor();
+        new SourceGenerator(new NullLogger(), 4).processFiles(processor,
+                Collections.singletonList(mSrc), mOut);
+        assertTrue(processor.mProcessed.isEmpty());
+    }
+
+    public void testStaleOutputsAreRemoved() throws Exception {
+        File source = new File(mSrc, "a.txt");
+        Files.write("a", source, Charsets.UTF_8);
+
+        SourceGenerator generator = new SourceGenerator(new NullLogger(), 2);
+        generator.processFiles(new CopyProcessor(), Collections.singletonList(mSrc), mOut);
+        assertTrue(new File(mOut, "a.java").isFile());
+
+        // move the file to another source folder: the output must be kept.
+        File otherSrc = new File(mRoot, "other");
+        otherSrc.mkdirs();
+        Files.move(source, new File(otherSrc, "a.txt"));
+        CopyProcessor processor = new CopyProcessor();
+        generator.processFiles(processor, Collections.singletonList(otherSrc), mOut);
+        assertEquals(Collections.singleton("a"), processor.mProcessed);
+        assertTrue(new File(mOut, "a.java").isFile());
+        assertTrue(new File(mOut, "a.java.d").isFile());
+
+        // delete it.
+        new File(otherSrc, "a.txt").delete();
+        generator.processFiles(new CopyProcessor(), Collections.singletonList(otherSrc), mOut);
+        assertFalse(new File(mOut, "a.java").exists());
+        assertFalse(new File(mOut, "a.java.d").exists());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
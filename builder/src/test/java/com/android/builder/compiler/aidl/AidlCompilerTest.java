@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.compiler.aidl;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+
+public class AidlCompilerTest extends TestCase {
+
+    private File mRoot;
+    private File mSrc;
+    private File mOut;
+    private AidlCompiler mCompiler;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+        mSrc = new File(mRoot, "src");
+        mOut = new File(mRoot, "out");
+        File framework = write("framework.aidl",
+                "parcelable android.graphics.Rect;\ninterface android.app.IActivityWatcher;\n");
+        mCompiler = new AidlCompiler(framework, Collections.singletonList(mSrc));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testInterface() throws Exception {
+        File point = write("src/com/example/Point.aidl",
+                "package com.example;\n\nparcelable Point;\n");
+        File aidl = write("src/com/example/ITest.aidl",
+                "package com.example;\n\n" +
+                "import com.example.Point;\n\n" +
+                "/** The test interface. */\n" +
+                "interface ITest {\n" +
+                "    Point getPoint();\n" +
+                "    int add(int a, in int[] b, out Point p);\n" +
+                "}\n");
+
+        File java = mCompiler.compile(aidl, mOut);
+        assertEquals(new File(mOut, "com/example/ITest.java").getAbsoluteFile(), java);
+
+        String code = Files.toString(java, Charsets.UTF_8);
+        assertTrue(code.startsWith("/*\n * This file is auto-generated.  DO NOT MODIFY.\n"
+                + " * Original file: " + aidl.getAbsolutePath() + "\n */\n"
+                + "package com.example;\n"
+                + "/** The test interface. */\n"
+                + "public interface ITest extends android.os.IInterface\n{\n"));
+        assertTrue(code.contains(
+                "_result = com.example.Point.CREATOR.createFromParcel(_reply);\n"));
+        assertTrue(code.contains("_arg2 = new com.example.Point();\n"));
+        assertTrue(code.contains("_data.writeIntArray(b);\n"));
+        assertTrue(code.contains("static final int TRANSACTION_add = "
+                + "(android.os.IBinder.FIRST_CALL_TRANSACTION + 1);\n"));
+        assertTrue(code.endsWith("public int add(int a, int[] b, com.example.Point p) "
+                + "throws android.os.RemoteException;\n}\n"));
+
+        assertEquals(java.getAbsolutePath() + ": \\\n"
+                + "  " + aidl.getAbsolutePath() + " \\\n"
+                + "  " + point.getPath() + " \n"
+                + "\n"
+                + point.getPath() + " :\n",
+                Files.toString(new File(java.getPath() + ".d"), Charsets.UTF_8));
+    }
+
+    public void testParcelable() throws Exception {
+        File aidl = write("src/com/example/Point.aidl",
+                "package com.example;\n\n// a comment\nparcelable Point;\n");
+
+        assertNull(mCompiler.compile(aidl, mOut));
+        assertFalse(new File(mOut, "com/example/Point.java").exists());
+        assertEquals(" : \\\n  " + aidl.getAbsolutePath() + " \n\n",
+                Files.toString(new File(mOut, "com/example/Point.java.d"), Charsets.UTF_8));
+    }
+
+    public void testErrors() throws Exception {
+        File aidl = write("src/com/example/IBad.aidl",
+                "package com.example;\n\n" +
+                "import com.example.Missing;\n\n" +
+                "interface IBad {\n" +
+                "    Unknown get();\n" +
+                "    oneway int count();\n" +
+                "}\n");
+
+        try {
+            mCompiler.compile(aidl, mOut);
+            fail("Expected AidlException");
+        } catch (AidlException e) {
+            String path = aidl.getAbsolutePath();
+            assertEquals(path + ":3: couldn't find import for class com.example.Missing\n"
+                    + path + ":6 unknown return type Unknown\n"
+                    + path + ":7 oneway method 'count' cannot return a value",
+                    e.getMessage());
+        }
+    }
+
+    public void testSyntaxError() throws Exception {
+        File aidl = write("src/com/example/IBad.aidl",
+                "package com.example;\ninterface IBad {\n    void run(;\n}\n");
+
+        try {
+            mCompiler.compile(aidl, mOut);
+            fail("Expected AidlException");
+        } catch (AidlException e) {
+            assertEquals(aidl.getAbsolutePath() + ":3 syntax error, don't know what to do "
+                    + "with \";\"", e.getMessage());
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File write(String path, String content) throws Exception {
+        File file = new File(mRoot, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
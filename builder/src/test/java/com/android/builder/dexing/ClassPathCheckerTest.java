@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class ClassPathCheckerTest extends TestCase {
+
+    private File mRoot;
+    private ClassPathChecker mChecker;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+        mChecker = new ClassPathChecker(new NullLogger());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testDuplicateClass() throws Exception {
+        File classes = new File(mRoot, "classes");
+        write(new File(classes, "com/foo/A.class"), "a");
+        File jar1 = writeJar("lib1.jar", "com/bar/B.class");
+        File jar2 = writeJar("lib2.jar", "com/foo/A.class", "com/bar/C.class");
+
+        mChecker.checkDuplicateClasses(Arrays.asList(classes.getPath(), jar1.getPath()));
+
+        try {
+            mChecker.checkDuplicateClasses(
+                    Arrays.asList(classes.getPath(), jar1.getPath(), jar2.getPath()));
+            fail("Expected DuplicateClassException");
+        } catch (DuplicateClassException e) {
+            assertEquals("com.foo.A", e.getClassName());
+            assertEquals(classes, e.getOrigin1());
+            assertEquals(jar2, e.getOrigin2());
+        }
+    }
+
+    public void testRemoveDuplicateJars() throws Exception {
+        File jar1 = writeJar("a/lib.jar", "com/foo/A.class");
+        File jar2 = writeJar("b/lib.jar", "com/foo/A.class");
+        File jar3 = writeJar("c/lib.jar", "com/foo/B.class");
+
+        assertEquals(Arrays.asList(jar1.getPath(), jar3.getPath()),
+                mChecker.removeDuplicateJars(
+                        Arrays.asList(jar1.getPath(), jar2.getPath(), jar3.getPath())));
+    }
+
+    private File writeJar(String path, String... entries) throws Exception {
+        File jar = new File(mRoot, path);
+        Files.createParentDirs(jar);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (String entry : entries) {
+                ZipEntry zipEntry = new ZipEntry(entry);
+                zipEntry.setTime(0);
+                out.putNextEntry(zipEntry);
+                out.write(entry.getBytes(Charsets.UTF_8));
+            }
+        } finally {
+            out.close();
+        }
+        return jar;
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.android.builder.dexing.DexSharder.ClassEntry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class DexSharderTest extends TestCase {
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testBalance() {
+        List<ClassEntry> entries = Lists.newArrayList();
+        for (long size : new long[] { 10, 10, 10, 10, 40, 10, 10 }) {
+            entries.add(new ClassEntry("C" + entries.size() + ".class", size, mRoot, false));
+        }
+
+        List<List<ClassEntry>> shards = DexSharder.balance(entries, 3);
+        assertEquals(3, shards.size());
+        assertEquals(3, shards.get(0).size());
+        assertEquals(2, shards.get(1).size());
+        assertEquals(2, shards.get(2).size());
+
+        assertEquals(1, DexSharder.balance(entries.subList(0, 1), 3).size());
+        assertEquals(0, DexSharder.balance(Collections.<ClassEntry>emptyList(), 3).size());
+    }
+
+    public void testCreateShards() throws Exception {
+        File classes = new File(mRoot, "classes");
+        write(new File(classes, "com/foo/A.class"), "aaaaaaaaaa");
+        write(new File(classes, "com/foo/B.class"), "bbbbbbbbbb");
+        write(new File(classes, "com/foo/readme.txt"), "not a class");
+
+        File jar = new File(mRoot, "lib.jar");
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        out.putNextEntry(new ZipEntry("com/bar/C.class"));
+        out.write("cccccccccc".getBytes(Charsets.UTF_8));
+        out.putNextEntry(new ZipEntry("com/bar/D.class"));
+        out.write("dddddddddd".getBytes(Charsets.UTF_8));
+        out.close();
+
+        List<String> inputs = Arrays.asList(classes.getPath(), jar.getPath());
+        File shardDir = new File(mRoot, "shards");
+        write(new File(shardDir, "shard-5.jar"), "stale");
+        write(new File(shardDir, "shard-5.dex.jar"), "stale");
+
+        List<File> shards = new DexSharder(2).createShards(inputs, shardDir);
+        assertEquals(2, shards.size());
+        assertEquals(Arrays.asList("com/bar/C.class", "com/bar/D.class"), entries(shards.get(0)));
+        assertEquals(Arrays.asList("com/foo/A.class", "com/foo/B.class"), entries(shards.get(1)));
+        assertFalse(new File(shardDir, "shard-5.jar").exists());
+        assertFalse(new File(shardDir, "shard-5.dex.jar").exists());
+
+        // the same classes give the same shards.
+        byte[] content = Files.toByteArray(shards.get(0));
+        write(new File(classes, "com/foo/A.class"), "AAAAAAAAAA");
+        shards = new DexSharder(2).createShards(inputs, shardDir);
+        assertTrue(Arrays.equals(content, Files.toByteArray(shards.get(0))));
+
+        assertTrue(new DexSharder(1).createShards(inputs, shardDir).isEmpty());
+    }
+
+    private static List<String> entries(File jar) throws Exception {
+        List<String> names = Lists.newArrayList();
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                names.add(entry.getName());
+            }
+        } finally {
+            zipFile.close();
+        }
+        return names;
+    }
+
+    private static void write(File file, String content) throws Exception {
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
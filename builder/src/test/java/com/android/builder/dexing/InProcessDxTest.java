@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.dexing;
+
+import com.android.utils.NullLogger;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.jar.JarOutputStream;
+
+public class InProcessDxTest extends TestCase {
+
+    private final static long MB = 1024L * 1024L;
+
+    public void testMaxConcurrentRuns() {
+        assertEquals(1, InProcessDx.getMaxConcurrentRuns(256 * MB));
+        assertEquals(1, InProcessDx.getMaxConcurrentRuns(512 * MB));
+        assertEquals(4, InProcessDx.getMaxConcurrentRuns(2048 * MB));
+    }
+
+    public void testMissingJar() {
+        assertNull(InProcessDx.get(new File("/does/not/exist/dx.jar"), new NullLogger()));
+    }
+
+    public void testUnsupportedJar() throws Exception {
+        File jar = File.createTempFile("fake-dx", ".jar");
+        try {
+            new JarOutputStream(new FileOutputStream(jar)).close();
+            assertNull(InProcessDx.get(jar, new NullLogger()));
+        } finally {
+            jar.delete();
+        }
+    }
+}
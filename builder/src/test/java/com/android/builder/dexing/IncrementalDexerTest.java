@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+public class IncrementalDexerTest extends TestCase {
+
+    private File mRoot;
+    private File mClasses;
+    private IncrementalDexer mDexer;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+        mClasses = new File(mRoot, "classes");
+        File dx = write(new File(mRoot, "dx.jar"), "dx");
+        mDexer = new IncrementalDexer(new File(mRoot, "work"), dx);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testUpdate() throws Exception {
+        for (int i = 0; i < IncrementalDexer.MAX_FRAGMENT_CLASSES + 1; i++) {
+            write(new File(mClasses, "com/foo/C" + i + ".class"), "class " + i);
+        }
+
+        // clean build.
+        IncrementalDexer.Fragments fragments = update();
+        assertEquals(2, fragments.getStaleFragments().size());
+        assertEquals(2, fragments.getDexFiles().size());
+
+        // nothing changed.
+        assertEquals(0, update().getStaleFragments().size());
+
+        // recompiled without change.
+        File c0 = new File(mClasses, "com/foo/C0.class");
+        c0.setLastModified(c0.lastModified() - 10000);
+        assertEquals(0, update().getStaleFragments().size());
+
+        // one class changed.
+        write(c0, "changed");
+        fragments = update();
+        assertEquals(1, fragments.getStaleFragments().size());
+        assertEquals(2, fragments.getDexFiles().size());
+
+        // one class added.
+        write(new File(mClasses, "com/foo/New.class"), "new");
+        fragments = update();
+        assertEquals(1, fragments.getStaleFragments().size());
+        assertEquals(3, fragments.getDexFiles().size());
+
+        // the class of a fragment removed.
+        new File(mClasses, "com/foo/New.class").delete();
+        fragments = update();
+        assertEquals(0, fragments.getStaleFragments().size());
+        assertEquals(2, fragments.getDexFiles().size());
+    }
+
+    public void testLargeUpdatesUseFewFragments() throws Exception {
+        int count = IncrementalDexer.MAX_FRAGMENT_CLASSES * IncrementalDexer.MAX_NEW_FRAGMENTS * 2;
+        for (int i = 0; i < count; i++) {
+            write(new File(mClasses, "com/foo/C" + i + ".class"), "class " + i);
+        }
+
+        // clean build.
+        IncrementalDexer.Fragments fragments = update();
+        assertEquals(IncrementalDexer.MAX_NEW_FRAGMENTS, fragments.getStaleFragments().size());
+
+        // one class changed.
+        write(new File(mClasses, "com/foo/C0.class"), "changed");
+        assertEquals(1, update().getStaleFragments().size());
+
+        // most classes changed: all of them are packed again.
+        for (int i = 0; i < count; i += 2) {
+            write(new File(mClasses, "com/foo/C" + i + ".class"), "changed " + i);
+        }
+        fragments = update();
+        assertEquals(IncrementalDexer.MAX_NEW_FRAGMENTS, fragments.getStaleFragments().size());
+        assertEquals(IncrementalDexer.MAX_NEW_FRAGMENTS, fragments.getDexFiles().size());
+    }
+
+    public void testFailedDexIsRetried() throws Exception {
+        write(new File(mClasses, "A.class"), "a");
+
+        List<File> stale = mDexer.update(Collections.singletonList(mClasses.getPath()))
+                .getStaleFragments();
+        assertEquals(1, stale.size());
+
+        // dx did not produce the dex file.
+        assertEquals(stale, update().getStaleFragments());
+    }
+
+    /**
+     * Updates the fragments and writes the dex files of the stale ones.
+     */
+    private IncrementalDexer.Fragments update() throws Exception {
+        IncrementalDexer.Fragments fragments =
+                mDexer.update(Collections.singletonList(mClasses.getPath()));
+        for (File fragment : fragments.getStaleFragments()) {
+            write(DexSharder.getDexFile(fragment), "dex");
+        }
+        for (File dexFile : fragments.getDexFiles()) {
+            assertTrue(dexFile.isFile());
+        }
+        return fragments;
+    }
+
+    private static File write(File file, String content) throws Exception {
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
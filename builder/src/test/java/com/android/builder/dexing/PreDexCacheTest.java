@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.dexing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class PreDexCacheTest extends TestCase {
+
+    private File mRoot;
+    private PreDexCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+        mCache = new PreDexCache(new File(mRoot, "cache"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = new File(mRoot, "cache").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        new File(mRoot, "cache").delete();
+        for (File file : mRoot.listFiles()) {
+            file.delete();
+        }
+        mRoot.delete();
+    }
+
+    public void testEntryKey() throws Exception {
+        File lib1 = write("lib1.jar", "classes");
+        File lib2 = write("lib2.jar", "classes");
+        File dx1 = write("dx1.jar", "dx1");
+        File dx2 = write("dx2.jar", "dx2");
+
+        String version1 = mCache.getDxVersion(dx1);
+        File entry = mCache.getEntry(lib1, version1);
+
+        // same content, same entry.
+        assertEquals(entry, mCache.getEntry(lib2, version1));
+        assertFalse(entry.equals(mCache.getEntry(lib1, mCache.getDxVersion(dx2))));
+
+        // the key changes with the content of the library.
+        lib1.setLastModified(lib1.lastModified() - 10000);
+        write("lib1.jar", "other classes");
+        assertFalse(entry.equals(mCache.getEntry(lib1, version1)));
+    }
+
+    public void testCommit() throws Exception {
+        File entry = mCache.getEntry(write("lib.jar", "classes"), "dx");
+        assertFalse(entry.exists());
+
+        File tempFile = mCache.newTempFile(entry);
+        Files.write("dex", tempFile, Charsets.UTF_8);
+        mCache.commit(tempFile, entry);
+        assertEquals("dex", Files.toString(entry, Charsets.UTF_8));
+        assertFalse(tempFile.exists());
+
+        // a concurrent build committed the same entry.
+        tempFile = mCache.newTempFile(entry);
+        Files.write("dex", tempFile, Charsets.UTF_8);
+        mCache.commit(tempFile, entry);
+        assertTrue(entry.isFile());
+    }
+
+    public void testRemoveUnusedEntries() throws Exception {
+        File used = mCache.getEntry(write("a.jar", "a"), "dx");
+        File unused = mCache.getEntry(write("b.jar", "b"), "dx");
+        Files.write("dex", mCache.newTempFile(used), Charsets.UTF_8);
+        Files.write("dex", used, Charsets.UTF_8);
+        Files.write("dex", unused, Charsets.UTF_8);
+        unused.setLastModified(System.currentTimeMillis() - 40L * 24 * 3600 * 1000);
+
+        mCache.removeUnusedEntries();
+        assertTrue(used.exists());
+        assertFalse(unused.exists());
+    }
+
+    private File write(String path, String content) throws Exception {
+        File file = new File(mRoot, path);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
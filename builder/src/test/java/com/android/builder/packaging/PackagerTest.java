@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.packaging;
+
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class PackagerTest extends TestCase {
+
+    private File mRoot;
+    private File mResources;
+    private File mDex;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+
+        mResources = new File(mRoot, "resources.ap_");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(mResources));
+        try {
+            zos.putNextEntry(new ZipEntry("AndroidManifest.xml"));
+            zos.write("manifest".getBytes(Charsets.UTF_8));
+            zos.putNextEntry(new ZipEntry("res/layout/main.xml"));
+            zos.write("layout".getBytes(Charsets.UTF_8));
+        } finally {
+            zos.close();
+        }
+
+        mDex = write("classes.dex", "dex");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testPlanIsWrittenWhenSealed() throws Exception {
+        File apk = new File(mRoot, "app.apk");
+        Packager packager = new Packager(apk.getPath(), mResources.getPath(), mDex.getPath(),
+                null /*signingInfo*/, new NullLogger());
+        write("src/com/foo/data.txt", "data");
+        new JavaResourceProcessor(packager).addSourceFolder(new File(mRoot, "src").getPath());
+
+        assertEquals(Arrays.asList(
+                "AndroidManifest.xml", "res/layout/main.xml", "classes.dex", "com/foo/data.txt"),
+                Arrays.asList(packager.getPlan().getArchivePaths().toArray()));
+        assertEquals(mResources, packager.getPlan().getSource("res/layout/main.xml"));
+        assertEquals(0, apk.length());
+
+        packager.sealApk();
+
+        ZipFile zipFile = new ZipFile(apk);
+        try {
+            assertEquals(4, zipFile.size());
+            assertNotNull(zipFile.getEntry("com/foo/data.txt"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testDuplicateFoundBeforeWriting() throws Exception {
+        File apk = write("app.apk", "previous apk");
+        Packager packager = new Packager(apk.getPath(), mResources.getPath(), mDex.getPath(),
+                null /*signingInfo*/, new NullLogger());
+        File layout = write("main.xml", "other layout");
+
+        try {
+            packager.addFile(layout, "res/layout/main.xml");
+            fail("Expected a DuplicateFileException");
+        } catch (DuplicateFileException e) {
+            assertEquals("res/layout/main.xml", e.getArchivePath());
+            assertEquals(mResources, e.getFile1());
+            assertEquals(layout, e.getFile2());
+        }
+
+        // nothing was written.
+        assertEquals("previous apk", Files.toString(apk, Charsets.UTF_8));
+    }
+
+    private File write(String path, String content) throws Exception {
+        File file = new File(mRoot, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
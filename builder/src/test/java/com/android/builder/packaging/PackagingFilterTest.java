@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.packaging;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class PackagingFilterTest extends TestCase {
+
+    public void testDefaultRules() {
+        PackagingFilter filter = PackagingFilter.DEFAULT;
+
+        assertTrue(filter.checkPath("com/foo/data.txt"));
+        assertTrue(filter.checkPath("lib/armeabi/libfoo.so"));
+        assertTrue(filter.checkPath("dir.java/data"));
+        assertFalse(filter.checkPath("META-INF/foo.txt"));
+        assertFalse(filter.checkPath("com/.svn/entries"));
+        assertFalse(filter.checkPath("com/cvs/foo.txt"));
+        assertFalse(filter.checkPath("com/_private/foo.txt"));
+        assertFalse(filter.checkPath("com/foo/Foo.class"));
+        assertFalse(filter.checkPath("com/foo/Foo.JAVA"));
+        assertFalse(filter.checkPath("com/foo/.hidden"));
+        assertFalse(filter.checkPath("com/foo/backup~"));
+        assertFalse(filter.checkPath("com/foo/Thumbs.db"));
+        assertFalse(filter.checkPath("com/foo/"));
+
+        assertTrue(JavaResourceProcessor.checkFileForPackaging("foo.d.txt"));
+        assertFalse(JavaResourceProcessor.checkFileForPackaging("foo.d"));
+        assertFalse(JavaResourceProcessor.checkFolderForPackaging("SCCS"));
+    }
+
+    public void testGlobs() {
+        PackagingFilter filter = new PackagingFilter(
+                Collections.<String>emptyList(),
+                Arrays.asList("**/LICENSE*", "docs/*.html", "a?c/**"));
+
+        assertFalse(filter.checkPath("LICENSE"));
+        assertFalse(filter.checkPath("org/apache/LICENSE.txt"));
+        assertFalse(filter.checkPath("docs/index.html"));
+        assertTrue(filter.checkPath("docs/api/index.html"));
+        assertFalse(filter.checkPath("abc/d/e.txt"));
+        assertTrue(filter.checkPath("a/c/d.txt"));
+        assertTrue(filter.checkPath("org/apache/NOTICE"));
+
+        filter = new PackagingFilter(
+                Collections.singletonList("assets/**"), Collections.<String>emptyList());
+        assertTrue(filter.checkPath("assets/data/file.bin"));
+        assertFalse(filter.checkPath("other/file.bin"));
+    }
+}
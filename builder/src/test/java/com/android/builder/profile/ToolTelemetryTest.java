@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.builder.profile;
+
+import com.android.builder.profile.ToolTelemetry.Invocation;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class ToolTelemetryTest extends TestCase {
+
+    public void testContext() throws Exception {
+        final ToolTelemetry telemetry = new ToolTelemetry();
+        telemetry.setContext("debug", ":processDebugRes");
+
+        Invocation invocation = telemetry.newInvocation("aapt", Arrays.asList("aapt", "crunch"));
+        assertEquals("debug", invocation.getVariant());
+        assertEquals(":processDebugRes", invocation.getStep());
+        assertEquals("aapt crunch", invocation.getCommand());
+
+        // threads without a context get the last one set.
+        final Invocation[] other = new Invocation[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other[0] = telemetry.newInvocation("dx", Arrays.asList("dx"));
+            }
+        };
+        thread.start();
+        thread.join();
+        assertEquals(":processDebugRes", other[0].getStep());
+
+        // invocations are only recorded when they end.
+        assertTrue(telemetry.getInvocations().isEmpty());
+        telemetry.start(invocation);
+        telemetry.end(invocation, 1, 42, null);
+        telemetry.endCached(other[0]);
+
+        List<Invocation> invocations = telemetry.getInvocations();
+        assertEquals(2, invocations.size());
+        assertEquals(1, invocations.get(0).getExitCode());
+        assertEquals(42, invocations.get(0).getOutputSize());
+        assertEquals(-1, invocations.get(0).getCpuTimeMs());
+        assertTrue(invocations.get(0).getWallTimeMs() >= 0);
+        assertTrue(invocations.get(1).isCached());
+
+        String summary = telemetry.getSummary(1);
+        assertTrue(summary, summary.contains("aapt"));
+        assertTrue(summary, summary.contains("1 failed"));
+        assertTrue(summary, summary.contains("1 cached"));
+    }
+
+    public void testReport() throws Exception {
+        ToolTelemetry telemetry = new ToolTelemetry();
+        telemetry.setContext(null, ":a\"b");
+        Invocation invocation = telemetry.newInvocation("aidl", Arrays.asList("c:\\aidl"));
+        telemetry.start(invocation);
+        telemetry.end(invocation, 0, 0, null);
+
+        File dir = Files.createTempDir();
+        try {
+            File report = new File(dir, "reports/tools.json");
+            telemetry.writeReport(report);
+
+            String json = Files.toString(report, Charsets.UTF_8);
+            assertTrue(json, json.contains("\"variant\": null"));
+            assertTrue(json, json.contains("\"step\": \":a\\\"b\""));
+            assertTrue(json, json.contains("\"command\": \"c:\\\\aidl\""));
+            assertTrue(json, json.contains("\"aidl\": {\"count\": 1, \"cached\": 0, \"failed\": 0"));
+        } finally {
+            new File(dir, "reports/tools.json").delete();
+            new File(dir, "reports").delete();
+            dir.delete();
+        }
+    }
+}
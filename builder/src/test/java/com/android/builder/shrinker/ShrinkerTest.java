@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.shrinker;
+
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+public class ShrinkerTest extends TestCase {
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testKeepRules() throws Exception {
+        File rules = write("rules.txt",
+                "# view res/layout/main.xml #generated:7\n"
+                + "-keep class com.foo.MyView { <init>(...); }\n"
+                + "-keep public class * extends android.app.Service\n"
+                + "-keepclassmembers class com.foo.** { *; }\n"
+                + "-keepnames class com.foo.Named\n");
+        KeepRules keepRules = new KeepRules();
+        keepRules.addRules(rules);
+
+        List<String> none = Collections.emptyList();
+        assertTrue(keepRules.isKept("com/foo/MyView", none));
+        assertTrue(keepRules.isKept("com/bar/S",
+                Lists.newArrayList("android/app/Service", "java/lang/Object")));
+        assertFalse(keepRules.isKept("com/bar/S", none));
+        assertFalse(keepRules.isKept("com/foo/Other", none));
+        assertTrue(keepRules.isMembersKept("com/foo/sub/Other", none));
+        assertFalse(keepRules.isKept("com/foo/Named", none));
+    }
+
+    public void testShrink() throws Exception {
+        File classes = compile(
+                "package com.foo; public class Main {"
+                        + " public void run() { new Used().used(); new Task().run(); } }",
+                "package com.foo; public class Used {"
+                        + " public void used() {} public void unused() {}"
+                        + " public String toString() { return null; } }",
+                "package com.foo; public class Unused {}",
+                "package com.foo; public class Task implements Runnable {"
+                        + " public void run() {} public void extra() {} }");
+
+        File manifest = write("AndroidManifest.xml",
+                "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\""
+                + " package=\"com.foo\">"
+                + "<application><activity android:name=\".Main\" /></application>"
+                + "</manifest>");
+        KeepRules rules = new KeepRules();
+        rules.addManifest(manifest);
+
+        List<String> outputs = new Shrinker(new NullLogger()).shrink(
+                Collections.singletonList(classes.getPath()), rules, new File(mRoot, "out"));
+        assertEquals(1, outputs.size());
+
+        ZipFile jar = new ZipFile(outputs.get(0));
+        try {
+            assertNotNull(jar.getEntry("com/foo/Main.class"));
+            assertNotNull(jar.getEntry("com/foo/Task.class"));
+            assertNull(jar.getEntry("com/foo/Unused.class"));
+
+            assertEquals(Lists.newArrayList("<init>()V", "used()V", "toString()Ljava/lang/String;"),
+                    getMethods(jar, "com/foo/Used.class"));
+            // Runnable is not part of the inputs, the methods of Task may be called by it.
+            assertEquals(Lists.newArrayList("<init>()V", "run()V", "extra()V"),
+                    getMethods(jar, "com/foo/Task.class"));
+        } finally {
+            jar.close();
+        }
+
+        // the rewritten class is still valid.
+        URL url = new File(outputs.get(0)).toURI().toURL();
+        ClassLoader loader = new URLClassLoader(new URL[] { url }, null /*parent*/);
+        assertEquals(2, loader.loadClass("com.foo.Used").getDeclaredMethods().length);
+    }
+
+    private static List<String> getMethods(ZipFile jar, String path) throws Exception {
+        InputStream in = jar.getInputStream(jar.getEntry(path));
+        byte[] bytes;
+        try {
+            bytes = ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+
+        List<String> methods = Lists.newArrayList();
+        for (ClassInfo.MethodInfo method : ClassInfo.parse(bytes).mMethods) {
+            methods.add(method.getKey());
+        }
+        return methods;
+    }
+
+    private File compile(String... sources) throws Exception {
+        File classes = new File(mRoot, "classes");
+        classes.mkdirs();
+
+        List<String> args = Lists.newArrayList("-d", classes.getPath());
+        for (String source : sources) {
+            String name = source.substring(source.indexOf("class ") + 6);
+            name = name.substring(0, name.indexOf(' '));
+            args.add(write("src/" + name + ".java", source).getPath());
+        }
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+        return classes;
+    }
+
+    private File write(String path, String content) throws Exception {
+        File file = new File(mRoot, path);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
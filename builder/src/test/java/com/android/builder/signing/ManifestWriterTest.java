@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.signing;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+public class ManifestWriterTest extends TestCase {
+
+    public void testSignatureFileMatchesManifest() throws Exception {
+        String longName = "res/raw/" + repeat("a", 100) + ".txt";
+        // a multi-byte character across the 72 bytes limit.
+        String utf8Name = "res/raw/" + repeat("b", 57) + "\u00e9\u00e9.txt";
+        byte[] digest = MessageDigest.getInstance("SHA1").digest(new byte[] { 1 });
+
+        ManifestWriter writer = new ManifestWriter("SHA1");
+        writer.addEntry("classes.dex", digest);
+        writer.addEntry(longName, digest);
+        writer.addEntry(utf8Name, digest);
+
+        ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+        writer.writeManifest(manifestOut);
+        byte[] manifestBytes = manifestOut.toByteArray();
+        ByteArrayOutputStream sfOut = new ByteArrayOutputStream();
+        writer.writeSignatureFile(sfOut);
+
+        String encodedDigest = ManifestWriter.encode(digest);
+        Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+        assertEquals("1.0", manifest.getMainAttributes().getValue("Manifest-Version"));
+        assertEquals(3, manifest.getEntries().size());
+        for (String name : Arrays.asList("classes.dex", longName, utf8Name)) {
+            assertEquals(encodedDigest, manifest.getAttributes(name).getValue("SHA1-Digest"));
+        }
+
+        Manifest sf = new Manifest(new ByteArrayInputStream(sfOut.toByteArray()));
+        MessageDigest md = MessageDigest.getInstance("SHA1");
+        assertEquals(ManifestWriter.encode(md.digest(manifestBytes)),
+                sf.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+
+        // each section of the manifest ends with an empty line.
+        String manifestText = new String(manifestBytes, "UTF-8");
+        String[] sections = manifestText.split("(?<=\r\n\r\n)");
+        assertEquals(4, sections.length);
+        for (int i = 1; i < sections.length; i++) {
+            String name = new Manifest(new ByteArrayInputStream(sections[i].getBytes("UTF-8")))
+                    .getMainAttributes().getValue("Name");
+            Attributes attributes = sf.getAttributes(name);
+            assertEquals(ManifestWriter.encode(md.digest(sections[i].getBytes("UTF-8"))),
+                    attributes.getValue("SHA1-Digest"));
+        }
+
+        for (String line : manifestText.split("\r\n")) {
+            assertTrue(line, line.getBytes("UTF-8").length <= 72);
+        }
+    }
+
+    public void testEncode() {
+        assertEquals("", ManifestWriter.encode(new byte[0]));
+        assertEquals("Zg==", ManifestWriter.encode(new byte[] { 'f' }));
+        assertEquals("Zm8=", ManifestWriter.encode(new byte[] { 'f', 'o' }));
+        assertEquals("Zm9v", ManifestWriter.encode(new byte[] { 'f', 'o', 'o' }));
+        assertEquals("+/8=", ManifestWriter.encode(new byte[] { (byte) 0xFB, (byte) 0xFF }));
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.signing;
+
+import com.android.builder.zip.CompressedEntryCache;
+import com.android.builder.zip.CompressionPolicy;
+import com.android.builder.zip.ZipAlignVerifier;
+import com.android.utils.NullLogger;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class SignedJarBuilderTest extends TestCase {
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testParallelCompressionKeepsOrder() throws Exception {
+        Random random = new Random(42);
+        File input = new File(mRoot, "res.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(input));
+        try {
+            for (int i = 0; i < 20; i++) {
+                zos.putNextEntry(new ZipEntry("res/raw/file" + i));
+                zos.write(content(random, 5000));
+            }
+        } finally {
+            zos.close();
+        }
+
+        File[] files = new File[30];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(mRoot, "file" + i);
+            Files.write(content(random, random.nextInt(20000)), files[i]);
+        }
+
+        File serial = new File(mRoot, "serial.apk");
+        File parallel = new File(mRoot, "parallel.apk");
+        build(serial, input, files, 1);
+        build(parallel, input, files, 4);
+
+        assertTrue(Arrays.equals(Files.toByteArray(serial), Files.toByteArray(parallel)));
+
+        ZipFile zipFile = new ZipFile(parallel);
+        try {
+            assertEquals(50, zipFile.size());
+            assertTrue(Arrays.equals(Files.toByteArray(files[7]),
+                    ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("file7")))));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testPreviousJar() throws Exception {
+        File a = new File(mRoot, "a.txt");
+        File b = new File(mRoot, "b.txt");
+        File c = new File(mRoot, "c.txt");
+        Files.write("a", a, Charsets.UTF_8);
+        Files.write("b", b, Charsets.UTF_8);
+        Files.write("c", c, Charsets.UTF_8);
+
+        File first = new File(mRoot, "first.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(first),
+                null /*key*/, null /*certificate*/);
+        builder.writeFile(a, "a.txt");
+        builder.writeFile(b, "b.txt");
+        builder.writeFile(c, "c.txt");
+        builder.close();
+        File indexFile = new File(mRoot, "first.index");
+        builder.getIndex().save(indexFile);
+
+        // replace the entries of the previous jar to see which ones are copied.
+        File previous = new File(mRoot, "previous.apk");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(previous));
+        try {
+            for (String name : new String[] { "a.txt", "b.txt", "c.txt" }) {
+                zos.putNextEntry(new ZipEntry(name));
+                zos.write("previous".getBytes(Charsets.UTF_8));
+            }
+        } finally {
+            zos.close();
+        }
+
+        // b is touched but not modified, c is modified.
+        b.setLastModified(b.lastModified() - 10000);
+        Files.write("cc", c, Charsets.UTF_8);
+
+        File second = new File(mRoot, "second.apk");
+        builder = new SignedJarBuilder(new FileOutputStream(second),
+                null /*key*/, null /*certificate*/);
+        builder.setPreviousJar(previous, JarIndex.load(indexFile));
+        builder.writeFile(a, "a.txt");
+        builder.writeFile(b, "b.txt");
+        builder.writeFile(c, "c.txt");
+        builder.close();
+
+        ZipFile zipFile = new ZipFile(second);
+        try {
+            assertEquals("previous", read(zipFile, "a.txt"));
+            // the digest of the unchanged content matched the one of the index.
+            assertEquals("previous", read(zipFile, "b.txt"));
+            assertEquals("cc", read(zipFile, "c.txt"));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testCompressedEntryCache() throws Exception {
+        File file = new File(mRoot, "lib.so");
+        Files.write(content(new Random(42), 20000), file);
+        CompressedEntryCache cache = new CompressedEntryCache(1024 * 1024);
+
+        File[] outputs = new File[2];
+        for (int i = 0; i < outputs.length; i++) {
+            outputs[i] = new File(mRoot, "variant" + i + ".apk");
+            SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(outputs[i]),
+                    null /*key*/, null /*certificate*/);
+            builder.setCompressedEntryCache(cache);
+            builder.writeFile(file, "lib/variant" + i + "/lib.so");
+            builder.close();
+            assertEquals(1, cache.size());
+        }
+
+        ZipFile zipFile = new ZipFile(outputs[1]);
+        try {
+            ZipEntry entry = zipFile.getEntry("lib/variant1/lib.so");
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            assertTrue(Arrays.equals(Files.toByteArray(file),
+                    ByteStreams.toByteArray(zipFile.getInputStream(entry))));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testSignedJarVerifies() throws Exception {
+        // apks are signed with SHA1, which recent JDKs treat as unsigned in jars. The setting
+        // is read when the signing classes are loaded.
+        String disabledAlgorithms = Security.getProperty("jdk.jar.disabledAlgorithms");
+        Security.setProperty("jdk.jar.disabledAlgorithms", "MD2, MD5");
+        try {
+            checkSignedJar();
+        } finally {
+            if (disabledAlgorithms != null) {
+                Security.setProperty("jdk.jar.disabledAlgorithms", disabledAlgorithms);
+            }
+        }
+    }
+
+    private void checkSignedJar() throws Exception {
+        File keystore = new File(mRoot, "test.keystore");
+        assertTrue(KeystoreHelper.createNewStore(keystore.getPath(), null /*storeType*/,
+                "android", "key", "android", "CN=Test", 1 /*validityYears*/, new NullLogger()));
+        SigningInfo signingInfo = KeystoreHelper.getSigningInfo(keystore.getPath(), "android",
+                null /*storeType*/, "key", "android");
+
+        Random random = new Random(42);
+        File[] files = new File[30];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new File(mRoot, "file" + i);
+            Files.write(content(random, random.nextInt(20000)), files[i]);
+        }
+
+        File serial = new File(mRoot, "serial.apk");
+        File parallel = new File(mRoot, "parallel.apk");
+        for (File output : new File[] { serial, parallel }) {
+            SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                    signingInfo.getKey(), signingInfo.getCertificate());
+            builder.setParallelCompression(output == serial ? 1 : 4, 30000);
+            try {
+                for (File file : files) {
+                    builder.writeFile(file, file.getName());
+                }
+                builder.close();
+            } finally {
+                builder.cleanUp();
+            }
+        }
+
+        assertTrue(Arrays.equals(Files.toByteArray(serial), Files.toByteArray(parallel)));
+
+        // reading the entries of a verified jar fails if the signature does not match.
+        JarFile jarFile = new JarFile(parallel, true /*verify*/);
+        try {
+            int count = 0;
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                ByteStreams.toByteArray(jarFile.getInputStream(entry));
+                if (!entry.getName().startsWith("META-INF/")) {
+                    assertNotNull(entry.getName(), entry.getCodeSigners());
+                    count++;
+                }
+            }
+            assertEquals(files.length, count);
+        } finally {
+            jarFile.close();
+        }
+    }
+
+    public void testAlwaysStoredEntries() throws Exception {
+        Random random = new Random(42);
+        File input = new File(mRoot, "res.zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(input));
+        try {
+            zos.putNextEntry(new ZipEntry("resources.arsc"));
+            zos.write(new byte[3001]);
+            zos.putNextEntry(new ZipEntry("lib/x86/libfoo.so"));
+            zos.write(new byte[5000]);
+            zos.putNextEntry(new ZipEntry("res/raw/file"));
+            zos.write(new byte[5000]);
+        } finally {
+            zos.close();
+        }
+        File library = new File(mRoot, "libbar.so");
+        Files.write(content(random, 5000), library);
+
+        CompressionPolicy policy = new CompressionPolicy(9);
+        policy.setAlwaysStored("so");
+        policy.setAlwaysStored("arsc");
+
+        File output = new File(mRoot, "out.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                null /*key*/, null /*certificate*/);
+        builder.setCompressionPolicy(policy);
+        builder.setAlignment(4);
+        builder.setSharedLibraryAlignment(4096);
+        builder.writeZip(input, null /*filter*/);
+        builder.writeFile(library, "lib/x86/libbar.so");
+        builder.close();
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("resources.arsc").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("lib/x86/libfoo.so").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("lib/x86/libbar.so").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("res/raw/file").getMethod());
+            assertEquals(3001, ByteStreams.toByteArray(
+                    zipFile.getInputStream(zipFile.getEntry("resources.arsc"))).length);
+        } finally {
+            zipFile.close();
+        }
+
+        assertEquals(Collections.emptyList(), ZipAlignVerifier.getMisalignedEntries(output, 4));
+        assertEquals(Collections.singletonList("resources.arsc"),
+                ZipAlignVerifier.getMisalignedEntries(output, 4096));
+    }
+
+    public void testPreviousEntryNowAlwaysStored() throws Exception {
+        File library = new File(mRoot, "libfoo.so");
+        Files.write(content(new Random(42), 5000), library);
+
+        File first = new File(mRoot, "first.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(first),
+                null /*key*/, null /*certificate*/);
+        builder.writeFile(library, "lib/x86/libfoo.so");
+        builder.close();
+        File indexFile = new File(mRoot, "first.index");
+        builder.getIndex().save(indexFile);
+
+        // touched but not modified, after the mappable layout was turned on.
+        library.setLastModified(library.lastModified() - 10000);
+        CompressionPolicy policy = new CompressionPolicy(9);
+        policy.setAlwaysStored("so");
+
+        File second = new File(mRoot, "second.apk");
+        builder = new SignedJarBuilder(new FileOutputStream(second),
+                null /*key*/, null /*certificate*/);
+        builder.setCompressionPolicy(policy);
+        builder.setSharedLibraryAlignment(4096);
+        builder.setPreviousJar(first, JarIndex.load(indexFile));
+        builder.writeFile(library, "lib/x86/libfoo.so");
+        builder.close();
+
+        ZipFile zipFile = new ZipFile(second);
+        try {
+            ZipEntry entry = zipFile.getEntry("lib/x86/libfoo.so");
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            assertTrue(Arrays.equals(Files.toByteArray(library),
+                    ByteStreams.toByteArray(zipFile.getInputStream(entry))));
+        } finally {
+            zipFile.close();
+        }
+
+        assertEquals(Collections.emptyList(),
+                ZipAlignVerifier.getMisalignedEntries(second, 4096));
+    }
+
+    public void testPreviousJarWithAnotherPolicy() throws Exception {
+        File text = new File(mRoot, "text.txt");
+        Files.write(content(new Random(42), 5000), text);
+        File random = new File(mRoot, "random.bin");
+        byte[] randomContent = new byte[5000];
+        new Random(42).nextBytes(randomContent);
+        Files.write(randomContent, random);
+        File small = new File(mRoot, "small.bin");
+        Files.write(content(new Random(42), 100), small);
+        File[] files = new File[] { text, random, small };
+
+        // everything stored first.
+        CompressionPolicy stored = new CompressionPolicy(Deflater.NO_COMPRESSION);
+        File first = new File(mRoot, "first.apk");
+        JarIndex index = buildWithPolicy(first, files, stored, null /*previous*/, new JarIndex());
+
+        // the incompressible file stays stored, the others are now deflated.
+        CompressionPolicy deflated = new CompressionPolicy(Deflater.BEST_COMPRESSION);
+        File clean = new File(mRoot, "clean.apk");
+        buildWithPolicy(clean, files, deflated, null /*previous*/, new JarIndex());
+
+        File second = new File(mRoot, "second.apk");
+        index = buildWithPolicy(second, files, deflated, first, index);
+        assertTrue(Arrays.equals(Files.toByteArray(clean), Files.toByteArray(second)));
+
+        // touched but not modified, with another level.
+        text.setLastModified(text.lastModified() - 10000);
+        CompressionPolicy fast = new CompressionPolicy(Deflater.BEST_SPEED);
+        buildWithPolicy(clean, files, fast, null /*previous*/, new JarIndex());
+
+        File third = new File(mRoot, "third.apk");
+        buildWithPolicy(third, files, fast, second, index);
+        assertTrue(Arrays.equals(Files.toByteArray(clean), Files.toByteArray(third)));
+
+        ZipFile zipFile = new ZipFile(third);
+        try {
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("text.txt").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("random.bin").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("small.bin").getMethod());
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static String read(ZipFile zipFile, String name) throws Exception {
+        return new String(ByteStreams.toByteArray(
+                zipFile.getInputStream(zipFile.getEntry(name))), Charsets.UTF_8);
+    }
+
+    private static void build(File output, File input, File[] files, int threadCount)
+            throws Exception {
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                null /*key*/, null /*certificate*/);
+        // a small window to have the builder wait for the compression threads.
+        builder.setParallelCompression(threadCount, 30000);
+        try {
+            builder.writeZip(input, null /*filter*/);
+            for (File file : files) {
+                builder.writeFile(file, file.getName());
+            }
+            builder.close();
+        } finally {
+            builder.cleanUp();
+        }
+    }
+
+    private static JarIndex buildWithPolicy(File output, File[] files, CompressionPolicy policy,
+            File previous, JarIndex previousIndex) throws Exception {
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                null /*key*/, null /*certificate*/);
+        builder.setCompressionPolicy(policy);
+        if (previous != null) {
+            builder.setPreviousJar(previous, previousIndex);
+        }
+        try {
+            for (File file : files) {
+                builder.writeFile(file, file.getName());
+            }
+            builder.close();
+        } finally {
+            builder.cleanUp();
+        }
+
+        // through a file, as the next build would.
+        File indexFile = new File(output.getPath() + ".index");
+        builder.getIndex().save(indexFile);
+        return JarIndex.load(indexFile);
+    }
+
+    /** Returns content that is partly compressible. */
+    private static byte[] content(Random random, int size) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append(random.nextInt(1000)).append(' ');
+        }
+        return sb.substring(0, size).getBytes(Charsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
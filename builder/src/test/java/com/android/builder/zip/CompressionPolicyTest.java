@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package com.android.builder.zip;
+
+import com.google.common.base.Charsets;
+import junit.framework.TestCase;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+public class CompressionPolicyTest extends TestCase {
+
+    public void testExtensionLevels() {
+        CompressionPolicy policy = new CompressionPolicy(Deflater.BEST_SPEED);
+        policy.setLevel(".TXT", 6);
+        byte[] data = new byte[16];
+
+        assertEquals(Deflater.NO_COMPRESSION, policy.getLevel("assets/Image.PNG", data, 0, 16));
+        assertEquals(Deflater.NO_COMPRESSION, policy.getLevel("res/raw/song.ogg", data, 0, 16));
+        assertEquals(6, policy.getLevel("readme.txt", data, 0, 16));
+        assertEquals(Deflater.BEST_SPEED, policy.getLevel("classes.dex", data, 0, 16));
+        // only the extension of the file name counts.
+        assertEquals(Deflater.BEST_SPEED, policy.getLevel("lib.png/data", data, 0, 16));
+    }
+
+    public void testIncompressibleContent() {
+        byte[] random = new byte[64 * 1024];
+        new Random(42).nextBytes(random);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < random.length) {
+            sb.append("some text that deflate shrinks well ").append(sb.length());
+        }
+        byte[] text = sb.toString().getBytes(Charsets.UTF_8);
+
+        CompressionPolicy policy = new CompressionPolicy(Deflater.BEST_COMPRESSION);
+        assertEquals(Deflater.NO_COMPRESSION,
+                policy.getLevel("assets/data.bin", random, 0, random.length));
+        assertEquals(Deflater.BEST_COMPRESSION,
+                policy.getLevel("assets/data.txt", text, 0, text.length));
+        // too small to be sampled.
+        assertEquals(Deflater.BEST_COMPRESSION,
+                policy.getLevel("assets/small.bin", random, 0, 100));
+
+        policy.setStoreIncompressible(false);
+        assertEquals(Deflater.BEST_COMPRESSION,
+                policy.getLevel("assets/data.bin", random, 0, random.length));
+    }
+
+    public void testLevelWithoutContent() {
+        CompressionPolicy policy = new CompressionPolicy(Deflater.BEST_COMPRESSION);
+        policy.setLevel("txt", 6);
+
+        assertEquals(Integer.valueOf(Deflater.NO_COMPRESSION),
+                policy.getLevel("assets/image.png", 100000));
+        assertEquals(Integer.valueOf(6), policy.getLevel("assets/data.txt", 100000));
+        assertEquals(Integer.valueOf(Deflater.BEST_COMPRESSION),
+                policy.getLevel("assets/small.bin", 100));
+        // the content must be sampled.
+        assertNull(policy.getLevel("assets/data.bin", 100000));
+
+        policy.setStoreIncompressible(false);
+        assertEquals(Integer.valueOf(Deflater.BEST_COMPRESSION),
+                policy.getLevel("assets/data.bin", 100000));
+    }
+}
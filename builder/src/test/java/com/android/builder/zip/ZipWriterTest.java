@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.builder.zip;
+
+import com.android.builder.signing.SignedJarBuilder;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+public class ZipWriterTest extends TestCase {
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testWriteEntries() throws Exception {
+        File zip = new File(mRoot, "out.zip");
+        byte[] text = repeat("hello zip ", 100);
+
+        ZipWriter writer = new ZipWriter(new FileOutputStream(zip), 9);
+        writer.writeEntry("a/deflated.txt", 0, text, 0, text.length, true);
+        writer.writeEntry("stored.txt", 0, text, 10, 20, false);
+        writer.writeEntry("d\u00e9j\u00e0.txt", 0, text, 0, 5, true);
+        assertTrue(writer.hasEntry("stored.txt"));
+        try {
+            writer.writeEntry("stored.txt", 0, text, 0, 1, false);
+            fail();
+        } catch (java.util.zip.ZipException e) {
+            // expected
+        }
+        writer.close();
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(3, zipFile.size());
+            ZipEntry deflated = zipFile.getEntry("a/deflated.txt");
+            assertEquals(ZipEntry.DEFLATED, deflated.getMethod());
+            assertTrue(deflated.getCompressedSize() < text.length);
+            assertTrue(Arrays.equals(text,
+                    ByteStreams.toByteArray(zipFile.getInputStream(deflated))));
+
+            ZipEntry stored = zipFile.getEntry("stored.txt");
+            assertEquals(ZipEntry.STORED, stored.getMethod());
+            assertEquals("hello zip hello zip ", new String(
+                    ByteStreams.toByteArray(zipFile.getInputStream(stored)), Charsets.UTF_8));
+
+            assertNotNull(zipFile.getEntry("d\u00e9j\u00e0.txt"));
+        } finally {
+            zipFile.close();
+        }
+
+        // the local headers must be readable on their own.
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(zip));
+        try {
+            int count = 0;
+            while (zis.getNextEntry() != null) {
+                count++;
+            }
+            assertEquals(3, count);
+        } finally {
+            zis.close();
+        }
+    }
+
+    public void testDosTime() {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2012, Calendar.OCTOBER, 17, 13, 45, 30);
+
+        int time = ZipWriter.toDosTime(calendar.getTimeInMillis());
+        assertEquals(2012 - 1980, time >>> 25);
+        assertEquals(10, (time >> 21) & 0xF);
+        assertEquals(17, (time >> 16) & 0x1F);
+        assertEquals(13, (time >> 11) & 0x1F);
+        assertEquals(45, (time >> 5) & 0x3F);
+        assertEquals(15, time & 0x1F);
+
+        assertEquals((1 << 21) | (1 << 16), ZipWriter.toDosTime(0));
+    }
+
+    public void testRawCopy() throws Exception {
+        File input = new File(mRoot, "in.jar");
+        byte[] text = repeat("some java resource ", 200);
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(input));
+        try {
+            zos.setLevel(1);
+            zos.putNextEntry(new ZipEntry("dir/"));
+            zos.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zos.write(text);
+            zos.putNextEntry(new ZipEntry("res/deflated.txt"));
+            zos.write(text);
+
+            ZipEntry stored = new ZipEntry("res/stored.txt");
+            CRC32 crc = new CRC32();
+            crc.update(text);
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(text.length);
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write(text);
+        } finally {
+            zos.close();
+        }
+
+        File output = new File(mRoot, "out.apk");
+        SignedJarBuilder builder = new SignedJarBuilder(new FileOutputStream(output),
+                null /*key*/, null /*certificate*/);
+        builder.writeZip(input, null /*filter*/);
+        builder.close();
+
+        ZipArchive in = new ZipArchive(input);
+        ZipArchive out = new ZipArchive(output);
+        try {
+            assertEquals(2, out.getEntries().size());
+            for (ZipArchive.Entry entry : out.getEntries()) {
+                ZipArchive.Entry original = find(in, entry.getName());
+                assertEquals(original.getMethod(), entry.getMethod());
+                assertEquals(original.getCrc(), entry.getCrc());
+                assertEquals(original.getDosTime(), entry.getDosTime());
+                // the level 1 compressed data was not deflated again.
+                assertTrue(Arrays.equals(read(in.openRaw(original)), read(out.openRaw(entry))));
+                assertTrue(Arrays.equals(text, read(out.open(entry))));
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    public void testAlignment() throws Exception {
+        File input = new File(mRoot, "in.zip");
+        byte[] text = repeat("aligned ", 10);
+        ZipWriter writer = new ZipWriter(new FileOutputStream(input), 9);
+        writer.writeEntry("a.txt", 0, text, 0, text.length, false);
+        writer.writeEntry("bb.txt", 0, text, 0, text.length, false);
+        writer.close();
+        assertEquals(Arrays.asList("a.txt", "bb.txt"),
+                ZipAlignVerifier.getMisalignedEntries(input, 4));
+
+        File output = new File(mRoot, "out.zip");
+        writer = new ZipWriter(new FileOutputStream(output), 9);
+        writer.setAlignment(4);
+        for (int i = 0; i < 4; i++) {
+            String name = "file" + Strings.repeat("x", i) + ".txt";
+            writer.writeEntry(name, 0, text, 0, text.length - i, false);
+            writer.writeEntry("deflated/" + name, 0, text, 0, text.length, true);
+        }
+        ZipArchive archive = new ZipArchive(input);
+        try {
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                InputStream raw = archive.openRaw(entry);
+                try {
+                    writer.writeRawEntry(entry, raw);
+                } finally {
+                    raw.close();
+                }
+            }
+        } finally {
+            archive.close();
+        }
+        writer.close();
+
+        assertTrue(ZipAlignVerifier.getMisalignedEntries(output, 4).isEmpty());
+
+        ZipFile zipFile = new ZipFile(output);
+        try {
+            assertEquals(10, zipFile.size());
+            assertTrue(Arrays.equals(text,
+                    ByteStreams.toByteArray(zipFile.getInputStream(zipFile.getEntry("bb.txt")))));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    public void testLargeEntries() throws Exception {
+        // larger than the output buffer.
+        byte[] data = new byte[600 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + i / 7);
+        }
+
+        File input = new File(mRoot, "large.zip");
+        ZipWriter writer = new ZipWriter(input, 9);
+        writer.writeEntry("stored.bin", 0, data, 0, data.length, false);
+        writer.writeEntry("deflated.bin", 0, data, 0, data.length, true);
+        writer.close();
+
+        // the data is transferred from the file to a stream that is not a file.
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer = new ZipWriter(output, 9);
+        ZipArchive archive = new ZipArchive(input);
+        try {
+            for (ZipArchive.Entry entry : archive.getEntries()) {
+                writer.writeRawEntry(archive, entry);
+            }
+        } finally {
+            archive.close();
+        }
+        writer.close();
+
+        ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+        try {
+            assertEquals("stored.bin", zis.getNextEntry().getName());
+            assertTrue(Arrays.equals(data, ByteStreams.toByteArray(zis)));
+            assertEquals("deflated.bin", zis.getNextEntry().getName());
+            assertTrue(Arrays.equals(data, ByteStreams.toByteArray(zis)));
+            assertNull(zis.getNextEntry());
+        } finally {
+            zis.close();
+        }
+    }
+
+    private static ZipArchive.Entry find(ZipArchive archive, String name) {
+        for (ZipArchive.Entry entry : archive.getEntries()) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        fail("Missing entry " + name);
+        return null;
+    }
+
+    private static byte[] read(InputStream input) throws Exception {
+        try {
+            return ByteStreams.toByteArray(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private static byte[] repeat(String text, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(text);
+        }
+        return sb.toString().getBytes(Charsets.UTF_8);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
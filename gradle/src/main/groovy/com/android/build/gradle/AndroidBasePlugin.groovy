@@ -23,11 +23,14 @@ import com.android.build.gradle.internal.ProductionAppVariant
 import com.android.build.gradle.internal.TestAppVariant
 import com.android.builder.AndroidBuilder
 import com.android.builder.AndroidDependency
+import com.android.builder.CommandLineRunner
 import com.android.builder.DefaultSdkParser
 import com.android.builder.JarDependency
 import com.android.builder.ProductFlavor
 import com.android.builder.SdkParser
 import com.android.builder.VariantConfiguration
+import com.android.builder.cache.ActionCache
+import com.android.builder.profile.ToolTelemetry
 import com.android.utils.ILogger
 import org.gradle.api.DefaultTask
 import org.gradle.api.GradleException
@@ -56,6 +59,8 @@ abstract class AndroidBasePlugin {
     protected File sdkDir
     private DefaultSdkParser androidSdkParser
     private AndroidLogger androidLogger
+    private CommandLineRunner commandLineRunner
+    private final ToolTelemetry toolTelemetry = new ToolTelemetry()
 
     private ProductFlavorData defaultConfigData
     protected SourceSet mainSourceSet
@@ -89,6 +94,31 @@ abstract class AndroidBasePlugin {
         uninstallAll = project.tasks.add("uninstallAll")
         uninstallAll.description = "Uninstall all applications."
         uninstallAll.group = INSTALL_GROUP
+
+        setUpToolTelemetry()
+    }
+
+    /**
+     * Attributes the external tools run by the builders to the task running them, and reports
+     * them at the end of the build.
+     */
+    private void setUpToolTelemetry() {
+        project.gradle.taskGraph.beforeTask { Task task ->
+            if (task.project == project) {
+                toolTelemetry.setContext(
+                        task instanceof BaseAndroidTask ? task.variant?.name : null, task.path)
+            }
+        }
+
+        project.gradle.buildFinished {
+            if (!toolTelemetry.invocations.isEmpty()) {
+                File report = project.file(
+                        "$project.buildDir/reports/android/tool-invocations.json")
+                toolTelemetry.writeReport(report)
+                project.logger.lifecycle(toolTelemetry.getSummary(5))
+                project.logger.lifecycle("Tool invocation report: $report")
+            }
+        }
     }
 
     protected setDefaultConfig(ProductFlavor defaultConfig) {
@@ -116,6 +146,19 @@ abstract class AndroidBasePlugin {
         return androidLogger
     }
 
+    CommandLineRunner getCommandLineRunner() {
+        if (commandLineRunner == null) {
+            commandLineRunner = new CommandLineRunner(getLogger())
+            commandLineRunner.telemetry = toolTelemetry
+            if (extension.actionCacheDir != null) {
+                commandLineRunner.actionCache = new ActionCache(
+                        extension.actionCacheDir, extension.actionCacheMaxSize, getLogger())
+            }
+        }
+
+        return commandLineRunner
+    }
+
     boolean isVerbose() {
         return project.logger.isEnabled(LogLevel.DEBUG)
     }
@@ -246,6 +289,7 @@ abstract class AndroidBasePlugin {
         }
 
         processResources.aaptOptions = extension.aaptOptions
+        variant.processResourcesTask = processResources
         return processResources
     }
 
@@ -271,6 +315,7 @@ abstract class AndroidBasePlugin {
 
         compileTask.sourceDirs = sourceList
         compileTask.importDirs = variant.config.aidlImports
+        compileTask.aidlOptions = extension.aidlOptions
 
         compileTask.conventionMapping.sourceOutputDir = {
             project.file("$project.buildDir/source/$variant.dirName")
@@ -407,6 +452,21 @@ abstract class AndroidBasePlugin {
                     "${project.buildDir}/libs/${project.archivesBaseName}-${variant.baseName}.dex")
         }
         dexTask.dexOptions = extension.dexOptions
+        if (variant.config.type == VariantConfiguration.Type.TEST) {
+            // the test apks only dex their own classes, the tested library and the other
+            // libraries are dexed once for all the test variants.
+            dexTask.conventionMapping.preDexDir = {
+                project.file("$project.buildDir/pre-dexed")
+            }
+        }
+        if (variant.runProguard) {
+            def processResources = variant.processResourcesTask
+            dexTask.conventionMapping.manifestFile = { processResources.manifestFile }
+            dexTask.conventionMapping.proguardRulesFile = { processResources.proguardFile }
+            dexTask.conventionMapping.shrinkOutputDir = {
+                project.file("$project.buildDir/shrunk/${variant.dirName}")
+            }
+        }
 
         // Add a task to generate application package
         def packageApp = project.tasks.add("package${variant.name}", PackageApplicationTask)
@@ -417,39 +477,34 @@ abstract class AndroidBasePlugin {
 
         def signedApk = variant.isSigned()
 
-        def apkName = signedApk ?
-            "${project.archivesBaseName}-${variant.baseName}-unaligned.apk" :
-            "${project.archivesBaseName}-${variant.baseName}-unsigned.apk"
-
         packageApp.conventionMapping.outputFile = {
+            // the apk is aligned by the packaging itself, name it the way packageApk aligns it.
+            def apkName
+            if (!signedApk) {
+                apkName = "${project.archivesBaseName}-${variant.baseName}-unsigned.apk"
+            } else if (AndroidBuilder.isApkAligned(variant.config, signedApk,
+                    packageApp.packagingOptions)) {
+                apkName = "${project.archivesBaseName}-${variant.baseName}.apk"
+            } else {
+                apkName = "${project.archivesBaseName}-${variant.baseName}-unaligned.apk"
+            }
+
             project.file("$project.buildDir/apk/${apkName}")
         }
         packageApp.conventionMapping.resourceFile = { variant.resourcePackage.singleFile }
         packageApp.conventionMapping.dexFile = { dexTask.outputFile }
-
-        def appTask = packageApp
+        packageApp.packagingOptions = extension.packagingOptions
+        packageApp.aaptOptions = extension.aaptOptions
 
         if (signedApk) {
-            if (variant.zipAlign) {
-                // Add a task to zip align application package
-                def alignApp = project.tasks.add("zipalign${variant.name}", ZipAlignTask)
-                alignApp.dependsOn packageApp
-                alignApp.conventionMapping.inputFile = { packageApp.outputFile }
-                alignApp.conventionMapping.outputFile = {
-                    project.file(
-                            "$project.buildDir/apk/${project.archivesBaseName}-${variant.baseName}.apk")
-                }
-                alignApp.sdkDir = sdkDir
-
-                appTask = alignApp
-            }
-
             // Add a task to install the application package
             def installTask = project.tasks.add("install${variant.name}", InstallTask)
             installTask.description = "Installs the " + variant.description
             installTask.group = INSTALL_GROUP
-            installTask.dependsOn appTask
-            installTask.conventionMapping.packageFile = { appTask.outputFile }
+            installTask.dependsOn packageApp
+            installTask.conventionMapping.packageFile = { packageApp.outputFile }
+            installTask.plugin = this
+            installTask.variant = variant
             installTask.sdkDir = sdkDir
 
             variant.installTask = installTask
@@ -461,7 +516,7 @@ abstract class AndroidBasePlugin {
             assembleTask.description = "Assembles the " + variant.description
             assembleTask.group = BasePlugin.BUILD_GROUP
         }
-        assembleTask.dependsOn appTask
+        assembleTask.dependsOn packageApp
         variant.assembleTask = assembleTask
 
         // add an uninstall task
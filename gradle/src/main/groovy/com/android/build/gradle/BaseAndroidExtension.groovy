@@ -16,7 +16,9 @@
 package com.android.build.gradle
 
 import com.android.build.gradle.internal.AaptOptionsImpl
+import com.android.build.gradle.internal.AidlOptionsImpl
 import com.android.build.gradle.internal.DexOptionsImpl
+import com.android.build.gradle.internal.PackagingOptionsImpl
 import com.android.build.gradle.internal.ProductFlavorDsl
 import org.gradle.api.Action
 
@@ -30,6 +32,13 @@ class BaseAndroidExtension {
 
     final AaptOptionsImpl aaptOptions = new AaptOptionsImpl()
     final DexOptionsImpl dexOptions = new DexOptionsImpl()
+    final AidlOptionsImpl aidlOptions = new AidlOptionsImpl()
+    final PackagingOptionsImpl packagingOptions = new PackagingOptionsImpl()
+
+    /** Optional directory of the cache of aapt/dx/aidl outputs. Caching is off if null. */
+    File actionCacheDir
+    /** Maximum size of the action cache, in bytes. */
+    long actionCacheMaxSize = 1024L * 1024L * 1024L
 
     BaseAndroidExtension() {
     }
@@ -45,4 +54,12 @@ class BaseAndroidExtension {
     void dexOptions(Action<DexOptionsImpl> action) {
         action.execute(dexOptions)
     }
+
+    void aidlOptions(Action<AidlOptionsImpl> action) {
+        action.execute(aidlOptions)
+    }
+
+    void packagingOptions(Action<PackagingOptionsImpl> action) {
+        action.execute(packagingOptions)
+    }
 }
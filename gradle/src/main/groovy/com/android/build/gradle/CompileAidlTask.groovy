@@ -16,7 +16,9 @@
 
 package com.android.build.gradle
 
+import com.android.builder.AidlOptions
 import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.Nested
 import org.gradle.api.tasks.OutputDirectory
 import org.gradle.api.tasks.TaskAction
 
@@ -34,8 +36,12 @@ class CompileAidlTask extends BaseAndroidTask {
     @OutputDirectory
     File sourceOutputDir
 
+    @Nested
+    AidlOptions aidlOptions
+
     @TaskAction
     void generate() {
-        getBuilder().compileAidl(getSourceDirs(), getSourceOutputDir(), getImportDirs())
+        getBuilder().compileAidl(getSourceDirs(), getSourceOutputDir(), getImportDirs(),
+                getAidlOptions())
     }
 }
@@ -16,8 +16,12 @@
 package com.android.build.gradle
 
 import com.android.builder.DexOptions
+import com.android.builder.dexing.DuplicateClassException
+import org.gradle.api.tasks.InputFile
 import org.gradle.api.tasks.InputFiles
 import org.gradle.api.tasks.Nested
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.OutputDirectory
 import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.TaskAction
 
@@ -34,6 +38,20 @@ class DexTask extends BaseAndroidTask {
     @Nested
     DexOptions dexOptions
 
+    // the shrinking inputs and output, only set if the variant runs proguard.
+    @InputFile @Optional
+    File manifestFile
+
+    @InputFile @Optional
+    File proguardRulesFile
+
+    @OutputDirectory @Optional
+    File shrinkOutputDir
+
+    // the folder the libraries are pre-dexed into, shared by the dex tasks of the tests. Not
+    // an output of the task: it only keeps the pre-dexed libraries for the following builds.
+    File preDexDir
+
     @TaskAction
     void generate() {
         List<String> files = new ArrayList<String>();
@@ -50,6 +68,22 @@ class DexTask extends BaseAndroidTask {
             }
         }
 
-        getBuilder().convertBytecode(files, libs, getOutputFile().absolutePath, getDexOptions())
+        if (getShrinkOutputDir() != null) {
+            files = getBuilder().shrinkClasses(files, libs, getManifestFile().absolutePath,
+                    getProguardRulesFile()?.absolutePath, getShrinkOutputDir().absolutePath)
+            libs = []
+        }
+
+        try {
+            getBuilder().convertBytecode(files, libs, getOutputFile().absolutePath,
+                    getDexOptions(), getPreDexDir()?.absolutePath)
+        } catch (DuplicateClassException e) {
+            def logger = getLogger()
+            logger.error("Error: duplicate class while dexing " + getOutputFile().absolutePath)
+            logger.error("\tClass: " + e.className)
+            logger.error("\tOrigin 1: " + e.origin1)
+            logger.error("\tOrigin 2: " + e.origin2)
+            throw new RuntimeException();
+        }
     }
 }
@@ -15,7 +15,6 @@
  */
 package com.android.build.gradle
 
-import org.gradle.api.DefaultTask
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputFile
 import org.gradle.api.tasks.TaskAction
@@ -23,7 +22,7 @@ import org.gradle.api.tasks.TaskAction
 /**
  * Task installing an app.
  */
-class InstallTask extends DefaultTask {
+class InstallTask extends BaseAndroidTask {
     @Input
     File sdkDir
 
@@ -32,11 +31,10 @@ class InstallTask extends DefaultTask {
 
     @TaskAction
     void generate() {
-        project.exec {
-            executable = new File(getSdkDir(), "platform-tools/adb")
-            args 'install'
-            args '-r'
-            args getPackageFile()
-        }
+        plugin.commandLineRunner.runCmdLine([
+                new File(getSdkDir(), "platform-tools/adb").absolutePath,
+                'install',
+                '-r',
+                getPackageFile().absolutePath])
     }
 }
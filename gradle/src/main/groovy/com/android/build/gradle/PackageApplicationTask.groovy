@@ -15,9 +15,13 @@
  */
 package com.android.build.gradle
 
+import com.android.build.gradle.internal.AaptOptionsImpl
+import com.android.build.gradle.internal.PackagingOptionsImpl
 import com.android.builder.packaging.DuplicateFileException
+import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.InputDirectory
 import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.Nested
 import org.gradle.api.tasks.Optional
 import org.gradle.api.tasks.OutputFile
 import org.gradle.api.tasks.TaskAction
@@ -35,6 +39,17 @@ class PackageApplicationTask extends BaseAndroidTask {
     @InputDirectory @Optional
     File jniDir
 
+    @Nested
+    PackagingOptionsImpl packagingOptions
+
+    @Nested
+    AaptOptionsImpl aaptOptions
+
+    @Input
+    int getCompressionLevel() {
+        return variant.config.buildType.compressionLevel
+    }
+
     @TaskAction
     void generate() {
 
@@ -43,7 +58,9 @@ class PackageApplicationTask extends BaseAndroidTask {
                     getResourceFile().absolutePath,
                     getDexFile().absolutePath,
                     getJniDir()?.absolutePath,
-                    getOutputFile().absolutePath)
+                    getOutputFile().absolutePath,
+                    getPackagingOptions(),
+                    getAaptOptions())
         } catch (DuplicateFileException e) {
             def logger = getLogger()
             logger.error("Error: duplicate files during packaging of APK " + getOutputFile().absolutePath)
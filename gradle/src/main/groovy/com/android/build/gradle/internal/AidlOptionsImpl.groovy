@@ -13,31 +13,12 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-package com.android.build.gradle
 
-import org.gradle.api.DefaultTask
-import org.gradle.api.tasks.Input
-import org.gradle.api.tasks.InputFile
-import org.gradle.api.tasks.OutputFile
-import org.gradle.api.tasks.TaskAction
+package com.android.build.gradle.internal
 
-class ZipAlignTask extends DefaultTask {
-    @OutputFile
-    File outputFile
+import com.android.builder.AidlOptions
 
-    @Input
-    File sdkDir
+public class AidlOptionsImpl implements AidlOptions {
 
-    @InputFile
-    File inputFile
-
-    @TaskAction
-    void generate() {
-        project.exec {
-            executable = new File(getSdkDir(), "tools/zipalign")
-            args '-f', '4'
-            args getInputFile()
-            args getOutputFile()
-        }
-    }
+    boolean inProcess = false
 }
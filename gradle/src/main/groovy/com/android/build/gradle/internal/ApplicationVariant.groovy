@@ -16,6 +16,7 @@
 package com.android.build.gradle.internal
 
 import com.android.build.gradle.AndroidBasePlugin
+import com.android.build.gradle.ProcessResourcesTask
 import com.android.builder.AndroidBuilder
 import com.android.builder.ProductFlavor
 import com.android.builder.VariantConfiguration
@@ -32,6 +33,7 @@ public abstract class ApplicationVariant {
     FileCollection runtimeClasspath
     FileCollection packagedClasspath
     FileCollection resourcePackage
+    ProcessResourcesTask processResourcesTask
     Compile compileTask
     Iterable<Object> configObjects
     Task assembleTask
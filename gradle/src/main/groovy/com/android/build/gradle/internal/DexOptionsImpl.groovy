@@ -19,4 +19,9 @@ package com.android.build.gradle.internal
 import com.android.builder.DexOptions;
 
 public class DexOptionsImpl implements DexOptions {
+
+    boolean inProcess = false
+    boolean preDexLibraries = false
+    boolean incremental = false
+    int shardCount = 1
 }
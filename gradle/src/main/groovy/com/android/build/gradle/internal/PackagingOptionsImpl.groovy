@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.build.gradle.internal
+
+import com.android.builder.PackagingOptions
+import org.gradle.api.tasks.Input
+
+public class PackagingOptionsImpl implements PackagingOptions {
+
+    // the options that change the content of the apk are inputs of the packaging tasks.
+    int compressionThreads = 1
+    long compressionWindow = 32L * 1024L * 1024L
+    @Input
+    int alignment = 4
+    @Input
+    boolean incremental = false
+    @Input
+    Map<String, Integer> compressionLevels = [:]
+    @Input
+    boolean storeIncompressible = true
+    long compressionCacheSize = 64L * 1024L * 1024L
+    @Input
+    List<String> includes = []
+    @Input
+    List<String> excludes = []
+    @Input
+    boolean mappableLayout = false
+
+    public void compressionLevel(String extension, int level) {
+        compressionLevels.put(extension, level)
+    }
+
+    public void include(String... patterns) {
+        includes.addAll(Arrays.asList(patterns))
+    }
+
+    public void exclude(String... patterns) {
+        excludes.addAll(Arrays.asList(patterns))
+    }
+}
@@ -84,6 +84,7 @@ class ProductionAppVariant extends ApplicationVariant {
     AndroidBuilder createBuilder(AndroidBasePlugin androidBasePlugin) {
         AndroidBuilder androidBuilder = new AndroidBuilder(
                 androidBasePlugin.sdkParser,
+                androidBasePlugin.commandLineRunner,
                 androidBasePlugin.logger,
                 androidBasePlugin.verbose)
 
@@ -88,6 +88,7 @@ class TestAppVariant extends ApplicationVariant {
     AndroidBuilder createBuilder(AndroidBasePlugin androidBasePlugin) {
         AndroidBuilder androidBuilder = new AndroidBuilder(
                 androidBasePlugin.sdkParser,
+                androidBasePlugin.commandLineRunner,
                 androidBasePlugin.logger,
                 androidBasePlugin.verbose)
 